@@ -3,13 +3,16 @@ package open.dolphin.client;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import javax.ws.rs.NotFoundException;
 import open.dolphin.delegater.ChartEventDelegater;
 import open.dolphin.infomodel.*;
 import open.dolphin.project.Project;
@@ -53,6 +56,9 @@ public class ChartEventHandler implements PropertyChangeListener {
     
     private boolean retryChartEvent;
     
+    // 最後に受け取ったイベントの番号 再接続時に未受信分を受け取るため再起動しても保持する
+    private long lastSequence;
+    
     private static final ChartEventHandler instance = new ChartEventHandler();
     
     private boolean DEBUG;
@@ -261,7 +267,16 @@ public class ChartEventHandler implements PropertyChangeListener {
     
    private class EventListenTask2 implements Runnable {
    
-        private Future<ChartEventModel> future;
+        private Future<?> future;
+        
+        // Server-Sent Eventsの接続
+        private volatile ChartEventDelegater.EventStream stream;
+        
+        // Server-Sent Eventsを使う サーバーが対応していない場合はlong-poll
+        private boolean useStream;
+        
+        // 番号付きsubscribeを使う 古いサーバーの場合はfalseにする
+        private boolean useSequence = Project.getBoolean("subscribe.sequence", true);
         
         private boolean isRunning;
         
@@ -274,53 +289,120 @@ public class ChartEventHandler implements PropertyChangeListener {
             if (future != null) {
                 future.cancel(true);
             }
+            if (stream != null) {
+                stream.close();
+            }
         }
         
         @Override
         public void run() {
             
+            useStream = Project.getBoolean("subscribe.stream", true)
+                    && ChartEventDelegater.getInstance().isStreamSupported();
+            
             while (isRunning) {
                 try {
-                    future = ChartEventDelegater.getInstance().subscribe();
-                    ChartEventModel cem = future.get();
-                    if (cem != null) {
-                        exec.execute(new RemoteOnEventTask2(cem));
-                        retryCnt = 0;
-                    }                  
+                    if (useStream) {
+                        listenStream();
+                    } else if (useSequence) {
+                        listenSequence();
+                    } else {
+                        Future<ChartEventModel> f = ChartEventDelegater.getInstance().subscribe();
+                        future = f;
+                        ChartEventModel cem = f.get();
+                        if (cem != null) {
+                            exec.execute(new RemoteOnEventTask2(cem));
+                            retryCnt = 0;
+                        }
+                    }
+                } catch (ExecutionException e) {
+                    if (useSequence && e.getCause() instanceof NotFoundException) {
+                        // 番号付きsubscribeのないサーバー
+                        useSequence = false;
+                        continue;
+                    }
+                    onSubscribeError(e);
                 } catch (Exception e) {
-                    System.err.print("future exception");
-                    System.out.println(e.toString());
+                    onSubscribeError(e);
+                }
+            }
+        }
+        
+        // 1本の接続でイベントを受け続ける 切断されたら続きの番号から繋ぎ直す
+        // サーバーが接続を閉じた場合もエラーとして数え、間隔をあけて繋ぎ直す
+        private void listenStream() throws Exception {
+            stream = ChartEventDelegater.getInstance().openStream(lastSequence);
+            try {
+                ChartEventModel cem;
+                while (isRunning && (cem = stream.next()) != null) {
+                    // 再接続直後は重複することがある
+                    if (cem.getSequence() <= lastSequence) {
+                        continue;
+                    }
+                    lastSequence = cem.getSequence();
+                    retryCnt = 0;
+                    if (clientUUID.equals(cem.getIssuerUUID())) {
+                        continue;
+                    }
+                    exec.execute(new RemoteOnEventTask2(cem));
+                }
+            } finally {
+                // イベントを受け取る前に切断されてもサーバーの番号から繋ぎ直す
+                lastSequence = Math.max(lastSequence, stream.getLastEventId());
+                stream.close();
+                stream = null;
+            }
+            if (isRunning) {
+                throw new IOException("chart event stream closed");
+            }
+        }
+        
+        // 再接続時は未受信分がまとめて届く
+        private void listenSequence() throws Exception {
+            Future<ChartEventList> f = ChartEventDelegater.getInstance().subscribe(lastSequence);
+            future = f;
+            ChartEventList events = f.get();
+            if (events != null && events.getList() != null) {
+                for (ChartEventModel cem : events.getList()) {
+                    lastSequence = Math.max(lastSequence, cem.getSequence());
+                    // 自クライアントが発行したものは処理済み
+                    if (clientUUID.equals(cem.getIssuerUUID())) {
+                        continue;
+                    }
+                    exec.execute(new RemoteOnEventTask2(cem));
+                }
+                retryCnt = 0;
+            }
+        }
+        
+        private void onSubscribeError(Exception e) {
+            System.err.print("future exception");
+            System.out.println(e.toString());
 //s.oh^ 2013/08/01
-                    if(Project.getBoolean("subscribe.retry.check", true)) {
-                        retryCnt += 1;
-                        if(retryCnt > retryLimit) {
-                            isRunning = false;
+            if(Project.getBoolean("subscribe.retry.check", true)) {
+                retryCnt += 1;
+                if(retryCnt > retryLimit) {
+                    isRunning = false;
 //minagawa^ 2015/03/11 メッセージの評判がよくないので表示なし                            
-                            //JOptionPane.showMessageDialog(null, "同期通信に異常が発生したため、アプリを再起動してください。", ClientContext.getString("productString"), JOptionPane.WARNING_MESSAGE);
+                    //JOptionPane.showMessageDialog(null, "同期通信に異常が発生したため、アプリを再起動してください。", ClientContext.getString("productString"), JOptionPane.WARNING_MESSAGE);
 //minagawa$                            
-                        }else{
-                            if(Project.getBoolean("subscribe.retry.restart", false)) {
-//                                listenTask.stop();
-//                                thread.interrupt();
-//                                thread = null;
-//                                
-//                                exec = Executors.newSingleThreadExecutor();
-//                                listenTask = new EventListenTask2();
-//                                thread = new Thread(listenTask, "ChartEvent Listen Task");
-//                                thread.setPriority(Thread.NORM_PRIORITY);
-//                                thread.start();
-                                setRetryChartEvent(true);
-                                isRunning = false;
-                                break;
-                            }
-                            try{
-                                Thread.sleep(retryTime);
-                            }catch(InterruptedException ex) {}
-                        }
+                }else{
+                    if(Project.getBoolean("subscribe.retry.restart", false)) {
+                        setRetryChartEvent(true);
+                        isRunning = false;
+                        return;
                     }
-//s.oh$
+                    try{
+                        Thread.sleep(retryTime);
+                    }catch(InterruptedException ex) {}
                 }
+            } else {
+                // 回数を数えない場合も間隔をあけて繋ぎ直す
+                try{
+                    Thread.sleep(retryTime);
+                }catch(InterruptedException ex) {}
             }
+//s.oh$
         }
     } 
     
@@ -11,6 +11,7 @@ import java.beans.PropertyChangeSupport;
 import java.text.MessageFormat;
 import java.util.*;
 import javax.swing.*;
+import javax.swing.event.ChangeEvent;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.table.TableColumn;
 import open.dolphin.delegater.DocumentDelegater;
@@ -68,6 +69,25 @@ public class DocumentHistory {
     // 自動的に取得する文書数
     private int autoFetchCount;
     
+    // カルテの文書履歴を一度に取得する件数
+    private int pageSize;
+    
+    // 検索条件とまだ取得していない古い文書があるかどうか
+    private DocumentSearchSpec pagingSpec;
+    private boolean hasMore;
+    
+    // 取得した中で最も古い文書履歴 続きはこれより古いものを取得する
+    private DocInfoModel oldest;
+    
+    // 続きを取得中の場合 true
+    private boolean fetching;
+    
+    // 検索するたびに増やし、前の検索の続きの結果を捨てる
+    private int generation;
+    
+    // 行の選択を戻している間は選択の通知をしない
+    private boolean restoring;
+    
     // 昇順降順のフラグ 
     private boolean ascending;
     
@@ -179,6 +199,10 @@ public class DocumentHistory {
      * 文書履歴を Karte から取得し表示する。
      */
     public void showHistory() {
+        // Karte には抽出期間の全件があるので続きは取得しない
+        generation++;
+        hasMore = false;
+        fetching = false;
         List<DocInfoModel> list = context.getKarte().getDocInfoList();
         updateHistory(list);
     }
@@ -202,10 +226,117 @@ public class DocumentHistory {
             spec.setCode(DocumentSearchSpec.DOCTYPE_SEARCH);	// 検索タイプ
             spec.setAscending(ascending);
 
-            DocInfoTask task = new DocInfoTask(context, spec, new DocumentDelegater());
+            // 新しいものから pageSize 件を取得し、続きはスクロールした時に取得する
+            generation++;
+            pagingSpec = spec;
+            hasMore = false;
+            oldest = null;
+            fetching = false;
+            DocInfoTask task = new DocInfoTask(context, spec, null, generation, new DocumentDelegater());
+            task.execute();
+        }
+    }
+
+    /**
+     * 古い方の端までスクロールした場合に続きの文書履歴を取得する。
+     */
+    private void fetchMore() {
+
+        if (!hasMore || fetching || tableModel.getObjectCount() == 0) {
+            return;
+        }
+        JTable table = view.getTable();
+        Rectangle visible = table.getVisibleRect();
+        int margin = table.getRowHeight() * 2;
+        boolean atEnd = ascending
+                ? visible.y <= margin
+                : visible.y + visible.height >= table.getHeight() - margin;
+        if (atEnd) {
+            fetching = true;
+            DocInfoTask task = new DocInfoTask(context, pagingSpec, oldest, generation, new DocumentDelegater());
             task.execute();
         }
     }
+
+    /**
+     * 検索結果を受け取る。最初の検索の場合は履歴を置き換え、続きの場合は古い方の端に加える。
+     */
+    private void historyFetched(DocumentSearchSpec spec, DocInfoModel last, int gen, List<DocInfoModel> result) {
+
+        if (gen != generation) {
+            return;
+        }
+        fetching = false;
+
+        // サーバは新しい順に返すので最後が最も古い
+        boolean karte = IInfoModel.DOCTYPE_KARTE.equals(spec.getDocType());
+        hasMore = karte && result != null && result.size() >= pageSize;
+        if (result != null && result.size() > 0) {
+            oldest = result.get(result.size() - 1);
+        }
+
+        if (last == null) {
+            updateHistory(result);
+        } else {
+            appendHistory(result);
+        }
+    }
+
+    /**
+     * 続きの(古い)文書履歴を加える。選択している行はそのままにする。
+     */
+    private void appendHistory(List<DocInfoModel> older) {
+
+        if (older != null && older.size() > 0) {
+
+            JTable table = view.getTable();
+            List<DocInfoModel> list = tableModel.getDataProvider();
+            List<DocInfoModel> selected = new ArrayList<>();
+            for (int row : table.getSelectedRows()) {
+                DocInfoModel m = tableModel.getObject(row);
+                if (m != null) {
+                    selected.add(m);
+                }
+            }
+            Rectangle visible = table.getVisibleRect();
+
+            // 昇順の場合は先頭に、降順の場合は末尾に加える
+            restoring = true;
+            try {
+                if (ascending) {
+                    Collections.sort(older);
+                    list.addAll(0, older);
+                } else {
+                    Collections.sort(older, Collections.reverseOrder());
+                    list.addAll(older);
+                }
+                tableModel.fireTableDataChanged();
+                for (DocInfoModel m : selected) {
+                    int row = list.indexOf(m);
+                    if (row >= 0) {
+                        table.getSelectionModel().addSelectionInterval(row, row);
+                    }
+                }
+            } finally {
+                restoring = false;
+            }
+
+            // 先頭に加えた場合は見ていた行が動かないようにスクロールする
+            if (ascending) {
+                visible.y += table.getRowHeight() * older.size();
+                table.scrollRectToVisible(visible);
+            }
+        }
+        updateCount();
+    }
+
+    // 件数を表示する 続きがある場合は + をつける
+    private void updateCount() {
+        String countInfo = ClientContext.getMyBundle(DocumentHistory.class).getString("messageFormat.numRecords");
+        MessageFormat msf = new MessageFormat(countInfo);
+        int cnt = tableModel.getObjectCount();
+        countField.setText(msf.format(new Object[]{hasMore ? cnt + "+" : String.valueOf(cnt)}));
+    }
     
     public void getLetterHistory() {
         if (contentCombo.getSelectedIndex()==0) {
@@ -235,13 +366,11 @@ public class DocumentHistory {
         // 束縛プロパティの通知を行う
         boundSupport.firePropertyChange(HITORY_UPDATED, false, true);
 
-        String countInfo = ClientContext.getMyBundle(DocumentHistory.class).getString("messageFormat.numRecords");
-        MessageFormat msf = new MessageFormat(countInfo);
+        updateCount();
         
         if (mewHistory != null && mewHistory.size() > 0) {
 
             int cnt = mewHistory.size();
-            countField.setText(msf.format(new Object[]{String.valueOf(cnt)}));
             int fetchCount = cnt > autoFetchCount ? autoFetchCount : cnt;
 
             // テーブルの最初の行の自動選択を行う
@@ -264,9 +393,6 @@ public class DocumentHistory {
             Rectangle r = table.getCellRect(first, last, true);
             table.scrollRectToVisible(r);
 
-        } else {
-            //countField.setText("0 件");
-            countField.setText(msf.format(new Object[]{"0"}));
         }
     }
 
@@ -536,7 +662,7 @@ public class DocumentHistory {
         // 履歴テーブルで選択された行の文書を表示する
         ListSelectionModel slm = view.getTable().getSelectionModel();
         slm.addListSelectionListener((ListSelectionEvent e) -> {
-            if (e.getValueIsAdjusting() == false) {
+            if (e.getValueIsAdjusting() == false && !restoring) {
                 JTable table = view.getTable();
                 int[] selectedRows = table.getSelectedRows();
                 if (selectedRows.length > 0) {
@@ -558,6 +684,14 @@ public class DocumentHistory {
             }
         });
 
+        // 古い方の端までスクロールしたら続きを取得する
+        JViewport viewport = (JViewport) SwingUtilities.getAncestorOfClass(JViewport.class, view.getTable());
+        if (viewport != null) {
+            viewport.addChangeListener((ChangeEvent e) -> {
+                fetchMore();
+            });
+        }
+
         // 文書種別変更
         contentCombo.addItemListener((ItemListener) EventHandler.create(ItemListener.class, this, "contentChanged", "stateChange"));
 
@@ -582,6 +716,9 @@ public class DocumentHistory {
         // Preference から自動文書取得数を設定する
         autoFetchCount = Project.getInt(Project.DOC_HISTORY_FETCHCOUNT, 1);
 
+        // Preference から一度に取得する文書履歴の件数を設定する
+        pageSize = Math.max(1, Project.getInt(Project.DOC_HISTORY_PAGESIZE, 100));
+
         // Preference から昇順降順を設定する
         ascending = Project.getBoolean(Project.DOC_HISTORY_ASCENDING);
 
@@ -770,22 +907,35 @@ public class DocumentHistory {
         private final DocumentDelegater ddl;
         // 検索パラメータを保持するオブジェクト
         private final DocumentSearchSpec spec;
+        // 続きを取得する場合の最も古い文書履歴、最初の検索の場合は null
+        private final DocInfoModel last;
+        private final int gen;
 
-        public DocInfoTask(Chart ctx, DocumentSearchSpec spec, DocumentDelegater ddl) {
+        public DocInfoTask(Chart ctx, DocumentSearchSpec spec, DocInfoModel last, int gen, DocumentDelegater ddl) {
             super(ctx);
             this.spec = spec;
+            this.last = last;
+            this.gen = gen;
             this.ddl = ddl;
         }
 
         @Override
         protected List<DocInfoModel> doInBackground() throws Exception {
-            List<DocInfoModel> result = (List<DocInfoModel>) ddl.getDocumentList(spec);
+            List<DocInfoModel> result = ddl.getDocumentList(spec, last, pageSize);
             return result;
         }
 
         @Override
         protected void succeeded(List<DocInfoModel> result) {           
-            updateHistory(result);       
+            historyFetched(spec, last, gen, result);
+        }
+
+        @Override
+        protected void failed(Throwable e) {
+            if (gen == generation) {
+                fetching = false;
+            }
+            super.failed(e);
         }
     }
 
@@ -23,6 +23,7 @@ import javax.swing.*;
 import javax.swing.Timer;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.MenuEvent;
+import open.dolphin.dao.SqlDaoBean;
 import open.dolphin.delegater.DocumentDelegater;
 import open.dolphin.delegater.OrcaDelegater;
 import open.dolphin.delegater.OrcaDelegaterFactory;
@@ -39,6 +40,7 @@ import open.dolphin.impl.pvt.WatingListImpl;
 import open.dolphin.impl.schedule.PatientScheduleImpl;
 import open.dolphin.infomodel.ActivityModel;
 import open.dolphin.infomodel.AttachmentModel;
+import open.dolphin.infomodel.BeanBytesCodec;
 import open.dolphin.infomodel.DocumentModel;
 import open.dolphin.infomodel.FacilityModel;
 import open.dolphin.infomodel.IInfoModel;
@@ -199,6 +201,9 @@ public class Dolphin implements MainWindow {
         scl.start();
 //masuda$      
 
+        // 保存する beanBytes の形式 全クライアントがバイナリ形式を読めるまでは false
+        BeanBytesCodec.setWriteBinary(Project.getBoolean(BeanBytesCodec.WRITE_BINARY, false));
+
         // プラグインのプロバイダマップを生成する
         setProviders(new HashMap<>());
         
@@ -1272,6 +1277,8 @@ public class Dolphin implements MainWindow {
             myFrame.setVisible(false);
             myFrame.dispose();
         }
+        // ORCA への接続を閉じる
+        SqlDaoBean.closePools();
         java.util.logging.Logger.getLogger(this.getClass().getName()).info("Exits application");
         System.exit(0);
     }
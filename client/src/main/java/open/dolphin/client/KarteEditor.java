@@ -1428,7 +1428,7 @@ public class KarteEditor extends AbstractChartDocument implements IInfoModel, NC
             mb.setFirstConfirmed(docInfo.getFirstConfirmDate());    // 適合開始日
             mb.setRecorded(docInfo.getConfirmDate());               // 記録日
             mb.setStatus(STATUS_FINAL);                             // status
-            mb.setBeanBytes(BeanUtils.getXMLBytes(mb.getModel()));  // byte[]
+            mb.setBeanBytes(BeanUtils.getBeanBytes(mb.getModel()));  // byte[]
 
             // ModuleInfo を設定する
             // Name, Role, Entity は設定されている
@@ -1963,7 +1963,7 @@ public class KarteEditor extends AbstractChartDocument implements IInfoModel, NC
                         }
 
                         // 実態をBeanXML化、それのバイトデータ
-                        bean.setBeanBytes(BeanUtils.getXMLBytes(bean.getModel()));
+                        bean.setBeanBytes(BeanUtils.getBeanBytes(bean.getModel()));
 
                         // ModuleInfo を設定する
                         // Name, Role, Entity は設定されている
@@ -9,8 +9,6 @@ import java.awt.image.BufferedImage;
 import java.awt.image.IndexColorModel;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
-import java.beans.XMLDecoder;
-import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -911,10 +909,7 @@ public class KartePane implements DocumentListener, MouseListener,
                 if (result != null) {
                     try {
                         byte[] bytes = result.getStampBytes();
-                        IInfoModel model;
-                        try (XMLDecoder d = new XMLDecoder(new BufferedInputStream(new ByteArrayInputStream(bytes)))) {
-                            model = (IInfoModel) d.readObject();
-                        }
+                        IInfoModel model = (IInfoModel) BeanUtils.xmlDecode(bytes);
 
                         if (model != null) {
                             insertTextStamp(model.toString());
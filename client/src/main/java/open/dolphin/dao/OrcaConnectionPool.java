@@ -0,0 +1,535 @@
+package open.dolphin.dao;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ORCA の PostgreSQL に直接つなぐ JDBC コネクションプール。クライアントの SqlDaoBean で使う。
+ * サーバは WildFly の ORCADS データソース(prepared-statement-cache-size)を使うので、このプールは使わない。
+ *
+ * getConnection() が返す PooledConnection の close() は物理接続をプールへ戻す。
+ * 物理接続ごとに prepareStatement(sql) の PreparedStatement を LRU で保持し、PooledStatement の close() でキャッシュへ戻す。
+ * 接続時に statement_timeout を設定し、しばらく使わなかった接続は貸し出す前に検証クエリで確かめる。
+ * 接続数は上限までで、空きがなければ maxWait まで待ち、それでもなければ SQLException を投げる。
+ *
+ * ResultSet、DatabaseMetaData、createStatement() 等のキャッシュしない文は包まずにそのまま返す
+ * (ResultSet の getter ごとに余計な処理をしないため)。キャッシュしない文は返却時に閉じる。
+ * 空きを待つ際に abandonedTimeout を超えて返却されていない接続があれば、借りた場所のスタックを
+ * ログに出して閉じ、枠を回収する。
+ *
+ * ロックの順序: 貸し出しの状態は PooledConnection、文のキャッシュは Physical、接続の一覧はプールで守る。
+ * 2つを同時に持つことはない。
+ */
+public class OrcaConnectionPool {
+
+    public static final int DEFAULT_MAX_SIZE = 8;
+    public static final long DEFAULT_MAX_WAIT = 10000L;         // ms
+    public static final int DEFAULT_STATEMENT_TIMEOUT = 30;     // 秒
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 50;
+    public static final long DEFAULT_ABANDONED_TIMEOUT = 5L * 60L * 1000L;  // ms
+
+    private static final String VALIDATION_QUERY = "select 1";
+    private static final long VALIDATION_INTERVAL = 30L * 1000L;    // これ以上使わなかった接続は検証する
+    private static final long MAX_IDLE_TIME = 5L * 60L * 1000L;     // これ以上使わなかった接続は閉じる
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final boolean readOnly;
+    private final int maxSize;
+    private final long maxWait;
+    private final int statementTimeout;
+    private final int statementCacheSize;
+
+    // 空いている接続 最後に使ったものが先頭
+    private final Deque<Physical> idle = new ArrayDeque<>();
+    private int total;
+    private boolean closed;
+
+    // 貸し出し中の接続
+    private final Set<PooledConnection> leases = new HashSet<>();
+    private volatile long abandonedTimeout = DEFAULT_ABANDONED_TIMEOUT;
+
+    private final AtomicLong borrowed = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong destroyed = new AtomicLong();
+    private final AtomicLong waited = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong validationFailures = new AtomicLong();
+    private final AtomicLong statementHits = new AtomicLong();
+    private final AtomicLong statementMisses = new AtomicLong();
+    private final AtomicLong abandoned = new AtomicLong();
+
+    /**
+     * プールを生成する。接続は必要になった時点で作る。
+     * @param url JDBC URL
+     * @param user ユーザー
+     * @param password パスワード
+     * @param readOnly 読み込み専用の接続にする場合 true
+     * @param maxSize 最大接続数
+     * @param maxWait 空きを待つ時間(ms)
+     * @param statementTimeout 1文あたりの最大実行時間(秒) 0 で無制限
+     * @param statementCacheSize 1接続あたりに保持する PreparedStatement の数 0 で保持しない
+     */
+    public OrcaConnectionPool(String url, String user, String password, boolean readOnly,
+            int maxSize, long maxWait, int statementTimeout, int statementCacheSize) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.readOnly = readOnly;
+        this.maxSize = Math.max(1, maxSize);
+        this.maxWait = maxWait;
+        this.statementTimeout = statementTimeout;
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    /**
+     * 返却されない接続を回収するまでの時間を設定する。
+     * @param abandonedTimeout 時間(ms) 0 で回収しない
+     */
+    public void setAbandonedTimeout(long abandonedTimeout) {
+        this.abandonedTimeout = abandonedTimeout;
+    }
+
+    /**
+     * 接続を借りる。使い終わったら必ず close() する。
+     * @return 接続
+     * @throws SQLException 接続できない、または空きを待ちきれなかった場合
+     */
+    public Connection getConnection() throws SQLException {
+
+        long start = System.nanoTime();
+        long deadline = start + maxWait * 1000000L;
+        boolean waiting = false;
+
+        while (true) {
+            Physical p = null;
+            boolean create = false;
+            List<PooledConnection> expired = null;
+
+            synchronized (this) {
+                while (p == null && !create && expired == null) {
+                    if (closed) {
+                        throw new SQLException("ORCA connection pool is closed");
+                    }
+                    p = idle.pollFirst();
+                    if (p == null && total < maxSize) {
+                        total++;
+                        create = true;
+                    }
+                    if (p == null && !create) {
+                        // 返却されていない接続があれば回収してからもう一度
+                        expired = findAbandoned();
+                        if (expired != null) {
+                            break;
+                        }
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0L) {
+                            timeouts.incrementAndGet();
+                            throw new SQLException("ORCA connection pool exhausted: " + maxSize + " connections in use");
+                        }
+                        if (!waiting) {
+                            waiting = true;
+                            waited.incrementAndGet();
+                        }
+                        try {
+                            wait(Math.max(1L, remaining / 1000000L));
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new SQLException("interrupted while waiting for an ORCA connection", e);
+                        }
+                    }
+                }
+            }
+
+            if (expired != null) {
+                for (PooledConnection lease : expired) {
+                    reclaim(lease);
+                }
+                continue;
+            }
+
+            if (create) {
+                try {
+                    p = open();
+                } catch (SQLException | RuntimeException e) {
+                    synchronized (this) {
+                        total--;
+                        notifyAll();
+                    }
+                    throw e;
+                }
+            } else if (!isUsable(p)) {
+                destroy(p);
+                continue;
+            }
+
+            PooledConnection lease = new PooledConnection(this, p);
+            synchronized (this) {
+                leases.add(lease);
+            }
+            waitNanos.addAndGet(System.nanoTime() - start);
+            borrowed.incrementAndGet();
+            return lease;
+        }
+    }
+
+    /**
+     * 空いている接続を閉じ、以後の貸し出しを止める。貸し出し中の接続は返却時に閉じる。
+     */
+    public void close() {
+        List<Physical> list;
+        synchronized (this) {
+            closed = true;
+            list = new ArrayList<>(idle);
+            idle.clear();
+            notifyAll();
+        }
+        for (Physical p : list) {
+            destroy(p);
+        }
+    }
+
+    /**
+     * 統計を返す。
+     * @return 接続数、貸し出し数、待ち、文キャッシュのヒット等
+     */
+    public String getStats() {
+        int active;
+        int idleCount;
+        synchronized (this) {
+            idleCount = idle.size();
+            active = total - idleCount;
+        }
+        long cnt = borrowed.get();
+        StringBuilder sb = new StringBuilder();
+        sb.append("active=").append(active);
+        sb.append(" idle=").append(idleCount);
+        sb.append(" max=").append(maxSize);
+        sb.append(" borrowed=").append(cnt);
+        sb.append(" avgWait=").append(cnt > 0 ? waitNanos.get() / cnt / 1000L : 0L).append("us");
+        sb.append(" waited=").append(waited.get());
+        sb.append(" timeouts=").append(timeouts.get());
+        sb.append(" created=").append(created.get());
+        sb.append(" destroyed=").append(destroyed.get());
+        sb.append(" validationFailures=").append(validationFailures.get());
+        sb.append(" statementHits=").append(statementHits.get());
+        sb.append(" statementMisses=").append(statementMisses.get());
+        sb.append(" abandoned=").append(abandoned.get());
+        return sb.toString();
+    }
+
+    public synchronized int getActive() {
+        return total - idle.size();
+    }
+
+    public synchronized int getIdle() {
+        return idle.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getBorrowed() {
+        return borrowed.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public long getStatementHits() {
+        return statementHits.get();
+    }
+
+    public long getStatementMisses() {
+        return statementMisses.get();
+    }
+
+    public long getAbandoned() {
+        return abandoned.get();
+    }
+
+    /**
+     * PooledConnection の close() から呼ばれる。
+     * @param lease 返却済みにした接続
+     */
+    void returned(PooledConnection lease) {
+        synchronized (this) {
+            leases.remove(lease);
+        }
+        lease.closeOpened();
+        release(lease.physical);
+    }
+
+    private Physical open() throws SQLException {
+        Connection raw = DriverManager.getConnection(url, user, password);
+        try {
+            if (readOnly) {
+                raw.setReadOnly(true);
+            }
+            if (statementTimeout > 0) {
+                try (Statement st = raw.createStatement()) {
+                    st.execute("set statement_timeout = " + (statementTimeout * 1000));
+                }
+            }
+        } catch (SQLException e) {
+            closeQuietly(raw);
+            throw e;
+        }
+        created.incrementAndGet();
+        return new Physical(raw);
+    }
+
+    private boolean isUsable(Physical p) {
+        long idleTime = System.currentTimeMillis() - p.lastUsed;
+        if (idleTime > MAX_IDLE_TIME) {
+            return false;
+        }
+        if (idleTime < VALIDATION_INTERVAL) {
+            return true;
+        }
+        try (Statement st = p.raw.createStatement()) {
+            st.execute(VALIDATION_QUERY);
+            return true;
+        } catch (SQLException e) {
+            validationFailures.incrementAndGet();
+            Logger.getLogger("open.dolphin").log(Level.INFO, "ORCA connection validation failed: {0}", e.getMessage());
+            return false;
+        }
+    }
+
+    // ロックを持って呼ぶ
+    private List<PooledConnection> findAbandoned() {
+        long timeout = abandonedTimeout;
+        if (timeout <= 0L) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        List<PooledConnection> ret = null;
+        for (PooledConnection lease : leases) {
+            if (now - lease.borrowedAt > timeout) {
+                if (ret == null) {
+                    ret = new ArrayList<>();
+                }
+                ret.add(lease);
+            }
+        }
+        return ret;
+    }
+
+    // 返却されていない接続を閉じて枠を空ける 借りている側が同時に close() しても一方だけが返却する
+    private void reclaim(PooledConnection lease) {
+        if (!lease.markClosed()) {
+            return;
+        }
+        abandoned.incrementAndGet();
+        long held = System.currentTimeMillis() - lease.borrowedAt;
+        Logger.getLogger("open.dolphin").log(Level.WARNING, "ORCA connection was not closed for " + held + "ms and has been reclaimed", lease.borrowedBy);
+        lease.physical.broken = true;
+        returned(lease);
+    }
+
+    private void release(Physical p) {
+
+        boolean reusable = !p.broken;
+        if (reusable) {
+            try {
+                p.reset();
+                reusable = !p.raw.isClosed();
+            } catch (SQLException e) {
+                reusable = false;
+            }
+        }
+
+        synchronized (this) {
+            if (reusable && !closed) {
+                p.lastUsed = System.currentTimeMillis();
+                idle.addFirst(p);
+                notifyAll();
+                return;
+            }
+        }
+        destroy(p);
+    }
+
+    private void destroy(Physical p) {
+        p.closeStatements();
+        closeQuietly(p.raw);
+        destroyed.incrementAndGet();
+        synchronized (this) {
+            total--;
+            notifyAll();
+        }
+    }
+
+    static void closeQuietly(AutoCloseable c) {
+        try {
+            c.close();
+        } catch (Exception e) {
+        }
+    }
+
+    /**
+     * 物理接続と、その接続で準備した PreparedStatement。
+     * 文のキャッシュは Physical のロックで守る。回収するスレッドと借りているスレッドが同時に触れるため。
+     */
+    final class Physical {
+
+        final Connection raw;
+        private final Map<String, Cached> statements;
+        volatile boolean broken;
+        // プールのロックで守る
+        private long lastUsed;
+
+        private Physical(Connection raw) {
+            this.raw = raw;
+            this.statements = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+                    if (size() > statementCacheSize) {
+                        Cached c = eldest.getValue();
+                        if (c.current != null) {
+                            c.evicted = true;
+                        } else {
+                            closeQuietly(c.statement);
+                        }
+                        return true;
+                    }
+                    return false;
+                }
+            };
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        /**
+         * 08xxx(接続の異常)なら接続を捨てる印を付ける。
+         * @param e 例外
+         * @return e
+         */
+        SQLException failed(SQLException e) {
+            String state = e.getSQLState();
+            if (state != null && state.startsWith("08")) {
+                broken = true;
+            }
+            return e;
+        }
+
+        /**
+         * キャッシュから文を貸し出す。
+         * @param lease 借りている接続
+         * @param sql SQL
+         * @return 文、キャッシュしない場合(無効、または同じ文を使用中)は null
+         * @throws SQLException
+         */
+        synchronized PreparedStatement checkout(PooledConnection lease, String sql) throws SQLException {
+
+            if (statementCacheSize <= 0) {
+                statementMisses.incrementAndGet();
+                return null;
+            }
+
+            Cached c = statements.get(sql);
+            if (c != null && c.current != null) {
+                // 同じ文を同時に使う場合はキャッシュしない
+                statementMisses.incrementAndGet();
+                return null;
+            }
+            if (c != null && c.statement.isClosed()) {
+                // ResultSet.getStatement() 等から閉じられた
+                statements.remove(sql);
+                c = null;
+            }
+            if (c == null) {
+                statementMisses.incrementAndGet();
+                c = new Cached(sql, raw.prepareStatement(sql));
+                statements.put(sql, c);
+            } else {
+                statementHits.incrementAndGet();
+            }
+            c.current = new PooledStatement(this, c, lease);
+            return c.current;
+        }
+
+        /**
+         * 文をキャッシュへ戻す。
+         * @param c キャッシュ
+         * @param st 貸し出した文 既に戻っていれば何もしない
+         */
+        synchronized void checkin(Cached c, PooledStatement st) {
+            if (c.current != st) {
+                return;
+            }
+            c.current = null;
+            if (c.evicted || broken) {
+                closeQuietly(c.statement);
+                return;
+            }
+            try {
+                c.statement.clearParameters();
+            } catch (SQLException e) {
+                closeQuietly(c.statement);
+                statements.remove(c.sql);
+            }
+        }
+
+        // 返却時に閉じ忘れた文を戻し、トランザクションを終える
+        private void reset() throws SQLException {
+            List<PooledStatement> list = new ArrayList<>();
+            synchronized (this) {
+                for (Cached c : statements.values()) {
+                    if (c.current != null) {
+                        list.add(c.current);
+                    }
+                }
+            }
+            for (PooledStatement st : list) {
+                st.close();
+            }
+            if (!raw.getAutoCommit()) {
+                raw.rollback();
+                raw.setAutoCommit(true);
+            }
+        }
+
+        private synchronized void closeStatements() {
+            for (Cached c : statements.values()) {
+                closeQuietly(c.statement);
+            }
+            statements.clear();
+        }
+    }
+
+    /**
+     * キャッシュした PreparedStatement Physical のロックで守る
+     */
+    static final class Cached {
+
+        private final String sql;
+        final PreparedStatement statement;
+        private boolean evicted;
+        // 貸し出し中の文
+        private PooledStatement current;
+
+        private Cached(String sql, PreparedStatement statement) {
+            this.sql = sql;
+            this.statement = statement;
+        }
+    }
+}
@@ -11,8 +11,10 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import open.dolphin.client.ClientContext;
 import open.dolphin.common.OrcaConnect;
+import open.dolphin.common.OrcaMasterIndex;
 import open.dolphin.delegater.OrcaDelegater;
 import open.dolphin.infomodel.*;
 import open.dolphin.project.Project;
@@ -60,12 +62,44 @@ public final class OrcaSqlDelegater extends SqlDaoBean implements OrcaDelegater
     private static final String QUERY_GENERAL_NAME_BY_CODE
             = "select b.srycd,genericname from tbl_tensu b,tbl_genericname c where b.srycd=? and substring(b.yakkakjncd from 1 for 9)=c.yakkakjncd order by b.yukoedymd desc";
 
+    // 点数・病名マスタの索引 インスタンス間で共有する
+    private static final OrcaMasterIndex masterIndex = new OrcaMasterIndex();
+    private static final AtomicBoolean loading = new AtomicBoolean();
+
     /**
      * Creates a new instance of OrcaSqlDelegater
      */
     public OrcaSqlDelegater() {
     }
     
+    /**
+     * 点数・病名マスタの索引を返す。
+     * 未読込または日付が変わった場合はバックグラウンドで読み込み、読み終えるまでは SQL で検索する。
+     * 有効な点数・病名マスタ全行と転置索引をヒープに持つため、クライアントでは orca.master.index=true の場合だけ使う。
+     * 読込後の件数と時間は OrcaMasterIndex.getStats() でログに出る。
+     * @return 索引、orca.master.index=true でない場合は null
+     */
+    private OrcaMasterIndex getMasterIndex() {
+        if (!Project.getBoolean("orca.master.index", false)) {
+            return null;
+        }
+        if (masterIndex.needsReload() && loading.compareAndSet(false, true)) {
+            final String version = getOrcaDbVersion();
+            Thread t = new Thread(() -> {
+                try (Connection con = getConnection()) {
+                    masterIndex.load(con, version != null && version.compareTo(ORCA_DB_VER46) >= 0);
+                } catch (Exception e) {
+                    e.printStackTrace(System.err);
+                } finally {
+                    loading.set(false);
+                }
+            }, "OrcaMasterIndex");
+            t.setDaemon(true);
+            t.start();
+        }
+        return masterIndex;
+    }
+    
     //-------------------------------------------------------------------------
     // 保険医療機関コードとJMARIコード by 1001
     //-------------------------------------------------------------------------
@@ -128,26 +162,31 @@ public final class OrcaSqlDelegater extends SqlDaoBean implements OrcaDelegater
             return Collections.emptyList();
         }
 
+        // 相互作用マスタの表で答えられればそれを返す
+        OrcaMasterIndex index = getMasterIndex();
+        List<DrugInteractionModel> indexed = (index != null) ? index.checkInteraction(drug1, drug2) : null;
+        if (indexed != null) {
+            return indexed;
+        }
+
         StringBuilder sb = new StringBuilder();
         List<DrugInteractionModel> ret = new ArrayList<>();
 
         // SQL文を作成
         sb.append("select drugcd, drugcd2, TI.syojyoucd, syojyou ");
         sb.append("from tbl_interact TI inner join tbl_sskijyo TS on TI.syojyoucd = TS.syojyoucd ");
-        sb.append("where (drugcd in (");
-        sb.append(getCodes(drug1));
-        sb.append(") and drugcd2 in (");
-        sb.append(getCodes(drug2));
-        sb.append("))");
+        sb.append("where drugcd = any(?) and drugcd2 = any(?)");
         String sql = sb.toString();
 
         Connection con = null;
-        Statement st = null;
+        PreparedStatement st = null;
 
         try {
             con = getConnection();
-            st = con.createStatement();
-            ResultSet rs = st.executeQuery(sql);
+            st = con.prepareStatement(sql);
+            st.setArray(1, con.createArrayOf("varchar", drug1.toArray()));
+            st.setArray(2, con.createArrayOf("varchar", drug2.toArray()));
+            ResultSet rs = st.executeQuery();
 
             while (rs.next()) {
                 ret.add(new DrugInteractionModel(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4)));
@@ -233,6 +272,13 @@ public final class OrcaSqlDelegater extends SqlDaoBean implements OrcaDelegater
         // 半角英数字を全角へ変換する
         name = StringTool.toZenkakuUpperLower(name);
 
+        // マスタの索引で答えられればそれを返す
+        OrcaMasterIndex index = getMasterIndex();
+        List<TensuMaster> indexed = (index != null) ? index.getTensuMasterByName(name, now, partialMatch) : null;
+        if (indexed != null) {
+            return indexed;
+        }
+
         // SQL 文
         boolean one = name.length()==1;
         StringBuilder buf = new StringBuilder();
@@ -300,6 +346,13 @@ public final class OrcaSqlDelegater extends SqlDaoBean implements OrcaDelegater
     @Override
     public List<TensuMaster> getTensuMasterByCode(String regExp, String now) throws Exception {
 
+        // マスタの索引で答えられればそれを返す
+        OrcaMasterIndex index = getMasterIndex();
+        List<TensuMaster> indexed = (index != null) ? index.getTensuMasterByCode(regExp, now) : null;
+        if (indexed != null) {
+            return indexed;
+        }
+
         // 結果を格納するリスト
         ArrayList<TensuMaster> ret = new ArrayList<>();
 
@@ -431,6 +484,13 @@ public final class OrcaSqlDelegater extends SqlDaoBean implements OrcaDelegater
     @Override
     public List<DiseaseEntry> getDiseaseByName(String name, String now, boolean partialMatch) throws Exception {
 
+        // マスタの索引で答えられればそれを返す
+        OrcaMasterIndex index = getMasterIndex();
+        List<DiseaseEntry> indexed = (index != null) ? index.getDiseaseByName(name, now, partialMatch) : null;
+        if (indexed != null) {
+            return indexed;
+        }
+
         // 結果を格納するリスト
         ArrayList<DiseaseEntry> ret = new ArrayList<>();
 
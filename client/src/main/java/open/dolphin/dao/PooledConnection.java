@@ -0,0 +1,392 @@
+package open.dolphin.dao;
+
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.NClob;
+import java.sql.PreparedStatement;
+import java.sql.SQLClientInfoException;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Struct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+/**
+ * OrcaConnectionPool が貸し出す Connection。close() で物理接続をプールへ戻す。
+ * prepareStatement(sql) はキャッシュした PooledStatement を返し、それ以外の文はそのまま返して返却時に閉じる。
+ * 返却済みの状態とキャッシュしない文の一覧はこのオブジェクトのロックで守る。
+ * 借りているスレッドと、回収するプールのスレッドが同時に触れるため。
+ */
+final class PooledConnection implements Connection {
+
+    private final OrcaConnectionPool pool;
+    final OrcaConnectionPool.Physical physical;
+    final long borrowedAt;
+    // 借りた場所 回収時にログに出す
+    final Throwable borrowedBy;
+    // キャッシュしない文 返却時に閉じる
+    private final List<Statement> opened = new ArrayList<>();
+    private volatile boolean closed;
+
+    PooledConnection(OrcaConnectionPool pool, OrcaConnectionPool.Physical physical) {
+        this.pool = pool;
+        this.physical = physical;
+        this.borrowedAt = System.currentTimeMillis();
+        this.borrowedBy = new Throwable("ORCA connection borrowed here");
+    }
+
+    /**
+     * 返却済みにする。
+     * @return 既に返却済みなら false
+     */
+    synchronized boolean markClosed() {
+        if (closed) {
+            return false;
+        }
+        closed = true;
+        return true;
+    }
+
+    /**
+     * キャッシュしない文を閉じる。返却済みにした後に呼ぶ。
+     */
+    void closeOpened() {
+        List<Statement> list;
+        synchronized (this) {
+            list = new ArrayList<>(opened);
+            opened.clear();
+        }
+        for (Statement st : list) {
+            OrcaConnectionPool.closeQuietly(st);
+        }
+    }
+
+    private <T extends Statement> T track(T st) throws SQLException {
+        synchronized (this) {
+            if (!closed) {
+                opened.add(st);
+                return st;
+            }
+        }
+        OrcaConnectionPool.closeQuietly(st);
+        throw new SQLException("connection is closed");
+    }
+
+    private Connection raw() throws SQLException {
+        if (closed) {
+            throw new SQLException("connection is closed");
+        }
+        return physical.raw;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (markClosed()) {
+            pool.returned(this);
+        }
+    }
+
+    @Override
+    public boolean isClosed() throws SQLException {
+        return closed;
+    }
+
+    @Override
+    public boolean isValid(int timeout) throws SQLException {
+        return !closed && physical.raw.isValid(timeout);
+    }
+
+    @Override
+    public void abort(Executor executor) throws SQLException {
+        // 物理接続は捨てる
+        physical.broken = true;
+        close();
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        Connection raw = raw();
+        try {
+            PreparedStatement ret = physical.checkout(this, sql);
+            return (ret != null) ? ret : track(raw.prepareStatement(sql));
+        } catch (SQLException e) {
+            throw physical.failed(e);
+        }
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        return track(raw().prepareStatement(sql, resultSetType, resultSetConcurrency));
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return track(raw().prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability));
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+        return track(raw().prepareStatement(sql, autoGeneratedKeys));
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+        return track(raw().prepareStatement(sql, columnIndexes));
+    }
+
+    @Override
+    public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+        return track(raw().prepareStatement(sql, columnNames));
+    }
+
+    @Override
+    public Statement createStatement() throws SQLException {
+        try {
+            return track(raw().createStatement());
+        } catch (SQLException e) {
+            throw physical.failed(e);
+        }
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+        return track(raw().createStatement(resultSetType, resultSetConcurrency));
+    }
+
+    @Override
+    public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return track(raw().createStatement(resultSetType, resultSetConcurrency, resultSetHoldability));
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql) throws SQLException {
+        return track(raw().prepareCall(sql));
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        return track(raw().prepareCall(sql, resultSetType, resultSetConcurrency));
+    }
+
+    @Override
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return track(raw().prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability));
+    }
+
+    @Override
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        try {
+            raw().setAutoCommit(autoCommit);
+        } catch (SQLException e) {
+            throw physical.failed(e);
+        }
+    }
+
+    @Override
+    public void commit() throws SQLException {
+        try {
+            raw().commit();
+        } catch (SQLException e) {
+            throw physical.failed(e);
+        }
+    }
+
+    @Override
+    public void rollback() throws SQLException {
+        try {
+            raw().rollback();
+        } catch (SQLException e) {
+            throw physical.failed(e);
+        }
+    }
+
+    @Override
+    public void rollback(Savepoint savepoint) throws SQLException {
+        raw().rollback(savepoint);
+    }
+
+    @Override
+    public void setClientInfo(String name, String value) throws SQLClientInfoException {
+        physical.raw.setClientInfo(name, value);
+    }
+
+    @Override
+    public void setClientInfo(Properties properties) throws SQLClientInfoException {
+        physical.raw.setClientInfo(properties);
+    }
+
+    @Override
+    public String nativeSQL(String sql) throws SQLException {
+        return raw().nativeSQL(sql);
+    }
+
+    @Override
+    public boolean getAutoCommit() throws SQLException {
+        return raw().getAutoCommit();
+    }
+
+    @Override
+    public DatabaseMetaData getMetaData() throws SQLException {
+        return raw().getMetaData();
+    }
+
+    @Override
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        raw().setReadOnly(readOnly);
+    }
+
+    @Override
+    public boolean isReadOnly() throws SQLException {
+        return raw().isReadOnly();
+    }
+
+    @Override
+    public void setCatalog(String catalog) throws SQLException {
+        raw().setCatalog(catalog);
+    }
+
+    @Override
+    public String getCatalog() throws SQLException {
+        return raw().getCatalog();
+    }
+
+    @Override
+    public void setTransactionIsolation(int level) throws SQLException {
+        raw().setTransactionIsolation(level);
+    }
+
+    @Override
+    public int getTransactionIsolation() throws SQLException {
+        return raw().getTransactionIsolation();
+    }
+
+    @Override
+    public SQLWarning getWarnings() throws SQLException {
+        return raw().getWarnings();
+    }
+
+    @Override
+    public void clearWarnings() throws SQLException {
+        raw().clearWarnings();
+    }
+
+    @Override
+    public Map<String, Class<?>> getTypeMap() throws SQLException {
+        return raw().getTypeMap();
+    }
+
+    @Override
+    public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
+        raw().setTypeMap(map);
+    }
+
+    @Override
+    public void setHoldability(int holdability) throws SQLException {
+        raw().setHoldability(holdability);
+    }
+
+    @Override
+    public int getHoldability() throws SQLException {
+        return raw().getHoldability();
+    }
+
+    @Override
+    public Savepoint setSavepoint() throws SQLException {
+        return raw().setSavepoint();
+    }
+
+    @Override
+    public Savepoint setSavepoint(String name) throws SQLException {
+        return raw().setSavepoint(name);
+    }
+
+    @Override
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+        raw().releaseSavepoint(savepoint);
+    }
+
+    @Override
+    public Clob createClob() throws SQLException {
+        return raw().createClob();
+    }
+
+    @Override
+    public Blob createBlob() throws SQLException {
+        return raw().createBlob();
+    }
+
+    @Override
+    public NClob createNClob() throws SQLException {
+        return raw().createNClob();
+    }
+
+    @Override
+    public SQLXML createSQLXML() throws SQLException {
+        return raw().createSQLXML();
+    }
+
+    @Override
+    public String getClientInfo(String name) throws SQLException {
+        return raw().getClientInfo(name);
+    }
+
+    @Override
+    public Properties getClientInfo() throws SQLException {
+        return raw().getClientInfo();
+    }
+
+    @Override
+    public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
+        return raw().createArrayOf(typeName, elements);
+    }
+
+    @Override
+    public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
+        return raw().createStruct(typeName, attributes);
+    }
+
+    @Override
+    public void setSchema(String schema) throws SQLException {
+        raw().setSchema(schema);
+    }
+
+    @Override
+    public String getSchema() throws SQLException {
+        return raw().getSchema();
+    }
+
+    @Override
+    public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+        raw().setNetworkTimeout(executor, milliseconds);
+    }
+
+    @Override
+    public int getNetworkTimeout() throws SQLException {
+        return raw().getNetworkTimeout();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return raw().unwrap(iface);
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return raw().isWrapperFor(iface);
+    }
+
+    @Override
+    public String toString() {
+        return "PooledConnection[" + physical.raw + "]";
+    }
+}
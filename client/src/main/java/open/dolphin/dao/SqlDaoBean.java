@@ -1,8 +1,13 @@
 package open.dolphin.dao;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.sql.*;
-import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import open.dolphin.project.Project;
+import open.dolphin.util.Log;
 
 /**
  * SqlDaoBean
@@ -18,6 +23,11 @@ public class SqlDaoBean extends DaoBean {
     private static final String USER = "orca";
     private static final String PASSWD = "";
     
+    private static final int DEFAULT_STATS_INTERVAL = 500;
+    
+    // URL、ユーザー、パスワードごとの接続プール DAO のインスタンス間で共有する
+    private static final Map<String, OrcaConnectionPool> pools = new ConcurrentHashMap<>();
+    
     String dataBase;
     String driver;
     boolean trace = true;
@@ -78,8 +88,9 @@ public class SqlDaoBean extends DaoBean {
             }
         } catch (Exception e) {
             processError(e);
-            closeConnection(con);
+        } finally {
             closeStatement(st);
+            closeConnection(con);
         }
 
         sql = "select version from tbl_dbkanri where kanricd='ORCADB00'";
@@ -92,8 +103,9 @@ public class SqlDaoBean extends DaoBean {
             }
         } catch (Exception e) {
             processError(e);
-            closeConnection(con);
+        } finally {
             closeStatement(st);
+            closeConnection(con);
         }
     }
     
@@ -129,22 +141,6 @@ public class SqlDaoBean extends DaoBean {
         return ptid;
     }
     
-    // srycdのListからカンマ区切りの文字列を作る
-    protected String getCodes(Collection<String> srycdList){
-
-        StringBuilder sb = new StringBuilder();
-        boolean first = true;
-        for (String srycd : srycdList){
-            if (!first){
-                sb.append(",");
-            } else {
-                first = false;
-            }
-            sb.append(addSingleQuote(srycd));
-        }
-        return sb.toString();
-    }
-
     //masuda$
 
     public String getDriver() {
@@ -192,8 +188,69 @@ public class SqlDaoBean extends DaoBean {
         trace = b;
     }
     
+    /**
+     * ORCA への接続をプールから借りる。使い終わったら close() で返す。
+     * @return 接続
+     * @throws Exception 
+     */
     public Connection getConnection() throws Exception {
-        return DriverManager.getConnection(getURL(), user, passwd);
+        
+        final String url = getURL();
+        final String prefix = url + "|" + user + "|";
+        final String key = prefix + digest(passwd);
+        OrcaConnectionPool pool = pools.get(key);
+        if (pool == null) {
+            synchronized (pools) {
+                pool = pools.get(key);
+                if (pool == null) {
+                    // パスワードが変わった場合は古いプールを閉じる 貸し出し中の接続は返却時に閉じられる
+                    for (Iterator<Map.Entry<String, OrcaConnectionPool>> it = pools.entrySet().iterator(); it.hasNext();) {
+                        Map.Entry<String, OrcaConnectionPool> e = it.next();
+                        if (e.getKey().startsWith(prefix)) {
+                            e.getValue().close();
+                            it.remove();
+                        }
+                    }
+                    pool = new OrcaConnectionPool(url, user, passwd, true,
+                            Project.getInt("orca.pool.max", OrcaConnectionPool.DEFAULT_MAX_SIZE),
+                            Project.getInt("orca.pool.wait", (int)OrcaConnectionPool.DEFAULT_MAX_WAIT),
+                            Project.getInt("orca.statement.timeout", OrcaConnectionPool.DEFAULT_STATEMENT_TIMEOUT),
+                            Project.getInt("orca.statement.cache", OrcaConnectionPool.DEFAULT_STATEMENT_CACHE_SIZE));
+                    pools.put(key, pool);
+                }
+            }
+        }
+        
+        Connection con = pool.getConnection();
+        
+        int interval = Project.getInt("orca.pool.stats.interval", DEFAULT_STATS_INTERVAL);
+        if (interval > 0 && pool.getBorrowed() % interval == 0) {
+            Log.outputFuncLog(Log.LOG_LEVEL_0, Log.FUNCTIONLOG_KIND_INFORMATION, "OrcaConnectionPool", pool.getStats());
+        }
+        return con;
+    }
+
+    /**
+     * すべての接続プールを閉じる。アプリケーションの終了時に呼ぶ。
+     */
+    public static void closePools() {
+        synchronized (pools) {
+            for (OrcaConnectionPool pool : pools.values()) {
+                pool.close();
+            }
+            pools.clear();
+        }
+    }
+
+    // プールのキーに入れるパスワードのハッシュ
+    private static String digest(String s) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        byte[] hash = md.digest((s != null ? s : "").getBytes(StandardCharsets.UTF_8));
+        StringBuilder sb = new StringBuilder();
+        for (byte b : hash) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
     }
 
     public String addSingleQuote(String s) {
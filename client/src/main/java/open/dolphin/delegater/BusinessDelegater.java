@@ -8,8 +8,10 @@ import java.util.logging.Level;
 import javax.ws.rs.client.ClientRequestContext;
 import javax.ws.rs.client.ClientRequestFilter;
 import javax.ws.rs.client.ClientResponseContext;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.client.ClientResponseFilter;
 import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.ResponseProcessingException;
 import javax.ws.rs.core.Cookie;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
@@ -22,7 +24,6 @@ import org.codehaus.jackson.map.DeserializationConfig;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.map.SerializationConfig;
 import org.jboss.resteasy.client.jaxrs.ResteasyClient;
-import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
 import org.jboss.resteasy.client.jaxrs.ResteasyWebTarget;
 
 /**
@@ -40,60 +41,47 @@ public class BusinessDelegater {
     private static final String CLINET_UUID = "clientUUID";
     
     protected ResteasyWebTarget getWebTarget(String path, String userName, String password) {
-        
-        StringBuilder sb = new StringBuilder();
-        sb.append(Project.getBaseURI()).append(path);
-        String uri = sb.toString();
-        
-        ResteasyClient client = new ResteasyClientBuilder().build();
-        client.register(new AuthHeadersRequestFilter(userName, HashUtil.MD5(password)));
-        client.register(new StatusChecker());
-        ResteasyWebTarget target = client.target(uri);
-        return target;
+        return getWebTarget(Project.getBaseURI(), path, userName, password);
     }
     
     protected ResteasyWebTarget getWebTarget(String baseURI, String path, String userId, String password) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(baseURI).append(path);
-        String uri = sb.toString();
-        ResteasyClient client = new ResteasyClientBuilder().build();
-        client.register(new AuthHeadersRequestFilter(userId, HashUtil.MD5(password)));
-        client.register(new StatusChecker());
-        ResteasyWebTarget target = client.target(uri);
+        ResteasyWebTarget target = createWebTarget(baseURI, path);
+        target.register(new AuthHeadersRequestFilter(userId, HashUtil.MD5(password)));
+        target.register(new StatusChecker());
         return target;
     }
     
     protected ResteasyWebTarget getWebTarget(String path) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(Project.getBaseURI()).append(path);
-        String uri = sb.toString();
-        ResteasyClient client = new ResteasyClientBuilder().build();
-        client.register(new AuthHeadersRequestFilter(Project.getUserModel().getUserId(), Project.getUserModel().getPassword()));
-        client.register(new StatusChecker());
-        ResteasyWebTarget target = client.target(uri);
+        ResteasyWebTarget target = createWebTarget(Project.getBaseURI(), path);
+        target.register(new AuthHeadersRequestFilter(Project.getUserModel().getUserId(), Project.getUserModel().getPassword()));
+        target.register(new StatusChecker());
         return target;
     }
     
     protected ResteasyWebTarget getStamptreeWebTarget(String path) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(Project.getBaseURI()).append(path);
-        String uri = sb.toString();
-        ResteasyClient client = new ResteasyClientBuilder().build();
-        client.register(new AuthHeadersRequestFilter(Project.getUserModel().getUserId(), Project.getUserModel().getPassword()));
+        ResteasyWebTarget target = createWebTarget(Project.getBaseURI(), path);
+        target.register(new AuthHeadersRequestFilter(Project.getUserModel().getUserId(), Project.getUserModel().getPassword()));
         // 先勝ち制御Filter
-        client.register(new FirstCommitWinChecker());
-        ResteasyWebTarget target = client.target(uri);
+        target.register(new FirstCommitWinChecker());
         return target;
     }
     
     protected ResteasyWebTarget getWebTargetSubscribe(String path) {
+        ResteasyWebTarget target = createWebTarget(Project.getBaseURI(), path);
+        target.register(new AuthHeadersRequestFilterLong(Project.getUserModel().getUserId(), Project.getUserModel().getPassword()));
+        return target;
+    }
+    
+    /**
+     * ベースURIごとに共有している ResteasyClient から WebTarget を作る。
+     * Filter は WebTarget に登録するので、共有 client には影響しない。
+     */
+    private ResteasyWebTarget createWebTarget(String baseURI, String path) {
         StringBuilder sb = new StringBuilder();
-        sb.append(Project.getBaseURI()).append(path);
+        sb.append(baseURI).append(path);
         String uri = sb.toString();
-        ResteasyClient client = new ResteasyClientBuilder().build();
-        client.register(new AuthHeadersRequestFilterLong(Project.getUserModel().getUserId(), Project.getUserModel().getPassword()));
-        ResteasyWebTarget target = client.target(uri);
-        return target;
+        ResteasyClient client = RestClientPool.getClient(baseURI);
+        return client.target(uri);
     }
     
     protected <T> T getEasy(String path, String userName, String password, String mediaType, Class<T> cls) {
@@ -233,10 +221,37 @@ public class BusinessDelegater {
             int status = crc1.getStatus();
             debug(status);
             if (status/100!=2) {
+                // コネクションをプールに返す
+                IOUtils.closeQuietly(crc1.getEntityStream());
                 String err = "HTTP error code : " + status;
-                throw new RuntimeException(err);
+                // 呼び出し側が httpStatusOf で状態コードを取り出せるようにする
+                throw new WebApplicationException(err, status);
+            }
+        }
+    }
+    
+    /**
+     * StatusChecker が投げた例外から HTTP の状態コードを取り出す。
+     * フィルタの例外は ResponseProcessingException に包まれることがあるので原因もたどる。
+     * @param e 例外
+     * @return 状態コード、HTTP のエラーでなければ 0
+     */
+    protected static int httpStatusOf(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof WebApplicationException && ((WebApplicationException)t).getResponse() != null) {
+                return ((WebApplicationException)t).getResponse().getStatus();
+            }
+            if (t instanceof ResponseProcessingException && ((ResponseProcessingException)t).getResponse() != null) {
+                int status = ((ResponseProcessingException)t).getResponse().getStatus();
+                if (status/100 != 2) {
+                    return status;
+                }
+            }
+            if (t.getCause() == t) {
+                break;
             }
         }
+        return 0;
     }
     
     protected class FirstCommitWinChecker implements ClientResponseFilter {
@@ -250,6 +265,7 @@ public class BusinessDelegater {
             }
             // Commons
             String err = IOUtils.toString(crc1.getEntityStream(), UTF8);
+            IOUtils.closeQuietly(crc1.getEntityStream());
             
             // First Commit Win?
             if (err!=null && err.contains("First Commit Win")) {
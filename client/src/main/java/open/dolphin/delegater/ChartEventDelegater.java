@@ -1,10 +1,19 @@
 package open.dolphin.delegater;
 
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.concurrent.Future;
+import javax.ws.rs.client.Invocation;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 import open.dolphin.converter.ChartEventModelConverter;
+import open.dolphin.infomodel.ChartEventList;
 import open.dolphin.infomodel.ChartEventModel;
+import open.dolphin.project.Project;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.jboss.resteasy.client.jaxrs.ResteasyClient;
 import org.jboss.resteasy.client.jaxrs.ResteasyWebTarget;
 
 /**
@@ -21,6 +30,10 @@ public class ChartEventDelegater extends BusinessDelegater {
     private static final String RES_CE = "/chartEvent";
     private static final String SUBSCRIBE_PATH = RES_CE + "/subscribe";
     private static final String PUT_EVENT_PATH = RES_CE + "/event";
+    private static final String TRANSPORT_PATH = RES_CE + "/transport";
+    private static final String STREAM_PATH = RES_CE + "/stream";
+    private static final String TRANSPORT_SSE = "sse";
+    private static final String LAST_EVENT_ID = "Last-Event-ID";
     
     private static final ChartEventDelegater instance = new ChartEventDelegater();
     
@@ -52,4 +65,122 @@ public class ChartEventDelegater extends BusinessDelegater {
         ResteasyWebTarget target = getWebTargetSubscribe(SUBSCRIBE_PATH);
         return target.request(MediaType.APPLICATION_JSON).async().get(ChartEventModel.class);
     }
+    
+    /**
+     * 通し番号付きで subscribe する。
+     * @param lastSequence 最後に受け取ったイベントの番号 初回は0
+     * @return 未受信のイベントのリスト
+     */
+    public Future<ChartEventList> subscribe(long lastSequence) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        sb.append(SUBSCRIBE_PATH).append("/").append(lastSequence);
+        ResteasyWebTarget target = getWebTargetSubscribe(sb.toString());
+        return target.request(MediaType.APPLICATION_JSON).async().get(ChartEventList.class);
+    }
+    
+    /**
+     * サーバーが Server-Sent Events での配信に対応しているかを返す。
+     * @return 対応している場合 true
+     */
+    public boolean isStreamSupported() {
+        try {
+            String transport = getEasyText(TRANSPORT_PATH, String.class);
+            return transport != null && Arrays.asList(transport.split(CAMMA)).contains(TRANSPORT_SSE);
+        } catch (Exception e) {
+            // 古いサーバー
+            return false;
+        }
+    }
+    
+    /**
+     * Server-Sent Events の接続を開く。
+     * @param lastSequence 最後に受け取ったイベントの番号 初回は0
+     * @return イベントを順に読み出す EventStream
+     */
+    public EventStream openStream(long lastSequence) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        sb.append(Project.getBaseURI()).append(STREAM_PATH);
+        // 読み込みタイムアウトを持つ long-poll 用の共有 client
+        ResteasyClient client = RestClientPool.getLongPollClient(Project.getBaseURI());
+        ResteasyWebTarget target = client.target(sb.toString());
+        target.register(new AuthHeadersRequestFilterLong(Project.getUserModel().getUserId(), Project.getUserModel().getPassword()));
+        Invocation.Builder builder = target.request("text/event-stream");
+        if (lastSequence > 0L) {
+            builder.header(LAST_EVENT_ID, String.valueOf(lastSequence));
+        }
+        Response response = builder.get();
+        if (response.getStatus()/100 != 2) {
+            int status = response.getStatus();
+            response.close();
+            throw new Exception("HTTP error code : " + status);
+        }
+        return new EventStream(response, getReader(response), getDeserializeMapper());
+    }
+    
+    /**
+     * Server-Sent Events の受信側。
+     */
+    public static class EventStream implements Closeable {
+        
+        private final Response response;
+        private final BufferedReader reader;
+        private final ObjectMapper mapper;
+        
+        // 最後に受け取った id:
+        private volatile long lastEventId;
+        
+        private EventStream(Response response, BufferedReader reader, ObjectMapper mapper) {
+            this.response = response;
+            this.reader = reader;
+            this.mapper = mapper;
+        }
+        
+        /**
+         * 次のイベントを待って返す。ハートビートは読み飛ばす。
+         * @return ChartEventModel 接続が閉じられた場合は null
+         */
+        public ChartEventModel next() throws IOException {
+            StringBuilder data = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    // 空行でイベントの区切り
+                    if (data.length() > 0) {
+                        return mapper.readValue(data.toString(), ChartEventModel.class);
+                    }
+                } else if (line.startsWith("data:")) {
+                    if (data.length() > 0) {
+                        data.append("\n");
+                    }
+                    data.append(line.substring(5).trim());
+                } else if (line.startsWith("id:")) {
+                    // イベントの id は JSON の sequence と同じ
+                    // 接続直後はデータなしで現在の番号だけが届く
+                    try {
+                        lastEventId = Long.parseLong(line.substring(3).trim());
+                    } catch (NumberFormatException e) {
+                    }
+                }
+                // : はハートビート
+            }
+            return null;
+        }
+        
+        /**
+         * 最後に受け取った id: を返す。
+         * @return 番号、まだ受け取っていない場合は 0
+         */
+        public long getLastEventId() {
+            return lastEventId;
+        }
+        
+        @Override
+        public void close() {
+            // client は共有なので応答だけ閉じる コネクションは使い回さずに切れる
+            try {
+                response.close();
+            } catch (Exception e) {
+            }
+        }
+    }
 }
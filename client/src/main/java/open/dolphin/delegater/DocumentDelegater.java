@@ -159,6 +159,47 @@ public final class DocumentDelegater extends BusinessDelegater {
         return null;
     }
     
+    /**
+     * 文書履歴を新しい順に max 件ずつ検索して返す。
+     * カルテ以外の文書は件数が少ないので最初の呼び出しで全件を返す。
+     * @param spec DocumentSearchSpec 検索仕様
+     * @param last 前回取得した最後(最も古い)の DocInfo、null の場合は最新から
+     * @param max 最大件数
+     * @return DocInfo のリスト、last より古いものがなければ空
+     * @throws Exception
+     */
+    public List<DocInfoModel> getDocumentList(DocumentSearchSpec spec, DocInfoModel last, int max) throws Exception {
+
+        if (!IInfoModel.DOCTYPE_KARTE.equals(spec.getDocType())) {
+            return (last == null) ? (List<DocInfoModel>)getDocumentList(spec) : new ArrayList<DocInfoModel>(0);
+        }
+
+        // PATH
+        StringBuilder sb = new StringBuilder();
+        sb.append("/karte/docinfo/");
+        sb.append(spec.getKarteId());
+        sb.append(CAMMA);
+        sb.append(new SimpleDateFormat(DATE_TIME_FORMAT_REST).format(spec.getFromDate()));
+        sb.append(CAMMA);
+        sb.append(spec.isIncludeModifid());
+        sb.append(CAMMA);
+        sb.append(max);
+        if (last != null) {
+            sb.append(CAMMA);
+            sb.append(last.getFirstConfirmDate().getTime());
+            sb.append(CAMMA);
+            sb.append(last.getDocPk());
+        }
+        String path = sb.toString();
+
+        // GET
+        DocInfoList result  = getEasyJson(path, DocInfoList.class);
+
+        // List
+        List<DocInfoModel> ret = result.getList();
+        return (ret != null) ? ret : new ArrayList<DocInfoModel>(0);
+    }
+    
     private List getKarteList(DocumentSearchSpec spec) throws Exception {
 
         // PATH
@@ -1,9 +1,21 @@
 package open.dolphin.delegater;
 
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.Cookie;
+import javax.ws.rs.core.MediaType;
 import open.dolphin.converter.NLaboModuleConverter;
 import open.dolphin.infomodel.*;
+import open.dolphin.project.Project;
 import org.codehaus.jackson.map.ObjectMapper;
+import org.jboss.resteasy.client.jaxrs.ResteasyWebTarget;
 
 /**
  * Labo 関連の Delegater クラス。
@@ -11,6 +23,11 @@ import org.codehaus.jackson.map.ObjectMapper;
  * @author Kazushi Minagawa, Digital Globe, Inc.
  */
 public final class LaboDelegater extends BusinessDelegater {
+    
+    private static final String NDJSON = "application/x-ndjson";
+    
+    // 一括登録で1リクエストに入れるモジュール数
+    private static final int DEFAULT_BULK_SIZE = 500;
 
     //=========================================================
     // 新 LabMozule
@@ -66,6 +83,82 @@ public final class LaboDelegater extends BusinessDelegater {
         return patient;
     }
 
+    /**
+     * 検査結果を一括登録する。
+     * labo.bulk.size 件ずつ NDJSON にして送る。送信中に次の分を JSON にし、変換と送信を重ねる。
+     * @param modules 登録する検査モジュール
+     * @param listener 1リクエスト分の結果ごとに呼ばれる 結果の index は modules の位置
+     * @throws java.lang.Exception 
+     */
+    public void putNLaboModules(List<NLaboModule> modules, Consumer<List<NLaboImportResult>> listener) throws Exception {
+        
+        int bulkSize = Math.max(1, Project.getInt("labo.bulk.size", DEFAULT_BULK_SIZE));
+        ObjectMapper mapper = this.getSerializeMapper();
+        
+        ExecutorService sender = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<NLaboImportResult>> pending = null;
+            int pendingOffset = 0;
+            
+            for (int offset = 0; offset < modules.size(); offset += bulkSize) {
+                
+                // 1行に1モジュール
+                ByteArrayOutputStream bo = new ByteArrayOutputStream();
+                for (NLaboModule module : modules.subList(offset, Math.min(offset + bulkSize, modules.size()))) {
+                    NLaboModuleConverter conv = new NLaboModuleConverter();
+                    conv.setModel(module);
+                    bo.write(mapper.writeValueAsBytes(conv));
+                    bo.write('\n');
+                }
+                final byte[] data = bo.toByteArray();
+                
+                if (pending != null) {
+                    deliver(pending, pendingOffset, listener);
+                }
+                pending = sender.submit(() -> postNLaboModules(data));
+                pendingOffset = offset;
+            }
+            
+            if (pending != null) {
+                deliver(pending, pendingOffset, listener);
+            }
+            
+        } finally {
+            sender.shutdownNow();
+        }
+    }
+    
+    private List<NLaboImportResult> postNLaboModules(byte[] data) {
+        
+        // PATH
+        String path = "/lab/module/bulk";
+        
+        // POST
+        ResteasyWebTarget target = getWebTarget(path);
+        Cookie cookie = getProjectCookie(Project.getUserModel().getUserId());
+        Entity<byte[]> entity = Entity.entity(data, NDJSON);
+        NLaboImportResultList result = cookie!=null
+                ? target.request(MediaType.APPLICATION_JSON).cookie(cookie).post(entity, NLaboImportResultList.class)
+                : target.request(MediaType.APPLICATION_JSON).post(entity, NLaboImportResultList.class);
+        
+        return (result!=null && result.getList()!=null) ? result.getList() : new ArrayList<NLaboImportResult>(0);
+    }
+    
+    private void deliver(Future<List<NLaboImportResult>> pending, int offset, Consumer<List<NLaboImportResult>> listener) throws Exception {
+        
+        List<NLaboImportResult> results;
+        try {
+            results = pending.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw (cause instanceof Exception) ? (Exception)cause : e;
+        }
+        for (NLaboImportResult r : results) {
+            r.setIndex(offset + r.getIndex());
+        }
+        listener.accept(results);
+    }
+
     /**
      * ラボモジュールを検索する。
      * @param patientId     対象患者のID
@@ -106,6 +199,53 @@ public final class LaboDelegater extends BusinessDelegater {
     }
 //s.oh$
 
+    /**
+     * 検査結果を検査項目 × 検体採取日のページで取得する。
+     * @param patientId 対象患者のID
+     * @param maxResult 列数
+     * @param cursor ページのカーソル 最新のページは 0
+     * @param newestLeft 最新を左にする場合 true
+     * @return ページ
+     * @throws java.lang.Exception 
+     */
+    public NLaboSeriesPage getLaboSeries(String patientId, int maxResult, long cursor, boolean newestLeft) throws Exception {
+
+        // PATH
+        StringBuilder sb = new StringBuilder();
+        sb.append("/lab/series/");
+        sb.append(patientId);
+        sb.append(CAMMA);
+        sb.append(String.valueOf(maxResult));
+        sb.append(CAMMA);
+        sb.append(String.valueOf(cursor));
+        sb.append(CAMMA);
+        sb.append(String.valueOf(newestLeft));
+        String path = sb.toString();
+
+        // GET
+        return getEasyJson(path, NLaboSeriesPage.class);
+    }
+    
+    /**
+     * 検査結果のページのカーソルを取得する。
+     * @param patientId 対象患者のID
+     * @param maxResult 1ページの列数
+     * @return 全モジュール数,1ページ目のカーソル,2ページ目のカーソル...
+     */
+    public String getLaboSeriesCursors(String patientId, int maxResult) {
+        
+        // PATH
+        StringBuilder sb = new StringBuilder();
+        sb.append("/lab/series/cursor/");
+        sb.append(patientId);
+        sb.append(CAMMA);
+        sb.append(String.valueOf(maxResult));
+        String path = sb.toString();
+
+        // GET
+        return getEasyText(path, String.class);
+    }
+
     /**
      * 指定された検査コードの結果を取得する。
      * @param patientId     対象患者
@@ -4,10 +4,13 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import open.dolphin.converter.PatientVisitModelConverter;
 import open.dolphin.infomodel.HealthInsuranceModel;
 import open.dolphin.infomodel.PVTHealthInsuranceModel;
 import open.dolphin.infomodel.PatientModel;
+import open.dolphin.infomodel.PatientVisitDelta;
 import open.dolphin.infomodel.PatientVisitList;
 import open.dolphin.infomodel.PatientVisitModel;
 import open.dolphin.util.BeanUtils;
@@ -24,6 +27,9 @@ public class PVTDelegater extends BusinessDelegater {
     private static final String RES_PVT = "/pvt2";
     
     private static final PVTDelegater instance;
+    
+    // サーバーが差分取得に対応しているか 404/405 が返ったら false
+    private volatile boolean pvtDeltaSupported = true;
 
     static {
         instance = new PVTDelegater();
@@ -36,6 +42,14 @@ public class PVTDelegater extends BusinessDelegater {
     private PVTDelegater() {
     }
 
+    /**
+     * サーバーが受付リストの差分取得に対応しているかを返す。
+     * @return 差分取得の API が 404/405 を返していなければ true
+     */
+    public boolean isPvtDeltaSupported() {
+        return pvtDeltaSupported;
+    }
+
     /**
      * 受付情報 PatientVisitModel をデータベースに登録する。
      *
@@ -113,6 +127,51 @@ public class PVTDelegater extends BusinessDelegater {
         return new ArrayList<>(1);
     }
 
+    /**
+     * 前回取得した版以降の受付リストの差分を取得する。
+     * 通信エラー等の一時的な失敗では次回また差分を取得する。差分の API が無いサーバーでは
+     * isPvtDeltaSupported() が false になる。
+     *
+     * @param epoch 前回の PatientVisitDelta の epoch、初回は 0
+     * @param version 前回の PatientVisitDelta の version、初回は 0
+     * @return 差分、取得できない場合は null
+     */
+    public PatientVisitDelta getPvtDelta(long epoch, long version) {
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(RES_PVT);
+        sb.append("/pvtList/");
+        sb.append(epoch);
+        sb.append(CAMMA);
+        sb.append(version);
+        String path = sb.toString();
+
+        try {
+            // GET
+            PatientVisitDelta result = getEasyJson(path, PatientVisitDelta.class);
+
+            // Decode
+            List<PatientVisitModel> list = result.getList();
+            if (list != null) {
+                for (PatientVisitModel pm : list) {
+                    decodeHealthInsurance(pm.getPatientModel());
+                }
+            }
+            return result;
+        } catch (Exception e) {
+            int status = httpStatusOf(e);
+            if (status == 404 || status == 405) {
+                // 差分取得に対応していないサーバー
+                pvtDeltaSupported = false;
+                Logger.getLogger("open.dolphin").info("pvt delta is not supported by the server: " + status);
+            } else {
+                Logger.getLogger("open.dolphin").log(Level.WARNING, "pvt delta can not be fetched, retry on the next check", e);
+            }
+        }
+
+        return null;
+    }
+
     /**
      * バイナリの健康保険データをオブジェクトにデコードする。
      *
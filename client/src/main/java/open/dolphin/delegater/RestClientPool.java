@@ -0,0 +1,178 @@
+package open.dolphin.delegater;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.client.ClientResponseContext;
+import javax.ws.rs.client.ClientResponseFilter;
+import open.dolphin.project.Project;
+import open.dolphin.util.Log;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.impl.NoConnectionReuseStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.jboss.resteasy.client.jaxrs.ResteasyClient;
+import org.jboss.resteasy.client.jaxrs.ResteasyClientBuilder;
+import org.jboss.resteasy.client.jaxrs.engines.ApacheHttpClient4Engine;
+
+/**
+ * サーバのベースURIごとに共有する ResteasyClient。
+ * コネクションはプールして keep-alive で使い回す。認証ヘッダ等は WebTarget ごとに登録する。
+ * 応答時間とコネクションの再利用数を数え、一定件数ごとに Log へ出力する。
+ * Server-Sent Events のように応答を長く待つ接続は、読み込みタイムアウトを持つ別の client を使う。
+ */
+final class RestClientPool {
+
+    // 全体の最大コネクション数
+    private static final int DEFAULT_MAX_TOTAL = 20;
+    // 1サーバあたりの最大コネクション数 long-poll の1本を含む
+    private static final int DEFAULT_MAX_PER_ROUTE = 10;
+    // コネクションを使い回す最大時間(秒)
+    private static final int DEFAULT_CONNECTION_TTL = 300;
+    // プールの空きを待つ時間(ms) 応答を閉じ忘れたときに固まらないようにする
+    private static final int DEFAULT_CHECKOUT_TIMEOUT = 30000;
+    // 統計を出力する間隔(リクエスト数)
+    private static final int DEFAULT_STATS_INTERVAL = 200;
+    // long-poll 用 1サーバあたりの最大コネクション数
+    private static final int DEFAULT_LONG_POLL_MAX_PER_ROUTE = 2;
+    // long-poll 用 読み込みタイムアウト(秒) サーバのハートビート(30秒)が3回届かなければ切断とみなす
+    private static final int DEFAULT_LONG_POLL_TIMEOUT = 90;
+
+    private static final String START_TIME = "open.dolphin.delegater.startTime";
+
+    private static final Map<String, ResteasyClient> CLIENTS = new ConcurrentHashMap<>();
+    private static final Map<String, ResteasyClient> LONG_POLL_CLIENTS = new ConcurrentHashMap<>();
+
+    private static final AtomicLong requestCount = new AtomicLong();
+    private static final AtomicLong totalNanos = new AtomicLong();
+    private static final AtomicLong maxNanos = new AtomicLong();
+    private static final AtomicLong newConnections = new AtomicLong();
+    private static final AtomicLong reusedConnections = new AtomicLong();
+
+    private RestClientPool() {
+    }
+
+    /**
+     * ベースURIに対応する ResteasyClient を返す。スレッドセーフで閉じてはいけない。
+     * @param baseURI サーバのベースURI
+     * @return ResteasyClient
+     */
+    static ResteasyClient getClient(String baseURI) {
+        return CLIENTS.computeIfAbsent(baseURI, (String uri) -> {
+            int maxTotal = Project.getInt("restclient.maxTotal", DEFAULT_MAX_TOTAL);
+            int maxPerRoute = Project.getInt("restclient.maxPerRoute", DEFAULT_MAX_PER_ROUTE);
+            ResteasyClient client = createClient(maxTotal, maxPerRoute, 0, true);
+            client.register(new TimingFilter());
+            return client;
+        });
+    }
+
+    /**
+     * 応答を長く待つ接続(Server-Sent Events)用の ResteasyClient を返す。
+     * 読み込みタイムアウト restclient.longPollTimeout(秒)を持ち、サーバが落ちても戻ってくる。
+     * 終わらない応答を閉じる時に読み切ろうとしないよう、コネクションは使い回さない。
+     * 応答時間の統計には含めない。スレッドセーフで閉じてはいけない。応答は呼び出し側で閉じる。
+     * @param baseURI サーバのベースURI
+     * @return ResteasyClient
+     */
+    static ResteasyClient getLongPollClient(String baseURI) {
+        return LONG_POLL_CLIENTS.computeIfAbsent(baseURI, (String uri) -> {
+            int maxPerRoute = Project.getInt("restclient.longPollMaxPerRoute", DEFAULT_LONG_POLL_MAX_PER_ROUTE);
+            int timeout = Project.getInt("restclient.longPollTimeout", DEFAULT_LONG_POLL_TIMEOUT);
+            return createClient(maxPerRoute, maxPerRoute, timeout, false);
+        });
+    }
+
+    // socketTimeout(秒) 0 なら無制限、reuse が false なら応答ごとにコネクションを閉じる
+    private static ResteasyClient createClient(int maxTotal, int maxPerRoute, int socketTimeout, boolean reuse) {
+
+        int ttl = Project.getInt("restclient.connectionTTL", DEFAULT_CONNECTION_TTL);
+        int checkoutTimeout = Project.getInt("restclient.checkoutTimeout", DEFAULT_CHECKOUT_TIMEOUT);
+
+        PoolingClientConnectionManager cm = new PoolingClientConnectionManager(
+                SchemeRegistryFactory.createDefault(), ttl, TimeUnit.SECONDS);
+        cm.setMaxTotal(maxTotal);
+        cm.setDefaultMaxPerRoute(maxPerRoute);
+
+        DefaultHttpClient httpClient = new DefaultHttpClient(cm);
+        httpClient.getParams().setParameter(ClientPNames.CONN_MANAGER_TIMEOUT, (long)checkoutTimeout);
+        if (socketTimeout > 0) {
+            HttpConnectionParams.setSoTimeout(httpClient.getParams(), socketTimeout * 1000);
+        }
+        if (!reuse) {
+            httpClient.setReuseStrategy(new NoConnectionReuseStrategy());
+        }
+        // 同じコネクションで2件目以降のリクエストなら再利用
+        httpClient.addResponseInterceptor((HttpResponse response, HttpContext context) -> {
+            Object conn = context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+            if (conn instanceof HttpConnection) {
+                if (((HttpConnection)conn).getMetrics().getRequestCount() > 1) {
+                    reusedConnections.incrementAndGet();
+                } else {
+                    newConnections.incrementAndGet();
+                }
+            }
+        });
+
+        return new ResteasyClientBuilder().httpEngine(new ApacheHttpClient4Engine(httpClient, true)).build();
+    }
+
+    private static void record(long elapsed) {
+
+        long cnt = requestCount.incrementAndGet();
+        totalNanos.addAndGet(elapsed);
+        long max;
+        while (elapsed > (max = maxNanos.get())) {
+            if (maxNanos.compareAndSet(max, elapsed)) {
+                break;
+            }
+        }
+
+        int interval = Project.getInt("restclient.stats.interval", DEFAULT_STATS_INTERVAL);
+        if (interval > 0 && cnt % interval == 0) {
+            Log.outputFuncLog(Log.LOG_LEVEL_0, Log.FUNCTIONLOG_KIND_INFORMATION, "RestClient", getStats());
+        }
+    }
+
+    /**
+     * 統計を返す。
+     * @return requests, 平均/最大応答時間(ms), 新規/再利用コネクション数
+     */
+    static String getStats() {
+        long cnt = requestCount.get();
+        StringBuilder sb = new StringBuilder();
+        sb.append("requests=").append(cnt);
+        sb.append(" avg=").append(cnt > 0 ? totalNanos.get() / cnt / 1000000L : 0L).append("ms");
+        sb.append(" max=").append(maxNanos.get() / 1000000L).append("ms");
+        sb.append(" newConnections=").append(newConnections.get());
+        sb.append(" reusedConnections=").append(reusedConnections.get());
+        return sb.toString();
+    }
+
+    // リクエストから応答ヘッダ受信までの時間を計る
+    private static final class TimingFilter implements ClientRequestFilter, ClientResponseFilter {
+
+        @Override
+        public void filter(ClientRequestContext requestContext) throws IOException {
+            requestContext.setProperty(START_TIME, System.nanoTime());
+        }
+
+        @Override
+        public void filter(ClientRequestContext requestContext, ClientResponseContext responseContext) throws IOException {
+            Object start = requestContext.getProperty(START_TIME);
+            if (start instanceof Long) {
+                record(System.nanoTime() - (Long)start);
+            }
+        }
+    }
+}
@@ -20,6 +20,8 @@ import open.dolphin.delegater.LaboDelegater;
 import open.dolphin.impl.lbtest.LaboTestPanel;
 import open.dolphin.impl.pvt.WatingListImpl;
 import open.dolphin.infomodel.ChartEventModel;
+import open.dolphin.infomodel.NLaboImportResult;
+import open.dolphin.infomodel.NLaboModule;
 import open.dolphin.infomodel.PatientLiteModel;
 import open.dolphin.infomodel.PatientModel;
 import open.dolphin.infomodel.PatientVisitModel;
@@ -342,36 +344,47 @@ public class NLaboTestImporter extends AbstractMainComponent implements Property
             protected Void doInBackground() throws Exception {
 
                 LaboDelegater laboDelegater = new LaboDelegater();
-
+                
+                List<NLaboModule> list = new ArrayList<>(modules.size());
                 for (NLaboImportSummary summary : modules) {
+                    list.add(summary.getModule());
+                }
 
-//s.oh^ 2013/08/29
-                    //PatientModel pm = laboDelegater.putNLaboModule(summary.getModule());
-                    PatientModel pm ;
-                    try {
-                        pm = laboDelegater.putNLaboModule(summary.getModule());
-                    } catch (Exception ex) {
-                        String why = ex.getMessage();
-                        Window parent = SwingUtilities.getWindowAncestor(getUI());
-                        java.util.ResourceBundle bundle = ClientContext.getMyBundle(NLaboTestImporter.class);
-                        String fmt = bundle.getString("messageFormat.cannotParseFile");
-                        MessageFormat msf = new MessageFormat(fmt);
-                        String message = msf.format(new Object[]{why});
-                        String title = bundle.getString("title.optionPane.labReceiver");
-                        JOptionPane.showMessageDialog(parent, message, ClientContext.getFrameTitle(title), JOptionPane.WARNING_MESSAGE);
-                        pm = null;
-                    }
-//s.oh$
-
-                    if (pm != null) {
-                        summary.setPatient(pm);
-                        summary.setResult(SUCCESS);
-
-                    } else {
-                        summary.setResult(ERROR);
+                // まとめて登録し、1リクエスト分の結果ごとにテーブルを更新する
+                try {
+                    laboDelegater.putNLaboModules(list, (List<NLaboImportResult> results) -> {
+                        for (NLaboImportResult r : results) {
+                            NLaboImportSummary summary = modules.get(r.getIndex());
+                            if (r.isSucceeded()) {
+                                summary.setPatient(r.getPatient());
+                                summary.setResult(SUCCESS);
+                            } else {
+                                summary.setResult(ERROR);
+                            }
+                        }
+                        // Table 更新
+                        Runnable awt = () -> {
+                            getTableModel().fireTableDataChanged();
+                        };
+                        EventQueue.invokeLater(awt);
+                    });
+                    
+                } catch (Exception ex) {
+                    String why = ex.getMessage();
+                    Window parent = SwingUtilities.getWindowAncestor(getUI());
+                    java.util.ResourceBundle bundle = ClientContext.getMyBundle(NLaboTestImporter.class);
+                    String fmt = bundle.getString("messageFormat.cannotParseFile");
+                    MessageFormat msf = new MessageFormat(fmt);
+                    String message = msf.format(new Object[]{why});
+                    String title = bundle.getString("title.optionPane.labReceiver");
+                    JOptionPane.showMessageDialog(parent, message, ClientContext.getFrameTitle(title), JOptionPane.WARNING_MESSAGE);
+                    
+                    // 結果の返っていないものはエラー
+                    for (NLaboImportSummary summary : modules) {
+                        if (summary.getResult()==null) {
+                            summary.setResult(ERROR);
+                        }
                     }
-
-                    // Table 更新
                     Runnable awt = () -> {
                         getTableModel().fireTableDataChanged();
                     };
@@ -62,8 +62,8 @@ public class LaboTestBean extends AbstractChartDocument {
     private JButton printPdfBtn;    // ラボデータPDFの印刷
 //s.oh$
     
-    // ラボデータの削除 2013/06/24
-    private List<NLaboModule> modules;
+    // 表示しているページ 列のモジュール id はラボデータの削除に使う
+    private NLaboSeriesPage page;
     
     public LaboTestBean() {
         String title = ClientContext.getMyBundle(LaboTestBean.class).getString("title.Document");
@@ -78,7 +78,7 @@ public class LaboTestBean extends AbstractChartDocument {
         this.maxResult = maxResult;
     }
 
-    public void createTable(List<NLaboModule> moduleList) {
+    public void createTable(NLaboSeriesPage seriesPage) {
 
         // 現在のデータをクリアする
         if (tableModel != null && tableModel.getDataProvider() != null) {
@@ -96,111 +96,22 @@ public class LaboTestBean extends AbstractChartDocument {
             header[col] = "";
         }
         
-        if (modules!=null) {
-            modules.clear();
-        }
-        modules = moduleList;       
+        page = seriesPage;
 
         // 結果がゼロであれば返る
-        if (modules == null || modules.isEmpty()) {
+        if (page == null || page.getModuleIds() == null || page.getModuleIds().isEmpty()) {
             tableModel = new ListTableModel<>(header, 0);
             table.setModel(tableModel);
             setColumnWidth();
             return;
         }
 
-        // 検体採取日の降順なので昇順にソートする
-//s.oh^ 2013/06/13 カラムの並び順
-        //Collections.sort(modules, new SampleDateComparator());
-        if(!Project.getBoolean("labtest.column.newest.left", false)) {
-            Collections.sort(modules, new SampleDateComparator());
-        }
-//s.oh$
-
-        // テスト項目全てに対応する rowObject を生成する
-        List<LabTestRowObject> dataProvider = new ArrayList<>();
-
-        int moduleIndex = 0;
-
-        for (NLaboModule module : modules) {
-
-            // 検体採取日
-            header[moduleIndex+1] = module.getSampleDate();
-
-            // モジュールに含まれる検査項目
-            Collection<NLaboItem> c = module.getItems();
-
-            for (NLaboItem item : c) {
-
-                // RowObject を生成し dataProvider へ加える
-                // 最初のモジュールのテスト項目は無条件に加える
-                if (moduleIndex == 0) {
-                    // row
-                    LabTestRowObject row = new LabTestRowObject();
-                    row.setLabCode(item.getLaboCode());
-                    row.setGroupCode(item.getGroupCode());
-                    row.setParentCode(item.getParentCode());
-                    row.setItemCode(item.getItemCode());
-                    row.setItemName(item.getItemName());
-                    row.setUnit(item.getUnit());
-                    row.setNormalValue(item.getNormalValue());
-                    // valueを moduleIndex番目にセットする
-                    LabTestValueObject value = new LabTestValueObject();
-                    value.setSampleDate(module.getSampleDate());
-                    value.setValue(item.getValue());
-                    value.setOut(item.getAbnormalFlg());
-                    value.setComment1(item.getComment1());
-                    value.setComment2(item.getComment2());
-                    row.addLabTestValueObjectAt(moduleIndex, value);
-                    //
-                    dataProvider.add(row);
-                    continue;
-                }
-
-                // 二つ目のモジュールからは無かったら加える
-                boolean found = false;
-
-                for (LabTestRowObject rowObject : dataProvider) {
-                    if (item.getItemCode().equals(rowObject.getItemCode())) {
-                        found = true;
-                        LabTestValueObject value = new LabTestValueObject();
-                        value.setSampleDate(module.getSampleDate());
-                        value.setValue(item.getValue());
-                        value.setOut(item.getAbnormalFlg());
-                        value.setComment1(item.getComment1());
-                        value.setComment2(item.getComment2());
-                        rowObject.addLabTestValueObjectAt(moduleIndex, value);
-                        break;
-                    }
-                }
-
-                if (!found) {
-                    LabTestRowObject row = new LabTestRowObject();
-                    row.setLabCode(item.getLaboCode());
-                    row.setGroupCode(item.getGroupCode());
-                    row.setParentCode(item.getParentCode());
-                    row.setItemCode(item.getItemCode());
-                    row.setItemName(item.getItemName());
-                    row.setUnit(item.getUnit());
-                    row.setNormalValue(item.getNormalValue());
-                    //
-                    LabTestValueObject value = new LabTestValueObject();
-                    value.setSampleDate(module.getSampleDate());
-                    value.setValue(item.getValue());
-                    value.setOut(item.getAbnormalFlg());
-                    value.setComment1(item.getComment1());
-                    value.setComment2(item.getComment2());
-                    row.addLabTestValueObjectAt(moduleIndex, value);
-                    //
-                    dataProvider.add(row);
-                }
-            }
-
-            moduleIndex++;
+        // 列の並び(labtest.column.newest.left)と行の生成、ソートはサーバで済んでいる
+        List<String> sampleDates = page.getSampleDates();
+        for (int col = 0; col < sampleDates.size() && col < getMaxResult(); col++) {
+            header[col+1] = sampleDates.get(col);
         }
-
-        // dataProvider の要素 rowObject をソートする
-        Collections.sort(dataProvider);
+        List<LabTestRowObject> dataProvider = page.getRows() != null ? page.getRows() : new ArrayList<LabTestRowObject>(0);
 
         // Table Model
         tableModel = new ListTableModel<>(header, 0);
@@ -242,13 +153,14 @@ public class LaboTestBean extends AbstractChartDocument {
                     if (index==0) {
                         return;
                     }
-                    final NLaboModule toDelete = modules.get(index-1);
+                    final long toDelete = page.getModuleIds().get(index-1);
+                    final String sampleDate = page.getSampleDates().get(index-1);
                     JPopupMenu popup = new JPopupMenu();
                     String actionText = ClientContext.getMyBundle(LaboTestBean.class).getString("actionText.delete");
                     popup.add(new AbstractAction(actionText) {
                         @Override
                         public void actionPerformed(ActionEvent e) {
-                            String date = toDelete.getSampleDate().replaceAll(" 00:00", "");
+                            String date = sampleDate.replaceAll(" 00:00", "");
                             java.util.ResourceBundle bundle = ClientContext.getMyBundle(LaboTestBean.class);
                             String fmt = bundle.getString("messageFormat.deleteTest");
                             MessageFormat msf = new MessageFormat(fmt);
@@ -263,7 +175,7 @@ public class LaboTestBean extends AbstractChartDocument {
                                 case 0:
                                     break;
                                 case 1:
-                                    deleteLabTest(toDelete.getId());
+                                    deleteLabTest(toDelete);
                                     break;
                             }
                         }
@@ -481,29 +393,25 @@ public class LaboTestBean extends AbstractChartDocument {
 
     /**
      * LaboTest の検索タスクをコールする。
+     * @param cursor ページのカーソル 最新のページは 0
      */
-    private void searchLaboTest(final int firstResult) {
+    private void searchLaboTest(final long cursor) {
 
         final String pid = getContext().getPatient().getPatientId();
+        final boolean newestLeft = Project.getBoolean("labtest.column.newest.left", false);
         ldl = new LaboDelegater();
 
-        DBTask task = new DBTask<List<NLaboModule>, Void>(getContext()) {
+        DBTask task = new DBTask<NLaboSeriesPage, Void>(getContext()) {
 
             @Override
-            protected List<NLaboModule> doInBackground() throws Exception {
-                List<NLaboModule> result = ldl.getLaboTest(pid, firstResult, getMaxResult());
+            protected NLaboSeriesPage doInBackground() throws Exception {
+                NLaboSeriesPage result = ldl.getLaboSeries(pid, getMaxResult(), cursor, newestLeft);
                 return result;
             }
 
             @Override
-            protected void succeeded(List<NLaboModule> result) {
-                int moduleCount = result != null ? result.size() : 0;
-                // 全件表示修正^
-                //countField.setText(String.valueOf(moduleCount));
-//s.oh^ 2014/08/04 ラボデータ表示不具合対応
-                //createTable(result);
-                createTable(checkLaboModules(result));
-//s.oh$
+            protected void succeeded(NLaboSeriesPage result) {
+                createTable(result);
             }
         };
 
@@ -511,47 +419,6 @@ public class LaboTestBean extends AbstractChartDocument {
 
     }
     
-//s.oh^ 2014/08/04 ラボデータ表示不具合対応
-    public List<NLaboModule> checkLaboModules(List<NLaboModule> modules) {
-        if(modules != null) {
-            for(int i = 0; i < modules.size(); i++) {
-                NLaboModule module = modules.get(i);
-                List<NLaboItem> items = new ArrayList<>();
-                for(int j = 0; j < module.getItems().size(); j++) {
-                    NLaboItem item = module.getItems().get(j);
-                    if(items.size() <= 0) {
-                        items.add(item);
-                    }else{
-                        int addedIdx = -1;
-                        boolean notadd = false;
-                        for(int k = 0; k < items.size(); k++) {
-                            NLaboItem addedItem = items.get(k);
-                            if(item.getItemCode().equals(addedItem.getItemCode())) {
-                                if(addedItem.getReportStatus()!= null && addedItem.getReportStatus().equals("E")) {
-                                    notadd = true;
-                                }else{
-                                    items.remove(k);
-                                    addedIdx = k;
-                                    break;
-                                }
-                            }
-                        }
-                        if(!notadd) {
-                            if(addedIdx >= 0) {
-                                items.add(addedIdx, item);
-                            }else{
-                                items.add(item);
-                            }
-                        }
-                    }
-                }
-                module.setItems(items);
-            }
-        }
-        return modules;
-    }
-//s.oh$
-    
     // 全件表示修正^
     private void firstSearch() {
 
@@ -612,16 +479,14 @@ public class LaboTestBean extends AbstractChartDocument {
 //        };
 //
 //        task.execute();
-        // 全件数
+        // 全件数とページごとのカーソル
         String pid = getContext().getPatient().getPatientId();
         ldl = new LaboDelegater();
-        int moduleCount = Integer.parseInt(ldl.getLaboTestCount(pid));
+        String[] cursors = ldl.getLaboSeriesCursors(pid, getMaxResult()).split(",");
+        int moduleCount = Integer.parseInt(cursors[0]);
 
         // ComboBox へ表示するItemの数
-        int itemCount = moduleCount/getMaxResult();
-        if (moduleCount%getMaxResult()!=0) {
-            itemCount+=1;
-        }
+        int itemCount = cursors.length - 1;
 
         // Loopしてcomboboxへ加える
         for (int i=0; i < itemCount; i++) {
@@ -639,7 +504,7 @@ public class LaboTestBean extends AbstractChartDocument {
             String str = ClientContext.getMyBundle(LaboTestBean.class).getString("text.number");
             sb.append(str);
             String name = sb.toString();
-            String value = String.valueOf(firstIndex);
+            String value = cursors[i+1];
             NameValuePair item = new NameValuePair(name, value);
             extractionCombo.addItem(item);
         }
@@ -830,8 +695,8 @@ public class LaboTestBean extends AbstractChartDocument {
                     // 全件表示修正^
                     if (extractionCombo.getSelectedItem()!=null) {
                         NameValuePair pair = (NameValuePair)extractionCombo.getSelectedItem();
-                        int firstResult = Integer.parseInt(pair.getValue());
-                        searchLaboTest(firstResult);
+                        long cursor = Long.parseLong(pair.getValue());
+                        searchLaboTest(cursor);
                     }
                 }
             }
@@ -908,8 +773,8 @@ public class LaboTestBean extends AbstractChartDocument {
 //s.oh^ ラボテストのPDF出力    
     public void updateList() {
                         NameValuePair pair = (NameValuePair)extractionCombo.getSelectedItem();
-                        int firstResult = Integer.parseInt(pair.getValue());
-                        searchLaboTest(firstResult);
+                        long cursor = Long.parseLong(pair.getValue());
+                        searchLaboTest(cursor);
         graphPanel.removeAll();
         graphPanel.validate();
     }
@@ -14,7 +14,11 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
 import javax.swing.*;
 import static javax.swing.SwingConstants.CENTER;
@@ -217,6 +221,10 @@ public class WatingListImpl extends AbstractMainComponent implements PropertyCha
     private PVTDelegater pvtDelegater;
     private int selectedRowBeforeFullPvt;
     
+    // 最後に取得した受付リストの版 定期チェックでは差分だけを取得する
+    private volatile long pvtEpoch;
+    private volatile long pvtVersion;
+    
     // Commet staff
     private final String clientUUID;
     private final ChartEventHandler cel;
@@ -1230,7 +1238,16 @@ public class WatingListImpl extends AbstractMainComponent implements PropertyCha
             @Override
             protected List<PatientVisitModel> doInBackground() throws Exception {
                 setBusy(true);
-                // サーバーからpvtListを取得する
+                // サーバーからpvtListを取得する 差分の版も取得しておく
+                PatientVisitDelta delta = pvtDelegater.isPvtDeltaSupported() ? pvtDelegater.getPvtDelta(0L, 0L) : null;
+                if (delta != null) {
+                    pvtEpoch = delta.getEpoch();
+                    pvtVersion = delta.getVersion();
+                    return delta.getList();
+                }
+                // 版が取れなかった場合 次回の差分取得は全件が返る
+                pvtEpoch = 0L;
+                pvtVersion = 0L;
                 return pvtDelegater.getPvtList();
             }
 
@@ -1260,6 +1277,25 @@ public class WatingListImpl extends AbstractMainComponent implements PropertyCha
         
         if(pvtDelegater == null) return;
         
+        // 前回の版以降の差分だけを取得してテーブルに反映する
+        if (pvtDelegater.isPvtDeltaSupported()) {
+            final PatientVisitDelta delta = pvtDelegater.getPvtDelta(pvtEpoch, pvtVersion);
+            if (delta != null) {
+                SwingUtilities.invokeLater(() -> {
+                    if (applyPvtDelta(delta)) {
+                        countPvt();
+                        updatePvtInfo();
+                    }
+                });
+                return;
+            }
+            if (pvtDelegater.isPvtDeltaSupported()) {
+                // 一時的な失敗 次回の定期チェックで再取得する
+                return;
+            }
+            // 差分に対応していないサーバーでは全件を取得する
+        }
+        
         SwingUtilities.invokeLater(() -> {
             view.getKutuBtn().setEnabled(false);
             if (getContext().getCurrentComponent() == getUI()) {
@@ -1335,10 +1371,87 @@ public class WatingListImpl extends AbstractMainComponent implements PropertyCha
 //        };
 //        worker.execute();
     }
+    
+    /**
+     * 受付リストの差分を pvtList と tableModel に反映する。
+     * 表示する行が変わらない場合は更新された行だけを差し替える。
+     * @param delta 受付リストの差分
+     * @return 変更があった場合 true
+     */
+    private boolean applyPvtDelta(PatientVisitDelta delta) {
+        
+        pvtEpoch = delta.getEpoch();
+        pvtVersion = delta.getVersion();
+        
+        List<PatientVisitModel> updated = delta.getList();
+        List<Long> removed = delta.getRemoved();
+        int sRow = pvtTable.getSelectedRow();
+        
+        if (delta.isFull() || pvtList == null) {
+            pvtList = (updated != null) ? new ArrayList<>(updated) : new ArrayList<>();
+            filterPatients();
+            if (sRow >= 0 && sRow < pvtTable.getRowCount()) {
+                pvtTable.getSelectionModel().addSelectionInterval(sRow, sRow);
+            }
+            return true;
+        }
+        if ((updated == null || updated.isEmpty()) && (removed == null || removed.isEmpty())) {
+            return false;
+        }
+        
+        // pvtListに反映 更新は同じ位置で置き換え、追加は末尾
+        if (removed != null && !removed.isEmpty()) {
+            Set<Long> pks = new HashSet<>(removed);
+            pvtList.removeIf(pvt -> pks.contains(pvt.getId()));
+        }
+        if (updated != null) {
+            Map<Long, Integer> index = new HashMap<>(pvtList.size() * 2);
+            for (int i = 0; i < pvtList.size(); i++) {
+                index.put(pvtList.get(i).getId(), i);
+            }
+            for (PatientVisitModel pvt : updated) {
+                Integer i = index.get(pvt.getId());
+                if (i != null) {
+                    pvtList.set(i, pvt);
+                } else {
+                    index.put(pvt.getId(), pvtList.size());
+                    pvtList.add(pvt);
+                }
+            }
+        }
+        
+        // 表示する行が同じならば変わった行だけ通知する
+        List<PatientVisitModel> list = filterList();
+        List<PatientVisitModel> current = pvtTableModel.getDataProvider();
+        boolean sameRows = (current != null && current.size() == list.size());
+        for (int row = 0; sameRows && row < list.size(); row++) {
+            sameRows = (current.get(row).getId() == list.get(row).getId());
+        }
+        if (sameRows) {
+            for (int row = 0; row < list.size(); row++) {
+                if (current.get(row) != list.get(row)) {
+                    current.set(row, list.get(row));
+                    pvtTableModel.fireTableRowsUpdated(row, row);
+                }
+            }
+        } else {
+            pvtTableModel.setDataProvider(list);
+            if (sRow >= 0 && sRow < pvtTable.getRowCount()) {
+                pvtTable.getSelectionModel().addSelectionInterval(sRow, sRow);
+            }
+        }
+        return true;
+    }
 //s.oh$
     
     // 受付番号を振り、フィルタリングしてtableModelに設定する
     private void filterPatients() {
+        pvtTableModel.setDataProvider(filterList());
+        //pvtTable.repaint();
+    }
+    
+    // 受付番号を振り、フィルタリングした一覧を返す
+    private List<PatientVisitModel> filterList() {
 
         List<PatientVisitModel> list = new ArrayList<>();
         List<PatientVisitModel> listTmp = new ArrayList<>();
@@ -1374,8 +1487,7 @@ public class WatingListImpl extends AbstractMainComponent implements PropertyCha
             PatientVisitModel pvt = list.get(i);
             pvt.setNumber(i + 1);
         }
-        pvtTableModel.setDataProvider(list);
-        //pvtTable.repaint();
+        return list;
     }
     
     private boolean isAssignedOnly() {
@@ -3,12 +3,11 @@ package open.dolphin.impl.server;
 import java.io.*;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.text.DateFormat;
-import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import open.dolphin.client.MainWindow;
+import open.dolphin.common.EotSocketServer;
 import open.dolphin.infomodel.UserModel;
 
 /**
@@ -16,14 +15,15 @@ import open.dolphin.infomodel.UserModel;
  * <br>
  * PVTServer() listen to ORCA for MML file through socket<br>
  * <br>
- * Creates 'Connection' thread on getting MML file from ORCA<br>
+ * Receives EOT framed messages on EotSocketServer (one selector thread and
+ * a bounded worker pool) and replies ACK/NAK<br>
  *
  * @author Kazushi Minagawa, Digital Globe, Inc.
  *
  * Modified by Mirror-i corp for writing into postgreSQL
  *
  */
-public final class PVTClientServer implements Runnable,open.dolphin.server.PVTServer {
+public final class PVTClientServer implements open.dolphin.server.PVTServer {
 
     public static final int EOT = 0x04;
     public static final int ACK = 0x06;
@@ -33,10 +33,13 @@ public final class PVTClientServer implements Runnable,open.dolphin.server.PVTSe
     public static final String EUC = "EUC_JIS";
     
     private static final int DEFAULT_PORT = 5002;
+    private static final int MAX_CONNECTIONS = 8;
+    private static final int WORKER_THREADS = 2;
     private UserModel user;
     private int port = DEFAULT_PORT;
     private String bindAddress;
-    private ServerSocket listenSocket;
+    private EotSocketServer server;
+    private ExecutorService executor;
     private String encoding = UTF8;
     private Thread serverThread;
     private PVTSender sender;
@@ -142,11 +145,17 @@ public final class PVTClientServer implements Runnable,open.dolphin.server.PVTSe
                 address = new InetSocketAddress(InetAddress.getLocalHost(), port);
             }
             
-            listenSocket = new ServerSocket();
-            listenSocket.bind(address);
+            executor = Executors.newFixedThreadPool(WORKER_THREADS, (Runnable r) -> {
+                Thread t = new Thread(r, "PVTClientServer-worker");
+                t.setDaemon(true);
+                return t;
+            });
+            server = new EotSocketServer(address, encoding, this::receive, executor, MAX_CONNECTIONS,
+                    java.util.logging.Logger.getLogger(this.getClass().getName()));
+            server.bind();
             java.util.logging.Logger.getLogger(this.getClass().getName()).log(Level.INFO, "PVT Server is binded {0} with encoding: {1}", new Object[]{address, encoding});
 
-            serverThread = new Thread(this);
+            serverThread = new Thread(server, "PVTClientServer");
             serverThread.setPriority(Thread.NORM_PRIORITY);
             serverThread.start();
 
@@ -165,14 +174,15 @@ public final class PVTClientServer implements Runnable,open.dolphin.server.PVTSe
             serverThread = null;
         }
 
-        if (listenSocket != null) {
-            try {
-                listenSocket.close();
-                listenSocket = null;
-            } catch (IOException e) {
-                e.printStackTrace(System.err);
-                java.util.logging.Logger.getLogger(this.getClass().getName()).warning(e.getMessage());
-            }
+        if (server != null) {
+            server.close();
+            java.util.logging.Logger.getLogger(this.getClass().getName()).log(Level.INFO, "PVT Server stats: {0}", server.getStats());
+            server = null;
+        }
+
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
         }
 
         if (sender != null) {
@@ -181,137 +191,22 @@ public final class PVTClientServer implements Runnable,open.dolphin.server.PVTSe
     }
 
     /**
-     *
-     * run(), This method is called from startServer()<br>
-     * Listens to ORCA server for MML file and creats new 'Connection' thread
-     * <br>
-     *
+     * 受信の統計を返す。
+     * @return accepted,active,messages,errors,messages/sec,avgParseMs,maxParseMs 受信していなければ null
      */
-    @Override
-    public void run() {
-
-        Thread thisThread = Thread.currentThread();
-
-        while (thisThread==serverThread) {
-            try {
-                Socket clientSocket = listenSocket.accept();
-                Connection con = new Connection(clientSocket);
-                Thread t = new Thread(con);
-                t.setPriority(Thread.NORM_PRIORITY);
-                t.start();
-            } catch (IOException e) {
-                if (thisThread!=serverThread) {
-                    java.util.logging.Logger.getLogger(this.getClass().getName()).warning("PVTServer stopped");
-                } else {
-                    e.printStackTrace(System.err);
-                    java.util.logging.Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "Exception while listening for connections:{0}", e);
-                }
-            }
-        }
+    public String getReceptionStats() {
+        EotSocketServer s = server;
+        return (s != null) ? s.getStats() : null;
     }
 
     /**
-     * 'Connection' thread<br>
-     *
-     * 'Connection' thread created from 'PVTServer' thread<br>
-     * Converts the socket stream in to string and creates 'PatientRegister'
-     * object<br>
-     * Calls 'regist' method of 'PatientRegister' with received MML info<br>
-     * Receives 'PVTPostgres' object by calling 'getPVT' method of
-     * 'PatientRegister' object<br>
-     * Creates new 'PVTPostgresConnection' object to get Postgres conenction<br>
-     * Calls 'addWork' method of 'PVTPostgresConnection' to add/update patient
-     * various info in Postgres database<br>
-     * Overall transaction result sent to ORCA (ACK/NAK)<br>
-     *
+     * EotSocketServer の worker から呼ばれる。
+     * 受信した MML を PVTSender のキューに積む。戻った後に ACK を返す。
      */
-    protected final class Connection implements Runnable {
-
-        private Socket client;
-
-        public Connection(Socket clientSocket) {
-            this.client = clientSocket;
-        }
-        
-        private void printInfo() {
-            String addr = this.client.getInetAddress().getHostAddress();
-            String time = DateFormat.getDateTimeInstance().format(new Date());
-            java.util.logging.Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Connected from {0} at {1}", new Object[]{addr, time});
-        }
-
-        
-        @Override
-        public void run() {
+    private void receive(String recieved) {
+        java.util.logging.Logger.getLogger(this.getClass().getName()).info(recieved);
 
-            BufferedInputStream reader;
-            BufferedOutputStream writer;
-            
-            try {
-                printInfo();
-                
-                reader = new BufferedInputStream(new DataInputStream(this.client.getInputStream()));
-                writer = new BufferedOutputStream(new DataOutputStream(this.client.getOutputStream()));
-                
-                ByteArrayOutputStream bo = new ByteArrayOutputStream();
-                BufferedOutputStream buf = new BufferedOutputStream(bo);
-                String recieved;
-
-                byte[] buffer = new byte[16384];
-                int readLen;
-
-                while (true) {
-
-                    readLen = reader.read(buffer);
-
-                    if (readLen == -1) {
-                        java.util.logging.Logger.getLogger(this.getClass().getName()).fine("EOF");
-                        break;
-                    }
-
-                    if (buffer[readLen-1] == EOT) {
-                        buf.write(buffer, 0, readLen-1);
-                        buf.flush();
-                        recieved = bo.toString(encoding);
-                        int len = recieved.length();
-                        bo.close();
-                        buf.close();
-                        java.util.logging.Logger.getLogger(this.getClass().getName()).log(Level.INFO, "Recieved EOT length = {0} bytes", len);
-                        java.util.logging.Logger.getLogger(this.getClass().getName()).info(recieved);
-
-                        // add queue
-                        sender.processPvt(recieved);
-
-                        // Reply ACK
-                        java.util.logging.Logger.getLogger(this.getClass().getName()).fine("return ACK");
-                        
-                        writer.write(ACK);
-                        writer.flush();
-
-                    } else {
-                        buf.write(buffer, 0, readLen);
-                    }
-                }
-
-                reader.close();
-                writer.close();
-                client.close();
-                client = null;
-                
-            } catch (IOException e) {
-                java.util.logging.Logger.getLogger(this.getClass().getName()).warning("IOException while reading streams");
-                java.util.logging.Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "Exception details:{0}", e);
-
-            } finally {
-                if (client != null) {
-                    try {
-                        client.close();
-                        client = null;
-                    } catch (IOException e2) {
-                        java.util.logging.Logger.getLogger(this.getClass().getName()).warning("Exception while closing socket conenction after reading streams");
-                        java.util.logging.Logger.getLogger(this.getClass().getName()).log(Level.WARNING, "Exception details:{0}", e2);
-                    }
-                }
-            }
-        }
+        // add queue
+        sender.processPvt(recieved);
     }
-}
\ No newline at end of file
+}
@@ -96,6 +96,7 @@ public class Project  {
     public static final String DOC_HISTORY_SHOWMODIFIED = "docHistory.showModified";
     public static final String DOC_HISTORY_FETCHCOUNT 	= "docHistory.fetchCount";
     public static final String DOC_HISTORY_PERIOD 	= "docHistory.period";
+    public static final String DOC_HISTORY_PAGESIZE 	= "docHistory.pageSize";
     public static final String KARTE_SCROLL_DIRECTION   = "karte.scroll.direction";
     public static final String DOUBLE_KARTE             = "karte.double";
     
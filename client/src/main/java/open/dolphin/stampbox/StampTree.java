@@ -5,7 +5,6 @@ import java.awt.Component;
 import java.awt.Point;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.beans.XMLEncoder;
 import java.io.*;
 import java.text.MessageFormat;
 import java.util.ArrayList;
@@ -21,6 +20,7 @@ import open.dolphin.delegater.StampDelegater;
 import open.dolphin.helper.SimpleWorker;
 import open.dolphin.infomodel.*;
 import open.dolphin.project.Project;
+import open.dolphin.util.BeanUtils;
 import open.dolphin.util.GUIDGenerator;
 
 /**
@@ -212,7 +212,7 @@ public class StampTree extends JTree implements TreeModelListener {
         stampModel.setId(stampId);
         stampModel.setUserId(Project.getUserModel().getId());           // userId
         stampModel.setEntity(droppedInfo.getEntity());                  // entity
-        stampModel.setStampBytes(getXMLBytes(droppedStamp.getModel())); // XML
+        stampModel.setStampBytes(getBeanBytes(droppedStamp.getModel()));
 
         //----------------------------------------------
         // Tree に加える新しい StampInfo を生成する
@@ -318,7 +318,7 @@ public class StampTree extends JTree implements TreeModelListener {
         stampModel.setId(stampId);
         stampModel.setUserId(Project.getUserModel().getId());           // userId
         stampModel.setEntity(droppedInfo.getEntity());                  // entity
-        stampModel.setStampBytes(getXMLBytes(droppedStamp.getModel())); // XML
+        stampModel.setStampBytes(getBeanBytes(droppedStamp.getModel()));
         
         //----------------------------------------------
         // Tree に加える新しい StampInfo を生成する
@@ -499,7 +499,7 @@ public class StampTree extends JTree implements TreeModelListener {
         stampModel.setId(stampId);
         stampModel.setUserId(Project.getUserModel().getId());               // userId
         stampModel.setEntity(stampInfo.getEntity());                        // entity
-        stampModel.setStampBytes(getXMLBytes(stampToReplcae.getModel()));   // XML
+        stampModel.setStampBytes(getBeanBytes(stampToReplcae.getModel()));
         
 //s.oh^ 2013/11/08 スタンプ置換不具合
         stampInfo.setStampMemo(constractToolTip(stampToReplcae));           // Tooltip
@@ -611,7 +611,7 @@ public class StampTree extends JTree implements TreeModelListener {
         addStamp.setUserId(Project.getUserModel().getId());         // user pk
         addStamp.setEntity(IInfoModel.ENTITY_DIAGNOSIS);            // entity
         //addStamp.setStampBytes(getXMLBytes(stamp.getModel()));      // RD data のバイト
-        addStamp.setStampBytes(getXMLBytes(add));      // RD data のバイト
+        addStamp.setStampBytes(getBeanBytes(add));      // RD data のバイト
 
         // Tree に加える 新しい StampInfo を生成する
         final ModuleInfoBean info = new ModuleInfoBean();
@@ -745,7 +745,7 @@ public class StampTree extends JTree implements TreeModelListener {
             addStamp.setUserId(Project.getUserModel().getId());     // user pk
             addStamp.setEntity(IInfoModel.ENTITY_DIAGNOSIS);        // entity
             //addStamp.setStampBytes(getXMLBytes(stamp.getModel()));  // RD data bytes
-            addStamp.setStampBytes(getXMLBytes(add));  // RD data bytes
+            addStamp.setStampBytes(getBeanBytes(add));  // RD data bytes
             stampList.add(addStamp);
             
             // Tree に加える 新しい StampInfo を生成する
@@ -854,7 +854,7 @@ public class StampTree extends JTree implements TreeModelListener {
         addStamp.setId(stampId);                                // stampId
         addStamp.setUserId(Project.getUserModel().getId());     // user pk
         addStamp.setEntity(IInfoModel.ENTITY_TEXT);             // entity
-        addStamp.setStampBytes(getXMLBytes((IInfoModel)stamp)); // TextStampModel->IInfoModelのバイトdata
+        addStamp.setStampBytes(getBeanBytes((IInfoModel)stamp)); // TextStampModel->IInfoModelのバイトdata
 
         // Tree へ加える 新しい StampInfo を生成する
         final ModuleInfoBean info = new ModuleInfoBean();
@@ -963,7 +963,7 @@ public class StampTree extends JTree implements TreeModelListener {
         addStamp.setId(stampId);
         addStamp.setUserId(Project.getUserModel().getId());
         addStamp.setEntity(IInfoModel.ENTITY_TEXT);
-        addStamp.setStampBytes(getXMLBytes((IInfoModel) stamp));
+        addStamp.setStampBytes(getBeanBytes((IInfoModel) stamp));
         
         //
         // Tree へ加える 新しい StampInfo を生成する
@@ -1325,12 +1325,9 @@ public class StampTree extends JTree implements TreeModelListener {
     public void treeStructureChanged(TreeModelEvent e) {
     }
     
-    private byte[] getXMLBytes(Object bean) {
-        ByteArrayOutputStream bo = new ByteArrayOutputStream();
-        try (XMLEncoder e = new XMLEncoder(new BufferedOutputStream(bo))) {
-            e.writeObject(bean);
-        }
-        return bo.toByteArray();
+    private byte[] getBeanBytes(Object bean) {
+        // 保存形式は beanbytes.write.binary による
+        return BeanUtils.getBeanBytes(bean);
     }
     
     
@@ -5,6 +5,7 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import open.dolphin.infomodel.BeanBytesCodec;
 
 /**
  *
@@ -72,11 +73,18 @@ public class BeanUtils {
     }
     
     public static Object xmlDecode(byte[] bytes)  {
-        
-        XMLDecoder d = new XMLDecoder(
-                new BufferedInputStream(
-                new ByteArrayInputStream(bytes)));
-        return d.readObject();
+        // バイナリ形式と従来の XML 形式の両方を読む
+        return BeanBytesCodec.decode(bytes);
+    }
+    
+    /**
+     * ModuleModel.beanBytes / StampModel.stampBytes 用のバイト配列を返す。
+     * beanbytes.write.binary が true ならバイナリ形式、そうでなければ従来の XML 形式。
+     * @param bean IInfoModel
+     * @return beanBytes
+     */
+    public static byte[] getBeanBytes(Object bean)  {
+        return BeanBytesCodec.toBeanBytes(bean);
     }
 
     //masuda^   http://forums.sun.com/thread.jspa?threadID=427879
@@ -0,0 +1,470 @@
+package open.dolphin.common;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * EOT で区切られた電文を受信し、ACK/NAK を返すソケットサーバ。
+ * 受付(PVT)受信のサーバ側 PvtService とクライアント側 PVTClientServer で使う。
+ *
+ * 接続の受け付けと読み込みは Selector を回す1本のスレッドで行い、電文の処理だけを executor に渡す。
+ * 1接続あたり処理中の電文は1つまでで、処理中はその接続の読み込みを止める。
+ * 同時接続数が上限に達したら accept を止めるので、executor 上で同時に走る処理も上限までになる。
+ * 読み込みバッファは接続ごとに1つを使い回す。
+ */
+public class EotSocketServer implements Runnable {
+
+    public static final int EOT = 0x04;
+    public static final int ACK = 0x06;
+    public static final int NAK = 0x15;
+
+    /**
+     * 受信した電文を処理する。例外を投げると NAK を返して接続を閉じる。
+     */
+    public interface MessageHandler {
+
+        void handle(String message) throws Exception;
+    }
+
+    private static final int READ_BUFFER_SIZE = 16384;
+
+    // EOT が来ないまま溜まった場合に接続を閉じる大きさ
+    private static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+    // 受信数/秒を平均する秒数
+    private static final int RATE_WINDOW = 60;
+
+    private final InetSocketAddress address;
+    private final Charset charset;
+    private final MessageHandler handler;
+    private final Executor executor;
+    private final int maxConnections;
+    private final Logger logger;
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private SelectionKey serverKey;
+    private volatile boolean running;
+
+    // 処理を終えて読み込みを再開する接続 selector スレッドで取り出す
+    private final Queue<Connection> resumeQueue = new ConcurrentLinkedQueue<>();
+
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicLong messageCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private final AtomicLong parseNanos = new AtomicLong();
+    private final AtomicLong maxParseNanos = new AtomicLong();
+
+    private final long[] rateCounts = new long[RATE_WINDOW];
+    private final long[] rateSeconds = new long[RATE_WINDOW];
+
+    public EotSocketServer(InetSocketAddress address, String encoding, MessageHandler handler,
+            Executor executor, int maxConnections, Logger logger) {
+        this.address = address;
+        this.handler = handler;
+        this.executor = executor;
+        this.maxConnections = Math.max(maxConnections, 1);
+        this.logger = logger;
+        this.charset = toCharset(encoding);
+    }
+
+    private Charset toCharset(String encoding) {
+        if (encoding != null) {
+            try {
+                return Charset.forName(encoding);
+            } catch (IllegalArgumentException e) {
+                logger.log(Level.WARNING, "Unsupported encoding: {0}, use UTF-8", encoding);
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    /**
+     * ポートをバインドする。この後 run() を別スレッドで実行する。
+     * @throws IOException
+     */
+    public void bind() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(address);
+        serverKey = serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+    }
+
+    /**
+     * サーバを停止する。接続はすべて閉じる。
+     */
+    public void close() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void run() {
+
+        try {
+            while (running) {
+                selector.select();
+                resumeConnections();
+
+                Iterator<SelectionKey> itr = selector.selectedKeys().iterator();
+                while (itr.hasNext()) {
+                    SelectionKey key = itr.next();
+                    itr.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        read((Connection)key.attachment());
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                logger.log(Level.WARNING, "Exception while listening for connections:{0}", e);
+            }
+        } finally {
+            running = false;
+            closeAll();
+            logger.info("PVT Server stopped");
+        }
+    }
+
+    private void accept() throws IOException {
+
+        SocketChannel channel;
+        while (activeConnections.get() < maxConnections && (channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            Connection con = new Connection(channel);
+            con.key = channel.register(selector, SelectionKey.OP_READ, con);
+            acceptedCount.incrementAndGet();
+            activeConnections.incrementAndGet();
+            printInfo(channel);
+        }
+        if (activeConnections.get() >= maxConnections) {
+            // 上限に達したらカーネルのバックログで待たせる
+            serverKey.interestOps(0);
+            logger.log(Level.WARNING, "PVT Server reached max connections: {0}", maxConnections);
+        }
+    }
+
+    private void printInfo(SocketChannel channel) {
+        String addr;
+        try {
+            addr = String.valueOf(channel.getRemoteAddress());
+        } catch (IOException e) {
+            addr = "unknown";
+        }
+        String time = DateFormat.getDateTimeInstance().format(new Date());
+        logger.log(Level.INFO, "Connected from {0} at {1}", new Object[]{addr, time});
+    }
+
+    private void read(Connection con) {
+
+        int readLen;
+        try {
+            readLen = con.channel.read(con.readBuffer);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "IOException while reading streams:{0}", e);
+            closeConnection(con);
+            return;
+        }
+
+        if (readLen == -1) {
+            logger.fine("EOF");
+            closeConnection(con);
+            return;
+        }
+
+        con.readBuffer.flip();
+        con.append(con.readBuffer);
+        con.readBuffer.clear();
+
+        if (con.length > MAX_MESSAGE_SIZE) {
+            logger.log(Level.WARNING, "Message too large without EOT: {0} bytes", con.length);
+            closeConnection(con);
+            return;
+        }
+
+        dispatch(con);
+    }
+
+    // EOT まで揃っていれば読み込みを止めて executor で処理する
+    private boolean dispatch(final Connection con) {
+
+        final int eot = con.indexOfEot();
+        if (eot < 0) {
+            return false;
+        }
+
+        con.key.interestOps(0);
+        try {
+            executor.execute(() -> process(con, eot));
+        } catch (RejectedExecutionException e) {
+            process(con, eot);
+        }
+        return true;
+    }
+
+    // executor のスレッドで実行する 処理中は selector スレッドがこの接続に触らない
+    private void process(Connection con, int eot) {
+
+        long start = System.nanoTime();
+        boolean ok;
+        try {
+            String message = new String(con.pending, 0, eot, charset);
+            logger.log(Level.FINE, "Recieved EOT length = {0} bytes", message.length());
+            handler.handle(message);
+            ok = true;
+        } catch (Exception e) {
+            ok = false;
+            errorCount.incrementAndGet();
+            logger.log(Level.WARNING, e.getMessage(), e);
+        }
+        recordMessage(System.nanoTime() - start);
+
+        con.consume(eot + 1);
+        boolean written = con.reply(ok ? ACK : NAK);
+        logger.log(Level.FINE, "return code = {0}", ok ? ACK : NAK);
+
+        con.closeRequested = !ok || !written;
+        resumeQueue.add(con);
+        selector.wakeup();
+    }
+
+    // selector スレッドで実行する
+    private void resumeConnections() {
+
+        Connection con;
+        while ((con = resumeQueue.poll()) != null) {
+            if (con.closeRequested || !con.key.isValid()) {
+                closeConnection(con);
+                continue;
+            }
+            // 続けて届いていた電文があればそのまま処理する
+            if (!dispatch(con)) {
+                con.key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    private void closeConnection(Connection con) {
+
+        if (con.closed) {
+            return;
+        }
+        con.closed = true;
+        con.key.cancel();
+        try {
+            con.channel.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Exception while closing socket conenction:{0}", e);
+        }
+        int active = activeConnections.decrementAndGet();
+        if (running && serverKey.isValid() && active < maxConnections && serverKey.interestOps() == 0) {
+            serverKey.interestOps(SelectionKey.OP_ACCEPT);
+        }
+    }
+
+    private void closeAll() {
+
+        if (selector == null) {
+            return;
+        }
+        try {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    closeConnection((Connection)key.attachment());
+                }
+            }
+        } catch (ClosedSelectorException e) {
+        }
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            logger.warning(e.getMessage());
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.warning(e.getMessage());
+        }
+    }
+
+    private void recordMessage(long elapsed) {
+
+        messageCount.incrementAndGet();
+        parseNanos.addAndGet(elapsed);
+        long max;
+        while (elapsed > (max = maxParseNanos.get())) {
+            if (maxParseNanos.compareAndSet(max, elapsed)) {
+                break;
+            }
+        }
+
+        long sec = System.currentTimeMillis() / 1000L;
+        int idx = (int)(sec % RATE_WINDOW);
+        synchronized (rateCounts) {
+            if (rateSeconds[idx] != sec) {
+                rateSeconds[idx] = sec;
+                rateCounts[idx] = 0L;
+            }
+            rateCounts[idx]++;
+        }
+    }
+
+    public long getAcceptedCount() {
+        return acceptedCount.get();
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public long getMessageCount() {
+        return messageCount.get();
+    }
+
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    /**
+     * 直近 RATE_WINDOW 秒の平均受信数/秒を返す。
+     * @return 受信数/秒
+     */
+    public double getMessagesPerSecond() {
+        long sec = System.currentTimeMillis() / 1000L;
+        long sum = 0L;
+        synchronized (rateCounts) {
+            for (int i = 0; i < RATE_WINDOW; i++) {
+                if (sec - rateSeconds[i] < RATE_WINDOW) {
+                    sum += rateCounts[i];
+                }
+            }
+        }
+        return (double)sum / RATE_WINDOW;
+    }
+
+    /**
+     * 電文1件の平均処理時間(ms)を返す。デコード、パース、登録を含む。
+     * @return 平均処理時間
+     */
+    public double getAverageParseMillis() {
+        long cnt = messageCount.get();
+        return (cnt > 0L) ? parseNanos.get() / 1000000.0 / cnt : 0.0;
+    }
+
+    public double getMaxParseMillis() {
+        return maxParseNanos.get() / 1000000.0;
+    }
+
+    /**
+     * accepted,active,messages,errors,messages/sec,avgParseMs,maxParseMs
+     * @return 統計の CSV
+     */
+    public String getStats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(getAcceptedCount()).append(",");
+        sb.append(getActiveConnections()).append(",");
+        sb.append(getMessageCount()).append(",");
+        sb.append(getErrorCount()).append(",");
+        sb.append(String.format("%.3f", getMessagesPerSecond())).append(",");
+        sb.append(String.format("%.3f", getAverageParseMillis())).append(",");
+        sb.append(String.format("%.3f", getMaxParseMillis()));
+        return sb.toString();
+    }
+
+    private static final class Connection {
+
+        private final SocketChannel channel;
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final ByteBuffer replyBuffer = ByteBuffer.allocate(1);
+        private SelectionKey key;
+
+        // EOT までの受信データ 電文を処理したら先頭から詰める
+        private byte[] pending = new byte[READ_BUFFER_SIZE];
+        private int length;
+        // EOT を探し終えた位置
+        private int scanned;
+
+        private volatile boolean closeRequested;
+        private boolean closed;
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private void append(ByteBuffer src) {
+            int len = src.remaining();
+            if (length + len > pending.length) {
+                byte[] grown = new byte[Math.max(pending.length * 2, length + len)];
+                System.arraycopy(pending, 0, grown, 0, length);
+                pending = grown;
+            }
+            src.get(pending, length, len);
+            length += len;
+        }
+
+        private int indexOfEot() {
+            for (int i = scanned; i < length; i++) {
+                if (pending[i] == EOT) {
+                    return i;
+                }
+            }
+            scanned = length;
+            return -1;
+        }
+
+        private void consume(int len) {
+            System.arraycopy(pending, len, pending, 0, length - len);
+            length -= len;
+            scanned = 0;
+        }
+
+        private boolean reply(int code) {
+            replyBuffer.clear();
+            replyBuffer.put((byte)code);
+            replyBuffer.flip();
+            try {
+                // 1バイトなので送信バッファが詰まっていなければ一度で書ける
+                return channel.write(replyBuffer) == 1;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+}
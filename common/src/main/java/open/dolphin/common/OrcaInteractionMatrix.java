@@ -0,0 +1,200 @@
+package open.dolphin.common;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import open.dolphin.infomodel.DrugInteractionModel;
+
+/**
+ * ORCA の相互作用マスタ(tbl_interact × tbl_sskijyo)のメモリ上の表。
+ * OrcaMasterIndex と一緒に読み込む。
+ *
+ * 9桁の薬剤コードを int にし、薬剤コードの昇順配列と、薬剤ごとの相手コード(昇順)・症状の配列で持つ。
+ * 相互作用の確認は薬剤ごとに二分探索するだけで ORCA へは問い合わせない。
+ * 9桁の数字でないコードを含む場合は null を返すので、呼び出し側は従来の SQL で確認する。
+ */
+public class OrcaInteractionMatrix {
+
+    private static final String QUERY_INTERACTION
+            = "select drugcd, drugcd2, TI.syojyoucd, syojyou from tbl_interact TI inner join tbl_sskijyo TS on TI.syojyoucd = TS.syojyoucd order by drugcd, drugcd2";
+
+    private static final int CODE_LENGTH = 9;
+
+    // 薬剤コード(昇順、重複なし)
+    private final int[] drugs;
+
+    // drugs[i] の相手は partners[offsets[i]] から partners[offsets[i+1]-1]
+    private final int[] offsets;
+    private final int[] partners;
+
+    // 相手ごとの症状 symptomCodes/symptomNames の位置
+    private final int[] symptoms;
+    private final String[] symptomCodes;
+    private final String[] symptomNames;
+
+    private OrcaInteractionMatrix(int[] drugs, int[] offsets, int[] partners, int[] symptoms, String[] symptomCodes, String[] symptomNames) {
+        this.drugs = drugs;
+        this.offsets = offsets;
+        this.partners = partners;
+        this.symptoms = symptoms;
+        this.symptomCodes = symptomCodes;
+        this.symptomNames = symptomNames;
+    }
+
+    /**
+     * 相互作用マスタを読み込む。
+     * @param con ORCA への接続
+     * @return 表、9桁の数字でないコードがあるか並び順が合わない場合は null
+     * @throws SQLException
+     */
+    public static OrcaInteractionMatrix load(Connection con) throws SQLException {
+
+        IntList drugList = new IntList();
+        IntList offsetList = new IntList();
+        IntList partnerList = new IntList();
+        IntList symptomList = new IntList();
+        Map<String, Integer> symptomIndex = new HashMap<>();
+        List<String> codes = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+
+        try (PreparedStatement ps = con.prepareStatement(QUERY_INTERACTION);
+                ResultSet rs = ps.executeQuery()) {
+            int lastDrug = -1;
+            int lastPartner = -1;
+            while (rs.next()) {
+                int drug = toInt(rs.getString(1));
+                int partner = toInt(rs.getString(2));
+                if (drug < 0 || partner < 0 || drug < lastDrug || (drug == lastDrug && partner < lastPartner)) {
+                    Logger.getLogger("open.dolphin").warning("interaction master can not be indexed: " + rs.getString(1) + "," + rs.getString(2));
+                    return null;
+                }
+                if (drug != lastDrug) {
+                    drugList.add(drug);
+                    offsetList.add(partnerList.size);
+                    lastDrug = drug;
+                }
+                lastPartner = partner;
+                partnerList.add(partner);
+
+                String code = rs.getString(3);
+                Integer index = symptomIndex.get(code);
+                if (index == null) {
+                    index = codes.size();
+                    symptomIndex.put(code, index);
+                    codes.add(code);
+                    names.add(rs.getString(4));
+                }
+                symptomList.add(index);
+            }
+        }
+        offsetList.add(partnerList.size);
+
+        return new OrcaInteractionMatrix(drugList.toArray(), offsetList.toArray(), partnerList.toArray(), symptomList.toArray(),
+                codes.toArray(new String[codes.size()]), names.toArray(new String[names.size()]));
+    }
+
+    /**
+     * 2つの薬剤コードの集合の相互作用を返す。
+     * @param codes1 薬剤コード
+     * @param codes2 相手の薬剤コード
+     * @return 相互作用のリスト、9桁の数字でないコードを含む場合は null
+     */
+    public List<DrugInteractionModel> check(Collection<String> codes1, Collection<String> codes2) {
+
+        // 相手は昇順にして二分探索する
+        int[] targets = new int[codes2.size()];
+        Map<Integer, String> targetCodes = new HashMap<>(codes2.size() * 2);
+        int n = 0;
+        for (String code : codes2) {
+            int value = toInt(code);
+            if (value < 0) {
+                return null;
+            }
+            if (targetCodes.put(value, code) == null) {
+                targets[n++] = value;
+            }
+        }
+        targets = Arrays.copyOf(targets, n);
+        Arrays.sort(targets);
+
+        List<DrugInteractionModel> ret = new ArrayList<>();
+        int[] seen = new int[codes1.size()];
+        int seenCount = 0;
+        for (String code : codes1) {
+            int drug = toInt(code);
+            if (drug < 0) {
+                return null;
+            }
+            // IN と同じく重複したコードは一度だけ
+            boolean dup = false;
+            for (int i = 0; i < seenCount && !dup; i++) {
+                dup = (seen[i] == drug);
+            }
+            if (dup) {
+                continue;
+            }
+            seen[seenCount++] = drug;
+
+            int d = Arrays.binarySearch(drugs, drug);
+            if (d < 0) {
+                continue;
+            }
+            for (int p = offsets[d]; p < offsets[d + 1]; p++) {
+                if (Arrays.binarySearch(targets, partners[p]) >= 0) {
+                    int s = symptoms[p];
+                    ret.add(new DrugInteractionModel(code, targetCodes.get(partners[p]), symptomCodes[s], symptomNames[s]));
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * 件数を返す。
+     * @return 薬剤と相手の組の数
+     */
+    public int size() {
+        return partners.length;
+    }
+
+    // 9桁の数字を int にする それ以外は -1
+    private static int toInt(String code) {
+        if (code == null || code.length() != CODE_LENGTH) {
+            return -1;
+        }
+        int ret = 0;
+        for (int i = 0; i < CODE_LENGTH; i++) {
+            char c = code.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            ret = ret * 10 + (c - '0');
+        }
+        return ret;
+    }
+
+    private static final class IntList {
+
+        private int[] values = new int[1024];
+        private int size;
+
+        private void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        private int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
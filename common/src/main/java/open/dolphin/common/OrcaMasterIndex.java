@@ -0,0 +1,606 @@
+package open.dolphin.common;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import open.dolphin.infomodel.DiseaseEntry;
+import open.dolphin.infomodel.DrugInteractionModel;
+import open.dolphin.infomodel.TensuMaster;
+
+/**
+ * ORCA の点数マスタ(tbl_tensu)と病名マスタ(tbl_byomei)のメモリ上の索引。
+ * 相互作用マスタ(OrcaInteractionMatrix)も一緒に読み込むが、その失敗は点数・病名の索引に影響しない。
+ * サーバの OrcaResource(claim.conn=server)とクライアントの OrcaSqlDelegater で使う。
+ *
+ * 読み込んだ日以降に有効な行だけを持ち、有効期間は検索時に調べる。
+ * 名称とカナは半角英数字・半角カナを全角に、ひらがなをカタカナに、英小文字を大文字にそろえたキーで引く。
+ * 前方一致と完全一致はキーの昇順配列の二分探索、部分一致は2文字ごとの転置索引で候補を絞る。
+ * コードの正規表現は先頭の固定部分でコードの範囲を絞ってから照合する。
+ *
+ * 索引で答えられない検索(未読込、読込日より前の日付、名称に正規表現の記号を含む)は null を返すので、
+ * 呼び出し側は従来の SQL で検索する。再読込の間は前の索引で答え、読み終えたら差し替える。
+ */
+public class OrcaMasterIndex {
+
+    private static final String QUERY_TENSU
+            = "select srycd,name,kananame,taniname,tensikibetu,ten,nyugaitekkbn,routekkbn,srysyukbn,hospsrykbn,ykzkbn,yakkakjncd,yukostymd,yukoedymd from tbl_tensu where yukoedymd>=?";
+
+    private static final String QUERY_DISEASE
+            = "select byomeicd, byomei, byomeikana, icd10, haisiymd from tbl_byomei where haisiymd >= ?";
+
+    private static final String QUERY_DISEASE_46
+            = "select byomeicd, byomei, byomeikana, icd10_1, haisiymd from tbl_byomei where haisiymd >= ?";
+
+    // 読込に失敗した場合に次に試すまでの時間
+    private static final long RETRY_INTERVAL = 10L * 60L * 1000L;
+
+    // 名称に含まれていたら正規表現として SQL で検索する
+    private static final String REGEX_CHARS = ".[]()*+?{}|\\^$";
+
+    // 半角カナ U+FF61 - U+FF9F に対応する全角文字
+    private static final String HANKAKU_KANA
+            = "。「」、・ヲァィゥェォャュョッーアイウエオカキクケコサシスセソタチツテトナニヌネノハヒフヘホマミムメモヤユヨラリルレロワン゛゜";
+
+    // 濁点・半濁点をつけられるカタカナ
+    private static final String DAKUTEN_KANA = "カキクケコサシスセソタチツテトハヒフヘホ";
+    private static final String HANDAKUTEN_KANA = "ハヒフヘホ";
+
+    // tbl_tensu の列
+    private static final int TENSU_YUKOSTYMD = 12;
+    private static final int TENSU_YUKOEDYMD = 13;
+
+    // tbl_byomei の列
+    private static final int DISEASE_HAISIYMD = 4;
+
+    private volatile Table tensu;
+    private volatile Table disease;
+    private volatile OrcaInteractionMatrix interactions;
+    private volatile String loadedDate;
+    private volatile long loadMillis;
+    private volatile long lastAttempt;
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong lookupNanos = new AtomicLong();
+    private final AtomicLong interactionChecks = new AtomicLong();
+    private final AtomicLong interactionNanos = new AtomicLong();
+
+    /**
+     * マスタを読み込んで索引を作り直す。
+     * 相互作用マスタの読込に失敗した場合は警告を出して前の相互作用マスタを使い続ける。
+     * @param con ORCA への接続
+     * @param orca46 ORCA 4.6 以降の場合 true(病名の ICD10 列名が異なる)
+     * @throws SQLException
+     */
+    public void load(Connection con, boolean orca46) throws SQLException {
+
+        lastAttempt = System.currentTimeMillis();
+        long start = System.currentTimeMillis();
+        String today = today();
+
+        Table newTensu = new Table(read(con, QUERY_TENSU, today, 14));
+        Table newDisease = new Table(read(con, orca46 ? QUERY_DISEASE_46 : QUERY_DISEASE, today, 5));
+
+        tensu = newTensu;
+        disease = newDisease;
+        loadedDate = today;
+
+        try {
+            interactions = OrcaInteractionMatrix.load(con);
+        } catch (SQLException | RuntimeException e) {
+            Logger.getLogger("open.dolphin").log(Level.WARNING, "ORCA interaction matrix not loaded", e);
+        }
+        loadMillis = System.currentTimeMillis() - start;
+
+        Logger.getLogger("open.dolphin").info("ORCA master index loaded: " + getStats());
+    }
+
+    /**
+     * 読み直しが必要かどうかを返す。未読込または読込日が今日より前の場合 true。
+     * 失敗した直後はしばらく false を返す。
+     * @return 読み直しが必要な場合 true
+     */
+    public boolean needsReload() {
+        String date = loadedDate;
+        if (date != null && date.compareTo(today()) >= 0) {
+            return false;
+        }
+        return System.currentTimeMillis() - lastAttempt > RETRY_INTERVAL;
+    }
+
+    /**
+     * 名称またはカナで点数マスタを検索する。
+     * @param name 名称 1文字の場合は完全一致
+     * @param now 有効日 yyyyMMdd
+     * @param partialMatch 部分一致の場合 true、前方一致の場合 false
+     * @return 検索結果、索引で答えられない場合は null
+     */
+    public List<TensuMaster> getTensuMasterByName(String name, String now, boolean partialMatch) {
+
+        Table table = usable(tensu, now);
+        if (table == null || !isPlain(name)) {
+            return null;
+        }
+        long start = System.nanoTime();
+        String key = normalize(name);
+        int[] hits = (key.length() == 1) ? table.exact(key) : (partialMatch ? table.contains(key) : table.prefix(key));
+        List<TensuMaster> ret = new ArrayList<>();
+        for (int row : hits) {
+            String[] r = table.rows[row];
+            if (isValid(r, now)) {
+                ret.add(toTensuMaster(r));
+            }
+        }
+        record(start);
+        return ret;
+    }
+
+    /**
+     * コードの正規表現で点数マスタを検索する。先頭一致で照合する。
+     * @param regExp 正規表現(先頭の ^ は付けない)
+     * @param now 有効日 yyyyMMdd
+     * @return 検索結果、索引で答えられない場合は null
+     */
+    public List<TensuMaster> getTensuMasterByCode(String regExp, String now) {
+
+        Table table = usable(tensu, now);
+        if (table == null) {
+            return null;
+        }
+        Pattern pattern;
+        try {
+            pattern = Pattern.compile(regExp);
+        } catch (PatternSyntaxException e) {
+            return null;
+        }
+        long start = System.nanoTime();
+        String prefix = literalPrefix(regExp);
+        int from = table.lowerCode(prefix);
+        int to = table.lowerCode(prefix + '\uffff');
+        List<TensuMaster> ret = new ArrayList<>();
+        Matcher m = pattern.matcher("");
+        for (int row = from; row < to; row++) {
+            String[] r = table.rows[row];
+            if (r[0] != null && m.reset(r[0]).lookingAt() && isValid(r, now)) {
+                ret.add(toTensuMaster(r));
+            }
+        }
+        record(start);
+        return ret;
+    }
+
+    /**
+     * 名称またはカナで病名マスタを検索する。
+     * @param name 病名
+     * @param now 有効日 yyyyMMdd
+     * @param partialMatch 部分一致の場合 true、前方一致の場合 false
+     * @return 検索結果、索引で答えられない場合は null
+     */
+    public List<DiseaseEntry> getDiseaseByName(String name, String now, boolean partialMatch) {
+
+        Table table = usable(disease, now);
+        if (table == null || !isPlain(name)) {
+            return null;
+        }
+        long start = System.nanoTime();
+        String key = normalize(name);
+        int[] hits = partialMatch ? table.contains(key) : table.prefix(key);
+        List<DiseaseEntry> ret = new ArrayList<>();
+        for (int row : hits) {
+            String[] r = table.rows[row];
+            if (r[DISEASE_HAISIYMD] == null || r[DISEASE_HAISIYMD].compareTo(now) >= 0) {
+                DiseaseEntry de = new DiseaseEntry();
+                de.setCode(r[0]);
+                de.setName(r[1]);
+                de.setKana(r[2]);
+                de.setIcdTen(r[3]);
+                de.setDisUseDate(r[4]);
+                ret.add(de);
+            }
+        }
+        record(start);
+        return ret;
+    }
+
+    /**
+     * 薬剤コードの集合同士の相互作用を返す。
+     * @param codes1 薬剤コード
+     * @param codes2 相手の薬剤コード
+     * @return 相互作用のリスト、表で答えられない場合は null
+     */
+    public List<DrugInteractionModel> checkInteraction(Collection<String> codes1, Collection<String> codes2) {
+        OrcaInteractionMatrix matrix = interactions;
+        if (matrix == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        List<DrugInteractionModel> ret = matrix.check(codes1, codes2);
+        if (ret != null) {
+            interactionChecks.incrementAndGet();
+            interactionNanos.addAndGet(System.nanoTime() - start);
+        }
+        return ret;
+    }
+
+    public boolean isLoaded() {
+        return loadedDate != null;
+    }
+
+    public String getLoadedDate() {
+        return loadedDate;
+    }
+
+    public int getTensuSize() {
+        Table t = tensu;
+        return t != null ? t.rows.length : 0;
+    }
+
+    public int getDiseaseSize() {
+        Table t = disease;
+        return t != null ? t.rows.length : 0;
+    }
+
+    public int getInteractionSize() {
+        OrcaInteractionMatrix m = interactions;
+        return m != null ? m.size() : 0;
+    }
+
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    public long getInteractionChecks() {
+        return interactionChecks.get();
+    }
+
+    /**
+     * 統計を返す。
+     * @return 件数、読込日と時間、検索数と平均時間、相互作用の確認数と平均時間
+     */
+    public String getStats() {
+        long cnt = lookups.get();
+        StringBuilder sb = new StringBuilder();
+        sb.append("tensu=").append(getTensuSize());
+        sb.append(" disease=").append(getDiseaseSize());
+        sb.append(" interaction=").append(getInteractionSize());
+        sb.append(" loaded=").append(loadedDate);
+        sb.append(" loadTime=").append(loadMillis).append("ms");
+        sb.append(" lookups=").append(cnt);
+        sb.append(" avgLookup=").append(cnt > 0 ? lookupNanos.get() / cnt / 1000L : 0L).append("us");
+        long checks = interactionChecks.get();
+        sb.append(" interactionChecks=").append(checks);
+        sb.append(" avgInteraction=").append(checks > 0 ? interactionNanos.get() / checks / 1000L : 0L).append("us");
+        return sb.toString();
+    }
+
+    /**
+     * 検索キーの正規化。半角英数字記号・半角カナを全角に、ひらがなをカタカナに、英小文字を大文字にする。
+     * @param s 文字列
+     * @return 正規化した文字列
+     */
+    public static String normalize(String s) {
+        if (s == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c > 0x20 && c < 0x7f) {
+                c = (char)(c + 0xfee0);
+            } else if (c == ' ') {
+                c = '　';
+            } else if (c >= 0xff61 && c <= 0xff9f) {
+                char z = HANKAKU_KANA.charAt(c - 0xff61);
+                // 後ろの濁点・半濁点を合成する
+                char next = (i + 1 < s.length()) ? s.charAt(i + 1) : 0;
+                if (next == 0xff9e && (DAKUTEN_KANA.indexOf(z) >= 0 || z == 'ウ')) {
+                    z = (z == 'ウ') ? 'ヴ' : (char)(z + 1);
+                    i++;
+                } else if (next == 0xff9f && HANDAKUTEN_KANA.indexOf(z) >= 0) {
+                    z = (char)(z + 2);
+                    i++;
+                }
+                c = z;
+            }
+            if (c >= 'ぁ' && c <= 'ゖ') {
+                c = (char)(c + 0x60);
+            } else if (c >= 'ａ' && c <= 'ｚ') {
+                c = (char)(c - 0x20);
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private Table usable(Table table, String now) {
+        String date = loadedDate;
+        if (table == null || date == null || now == null || now.compareTo(date) < 0) {
+            return null;
+        }
+        return table;
+    }
+
+    private boolean isValid(String[] r, String now) {
+        String st = r[TENSU_YUKOSTYMD];
+        String ed = r[TENSU_YUKOEDYMD];
+        return (st == null || st.compareTo(now) <= 0) && (ed == null || ed.compareTo(now) >= 0);
+    }
+
+    private boolean isPlain(String name) {
+        if (name == null || name.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (REGEX_CHARS.indexOf(name.charAt(i)) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 正規表現の先頭の固定文字列 量指定子が続く文字と選択を含む場合は除く
+    private String literalPrefix(String regExp) {
+        if (regExp.indexOf('|') >= 0) {
+            return "";
+        }
+        int end = 0;
+        while (end < regExp.length() && Character.isLetterOrDigit(regExp.charAt(end))) {
+            end++;
+        }
+        if (end > 0 && end < regExp.length() && "?*{".indexOf(regExp.charAt(end)) >= 0) {
+            end--;
+        }
+        return regExp.substring(0, end);
+    }
+
+    private TensuMaster toTensuMaster(String[] r) {
+        TensuMaster t = new TensuMaster();
+        t.setSrycd(r[0]);
+        t.setName(r[1]);
+        t.setKananame(r[2]);
+        t.setTaniname(r[3]);
+        t.setTensikibetu(r[4]);
+        t.setTen(r[5]);
+        t.setNyugaitekkbn(r[6]);
+        t.setRoutekkbn(r[7]);
+        t.setSrysyukbn(r[8]);
+        t.setHospsrykbn(r[9]);
+        t.setYkzkbn(r[10]);
+        t.setYakkakjncd(r[11]);
+        t.setYukostymd(r[12]);
+        t.setYukoedymd(r[13]);
+        return t;
+    }
+
+    private void record(long start) {
+        lookups.incrementAndGet();
+        lookupNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    private List<String[]> read(Connection con, String sql, String today, int columns) throws SQLException {
+        List<String[]> ret = new ArrayList<>();
+        // 繰り返し現れる短い値(区分、単位等)は同じ String を使う
+        Map<String, String> pool = new HashMap<>();
+        try (PreparedStatement ps = con.prepareStatement(sql)) {
+            ps.setString(1, today);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String[] row = new String[columns];
+                    for (int i = 0; i < columns; i++) {
+                        String value = rs.getString(i + 1);
+                        if (value != null && value.length() <= 8) {
+                            String shared = pool.putIfAbsent(value, value);
+                            value = (shared != null) ? shared : value;
+                        }
+                        row[i] = value;
+                    }
+                    ret.add(row);
+                }
+            }
+        }
+        return ret;
+    }
+
+    private static String today() {
+        return new SimpleDateFormat("yyyyMMdd").format(new Date());
+    }
+
+    /**
+     * 1つのマスタの索引。作成後は変更しない。
+     * 列 0 がコード(昇順)、1 が名称、2 がカナ。
+     */
+    private static final class Table {
+
+        private static final int[] EMPTY = new int[0];
+
+        private final String[][] rows;
+
+        // 正規化した名称・カナの昇順と、それぞれの行
+        private final String[] keys;
+        private final int[] keyRows;
+
+        // 行ごとの正規化した名称・カナ
+        private final String[] names;
+        private final String[] kanas;
+
+        // 2文字 -> その2文字を名称かカナに含む行(昇順)
+        private final Map<Integer, int[]> bigrams;
+
+        private Table(List<String[]> list) {
+
+            // コードの昇順 同じコードは読んだ順
+            list.sort(Comparator.comparing((String[] r) -> r[0], Comparator.nullsFirst(Comparator.<String>naturalOrder())));
+            rows = list.toArray(new String[list.size()][]);
+            int n = rows.length;
+            names = new String[n];
+            kanas = new String[n];
+
+            Integer[] order = new Integer[n * 2];
+            String[] allKeys = new String[n * 2];
+            for (int i = 0; i < n; i++) {
+                names[i] = normalize(rows[i][1]);
+                kanas[i] = normalize(rows[i][2]);
+                allKeys[i * 2] = names[i];
+                allKeys[i * 2 + 1] = kanas[i];
+                order[i * 2] = i * 2;
+                order[i * 2 + 1] = i * 2 + 1;
+            }
+            Arrays.sort(order, Comparator.comparing((Integer k) -> allKeys[k]));
+            keys = new String[order.length];
+            keyRows = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                keys[i] = allKeys[order[i]];
+                keyRows[i] = order[i] / 2;
+            }
+
+            Map<Integer, IntList> work = new HashMap<>();
+            for (int i = 0; i < n; i++) {
+                addBigrams(work, names[i], i);
+                addBigrams(work, kanas[i], i);
+            }
+            bigrams = new HashMap<>(work.size() * 2);
+            for (Map.Entry<Integer, IntList> e : work.entrySet()) {
+                bigrams.put(e.getKey(), e.getValue().toArray());
+            }
+        }
+
+        private int[] exact(String key) {
+            int from = lower(key);
+            int to = from;
+            while (to < keys.length && keys[to].equals(key)) {
+                to++;
+            }
+            return rowsOf(from, to);
+        }
+
+        private int[] prefix(String key) {
+            return rowsOf(lower(key), lower(key + '\uffff'));
+        }
+
+        private int[] contains(String key) {
+            if (key.length() < 2) {
+                // 1文字は全行を調べる
+                IntList ret = new IntList();
+                for (int i = 0; i < rows.length; i++) {
+                    if (names[i].indexOf(key) >= 0 || kanas[i].indexOf(key) >= 0) {
+                        ret.add(i);
+                    }
+                }
+                return ret.toArray();
+            }
+            // 最も少ない2文字の行から確かめる
+            int[] candidates = null;
+            for (int i = 0; i + 1 < key.length(); i++) {
+                int[] list = bigrams.get(bigram(key, i));
+                if (list == null) {
+                    return EMPTY;
+                }
+                if (candidates == null || list.length < candidates.length) {
+                    candidates = list;
+                }
+            }
+            IntList ret = new IntList();
+            for (int row : candidates) {
+                if (names[row].contains(key) || kanas[row].contains(key)) {
+                    ret.add(row);
+                }
+            }
+            return ret.toArray();
+        }
+
+        // keys[from, to) の行を重複を除いて昇順で返す
+        private int[] rowsOf(int from, int to) {
+            if (from >= to) {
+                return EMPTY;
+            }
+            int[] ret = Arrays.copyOfRange(keyRows, from, to);
+            Arrays.sort(ret);
+            int len = 0;
+            for (int i = 0; i < ret.length; i++) {
+                if (len == 0 || ret[len - 1] != ret[i]) {
+                    ret[len++] = ret[i];
+                }
+            }
+            return Arrays.copyOf(ret, len);
+        }
+
+        private int lower(String key) {
+            int lo = 0;
+            int hi = keys.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid].compareTo(key) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        private int lowerCode(String code) {
+            int lo = 0;
+            int hi = rows.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                String c = rows[mid][0];
+                if (c == null || c.compareTo(code) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        private static void addBigrams(Map<Integer, IntList> work, String s, int row) {
+            for (int i = 0; i + 1 < s.length(); i++) {
+                Integer key = bigram(s, i);
+                IntList list = work.get(key);
+                if (list == null) {
+                    list = new IntList();
+                    work.put(key, list);
+                }
+                if (list.size == 0 || list.values[list.size - 1] != row) {
+                    list.add(row);
+                }
+            }
+        }
+
+        private static Integer bigram(String s, int i) {
+            return (s.charAt(i) << 16) | s.charAt(i + 1);
+        }
+    }
+
+    private static final class IntList {
+
+        private int[] values = new int[4];
+        private int size;
+
+        private void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        private int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
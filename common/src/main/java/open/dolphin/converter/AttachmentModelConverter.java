@@ -118,6 +118,10 @@ public final class AttachmentModelConverter implements IInfoModelConverter {
     public byte[] getBytes() {
         return model.getBytes();
     }
+
+    public String getBlobId() {
+        return model.getBlobId();
+    }
     
     @Override
     public void setModel(IInfoModel m) {
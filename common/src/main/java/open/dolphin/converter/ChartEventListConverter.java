@@ -0,0 +1,37 @@
+package open.dolphin.converter;
+
+import java.util.ArrayList;
+import java.util.List;
+import open.dolphin.infomodel.ChartEventList;
+import open.dolphin.infomodel.ChartEventModel;
+import open.dolphin.infomodel.IInfoModel;
+
+/**
+ * ChartEventList の JSON 変換
+ */
+public class ChartEventListConverter implements IInfoModelConverter {
+    
+    private ChartEventList model;
+    
+    public List<ChartEventModelConverter> getList() {
+        
+        List<ChartEventModel> list = model.getList();
+        if (list==null || list.isEmpty()) {
+            return null;
+        }
+        
+        List<ChartEventModelConverter> ret = new ArrayList<ChartEventModelConverter>();
+        for (ChartEventModel m : list) {
+            ChartEventModelConverter con = new ChartEventModelConverter();
+            con.setModel(m);
+            ret.add(con);
+        }
+        
+        return ret;
+    }
+    
+    @Override
+    public void setModel(IInfoModel model) {
+        this.model = (ChartEventList)model;
+    }
+}
@@ -0,0 +1,47 @@
+package open.dolphin.converter;
+
+import open.dolphin.infomodel.IInfoModel;
+import open.dolphin.infomodel.NLaboImportResult;
+import open.dolphin.infomodel.PatientModel;
+
+/**
+ * 検査結果一括登録の結果。
+ */
+public final class NLaboImportResultConverter implements IInfoModelConverter {
+
+    private NLaboImportResult model;
+
+    public NLaboImportResultConverter() {
+    }
+
+    public int getIndex() {
+        return model.getIndex();
+    }
+
+    public String getModuleKey() {
+        return model.getModuleKey();
+    }
+
+    public String getStatus() {
+        return model.getStatus();
+    }
+
+    public String getMessage() {
+        return model.getMessage();
+    }
+
+    public PatientModelConverter getPatient() {
+        PatientModel patient = model.getPatient();
+        if (patient==null) {
+            return null;
+        }
+        PatientModelConverter con = new PatientModelConverter();
+        con.setModel(patient);
+        return con;
+    }
+
+    @Override
+    public void setModel(IInfoModel model) {
+        this.model = (NLaboImportResult)model;
+    }
+}
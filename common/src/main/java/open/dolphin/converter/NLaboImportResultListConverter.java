@@ -0,0 +1,37 @@
+package open.dolphin.converter;
+
+import java.util.ArrayList;
+import java.util.List;
+import open.dolphin.infomodel.IInfoModel;
+import open.dolphin.infomodel.NLaboImportResult;
+import open.dolphin.infomodel.NLaboImportResultList;
+
+/**
+ * 検査結果一括登録の結果。
+ */
+public class NLaboImportResultListConverter implements IInfoModelConverter {
+    
+    private NLaboImportResultList model;
+    
+    public List<NLaboImportResultConverter> getList() {
+        
+        List<NLaboImportResult> list = model.getList();
+        if (list==null || list.isEmpty()) {
+            return null;
+        }
+        
+        List<NLaboImportResultConverter> ret = new ArrayList<NLaboImportResultConverter>(list.size());
+        for (NLaboImportResult m : list) {
+            NLaboImportResultConverter con = new NLaboImportResultConverter();
+            con.setModel(m);
+            ret.add(con);
+        }
+        
+        return ret;
+    }
+    
+    @Override
+    public void setModel(IInfoModel model) {
+        this.model = (NLaboImportResultList)model;
+    }
+}
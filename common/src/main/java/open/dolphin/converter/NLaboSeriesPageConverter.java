@@ -0,0 +1,39 @@
+package open.dolphin.converter;
+
+import java.util.List;
+import open.dolphin.infomodel.IInfoModel;
+import open.dolphin.infomodel.LabTestRowObject;
+import open.dolphin.infomodel.NLaboSeriesPage;
+
+/**
+ * 検査結果の1ページ(検査項目 × 検体採取日)。
+ */
+public class NLaboSeriesPageConverter implements IInfoModelConverter {
+
+    private NLaboSeriesPage model;
+
+    public int getTotal() {
+        return model.getTotal();
+    }
+
+    public List<Long> getModuleIds() {
+        return model.getModuleIds();
+    }
+
+    public List<String> getSampleDates() {
+        return model.getSampleDates();
+    }
+
+    public List<LabTestRowObject> getRows() {
+        return model.getRows();
+    }
+
+    public long getNext() {
+        return model.getNext();
+    }
+
+    @Override
+    public void setModel(IInfoModel model) {
+        this.model = (NLaboSeriesPage)model;
+    }
+}
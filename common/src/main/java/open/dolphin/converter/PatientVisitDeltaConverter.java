@@ -0,0 +1,54 @@
+package open.dolphin.converter;
+
+import java.util.ArrayList;
+import java.util.List;
+import open.dolphin.infomodel.IInfoModel;
+import open.dolphin.infomodel.PatientVisitDelta;
+import open.dolphin.infomodel.PatientVisitModel;
+
+/**
+ * PatientVisitDelta の Converter
+ */
+public class PatientVisitDeltaConverter implements IInfoModelConverter {
+
+    private PatientVisitDelta model;
+
+    public long getEpoch() {
+        return model.getEpoch();
+    }
+
+    public long getVersion() {
+        return model.getVersion();
+    }
+
+    public boolean isFull() {
+        return model.isFull();
+    }
+
+    public List<PatientVisitModelConverter> getList() {
+
+        List<PatientVisitModel> list = model.getList();
+        if (list==null || list.isEmpty()) {
+            return null;
+        }
+
+        List<PatientVisitModelConverter> ret = new ArrayList<PatientVisitModelConverter>(list.size());
+        for (PatientVisitModel m : list) {
+            PatientVisitModelConverter con = new PatientVisitModelConverter();
+            con.setModel(m);
+            ret.add(con);
+        }
+
+        return ret;
+    }
+
+    public List<Long> getRemoved() {
+        List<Long> removed = model.getRemoved();
+        return (removed==null || removed.isEmpty()) ? null : removed;
+    }
+
+    @Override
+    public void setModel(IInfoModel model) {
+        this.model = (PatientVisitDelta)model;
+    }
+}
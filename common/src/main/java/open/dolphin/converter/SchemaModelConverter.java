@@ -91,6 +91,10 @@ public final class SchemaModelConverter implements IInfoModelConverter {
         return model.getJpegByte();
     }
 
+    public String getBlobId() {
+        return model.getBlobId();
+    }
+
     @Override
     public void setModel(IInfoModel m) {
         this.model = (SchemaModel)m;
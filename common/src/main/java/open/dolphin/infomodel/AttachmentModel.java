@@ -28,6 +28,14 @@ public class AttachmentModel extends KarteEntryBean implements Serializable,java
     @Column(nullable=false)
     private byte[] bytes;   // data
     
+    // blob store 上の SHA-256 bytes が空の配列の場合はこちらから読む
+    @Column(length=64)
+    private String blobId;
+
+    // blob store から読んだデータ 読むのは1回だけにする
+    @Transient
+    private byte[] resolved;
+    
     @ManyToOne
     @JoinColumn(name="doc_id", nullable=false)
     private DocumentModel document;
@@ -74,11 +82,39 @@ public class AttachmentModel extends KarteEntryBean implements Serializable,java
     }
 
     public byte[] getBytes() {
-        return bytes;
+        if (resolved == null) {
+            resolved = BlobResolver.bytesOf(bytes, blobId);
+        }
+        return (resolved != null) ? resolved : bytes;
     }
 
     public void setBytes(byte[] bytes) {
         this.bytes = bytes;
+        this.resolved = null;
+    }
+
+    public String getBlobId() {
+        return blobId;
+    }
+
+    public void setBlobId(String blobId) {
+        this.blobId = blobId;
+        this.resolved = null;
+    }
+
+    /**
+     * blob store が登録されていれば bytes を外に書き出し、LOB 列には空の配列を残す。
+     * merge で bytes が設定された場合も LOB 列に書かないように更新時にも呼ぶ。
+     */
+    @PrePersist
+    @PreUpdate
+    protected void storeBlob() {
+        String id = BlobResolver.store(bytes);
+        if (id != null) {
+            resolved = bytes;
+            blobId = id;
+            bytes = new byte[0];
+        }
     }
 
     public DocumentModel getDocumentModel() {
@@ -180,9 +216,10 @@ public class AttachmentModel extends KarteEntryBean implements Serializable,java
             ret.setIcon(new ImageIcon(this.getIcon().getImage()));
         }
 
-        if (this.getBytes()!=null) {
-            byte[] dest = new byte[this.getBytes().length];
-            System.arraycopy(this.getBytes(), 0, dest, 0, this.getBytes().length);
+        byte[] src = this.getBytes();
+        if (src!=null) {
+            byte[] dest = new byte[src.length];
+            System.arraycopy(src, 0, dest, 0, src.length);
             ret.setBytes(dest);
         }
 
@@ -0,0 +1,632 @@
+package open.dolphin.infomodel;
+
+import java.beans.BeanInfo;
+import java.beans.ExceptionListener;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.beans.XMLDecoder;
+import java.beans.XMLEncoder;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ModuleModel.beanBytes と StampModel.stampBytes のコーデック。
+ *
+ * バイナリ形式はマジックバイト、フォーマットバージョン、タグ付きの値で構成する。
+ * Bean はクラス名とプロパティ名/値の組で表し、クラス名・プロパティ名・文字列値は
+ * 二度目以降インデックスで参照する(文字列の重複排除)。
+ * デコード時に先頭がマジックバイトでなければ従来の XMLEncoder 形式として読む。
+ *
+ * 対象は open.dolphin パッケージの JavaBeans(BundleDolphin, BundleMed, ClaimItem,
+ * ProgressCourse 等)で、XMLEncoder と同じく getter/setter の揃ったプロパティを保存する。
+ * null のプロパティも null として書き、デコード時に既定値が残らないようにする。
+ * 配列の要素型は open.dolphin のクラスと ARRAY_COMPONENTS に限り、エンコードとデコードで
+ * 同じ規則を使う。それ以外を含む Bean は XMLEncoder 形式で保存する。
+ *
+ * 旧バージョンのクライアントは XMLDecoder でしか読めないため、保存時の形式は
+ * beanbytes.write.binary で切り替える(既定は XML)。全クライアントがバイナリ形式を
+ * 読めるようになってから true にする。
+ */
+public final class BeanBytesCodec {
+
+    // 先頭バイト XML('<' または BOM)とは重ならない値
+    public static final byte MAGIC = (byte)0xB7;
+
+    // フォーマットバージョン
+    public static final byte VERSION_1 = 1;
+
+    // 値のタグ
+    private static final int T_NULL = 0;
+    private static final int T_STRING = 1;
+    private static final int T_STRING_REF = 2;
+    private static final int T_TRUE = 3;
+    private static final int T_FALSE = 4;
+    private static final int T_INT = 5;
+    private static final int T_LONG = 6;
+    private static final int T_FLOAT = 7;
+    private static final int T_DOUBLE = 8;
+    private static final int T_SHORT = 9;
+    private static final int T_BYTE = 10;
+    private static final int T_CHAR = 11;
+    private static final int T_DATE = 12;
+    private static final int T_BYTES = 13;
+    private static final int T_ARRAY = 14;
+    private static final int T_LIST = 15;
+    private static final int T_BEAN = 16;
+
+    // Bean として扱うパッケージ
+    private static final String BEAN_PACKAGE = "open.dolphin.";
+
+    // 配列の要素型として扱う open.dolphin 以外のクラス
+    private static final Set<String> ARRAY_COMPONENTS = new HashSet<>(Arrays.asList(
+            Object.class.getName(), String.class.getName(), Boolean.class.getName(),
+            Integer.class.getName(), Long.class.getName(), Float.class.getName(), Double.class.getName(),
+            Short.class.getName(), Byte.class.getName(), Character.class.getName(),
+            Date.class.getName(), java.sql.Date.class.getName(), java.sql.Timestamp.class.getName()));
+
+    // 保存時にバイナリ形式で書くかどうかの設定キー
+    public static final String WRITE_BINARY = "beanbytes.write.binary";
+
+    private static volatile boolean writeBinary;
+
+    // クラスごとのプロパティキャッシュ
+    private static final Map<Class<?>, PropertyDescriptor[]> PROPERTIES = new ConcurrentHashMap<>();
+
+    private BeanBytesCodec() {
+    }
+
+    /**
+     * バイナリ形式かどうかを返す。
+     * @param bytes beanBytes
+     * @return バイナリ形式の場合 true
+     */
+    public static boolean isBinary(byte[] bytes) {
+        return bytes != null && bytes.length > 1 && bytes[0] == MAGIC;
+    }
+
+    /**
+     * 保存時にバイナリ形式で書くかどうかを設定する。
+     * @param binary バイナリ形式で書く場合 true
+     */
+    public static void setWriteBinary(boolean binary) {
+        writeBinary = binary;
+    }
+
+    /**
+     * 保存時にバイナリ形式で書くかどうかを返す。
+     * @return バイナリ形式で書く場合 true
+     */
+    public static boolean isWriteBinary() {
+        return writeBinary;
+    }
+
+    /**
+     * 保存用の beanBytes を返す。
+     * beanbytes.write.binary が true ならバイナリ形式、そうでなければ XMLEncoder 形式。
+     * @param bean エンコードする Bean
+     * @return beanBytes
+     */
+    public static byte[] toBeanBytes(Object bean) {
+        return writeBinary ? encode(bean) : encodeXml(bean);
+    }
+
+    /**
+     * Bean をバイナリ形式へエンコードする。
+     * バイナリ化できない型を含む場合は XMLEncoder 形式で返す。
+     * @param bean エンコードする Bean
+     * @return beanBytes
+     */
+    public static byte[] encode(Object bean) {
+        if (bean == null) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream bo = new ByteArrayOutputStream(512);
+            DataOutputStream out = new DataOutputStream(bo);
+            out.writeByte(MAGIC);
+            out.writeByte(VERSION_1);
+            new Writer(out).writeValue(bean);
+            out.flush();
+            return bo.toByteArray();
+        } catch (IOException | RuntimeException e) {
+            return encodeXml(bean);
+        }
+    }
+
+    /**
+     * Bean を従来の XMLEncoder 形式へエンコードする。
+     * @param bean エンコードする Bean
+     * @return beanBytes
+     */
+    public static byte[] encodeXml(Object bean) {
+        if (bean == null) {
+            return null;
+        }
+        ByteArrayOutputStream bo = new ByteArrayOutputStream();
+        try (XMLEncoder e = new XMLEncoder(new BufferedOutputStream(bo))) {
+            e.writeObject(bean);
+        }
+        return bo.toByteArray();
+    }
+
+    /**
+     * beanBytes をデコードする。バイナリ形式でなければ XMLDecoder で読む。
+     * @param bytes beanBytes
+     * @return デコードした Bean
+     */
+    public static Object decode(byte[] bytes) {
+        if (bytes == null) {
+            return null;
+        }
+        if (!isBinary(bytes)) {
+            return decodeXml(bytes);
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 2, bytes.length - 2));
+            switch (bytes[1]) {
+                case VERSION_1:
+                    return new Reader(in).readValue(null);
+                default:
+                    throw new IllegalArgumentException("Unsupported beanBytes version: " + bytes[1]);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Bean の複製を返す。デコード済みモデルをキャッシュから渡す際に使用する。
+     * 文字列等の不変オブジェクトは共有し、Bean、配列、List、Date は複製する。
+     * @param value 複製する値
+     * @return 複製
+     * @throws IllegalArgumentException Map、Set、プリミティブ配列、open.dolphin 以外のクラス等を含む場合
+     */
+    public static Object copy(Object value) {
+
+        if (value == null || value instanceof String || value instanceof Number
+                || value instanceof Boolean || value instanceof Character) {
+            return value;
+
+        } else if (value instanceof Date) {
+            return ((Date)value).clone();
+
+        } else if (value instanceof byte[]) {
+            return ((byte[])value).clone();
+
+        } else if (value instanceof Object[]) {
+            Object[] src = (Object[])value;
+            Object[] ret = (Object[])Array.newInstance(value.getClass().getComponentType(), src.length);
+            for (int i = 0; i < src.length; i++) {
+                ret[i] = copy(src[i]);
+            }
+            return ret;
+
+        } else if (value instanceof List) {
+            List<?> src = (List<?>)value;
+            List<Object> ret = new ArrayList<>(src.size());
+            for (Object o : src) {
+                ret.add(copy(o));
+            }
+            return ret;
+
+        } else if (isBean(value.getClass())) {
+            try {
+                Object ret = value.getClass().getConstructor().newInstance();
+                for (PropertyDescriptor pd : getProperties(value.getClass())) {
+                    Object v = pd.getReadMethod().invoke(value);
+                    if (v != null) {
+                        pd.getWriteMethod().invoke(ret, copy(v));
+                    }
+                }
+                return ret;
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        throw new IllegalArgumentException("Unsupported type: " + value.getClass().getName());
+    }
+
+    private static Object decodeXml(byte[] bytes) {
+
+        // target should not be null 等の例外は従来どおり無視する
+        ExceptionListener el = new ExceptionListener() {
+            @Override
+            public void exceptionThrown(Exception e) {
+            }
+        };
+
+        try (XMLDecoder d = new XMLDecoder(new BufferedInputStream(new ByteArrayInputStream(bytes)))) {
+            d.setExceptionListener(el);
+            return d.readObject();
+        }
+    }
+
+    /**
+     * XMLEncoder と同じ規則(読み書き可能、transient でない)でプロパティを返す。
+     */
+    private static PropertyDescriptor[] getProperties(Class<?> clazz) {
+        PropertyDescriptor[] ret = PROPERTIES.get(clazz);
+        if (ret != null) {
+            return ret;
+        }
+        try {
+            BeanInfo info = Introspector.getBeanInfo(clazz);
+            List<PropertyDescriptor> list = new ArrayList<>();
+            for (PropertyDescriptor pd : info.getPropertyDescriptors()) {
+                if (pd.getReadMethod() == null || pd.getWriteMethod() == null) {
+                    continue;
+                }
+                if (Boolean.TRUE.equals(pd.getValue("transient"))) {
+                    continue;
+                }
+                list.add(pd);
+            }
+            ret = list.toArray(new PropertyDescriptor[list.size()]);
+            PROPERTIES.put(clazz, ret);
+            return ret;
+        } catch (IntrospectionException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static boolean isBeanClass(String name) {
+        return name.startsWith(BEAN_PACKAGE);
+    }
+
+    // デコードで生成できる Bean open.dolphin のクラスで public の引数なしコンストラクタがあるもの
+    private static boolean isBean(Class<?> clazz) {
+        if (!isBeanClass(clazz.getName())) {
+            return false;
+        }
+        try {
+            clazz.getConstructor();
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static boolean isArrayComponent(String name) {
+        return isBeanClass(name) || ARRAY_COMPONENTS.contains(name);
+    }
+
+    private static Class<?> loadBeanClass(String name) throws IOException {
+        if (!isBeanClass(name)) {
+            throw new IOException("Class not allowed in beanBytes: " + name);
+        }
+        return loadClass(name);
+    }
+
+    private static Class<?> loadArrayComponent(String name) throws IOException {
+        if (!isArrayComponent(name)) {
+            throw new IOException("Array type not allowed in beanBytes: " + name);
+        }
+        return loadClass(name);
+    }
+
+    private static Class<?> loadClass(String name) throws IOException {
+        try {
+            ClassLoader cl = Thread.currentThread().getContextClassLoader();
+            if (cl != null) {
+                try {
+                    return Class.forName(name, true, cl);
+                } catch (ClassNotFoundException e) {
+                }
+            }
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    //--------------------------------------------------------------------------
+
+    private static final class Writer {
+
+        private final DataOutputStream out;
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        private Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        private void writeVarInt(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.writeByte(value);
+        }
+
+        private void writeString(String value) throws IOException {
+            Integer index = strings.get(value);
+            if (index != null) {
+                out.writeByte(T_STRING_REF);
+                writeVarInt(index);
+                return;
+            }
+            strings.put(value, strings.size());
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeByte(T_STRING);
+            writeVarInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private void writeValue(Object value) throws IOException {
+
+            if (value == null) {
+                out.writeByte(T_NULL);
+
+            } else if (value instanceof String) {
+                writeString((String)value);
+
+            } else if (value instanceof Boolean) {
+                out.writeByte(((Boolean)value) ? T_TRUE : T_FALSE);
+
+            } else if (value instanceof Integer) {
+                out.writeByte(T_INT);
+                out.writeInt((Integer)value);
+
+            } else if (value instanceof Long) {
+                out.writeByte(T_LONG);
+                out.writeLong((Long)value);
+
+            } else if (value instanceof Float) {
+                out.writeByte(T_FLOAT);
+                out.writeFloat((Float)value);
+
+            } else if (value instanceof Double) {
+                out.writeByte(T_DOUBLE);
+                out.writeDouble((Double)value);
+
+            } else if (value instanceof Short) {
+                out.writeByte(T_SHORT);
+                out.writeShort((Short)value);
+
+            } else if (value instanceof Byte) {
+                out.writeByte(T_BYTE);
+                out.writeByte((Byte)value);
+
+            } else if (value instanceof Character) {
+                out.writeByte(T_CHAR);
+                out.writeChar((Character)value);
+
+            } else if (value instanceof Date) {
+                out.writeByte(T_DATE);
+                out.writeLong(((Date)value).getTime());
+
+            } else if (value instanceof byte[]) {
+                byte[] bytes = (byte[])value;
+                out.writeByte(T_BYTES);
+                writeVarInt(bytes.length);
+                out.write(bytes);
+
+            } else if (value instanceof Object[]) {
+                Object[] array = (Object[])value;
+                String component = value.getClass().getComponentType().getName();
+                if (!isArrayComponent(component)) {
+                    throw new IllegalArgumentException("Unsupported array type: " + component);
+                }
+                out.writeByte(T_ARRAY);
+                writeString(component);
+                writeVarInt(array.length);
+                for (Object o : array) {
+                    writeValue(o);
+                }
+
+            } else if (value instanceof List) {
+                List<?> list = (List<?>)value;
+                out.writeByte(T_LIST);
+                writeVarInt(list.size());
+                for (Object o : list) {
+                    writeValue(o);
+                }
+
+            } else if (isBean(value.getClass())) {
+                writeBean(value);
+
+            } else {
+                throw new IllegalArgumentException("Unsupported type: " + value.getClass().getName());
+            }
+        }
+
+        private void writeBean(Object bean) throws IOException {
+
+            PropertyDescriptor[] props = getProperties(bean.getClass());
+
+            // コンストラクタで値を入れるクラスがあるため null のプロパティも書く
+            out.writeByte(T_BEAN);
+            writeString(bean.getClass().getName());
+            writeVarInt(props.length);
+            for (PropertyDescriptor pd : props) {
+                Object value;
+                try {
+                    value = pd.getReadMethod().invoke(bean);
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalArgumentException(e);
+                }
+                writeString(pd.getName());
+                writeValue(value);
+            }
+        }
+    }
+
+    //--------------------------------------------------------------------------
+
+    private static final class Reader {
+
+        private final DataInputStream in;
+        private final List<String> strings = new ArrayList<>();
+
+        private Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        private int readVarInt() throws IOException {
+            int value = 0;
+            int shift = 0;
+            while (true) {
+                int b = in.readUnsignedByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+                shift += 7;
+                if (shift > 28) {
+                    throw new IOException("Malformed varint");
+                }
+            }
+        }
+
+        private String readString() throws IOException {
+            int tag = in.readUnsignedByte();
+            if (tag == T_NULL) {
+                return null;
+            }
+            return (String)readTagged(tag, null);
+        }
+
+        private Object readValue(Class<?> type) throws IOException {
+            return readTagged(in.readUnsignedByte(), type);
+        }
+
+        private Object readTagged(int tag, Class<?> type) throws IOException {
+
+            switch (tag) {
+                case T_NULL:
+                    return null;
+
+                case T_STRING: {
+                    byte[] bytes = new byte[readVarInt()];
+                    in.readFully(bytes);
+                    String s = new String(bytes, StandardCharsets.UTF_8);
+                    strings.add(s);
+                    return s;
+                }
+                case T_STRING_REF:
+                    return strings.get(readVarInt());
+
+                case T_TRUE:
+                    return Boolean.TRUE;
+
+                case T_FALSE:
+                    return Boolean.FALSE;
+
+                case T_INT:
+                    return in.readInt();
+
+                case T_LONG:
+                    return in.readLong();
+
+                case T_FLOAT:
+                    return in.readFloat();
+
+                case T_DOUBLE:
+                    return in.readDouble();
+
+                case T_SHORT:
+                    return in.readShort();
+
+                case T_BYTE:
+                    return in.readByte();
+
+                case T_CHAR:
+                    return in.readChar();
+
+                case T_DATE: {
+                    long time = in.readLong();
+                    if (type == java.sql.Timestamp.class) {
+                        return new java.sql.Timestamp(time);
+                    } else if (type == java.sql.Date.class) {
+                        return new java.sql.Date(time);
+                    }
+                    return new Date(time);
+                }
+                case T_BYTES: {
+                    byte[] bytes = new byte[readVarInt()];
+                    in.readFully(bytes);
+                    return bytes;
+                }
+                case T_ARRAY: {
+                    Class<?> component = loadArrayComponent(readString());
+                    int len = readVarInt();
+                    Object array = Array.newInstance(component, len);
+                    for (int i = 0; i < len; i++) {
+                        Array.set(array, i, readValue(component));
+                    }
+                    return array;
+                }
+                case T_LIST: {
+                    int len = readVarInt();
+                    List<Object> list = new ArrayList<>(len);
+                    for (int i = 0; i < len; i++) {
+                        list.add(readValue(null));
+                    }
+                    return list;
+                }
+                case T_BEAN:
+                    return readBean();
+
+                default:
+                    throw new IOException("Unknown tag: " + tag);
+            }
+        }
+
+        private Object readBean() throws IOException {
+
+            Class<?> clazz = loadBeanClass(readString());
+            Object bean;
+            try {
+                bean = clazz.getConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new IOException(e);
+            }
+
+            PropertyDescriptor[] props = getProperties(clazz);
+            int count = readVarInt();
+
+            for (int i = 0; i < count; i++) {
+                String name = readString();
+                PropertyDescriptor target = null;
+                for (PropertyDescriptor pd : props) {
+                    if (pd.getName().equals(name)) {
+                        target = pd;
+                        break;
+                    }
+                }
+                Object value = readValue(target != null ? target.getPropertyType() : null);
+
+                // クラス側から削除されたプロパティは読み飛ばす
+                if (target == null) {
+                    continue;
+                }
+                Method setter = target.getWriteMethod();
+                try {
+                    setter.invoke(bean, value);
+                } catch (ReflectiveOperationException | IllegalArgumentException e) {
+                    // XMLDecoder と同様に設定できないプロパティは無視する
+                }
+            }
+            return bean;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package open.dolphin.infomodel;
+
+/**
+ * SchemaModel.jpegByte と AttachmentModel.bytes を DB の外に置くためのフック。
+ * サーバは起動時に blob store を登録する。登録がなければ(クライアント等)何もしない。
+ *
+ * エンティティは外に出したデータの SHA-256 を blobId に持ち、LOB 列には空の配列を残す。
+ * 空の配列は「外にある」、null は「読み込んでいない」を表す。
+ */
+public abstract class BlobResolver {
+
+    private static volatile BlobResolver instance;
+
+    public static void setInstance(BlobResolver resolver) {
+        instance = resolver;
+    }
+
+    public static BlobResolver getInstance() {
+        return instance;
+    }
+
+    /**
+     * データを blob store に書き込む。
+     * @param bytes データ
+     * @return blobId、書き込まなかった場合は null
+     */
+    public static String store(byte[] bytes) {
+        BlobResolver r = instance;
+        if (r == null || bytes == null || bytes.length == 0) {
+            return null;
+        }
+        return r.write(bytes);
+    }
+
+    /**
+     * blob store からデータを読む。
+     * @param blobId blobId
+     * @return データ、読めない場合は null
+     */
+    public static byte[] resolve(String blobId) {
+        BlobResolver r = instance;
+        if (r == null || blobId == null) {
+            return null;
+        }
+        return r.read(blobId);
+    }
+
+    /**
+     * LOB 列の値と blobId から blob store にあるデータを読む。
+     * @param bytes LOB 列の値
+     * @param blobId blobId
+     * @return データ、LOB 列にある場合と読めない場合は null
+     */
+    static byte[] bytesOf(byte[] bytes, String blobId) {
+        if (bytes != null && bytes.length == 0 && blobId != null) {
+            return resolve(blobId);
+        }
+        return null;
+    }
+
+    protected abstract String write(byte[] bytes);
+
+    protected abstract byte[] read(String blobId);
+}
@@ -0,0 +1,19 @@
+package open.dolphin.infomodel;
+
+import java.util.List;
+
+/**
+ * ChartEventModel のリスト 再接続時にまとめて返す
+ */
+public class ChartEventList extends InfoModel implements java.io.Serializable {
+    
+    private List<ChartEventModel> list;
+
+    public List<ChartEventModel> getList() {
+        return list;
+    }
+
+    public void setList(List<ChartEventModel> list) {
+        this.list = list;
+    }
+}
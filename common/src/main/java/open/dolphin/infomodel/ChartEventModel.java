@@ -33,6 +33,9 @@ public class ChartEventModel extends InfoModel implements java.io.Serializable {
     private long ptPk;
     private PatientModel patient;
     
+    // 施設ごとの通し番号 サーバーで付番する
+    private long sequence;
+    
     //public static enum EVENT {PVT_STATE, PVT_ADD, PVT_DELETE, PVT_RENEW, PVT_MERGE, PM_MERGE};
     
     public ChartEventModel() {
@@ -96,6 +99,9 @@ public class ChartEventModel extends InfoModel implements java.io.Serializable {
     public void setFacilityId(String fid) {
         facilityId = fid;
     }
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
     
     public int getEventType() {
         return eventType;
@@ -133,4 +139,7 @@ public class ChartEventModel extends InfoModel implements java.io.Serializable {
     public String getFacilityId() {
         return facilityId;
     }
+    public long getSequence() {
+        return sequence;
+    }
 }
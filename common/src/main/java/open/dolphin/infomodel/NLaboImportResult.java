@@ -0,0 +1,82 @@
+package open.dolphin.infomodel;
+
+/**
+ * 検査結果一括登録のモジュールごとの結果。
+ */
+public class NLaboImportResult extends InfoModel implements java.io.Serializable {
+    
+    // 新規に登録した
+    public static final String STATUS_CREATED = "created";
+    
+    // 再報告として既存のモジュールを置き換えた
+    public static final String STATUS_REPLACED = "replaced";
+    
+    // 同じ送信内の後のモジュールで置き換えられた
+    public static final String STATUS_SUPERSEDED = "superseded";
+    
+    // 患者が登録されていない
+    public static final String STATUS_UNKNOWN_PATIENT = "unknownPatient";
+    
+    // 読めない、または登録できなかった
+    public static final String STATUS_ERROR = "error";
+    
+    // 送信した順番 0 から
+    private int index;
+    
+    private String moduleKey;
+    
+    private String status;
+    
+    private String message;
+    
+    // 登録できた場合の患者(健康保険付き)
+    private PatientModel patient;
+
+    public int getIndex() {
+        return index;
+    }
+
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
+    public String getModuleKey() {
+        return moduleKey;
+    }
+
+    public void setModuleKey(String moduleKey) {
+        this.moduleKey = moduleKey;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+    public PatientModel getPatient() {
+        return patient;
+    }
+
+    public void setPatient(PatientModel patient) {
+        this.patient = patient;
+    }
+    
+    /**
+     * 登録できたかどうかを返す。同じ送信内の再報告で置き換えられたものも含む。
+     * @return 登録できた場合 true
+     */
+    public boolean isSucceeded() {
+        return STATUS_CREATED.equals(status) || STATUS_REPLACED.equals(status) || STATUS_SUPERSEDED.equals(status);
+    }
+}
@@ -0,0 +1,19 @@
+package open.dolphin.infomodel;
+
+import java.util.List;
+
+/**
+ * 検査結果一括登録の結果。
+ */
+public class NLaboImportResultList extends InfoModel implements java.io.Serializable {
+    
+    private List<NLaboImportResult> list;
+
+    public List<NLaboImportResult> getList() {
+        return list;
+    }
+
+    public void setList(List<NLaboImportResult> list) {
+        this.list = list;
+    }
+}
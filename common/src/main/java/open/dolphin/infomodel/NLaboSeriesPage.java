@@ -0,0 +1,65 @@
+package open.dolphin.infomodel;
+
+import java.util.List;
+
+/**
+ * 患者の検査結果の1ページ(検査項目 × 検体採取日)。
+ * 列は検体採取日順のモジュール、行は検査項目で、rows の values は列と同じ順に並ぶ。
+ */
+public class NLaboSeriesPage extends InfoModel implements java.io.Serializable {
+    
+    // 患者の全モジュール数
+    private int total;
+    
+    // 列のモジュール id
+    private List<Long> moduleIds;
+    
+    // 列の検体採取日
+    private List<String> sampleDates;
+    
+    // 検査項目ごとの行
+    private List<LabTestRowObject> rows;
+    
+    // 次の(古い)ページのカーソル、なければ 0
+    private long next;
+
+    public int getTotal() {
+        return total;
+    }
+
+    public void setTotal(int total) {
+        this.total = total;
+    }
+
+    public List<Long> getModuleIds() {
+        return moduleIds;
+    }
+
+    public void setModuleIds(List<Long> moduleIds) {
+        this.moduleIds = moduleIds;
+    }
+
+    public List<String> getSampleDates() {
+        return sampleDates;
+    }
+
+    public void setSampleDates(List<String> sampleDates) {
+        this.sampleDates = sampleDates;
+    }
+
+    public List<LabTestRowObject> getRows() {
+        return rows;
+    }
+
+    public void setRows(List<LabTestRowObject> rows) {
+        this.rows = rows;
+    }
+
+    public long getNext() {
+        return next;
+    }
+
+    public void setNext(long next) {
+        this.next = next;
+    }
+}
@@ -0,0 +1,66 @@
+package open.dolphin.infomodel;
+
+import java.util.List;
+
+/**
+ * 受付リストの差分。
+ * クライアントが持っている版以降に追加・更新された受付と、削除された受付の PK を持つ。
+ * 差分を返せない場合は full を立てて今日の受付を全件返す。
+ */
+public class PatientVisitDelta extends InfoModel implements java.io.Serializable {
+
+    // サーバーの受付リストの識別子 版はこれが同じ場合だけ比較できる
+    private long epoch;
+
+    // この差分を適用した後の版
+    private long version;
+
+    // list が全件かどうか
+    private boolean full;
+
+    // 追加・更新された受付 受付順
+    private List<PatientVisitModel> list;
+
+    // 削除された受付の PK
+    private List<Long> removed;
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public void setEpoch(long epoch) {
+        this.epoch = epoch;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public boolean isFull() {
+        return full;
+    }
+
+    public void setFull(boolean full) {
+        this.full = full;
+    }
+
+    public List<PatientVisitModel> getList() {
+        return list;
+    }
+
+    public void setList(List<PatientVisitModel> list) {
+        this.list = list;
+    }
+
+    public List<Long> getRemoved() {
+        return removed;
+    }
+
+    public void setRemoved(List<Long> removed) {
+        this.removed = removed;
+    }
+}
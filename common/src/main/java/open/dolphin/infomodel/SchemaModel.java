@@ -23,6 +23,14 @@ public class SchemaModel extends KarteEntryBean
     @Column(nullable=false)
     private byte[] jpegByte;
     
+    // blob store 上の SHA-256 jpegByte が空の配列の場合はこちらから読む
+    @Column(length=64)
+    private String blobId;
+    
+    // blob store から読んだデータ 読むのは1回だけにする
+    @Transient
+    private byte[] resolved;
+    
     // Document
     @ManyToOne
     @JoinColumn(name="doc_id", nullable=false)
@@ -63,11 +71,39 @@ public class SchemaModel extends KarteEntryBean
     }
     
     public byte[] getJpegByte() {
-        return jpegByte;
+        if (resolved == null) {
+            resolved = BlobResolver.bytesOf(jpegByte, blobId);
+        }
+        return (resolved != null) ? resolved : jpegByte;
     }
     
     public void setJpegByte(byte[] jpegByte) {
         this.jpegByte = jpegByte;
+        this.resolved = null;
+    }
+    
+    public String getBlobId() {
+        return blobId;
+    }
+    
+    public void setBlobId(String blobId) {
+        this.blobId = blobId;
+        this.resolved = null;
+    }
+    
+    /**
+     * blob store が登録されていれば jpegByte を外に書き出し、LOB 列には空の配列を残す。
+     * merge で jpegByte が設定された場合も LOB 列に書かないように更新時にも呼ぶ。
+     */
+    @PrePersist
+    @PreUpdate
+    protected void storeBlob() {
+        String id = BlobResolver.store(jpegByte);
+        if (id != null) {
+            resolved = jpegByte;
+            blobId = id;
+            jpegByte = new byte[0];
+        }
     }
     
     public ImageIcon getIcon() {
@@ -138,9 +174,10 @@ public class SchemaModel extends KarteEntryBean
             ret.setIcon(new ImageIcon(this.getIcon().getImage()));
         }
 
-        if (this.getJpegByte()!=null) {
-            byte[] dest = new byte[this.getJpegByte().length];
-            System.arraycopy(this.getJpegByte(), 0, dest, 0, this.getJpegByte().length);
+        byte[] src = this.getJpegByte();
+        if (src!=null) {
+            byte[] dest = new byte[src.length];
+            System.arraycopy(src, 0, dest, 0, src.length);
             ret.setJpegByte(dest);
         }
 
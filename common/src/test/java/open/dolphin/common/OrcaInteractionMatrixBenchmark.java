@@ -0,0 +1,201 @@
+package open.dolphin.common;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import open.dolphin.infomodel.DrugInteractionModel;
+
+/**
+ * OrcaInteractionMatrix の作成時間と確認時間を計る。ORCA には接続しない。
+ *
+ * 合成した tbl_interact の行を ResultSet に見せかけて load() で読み込み、
+ * 比較のため同じ行を 薬剤コード→行のリスト の HashMap(従来の文字列の行をそのまま持つ形)と、
+ * 索引のない全件走査(SQL の IN 条件を索引なしで評価する形)でも確認する。
+ * JDBC の往復は含まないので、従来の SQL での確認時間はここでは計れない。
+ *
+ * 引数 薬剤数 相手の数 確認するコードの数(省略時 20000 60 20)
+ * surefire の対象にならないよう名前は *Benchmark とし、main から実行する。
+ */
+public class OrcaInteractionMatrixBenchmark {
+
+    private static final int SYMPTOM_COUNT = 100;
+    private static final int SETS = 1000;
+
+    public static void main(String[] args) throws Exception {
+
+        int drugCount = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+        int partnerCount = (args.length > 1) ? Integer.parseInt(args[1]) : 60;
+        int checkCount = (args.length > 2) ? Integer.parseInt(args[2]) : 20;
+        Random random = new Random(1L);
+
+        // drugcd, drugcd2, syojyoucd, syojyou の順 drugcd, drugcd2 の昇順
+        List<String[]> rows = new ArrayList<>(drugCount * partnerCount);
+        for (int i = 0; i < drugCount; i++) {
+            String drug = code(i);
+            int[] p = new int[partnerCount];
+            for (int j = 0; j < partnerCount; j++) {
+                p[j] = random.nextInt(drugCount);
+            }
+            Arrays.sort(p);
+            for (int j = 0; j < partnerCount; j++) {
+                int s = random.nextInt(SYMPTOM_COUNT);
+                rows.add(new String[]{drug, code(p[j]), String.format("%04d", s), "symptom" + s});
+            }
+        }
+
+        // 確認するコードの組
+        List<List<String>> codes1 = new ArrayList<>(SETS);
+        List<List<String>> codes2 = new ArrayList<>(SETS);
+        for (int i = 0; i < SETS; i++) {
+            List<String> c1 = new ArrayList<>(checkCount);
+            List<String> c2 = new ArrayList<>(checkCount);
+            for (int j = 0; j < checkCount; j++) {
+                c1.add(code(random.nextInt(drugCount)));
+                c2.add(code(random.nextInt(drugCount)));
+            }
+            codes1.add(c1);
+            codes2.add(c2);
+        }
+
+        // 表 行の String は共有しないよう読み込むたびに複写する
+        long heap = usedHeap();
+        long start = System.nanoTime();
+        OrcaInteractionMatrix matrix = OrcaInteractionMatrix.load(connection(rows));
+        long matrixBuild = System.nanoTime() - start;
+        long matrixHeap = usedHeap() - heap;
+
+        heap = usedHeap();
+        start = System.nanoTime();
+        Map<String, List<String[]>> byDrug = loadMap(connection(rows));
+        long mapBuild = System.nanoTime() - start;
+        long mapHeap = usedHeap() - heap;
+
+        System.out.println("pairs=" + matrix.size() + " " + checkCount + "x" + checkCount);
+        System.out.println("matrix  build=" + (matrixBuild / 1000000L) + "ms heap=" + (matrixHeap >> 20) + "MB check avg=" + us(time(200000, codes1, codes2, (c1, c2) -> matrix.check(c1, c2).size())) + "us");
+        System.out.println("hashmap build=" + (mapBuild / 1000000L) + "ms heap=" + (mapHeap >> 20) + "MB check avg=" + us(time(200000, codes1, codes2, (c1, c2) -> checkMap(byDrug, c1, c2).size())) + "us");
+        System.out.println("scan    check avg=" + us(time(50, codes1, codes2, (c1, c2) -> checkScan(rows, c1, c2).size())) + "us");
+    }
+
+    private interface Check {
+
+        int run(List<String> codes1, List<String> codes2);
+    }
+
+    // 1/10 を慣らしに使い、残りの平均を ns で返す
+    private static long time(int iterations, List<List<String>> codes1, List<List<String>> codes2, Check check) {
+        long hits = 0;
+        int warmup = Math.max(1, iterations / 10);
+        for (int i = 0; i < warmup; i++) {
+            hits += check.run(codes1.get(i % SETS), codes2.get(i % SETS));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            hits += check.run(codes1.get(i % SETS), codes2.get(i % SETS));
+        }
+        long nanos = System.nanoTime() - start;
+        if (hits < 0) {
+            System.out.println(hits);
+        }
+        return nanos / iterations;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static String us(long nanos) {
+        return String.valueOf(nanos / 1000.0);
+    }
+
+    private static String code(int i) {
+        return String.valueOf(610000000 + i * 10);
+    }
+
+    // load() と同じ ResultSet から 薬剤コード→行のリスト を作る
+    private static Map<String, List<String[]>> loadMap(Connection con) throws Exception {
+        Map<String, List<String[]>> ret = new HashMap<>();
+        try (PreparedStatement ps = con.prepareStatement("select drugcd, drugcd2, syojyoucd, syojyou from tbl_interact");
+                ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                String[] row = new String[]{rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4)};
+                List<String[]> list = ret.get(row[0]);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    ret.put(row[0], list);
+                }
+                list.add(row);
+            }
+        }
+        return ret;
+    }
+
+    // 薬剤コードごとの行を HashMap から引き、相手を HashSet で絞る
+    private static List<DrugInteractionModel> checkMap(Map<String, List<String[]>> byDrug, Collection<String> codes1, Collection<String> codes2) {
+        Set<String> targets = new HashSet<>(codes2);
+        List<DrugInteractionModel> ret = new ArrayList<>();
+        for (String code : new HashSet<>(codes1)) {
+            List<String[]> list = byDrug.get(code);
+            if (list == null) {
+                continue;
+            }
+            for (String[] row : list) {
+                if (targets.contains(row[1])) {
+                    ret.add(new DrugInteractionModel(row[0], row[1], row[2], row[3]));
+                }
+            }
+        }
+        return ret;
+    }
+
+    // 全件を走査して drugcd in (...) and drugcd2 in (...) を評価する
+    private static List<DrugInteractionModel> checkScan(List<String[]> rows, Collection<String> codes1, Collection<String> codes2) {
+        Set<String> drugs = new HashSet<>(codes1);
+        Set<String> targets = new HashSet<>(codes2);
+        List<DrugInteractionModel> ret = new ArrayList<>();
+        for (String[] row : rows) {
+            if (drugs.contains(row[0]) && targets.contains(row[1])) {
+                ret.add(new DrugInteractionModel(row[0], row[1], row[2], row[3]));
+            }
+        }
+        return ret;
+    }
+
+    // rows を返すだけの Connection
+    private static Connection connection(List<String[]> rows) {
+        InvocationHandler rs = new InvocationHandler() {
+            private int index = -1;
+
+            @Override
+            public Object invoke(Object proxy, java.lang.reflect.Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "next":
+                        return ++index < rows.size();
+                    case "getString":
+                        return new String(rows.get(index)[(Integer) args[0] - 1]);
+                    default:
+                        return null;
+                }
+            }
+        };
+        ResultSet resultSet = (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class}, rs);
+        PreparedStatement ps = (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[]{PreparedStatement.class},
+                (proxy, method, args) -> "executeQuery".equals(method.getName()) ? resultSet : null);
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> "prepareStatement".equals(method.getName()) ? ps : null);
+    }
+}
@@ -0,0 +1,175 @@
+package open.dolphin.common;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * OrcaMasterIndex の作成時間と検索時間を計る。ORCA には接続しない。
+ *
+ * 合成した tbl_tensu の行を ResultSet に見せかけて load() で読み込み、名称の前方一致・部分一致とコードの正規表現で検索する。
+ * 比較のため同じ行を、従来の SQL(name ~ ? or kananame ~ ?、srycd ~ ?)と同じく全行を正規表現で照合して検索する。
+ * PostgreSQL もこの正規表現には索引を使わないので全行の照合になるが、JDBC の往復と行の転送は含まない。
+ *
+ * 引数 行数 検索数(省略時 40000 2000)
+ * surefire の対象にならないよう名前は *Benchmark とし、main から実行する。
+ */
+public class OrcaMasterIndexBenchmark {
+
+    // 名称に使う文字
+    private static final String KANJI
+            = "錠散液注射用軟膏貼付剤顆粒細粒内服外用塩酸水和物酸化硫酸配合小児腸溶徐放性口腔内崩壊静脈点滴筋肉皮下眼科耳鼻咽喉検査判断料管理指導加算処置手術麻酔画像診断血液尿生化学免疫病理放射線";
+    private static final String KATAKANA
+            = "アイウエオカキクケコサシスセソタチツテトナニヌネノハヒフヘホマミムメモヤユヨラリルレロワンガギグゲゴザジズゼゾダヂヅデドバビブベボパピプペポ";
+
+    private static final String START = "20000101";
+    private static final String END = "99999999";
+
+    public static void main(String[] args) throws Exception {
+
+        int rowCount = (args.length > 0) ? Integer.parseInt(args[0]) : 40000;
+        int queryCount = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+        Random random = new Random(1L);
+
+        // srycd,name,kananame,taniname,tensikibetu,ten,nyugaitekkbn,routekkbn,srysyukbn,hospsrykbn,ykzkbn,yakkakjncd,yukostymd,yukoedymd
+        List<String[]> rows = new ArrayList<>(rowCount);
+        for (int i = 0; i < rowCount; i++) {
+            String code = String.valueOf((i % 2 == 0 ? 610000000 : 140000000) + i * 7);
+            StringBuilder name = new StringBuilder();
+            StringBuilder kana = new StringBuilder();
+            // カタカナの名称(薬剤名)と漢字の名称を半分ずつ
+            if (i % 2 == 0) {
+                kana.append(random(random, KATAKANA, 4 + random.nextInt(6)));
+                name.append(kana).append(random(random, KANJI, 1 + random.nextInt(3)));
+            } else {
+                name.append(random(random, KANJI, 3 + random.nextInt(8)));
+                kana.append(random(random, KATAKANA, 6 + random.nextInt(10)));
+            }
+            rows.add(new String[]{code, name.toString(), kana.toString(), "錠", "1", "10.5", "0", "0", "210", "0", "1", code, START, END});
+        }
+
+        // 検索語 名称の一部(2-3文字)
+        List<String> keys = new ArrayList<>(queryCount);
+        List<String> codes = new ArrayList<>(queryCount);
+        for (int i = 0; i < queryCount; i++) {
+            String[] r = rows.get(random.nextInt(rowCount));
+            String s = r[random.nextBoolean() ? 1 : 2];
+            int len = Math.min(s.length(), 2 + random.nextInt(2));
+            int from = random.nextInt(s.length() - len + 1);
+            keys.add(s.substring(from, from + len));
+            codes.add(r[0].substring(0, 5) + "[0-9]*");
+        }
+
+        OrcaMasterIndex index = new OrcaMasterIndex();
+        long start = System.nanoTime();
+        index.load(connection(rows), false);
+        long build = System.nanoTime() - start;
+        String now = index.getLoadedDate();
+
+        System.out.println("rows=" + rows.size() + " queries=" + queryCount + " build=" + (build / 1000000L) + "ms");
+
+        System.out.println("prefix   index avg=" + us(time(20, keys, k -> index.getTensuMasterByName(k, now, false).size()))
+                + "us scan avg=" + us(time(1, keys, k -> scan(rows, Pattern.compile("^" + k), now))) + "us");
+        System.out.println("partial  index avg=" + us(time(20, keys, k -> index.getTensuMasterByName(k, now, true).size()))
+                + "us scan avg=" + us(time(1, keys, k -> scan(rows, Pattern.compile(k), now))) + "us");
+        System.out.println("code     index avg=" + us(time(20, codes, c -> index.getTensuMasterByCode(c, now).size()))
+                + "us scan avg=" + us(time(1, codes, c -> scanCode(rows, Pattern.compile("^" + c), now))) + "us");
+    }
+
+    private interface Query {
+
+        int run(String key);
+    }
+
+    // 1回慣らしてから rounds 回の平均を ns で返す
+    private static long time(int rounds, List<String> keys, Query query) {
+        long hits = 0;
+        for (String key : keys) {
+            hits += query.run(key);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            for (String key : keys) {
+                hits += query.run(key);
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        if (hits < 0) {
+            System.out.println(hits);
+        }
+        return nanos / ((long) rounds * keys.size());
+    }
+
+    // (name ~ ? or kananame ~ ?) and yukostymd <= ? and yukoedymd >= ?
+    private static int scan(List<String[]> rows, Pattern pattern, String now) {
+        int ret = 0;
+        for (String[] r : rows) {
+            if ((pattern.matcher(r[1]).find() || pattern.matcher(r[2]).find()) && r[12].compareTo(now) <= 0 && r[13].compareTo(now) >= 0) {
+                ret++;
+            }
+        }
+        return ret;
+    }
+
+    // srycd ~ ? and yukostymd <= ? and yukoedymd >= ?
+    private static int scanCode(List<String[]> rows, Pattern pattern, String now) {
+        int ret = 0;
+        for (String[] r : rows) {
+            if (pattern.matcher(r[0]).find() && r[12].compareTo(now) <= 0 && r[13].compareTo(now) >= 0) {
+                ret++;
+            }
+        }
+        return ret;
+    }
+
+    private static String us(long nanos) {
+        return String.valueOf(nanos / 1000.0);
+    }
+
+    private static String random(Random random, String chars, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append(chars.charAt(random.nextInt(chars.length())));
+        }
+        return sb.toString();
+    }
+
+    // tbl_tensu には rows を、それ以外(tbl_byomei、相互作用マスタ)には空の結果を返す Connection
+    private static Connection connection(List<String[]> rows) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+                (proxy, method, args) -> {
+                    if (!"prepareStatement".equals(method.getName())) {
+                        return null;
+                    }
+                    List<String[]> result = ((String) args[0]).contains("tbl_tensu") ? rows : Collections.<String[]>emptyList();
+                    return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[]{PreparedStatement.class},
+                            (p, m, a) -> "executeQuery".equals(m.getName()) ? resultSet(result) : null);
+                });
+    }
+
+    private static ResultSet resultSet(List<String[]> rows) {
+        InvocationHandler handler = new InvocationHandler() {
+            private int index = -1;
+
+            @Override
+            public Object invoke(Object proxy, java.lang.reflect.Method method, Object[] args) {
+                switch (method.getName()) {
+                    case "next":
+                        return ++index < rows.size();
+                    case "getString":
+                        return rows.get(index)[(Integer) args[0] - 1];
+                    default:
+                        return null;
+                }
+            }
+        };
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class}, handler);
+    }
+}
@@ -2,6 +2,7 @@ package open.dolphin.adm10.converter;
 
 import open.dolphin.infomodel.ClaimBundle;
 import open.dolphin.infomodel.ModuleModel;
+import open.dolphin.mbean.DecodedModuleCache;
 
 /**
  *
@@ -39,7 +40,7 @@ public class IBundleModule extends IAbstractModule {
         this.getModuleInfo().fromModel(m.getModuleInfoBean());
         
         // decord
-        ClaimBundle bundle = (ClaimBundle)IOSHelper.xmlDecode(m.getBeanBytes());
+        ClaimBundle bundle = (ClaimBundle)DecodedModuleCache.getInstance().getModel(m);
         IClaimBundle ib = new IClaimBundle();
         ib.fromModel(bundle);
         this.setModel(ib);
@@ -66,7 +67,7 @@ public class IBundleModule extends IAbstractModule {
         ret.setModuleInfoBean(this.getModuleInfo().toModel());
         
         ClaimBundle bundle = model.toModel();
-        ret.setBeanBytes(IOSHelper.toXMLBytes(bundle));
+        ret.setBeanBytes(IOSHelper.toBeanBytes(bundle));
         
         return ret;
     }
@@ -477,7 +477,7 @@ public class IDocument2 implements java.io.Serializable {
             }
             
             ModuleModel pSpecModule = new ModuleModel();
-            pSpecModule.setBeanBytes(IOSHelper.toXMLBytes(pProgress));
+            pSpecModule.setBeanBytes(IOSHelper.toBeanBytes(pProgress));
             pSpecModule.setConfirmed(infoToSet.getConfirmed());
             pSpecModule.setStarted(infoToSet.getStarted());
             pSpecModule.setRecorded(infoToSet.getRecorded());
@@ -511,7 +511,7 @@ public class IDocument2 implements java.io.Serializable {
                 pProgress.setFreeText(this.ptextProgressCourse.getModel().getFreeText());
             }
             ModuleModel pSpecModule = new ModuleModel();
-            pSpecModule.setBeanBytes(IOSHelper.toXMLBytes(pProgress));
+            pSpecModule.setBeanBytes(IOSHelper.toBeanBytes(pProgress));
             pSpecModule.setConfirmed(ret.getConfirmed());
             pSpecModule.setStarted(ret.getStarted());
             pSpecModule.setRecorded(ret.getRecorded());
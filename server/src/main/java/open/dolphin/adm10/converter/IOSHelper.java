@@ -1,14 +1,9 @@
 package open.dolphin.adm10.converter;
 
-import java.beans.XMLDecoder;
-import java.beans.XMLEncoder;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import open.dolphin.infomodel.BeanBytesCodec;
 
 /**
  *
@@ -22,24 +17,13 @@ public class IOSHelper {
     private static final String IOS_DATE_FORMAT_OLD = "yyyy-MM-dd HH:mm:ss";
     
     
-    public static byte[] toXMLBytes(Object bean)  {
-        if (bean!=null) {
-            ByteArrayOutputStream bo = new ByteArrayOutputStream();
-            XMLEncoder e = new XMLEncoder(new BufferedOutputStream(bo));
-            e.writeObject(bean);
-            e.close();
-            return bo.toByteArray();
-        }
-        return null;
+    public static byte[] toBeanBytes(Object bean)  {
+        // 保存形式は beanbytes.write.binary による(読み込みは両形式に対応)
+        return BeanBytesCodec.toBeanBytes(bean);
     }
     
     public static Object xmlDecode(byte[] bytes)  {
-
-        XMLDecoder d = new XMLDecoder(
-                new BufferedInputStream(
-                new ByteArrayInputStream(bytes)));
-
-        return d.readObject();
+        return BeanBytesCodec.decode(bytes);
     }
     
     public static Date toDate(String dateStr) {
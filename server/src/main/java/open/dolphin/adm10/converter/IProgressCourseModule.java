@@ -2,6 +2,7 @@ package open.dolphin.adm10.converter;
 
 import open.dolphin.infomodel.ModuleModel;
 import open.dolphin.infomodel.ProgressCourse;
+import open.dolphin.mbean.DecodedModuleCache;
 
 /**
  *
@@ -47,8 +48,7 @@ public class IProgressCourseModule extends IAbstractModule {
         
         // FreeText
         //System.err.println("freeText processing......");
-        byte[] bytes = model.getBeanBytes();
-        ProgressCourse pc = (ProgressCourse)(IOSHelper.xmlDecode(bytes));
+        ProgressCourse pc = (ProgressCourse)DecodedModuleCache.getInstance().getModel(model);
         String text = pc.getFreeText();
         //System.err.println(text);
         String noHTMLString = text.replaceAll("\\<.*?>","");
@@ -86,7 +86,7 @@ public class IProgressCourseModule extends IAbstractModule {
         
         ret.setModuleInfoBean(this.getModuleInfo().toModel());
         
-        ret.setBeanBytes(IOSHelper.toXMLBytes(model.toModel()));
+        ret.setBeanBytes(IOSHelper.toBeanBytes(model.toModel()));
         
         return ret;
     }
@@ -2,6 +2,7 @@ package open.dolphin.adm10.converter;
 
 import open.dolphin.infomodel.ModuleModel;
 import open.dolphin.infomodel.ProgressCourse;
+import open.dolphin.mbean.DecodedModuleCache;
 
 /**
  *
@@ -48,8 +49,7 @@ public class IProgressCourseModule2 extends IAbstractModule {
         
         // FreeText
         //System.err.println("freeText processing......");
-        byte[] bytes = model.getBeanBytes();
-        ProgressCourse pc = (ProgressCourse)(IOSHelper.xmlDecode(bytes));
+        ProgressCourse pc = (ProgressCourse)DecodedModuleCache.getInstance().getModel(model);
         String text = pc.getFreeText();
         //System.err.println(text);
         String noHTMLString = text.replaceAll("\\<.*?>","");
@@ -88,7 +88,7 @@ public class IProgressCourseModule2 extends IAbstractModule {
         
         ret.setModuleInfoBean(this.getModuleInfo().toModel());
         
-        ret.setBeanBytes(IOSHelper.toXMLBytes(model.toModel()));
+        ret.setBeanBytes(IOSHelper.toBeanBytes(model.toModel()));
         
         return ret;
     }
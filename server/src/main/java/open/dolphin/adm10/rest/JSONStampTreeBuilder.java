@@ -1,5 +1,9 @@
 package open.dolphin.adm10.rest;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 
 /**
  * StampTree Builder クラス。
@@ -8,6 +12,9 @@ package open.dolphin.adm10.rest;
  */
 public class JSONStampTreeBuilder extends AbstractStampTreeBuilder {
     
+    /** StampTreeStore の変換の種類 */
+    public static final String PROJECTION = "adm10-json";
+    
     /** XML文書で置換が必要な文字 */
     private static final String[] REPLACES = new String[] {"<", ">", "&", "'" ,"\""};
     
@@ -34,6 +41,22 @@ public class JSONStampTreeBuilder extends AbstractStampTreeBuilder {
     public JSONStampTreeBuilder() {
     }
     
+    /**
+     * treeBytes(StampTree の XML)を JSON に変換する。
+     * @param treeBytes UTF-8 の XML
+     * @return UTF-8 の JSON
+     */
+    public static byte[] compile(byte[] treeBytes) {
+        String treeXml = new String(treeBytes, StandardCharsets.UTF_8);
+        try (BufferedReader reader = new BufferedReader(new StringReader(treeXml))) {
+            StampTreeDirector director = new StampTreeDirector(new JSONStampTreeBuilder());
+            String json = director.build(reader);
+            return (json != null) ? json.getBytes(StandardCharsets.UTF_8) : null;
+        } catch (IOException e) {
+        }
+        return null;
+    }
+    
     /**
      * Returns the product of this builder
      * @return vector that contains StampTree instances
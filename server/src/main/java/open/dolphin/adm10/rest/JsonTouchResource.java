@@ -1,25 +1,18 @@
 package open.dolphin.adm10.rest;
 
-import java.beans.XMLDecoder;
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Properties;
@@ -30,9 +23,12 @@ import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
 import open.dolphin.adm10.converter.IBundleModule;
 import open.dolphin.adm10.converter.IOSHelper;
+import open.dolphin.common.OrcaMasterIndex;
 import open.dolphin.converter.UserModelConverter;
 import open.dolphin.infomodel.ChartEventModel;
 import open.dolphin.infomodel.DiagnosisSendWrapper;
@@ -52,13 +48,15 @@ import open.dolphin.adm10.session.ADM10_IPhoneServiceBean;
 import open.dolphin.infomodel.BundleDolphin;
 import open.dolphin.infomodel.DrugInteractionModel;
 import open.dolphin.infomodel.IInfoModel;
-import open.dolphin.infomodel.IStampTreeModel;
 import open.dolphin.infomodel.InfoModel;
 import open.dolphin.infomodel.InteractionCodeList;
 import open.dolphin.infomodel.ModuleModel;
 import open.dolphin.infomodel.StampModel;
+import open.dolphin.mbean.StampCache;
+import open.dolphin.mbean.StampTreeStore;
 import open.dolphin.session.ChartEventServiceBean;
 import open.dolphin.session.KarteServiceBean;
+import open.dolphin.session.StampServiceBean;
 import open.orca.rest.ORCAConnection;
 import org.codehaus.jackson.map.ObjectMapper;
 
@@ -83,6 +81,9 @@ public class JsonTouchResource extends open.dolphin.rest.AbstractResource {
     
     @Inject
     private ChartEventServiceBean chartService;
+
+    @Inject
+    private StampServiceBean stampServiceBean;
     
 //minagawa^ 2013/08/29
     //@Resource(mappedName="java:jboss/datasources/OrcaDS")
@@ -406,26 +407,34 @@ public class JsonTouchResource extends open.dolphin.rest.AbstractResource {
                         input.getCodes2().isEmpty()) {
                     mapper = getSerializeMapper();
                     mapper.writeValue(os, ret);
+                    return;
+                }
+
+                // 相互作用マスタの表で答えられればそれを返す
+                OrcaMasterIndex index = ORCAConnection.getInstance().getMasterIndex();
+                List<DrugInteractionModel> indexed = (index != null) ? index.checkInteraction(input.getCodes1(), input.getCodes2()) : null;
+                if (indexed != null) {
+                    mapper = getSerializeMapper();
+                    mapper.writeValue(os, indexed);
+                    return;
                 }
 
                 // SQL文を作成
                 StringBuilder sb = new StringBuilder();
                 sb.append("select drugcd, drugcd2, TI.syojyoucd, syojyou ");
                 sb.append("from tbl_interact TI inner join tbl_sskijyo TS on TI.syojyoucd = TS.syojyoucd ");
-                sb.append("where (drugcd in (");
-                sb.append(getCodes(input.getCodes1()));
-                sb.append(") and drugcd2 in (");
-                sb.append(getCodes(input.getCodes2()));
-                sb.append("))");
+                sb.append("where drugcd = any(?) and drugcd2 = any(?)");
                 String sql = sb.toString();
 
                 Connection con = null;
-                Statement st = null;
+                PreparedStatement st = null;
 
                 try {
                     con = getConnection();
-                    st = con.createStatement();
-                    try (ResultSet rs = st.executeQuery(sql)) {
+                    st = con.prepareStatement(sql);
+                    st.setArray(1, con.createArrayOf("varchar", input.getCodes1().toArray()));
+                    st.setArray(2, con.createArrayOf("varchar", input.getCodes2().toArray()));
+                    try (ResultSet rs = st.executeQuery()) {
                         while (rs.next()) {
                             ret.add(new DrugInteractionModel(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4)));
                         }
@@ -449,37 +458,12 @@ public class JsonTouchResource extends open.dolphin.rest.AbstractResource {
     @GET
     @Path("/stampTree/{param}")
     @Produces(MediaType.APPLICATION_OCTET_STREAM)
-    public StreamingOutput getStampTree(final @PathParam("param") String param) {
-        
-        return new StreamingOutput() {
-            @Override
-            public void write(OutputStream os) throws IOException, WebApplicationException {
-                long pk = Long.parseLong(param);
-                String json = getTreeJson(pk);
-                os.write(json.getBytes());
-            }
-        };
-    }
-    
-    private String getTreeJson(long userPK) {
+    public Response getStampTree(final @Context Request request, final @PathParam("param") String param) {
         
-        IStampTreeModel treeModel = ehtService.getTrees(userPK);
-        
-        try {
-            String treeXml = new String(treeModel.getTreeBytes(), "UTF-8");
-            String json;
-            try (BufferedReader reader = new BufferedReader(new StringReader(treeXml))) {
-                JSONStampTreeBuilder builder = new JSONStampTreeBuilder();
-                StampTreeDirector director = new StampTreeDirector(builder);
-                json = director.build(reader);
-            }
-            return json;
-        } catch (UnsupportedEncodingException ex) {
-            //System.err.println("getTreeJson:" + ex.getMessage());
-        } catch (IOException ex) {
-            //System.err.println("getTreeJson:" + ex.getMessage());
-        }
-        return null;
+        // 保存時に変換済みの JSON を返す 変わっていなければ 304
+        long pk = Long.parseLong(param);
+        StampTreeStore.Projection tree = stampServiceBean.getTreeProjection(pk, JSONStampTreeBuilder.PROJECTION, JSONStampTreeBuilder::compile);
+        return stampTreeResponse(request, tree, MediaType.APPLICATION_OCTET_STREAM);
     }
     
     @GET
@@ -493,10 +477,7 @@ public class JsonTouchResource extends open.dolphin.rest.AbstractResource {
 
                 StampModel stampModel = ehtService.getStamp(param);
                 if (stampModel!=null) {
-                    XMLDecoder d = new XMLDecoder(
-                        new BufferedInputStream(
-                        new ByteArrayInputStream(stampModel.getStampBytes())));
-                    InfoModel model = (InfoModel)d.readObject();
+                    InfoModel model = (InfoModel)StampCache.getInstance().getModel(stampModel);
                     JSONStampBuilder builder = new JSONStampBuilder();
                     String json = builder.build(model);
                     os.write(json.getBytes());
@@ -507,28 +488,6 @@ public class JsonTouchResource extends open.dolphin.rest.AbstractResource {
         };
     }
     
-    // srycdのListからカンマ区切りの文字列を作る
-    private String getCodes(Collection<String> srycdList){
-
-        StringBuilder sb = new StringBuilder();
-        boolean first = true;
-        for (String srycd : srycdList){
-            if (!first){
-                sb.append(",");
-            } else {
-                first = false;
-            }
-            sb.append(addSingleQuote(srycd));
-        }
-        return sb.toString();
-    }
-    
-    private String addSingleQuote(String str) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("'").append(str).append("'");
-        return sb.toString();
-    }
-    
     private Connection getConnection() {
         return ORCAConnection.getInstance().getConnection();
     }
@@ -35,6 +35,8 @@ import open.dolphin.infomodel.SchemaModel;
 import open.dolphin.infomodel.StampModel;
 import open.dolphin.infomodel.StampTreeModel;
 import open.dolphin.infomodel.VitalModel;
+import open.dolphin.mbean.LaboSeriesStore;
+import open.dolphin.mbean.StampCache;
 
 /**
  *
@@ -455,15 +457,8 @@ public class ADM10_EHTServiceBean {
         sb.append(patientId);
         String fidPid = sb.toString();
 
-        List<NLaboItem> ret = (List<NLaboItem>)
-                        em.createQuery("from NLaboItem l where l.patientId=:fidPid and l.itemCode=:itemCode order by l.sampleDate desc")
-                          .setParameter("fidPid", fidPid)
-                          .setParameter("itemCode", itemCode)
-                          .setFirstResult(firstResult)
-                          .setMaxResults(maxResult)
-                          .getResultList();
-
-        return ret;
+        // 患者の時系列から返す
+        return LaboSeriesStore.getInstance().getItems(em, fidPid, itemCode, firstResult, maxResult);
     }
     
     //------------------------------------------------------------------------
@@ -500,7 +495,7 @@ public class ADM10_EHTServiceBean {
     public StampModel getStamp(String stampId) {
 
         try {
-            return (StampModel)em.find(StampModel.class, stampId);
+            return StampCache.getInstance().find(em, stampId);
         } catch (NoResultException e) {
         }
 
@@ -1,13 +1,11 @@
 package open.dolphin.adm20.converter;
 
-import java.beans.XMLDecoder;
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.util.ArrayList;
 import java.util.List;
 import open.dolphin.converter.IInfoModelConverter;
 import open.dolphin.converter.PVTHealthInsuranceModelConverter;
 import open.dolphin.converter.SimpleAddressModelConverter;
+import open.dolphin.infomodel.BeanBytesCodec;
 import open.dolphin.infomodel.HealthInsuranceModel;
 import open.dolphin.infomodel.IInfoModel;
 import open.dolphin.infomodel.PVTHealthInsuranceModel;
@@ -147,11 +145,6 @@ public final class IPatientModel implements IInfoModelConverter {
     }
     
     private Object xmlDecode(byte[] bytes)  {
-
-        XMLDecoder d = new XMLDecoder(
-                new BufferedInputStream(
-                new ByteArrayInputStream(bytes)));
-
-        return d.readObject();
+        return BeanBytesCodec.decode(bytes);
     }
 }
@@ -2,6 +2,7 @@ package open.dolphin.adm20.converter;
 
 import open.dolphin.infomodel.ModuleModel;
 import open.dolphin.infomodel.ProgressCourse;
+import open.dolphin.mbean.DecodedModuleCache;
 
 /**
  *
@@ -51,8 +52,7 @@ public class IProgressCourseModule30 extends IAbstractModule30 {
         
         // FreeText
         //System.err.println("freeText processing......");
-        byte[] bytes = model.getBeanBytes();
-        ProgressCourse pc = (ProgressCourse)(IOSHelper.xmlDecode(bytes));
+        ProgressCourse pc = (ProgressCourse)DecodedModuleCache.getInstance().getModel(model);
         String text = pc.getFreeText();
         //System.err.println(text);
         String noHTMLString = text.replaceAll("\\<.*?>","");
@@ -90,7 +90,7 @@ public class IProgressCourseModule30 extends IAbstractModule30 {
         
         ret.setModuleInfoBean(this.getModuleInfo().toModel());
         
-        ret.setBeanBytes(IOSHelper.toXMLBytes(model.toModel()));
+        ret.setBeanBytes(IOSHelper.toBeanBytes(model.toModel()));
         
         return ret;
     }
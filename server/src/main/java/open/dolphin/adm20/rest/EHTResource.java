@@ -4,25 +4,18 @@
  */
 package open.dolphin.adm20.rest;
 
-import java.beans.XMLDecoder;
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Properties;
@@ -41,14 +34,16 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
+import open.dolphin.common.OrcaMasterIndex;
 import open.dolphin.infomodel.AllergyModel;
 import open.dolphin.infomodel.BundleDolphin;
 import open.dolphin.infomodel.DocumentModel;
 import open.dolphin.infomodel.DrugInteractionModel;
 import open.dolphin.infomodel.IInfoModel;
 import open.dolphin.infomodel.KarteNumber;
-import open.dolphin.infomodel.IStampTreeModel;
 import open.dolphin.infomodel.InfoModel;
 import open.dolphin.infomodel.InteractionCodeList;
 import open.dolphin.infomodel.ModuleModel;
@@ -58,7 +53,10 @@ import open.dolphin.infomodel.ObservationModel;
 import open.dolphin.infomodel.PatientMemoModel;
 import open.dolphin.infomodel.RegisteredDiagnosisModel;
 import open.dolphin.infomodel.StampModel;
+import open.dolphin.mbean.StampCache;
+import open.dolphin.mbean.StampTreeStore;
 import open.dolphin.session.ChartEventServiceBean;
+import open.dolphin.session.StampServiceBean;
 import open.dolphin.adm20.session.ADM20_EHTServiceBean;
 import open.dolphin.adm20.converter.IAllergyModel;
 import open.dolphin.adm20.converter.IBundleModule;
@@ -116,6 +114,9 @@ public class EHTResource extends open.dolphin.rest.AbstractResource {
     
     @Inject
     private ChartEventServiceBean eventServiceBean;
+
+    @Inject
+    private StampServiceBean stampServiceBean;
     
     //@Inject
     //private AdmissionSessionBean admissionSessionBean;
@@ -802,26 +803,34 @@ public class EHTResource extends open.dolphin.rest.AbstractResource {
                         input.getCodes2().isEmpty()) {
                     mapper = getSerializeMapper();
                     mapper.writeValue(os, ret);
+                    return;
+                }
+
+                // 相互作用マスタの表で答えられればそれを返す
+                OrcaMasterIndex index = ORCAConnection.getInstance().getMasterIndex();
+                List<DrugInteractionModel> indexed = (index != null) ? index.checkInteraction(input.getCodes1(), input.getCodes2()) : null;
+                if (indexed != null) {
+                    mapper = getSerializeMapper();
+                    mapper.writeValue(os, indexed);
+                    return;
                 }
 
                 // SQL文を作成
                 StringBuilder sb = new StringBuilder();
                 sb.append("select drugcd, drugcd2, TI.syojyoucd, syojyou ");
                 sb.append("from tbl_interact TI inner join tbl_sskijyo TS on TI.syojyoucd = TS.syojyoucd ");
-                sb.append("where (drugcd in (");
-                sb.append(getCodes(input.getCodes1()));
-                sb.append(") and drugcd2 in (");
-                sb.append(getCodes(input.getCodes2()));
-                sb.append("))");
+                sb.append("where drugcd = any(?) and drugcd2 = any(?)");
                 String sql = sb.toString();
 
                 Connection con = null;
-                Statement st = null;
+                PreparedStatement st = null;
 
                 try {
                     con = getConnection();
-                    st = con.createStatement();
-                    ResultSet rs = st.executeQuery(sql);
+                    st = con.prepareStatement(sql);
+                    st.setArray(1, con.createArrayOf("varchar", input.getCodes1().toArray()));
+                    st.setArray(2, con.createArrayOf("varchar", input.getCodes2().toArray()));
+                    ResultSet rs = st.executeQuery();
 
                     while (rs.next()) {
                         ret.add(new DrugInteractionModel(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4)));
@@ -846,36 +855,12 @@ public class EHTResource extends open.dolphin.rest.AbstractResource {
     @GET
     @Path("/stampTree/{param}")
     @Produces(MediaType.APPLICATION_OCTET_STREAM)
-    public StreamingOutput getStampTree(final @PathParam("param") String param) {
+    public Response getStampTree(final @Context Request request, final @PathParam("param") String param) {
         
-        return new StreamingOutput() {
-            @Override
-            public void write(OutputStream os) throws IOException, WebApplicationException {
-                long pk = Long.parseLong(param);
-                String json = getTreeJson(pk);
-                os.write(json.getBytes());
-            }
-        };
-    }
-    
-    private String getTreeJson(long userPK) {
-        
-        IStampTreeModel treeModel = ehtService.getTrees(userPK);
-        
-        try {
-            String treeXml = new String(treeModel.getTreeBytes(), "UTF-8");
-            BufferedReader reader = new BufferedReader(new StringReader(treeXml));
-            JSONStampTreeBuilder builder = new JSONStampTreeBuilder();
-            StampTreeDirector director = new StampTreeDirector(builder);
-            String json = director.build(reader);
-            reader.close();
-            return json;
-        } catch (UnsupportedEncodingException ex) {
-            //System.err.println("getTreeJson:" + ex.getMessage());
-        } catch (IOException ex) {
-            //System.err.println("getTreeJson:" + ex.getMessage());
-        }
-        return null;
+        // 保存時に変換済みの JSON を返す 変わっていなければ 304
+        long pk = Long.parseLong(param);
+        StampTreeStore.Projection tree = stampServiceBean.getTreeProjection(pk, JSONStampTreeBuilder.PROJECTION, JSONStampTreeBuilder::compile);
+        return stampTreeResponse(request, tree, MediaType.APPLICATION_OCTET_STREAM);
     }
     
     @GET
@@ -889,10 +874,7 @@ public class EHTResource extends open.dolphin.rest.AbstractResource {
 
                 StampModel stampModel = ehtService.getStamp(param);
                 if (stampModel!=null) {
-                    XMLDecoder d = new XMLDecoder(
-                        new BufferedInputStream(
-                        new ByteArrayInputStream(stampModel.getStampBytes())));
-                    InfoModel model = (InfoModel)d.readObject();
+                    InfoModel model = (InfoModel)StampCache.getInstance().getModel(stampModel);
                     JSONStampBuilder builder = new JSONStampBuilder();
                     String json = builder.build(model);
                     os.write(json.getBytes());
@@ -1059,28 +1041,6 @@ public class EHTResource extends open.dolphin.rest.AbstractResource {
         }
         return config.getProperty(item, "");
     }
-     
-    // srycdのListからカンマ区切りの文字列を作る
-    private String getCodes(Collection<String> srycdList){
-
-        StringBuilder sb = new StringBuilder();
-        boolean first = true;
-        for (String srycd : srycdList){
-            if (!first){
-                sb.append(",");
-            } else {
-                first = false;
-            }
-            sb.append(addSingleQuote(srycd));
-        }
-        return sb.toString();
-    }
-    
-    private String addSingleQuote(String str) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("'").append(str).append("'");
-        return sb.toString();
-    }
     
     private Connection getConnection() {
         return ORCAConnection.getInstance().getConnection();
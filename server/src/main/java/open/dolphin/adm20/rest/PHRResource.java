@@ -26,6 +26,7 @@ import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
@@ -52,6 +53,8 @@ import open.dolphin.infomodel.PHRLabModule;
 import open.dolphin.infomodel.PatientModel;
 import open.dolphin.infomodel.RegisteredDiagnosisModel;
 import open.dolphin.infomodel.SchemaModel;
+import open.dolphin.mbean.DecodedModuleCache;
+import open.dolphin.mbean.ThumbnailStore;
 import open.orca.rest.ORCAConnection;
 import org.codehaus.jackson.map.ObjectMapper;
 
@@ -251,7 +254,7 @@ public class PHRResource extends open.dolphin.rest.AbstractResource {
             count++;
             
             // ClaimBundleをデコード バンドル属性セット
-            ClaimBundle bundle = (ClaimBundle)IOSHelper.xmlDecode(mm.getBeanBytes());
+            ClaimBundle bundle = (ClaimBundle)DecodedModuleCache.getInstance().getModel(mm);
             
             // ClaimItems
             ClaimItem[] items = bundle.getClaimItem();
@@ -368,7 +371,11 @@ public class PHRResource extends open.dolphin.rest.AbstractResource {
     @GET
     @Path("/image/{param}")
     @Produces(MediaType.APPLICATION_OCTET_STREAM)
-    public StreamingOutput getImage(final @Context HttpServletRequest servletReq, final @PathParam("param") String param) {
+    public StreamingOutput getImage(final @Context HttpServletRequest servletReq, final @PathParam("param") String param,
+            final @QueryParam("size") String size) {
+        
+        // size=small/medium/large の場合はサムネイルを返す
+        final ThumbnailStore.Size thumbnailSize = ThumbnailStore.Size.of(size);
         
         return (OutputStream os) -> {
             String fid = getRemoteFacility(servletReq.getRemoteUser());
@@ -379,6 +386,16 @@ public class PHRResource extends open.dolphin.rest.AbstractResource {
             
             SchemaModel image = phrServiceBean.getImages(karte.getId());
             
+            if (image!=null && thumbnailSize!=null) {
+                // blob store にあれば blobId で引く 元画像を読むのはサムネイルがない時だけ
+                byte[] thumb = (image.getBlobId()!=null)
+                        ? ThumbnailStore.getInstance().getThumbnail(image.getBlobId(), thumbnailSize, image::getJpegByte)
+                        : ThumbnailStore.getInstance().getThumbnail(image.getJpegByte(), thumbnailSize);
+                if (thumb!=null) {
+                    os.write(thumb);
+                    return;
+                }
+            }
             if (image!=null) {
                 os.write(image.getJpegByte()); 
             }
@@ -456,7 +473,7 @@ public class PHRResource extends open.dolphin.rest.AbstractResource {
                     pcb.setNumber(mm.getModuleInfoBean().getStampNumber());
                     
                     // ClaimBundleをデコード バンドル属性セット
-                    ClaimBundle bundle = (ClaimBundle)IOSHelper.xmlDecode(mm.getBeanBytes());
+                    ClaimBundle bundle = (ClaimBundle)DecodedModuleCache.getInstance().getModel(mm);
                     pcb.setAdmin(bundle.getAdmin());
                     pcb.setAdminCode(bundle.getAdminCode());
                     pcb.setAdminCodeSystem(bundle.getAdminCodeSystem());
@@ -1,8 +1,5 @@
 package open.dolphin.adm20.session;
 
-import java.beans.XMLDecoder;
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -22,6 +19,7 @@ import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.persistence.Query;
 import open.dolphin.infomodel.AttachmentModel;
+import open.dolphin.infomodel.BeanBytesCodec;
 import open.dolphin.infomodel.CarePlanModel;
 import open.dolphin.infomodel.DiagnosisSendWrapper;
 import open.dolphin.infomodel.DocumentModel;
@@ -280,7 +278,7 @@ public class ADM20_AdmissionServiceBean {
         for (CarePlanModel cm : carePlanList) {
             // CarePlan to ModuleModel
             ModuleModel module = cm.toModleModel();
-            module.setBeanBytes(IOSHelper.toXMLBytes(module.getModel()));
+            module.setBeanBytes(IOSHelper.toBeanBytes(module.getModel()));
             schedule.addModule(module);
         }
         
@@ -300,10 +298,7 @@ public class ADM20_AdmissionServiceBean {
         // 受け付けた保険をデコードする
         PVTHealthInsuranceModel pvtHealthInsurance=null;
         for (HealthInsuranceModel m : insurances) {
-            XMLDecoder d = new XMLDecoder(
-                new BufferedInputStream(
-                new ByteArrayInputStream(m.getBeanBytes())));
-            pvtHealthInsurance = (PVTHealthInsuranceModel)d.readObject();
+            pvtHealthInsurance = (PVTHealthInsuranceModel)BeanBytesCodec.decode(m.getBeanBytes());
             break;
         }
         //--------------------------------------------------------------------------------
@@ -320,7 +315,7 @@ public class ADM20_AdmissionServiceBean {
         ProgressCourse soaProgress = new ProgressCourse();
         soaProgress.setFreeText(sb.toString());
         ModuleModel soaSpecModule = new ModuleModel();
-        soaSpecModule.setBeanBytes(IOSHelper.toXMLBytes(soaProgress));
+        soaSpecModule.setBeanBytes(IOSHelper.toBeanBytes(soaProgress));
         soaSpecModule.setConfirmed(now);
         soaSpecModule.setStarted(startDate);
         soaSpecModule.setRecorded(now);
@@ -353,7 +348,7 @@ public class ADM20_AdmissionServiceBean {
         ProgressCourse pProgress = new ProgressCourse();
         pProgress.setFreeText(sb.toString());
         ModuleModel pSpecModule = new ModuleModel();
-        pSpecModule.setBeanBytes(IOSHelper.toXMLBytes(pProgress));
+        pSpecModule.setBeanBytes(IOSHelper.toBeanBytes(pProgress));
         pSpecModule.setConfirmed(startDate);
         pSpecModule.setStarted(now);
         pSpecModule.setRecorded(now);
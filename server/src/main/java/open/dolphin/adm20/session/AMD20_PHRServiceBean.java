@@ -2,7 +2,9 @@ package open.dolphin.adm20.session;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import javax.ejb.Stateless;
 import javax.inject.Named;
 import javax.persistence.EntityManager;
@@ -113,15 +115,22 @@ public class AMD20_PHRServiceBean {
             return null;
         }
         
+        // 処方・注射モジュールを文書 id の IN 句で一括取得し、各文書へ振り分ける
+        Map<Long, DocumentModel> map = new HashMap<>(ret.size()*2);
+        ret.stream().forEach((doc) -> {
+            doc.setModules(new ArrayList<>());
+            map.put(doc.getId(), doc);
+        });
+        
         StringBuilder sb = new StringBuilder();
-        sb.append("from ModuleModel m where m.document.id=:docId and (m.moduleInfo.entity='medOrder' or m.moduleInfo.entity='injectionOrder')");
+        sb.append("from ModuleModel m where m.document.id in (:docIds) and (m.moduleInfo.entity='medOrder' or m.moduleInfo.entity='injectionOrder') order by m.id");
         String ejbQL = sb.toString();
         
-        ret.stream().forEach((doc) -> {
-            List<ModuleModel> list2 = (List<ModuleModel>)em.createQuery(ejbQL)
-                    .setParameter("docId", doc.getId())
-                    .getResultList();
-            doc.setModules(list2);
+        List<ModuleModel> list2 = (List<ModuleModel>)em.createQuery(ejbQL)
+                .setParameter("docIds", new ArrayList<>(map.keySet()))
+                .getResultList();
+        list2.stream().forEach((module) -> {
+            map.get(module.getDocumentModel().getId()).getModules().add(module);
         });
         
         return ret;
@@ -0,0 +1,65 @@
+package open.dolphin.mbean;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * SchemaModel.jpegByte や AttachmentModel.bytes を DB の外に保存する store。
+ * データは内容の SHA-256(16進64文字)で指し、同じ内容は1つだけ保存する。
+ */
+public interface BlobStore {
+
+    /**
+     * データを保存する。既に同じ内容があれば書き込まない。
+     * @param bytes データ
+     * @return blobId
+     * @throws IOException
+     */
+    String put(byte[] bytes) throws IOException;
+
+    /**
+     * データを読む。
+     * @param blobId blobId
+     * @return データ、なければ null
+     * @throws IOException
+     */
+    byte[] get(String blobId) throws IOException;
+
+    boolean contains(String blobId);
+
+    /**
+     * データの大きさを返す。
+     * @param blobId blobId
+     * @return バイト数、なければ -1
+     * @throws IOException
+     */
+    long size(String blobId) throws IOException;
+
+    /**
+     * データを target へ書き出す。
+     * @param blobId blobId
+     * @param target 書き出し先
+     * @return 書き出したバイト数
+     * @throws IOException
+     */
+    long transferTo(String blobId, WritableByteChannel target) throws IOException;
+
+    /**
+     * blobId が prefix で始まり、before より前に書き込まれた(put された)データの blobId を返す。
+     * @param prefix blobId の先頭2文字
+     * @param before 時刻(ミリ秒)
+     * @return blobId のリスト
+     * @throws IOException
+     */
+    List<String> list(String prefix, long before) throws IOException;
+
+    /**
+     * データを消す。before 以降に put されていれば消さない。
+     * @param blobId blobId
+     * @param before 時刻(ミリ秒)
+     * @return 消した場合 true
+     * @throws IOException
+     */
+    boolean delete(String blobId, long before) throws IOException;
+}
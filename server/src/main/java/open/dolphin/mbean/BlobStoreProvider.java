@@ -0,0 +1,104 @@
+package open.dolphin.mbean;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+import open.dolphin.infomodel.BlobResolver;
+import open.orca.rest.ORCAConnection;
+
+/**
+ * custom.properties の blob.store.dir に BlobStore を作り、エンティティのフック(BlobResolver)に登録する。
+ * blob.store.dir がなければ何もせず、画像と添付ファイルは従来どおり LOB 列に保存する。
+ * 書き込んだデータが画像なら、サムネイルを executor で作っておく。
+ */
+public class BlobStoreProvider extends BlobResolver {
+
+    private static volatile BlobStore store;
+
+    private final BlobStore target;
+
+    private final Executor executor;
+
+    private BlobStoreProvider(BlobStore target, Executor executor) {
+        this.target = target;
+        this.executor = executor;
+    }
+
+    /**
+     * 起動時に1回呼ぶ。
+     * @param executor サムネイルを作る executor
+     */
+    public static synchronized void install(Executor executor) {
+
+        if (store != null) {
+            return;
+        }
+        String dir = ORCAConnection.getInstance().getProperty("blob.store.dir");
+        if (dir == null || dir.trim().isEmpty()) {
+            return;
+        }
+        try {
+            store = new FileBlobStore(Paths.get(dir.trim()));
+            BlobResolver.setInstance(new BlobStoreProvider(store, executor));
+            Logger.getLogger("open.dolphin").info("blob store: " + dir);
+        } catch (IOException e) {
+            Logger.getLogger("open.dolphin").warning("blob store can not be created: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return BlobStore、設定されていなければ null
+     */
+    public static BlobStore getStore() {
+        return store;
+    }
+
+    @Override
+    protected String write(byte[] bytes) {
+        try {
+            String blobId = target.put(bytes);
+            generateThumbnails(blobId, bytes);
+            return blobId;
+        } catch (IOException e) {
+            // LOB 列に残す
+            Logger.getLogger("open.dolphin").warning("blob can not be stored: " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    protected byte[] read(String blobId) {
+        try {
+            byte[] ret = target.get(blobId);
+            if (ret == null) {
+                Logger.getLogger("open.dolphin").warning("blob not found: " + blobId);
+            }
+            return ret;
+        } catch (IOException e) {
+            // エンティティの getter から呼ばれるので例外にしない
+            Logger.getLogger("open.dolphin").warning("blob can not be read: " + blobId + " " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void generateThumbnails(final String blobId, final byte[] bytes) {
+        // 画像以外(PDF 等の添付ファイル)は作らない
+        if (!ThumbnailStore.isImage(bytes)) {
+            return;
+        }
+        Runnable r = () -> {
+            try {
+                ThumbnailStore.getInstance().generateAll(blobId, bytes);
+            } catch (IOException | RuntimeException e) {
+                Logger.getLogger("open.dolphin").warning("thumbnail can not be created: " + e.getMessage());
+            }
+        };
+        try {
+            executor.execute(r);
+        } catch (RejectedExecutionException e) {
+            // 表示時に作る
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package open.dolphin.mbean;
+
+import java.util.ArrayList;
+import java.util.List;
+import open.dolphin.infomodel.ChartEventModel;
+
+/**
+ * 施設ごとの ChartEvent 履歴。
+ * 通し番号を付番し、直近 capacity 件をリングバッファに保持する。
+ * 再接続したクライアントは最後に受け取った番号以降のイベントをここから受け取る。
+ */
+public class ChartEventBuffer {
+
+    private final ChartEventModel[] ring;
+
+    // 最後に付番した番号
+    private long sequence;
+
+    // 保持している件数
+    private int count;
+
+    public ChartEventBuffer(int capacity) {
+        ring = new ChartEventModel[Math.max(capacity, 1)];
+        // サーバー再起動前の番号と重ならないよう起動時刻から始める
+        sequence = System.currentTimeMillis() * 1000L;
+    }
+
+    /**
+     * イベントに番号を付けて保持する。
+     * @param evt ChartEventModel
+     * @return 付番した番号
+     */
+    public synchronized long append(ChartEventModel evt) {
+        sequence++;
+        evt.setSequence(sequence);
+        ring[(int)(sequence % ring.length)] = evt;
+        if (count < ring.length) {
+            count++;
+        }
+        return sequence;
+    }
+
+    /**
+     * lastSequence より後のイベントを返す。
+     * @param lastSequence クライアントが最後に受け取った番号
+     * @return イベントのリスト、取りこぼしを補えない場合は null
+     */
+    public synchronized List<ChartEventModel> getEventsAfter(long lastSequence) {
+
+        // 他のサーバー(再起動前)の番号
+        if (lastSequence > sequence) {
+            return null;
+        }
+
+        // 既にバッファから消えている
+        long oldest = sequence - count + 1;
+        if (lastSequence + 1 < oldest) {
+            return null;
+        }
+
+        List<ChartEventModel> ret = new ArrayList<>((int)(sequence - lastSequence));
+        for (long seq = lastSequence + 1; seq <= sequence; seq++) {
+            ret.add(ring[(int)(seq % ring.length)]);
+        }
+        return ret;
+    }
+
+    public synchronized long getSequence() {
+        return sequence;
+    }
+}
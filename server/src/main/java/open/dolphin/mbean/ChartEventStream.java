@@ -0,0 +1,155 @@
+package open.dolphin.mbean;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import open.dolphin.converter.ChartEventModelConverter;
+import open.dolphin.infomodel.ChartEventModel;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.map.SerializationConfig;
+
+/**
+ * Server-Sent Events で ChartEventModel を送り続ける接続。
+ * イベントは上限付きのキューに積み、executor 上で1本ずつ書き出す。
+ * クライアントが読み切れずキューが溢れた場合は接続を閉じる。
+ * クライアントは Last-Event-ID で再接続し、ChartEventBuffer から続きを受け取る。
+ */
+public class ChartEventStream {
+
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    static {
+        MAPPER.configure(SerializationConfig.Feature.WRITE_NULL_MAP_VALUES, false);
+        MAPPER.configure(SerializationConfig.Feature.FAIL_ON_EMPTY_BEANS, false);
+    }
+
+    // キューに積むハートビートの目印
+    private static final Object HEARTBEAT_MARK = new Object();
+
+    private final String fid;
+    private final String clientUUID;
+    private final AsyncContext ac;
+    private final Executor executor;
+    private final BlockingQueue<Object> queue;
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile boolean closed;
+
+    public ChartEventStream(String fid, String clientUUID, AsyncContext ac, Executor executor, int capacity) {
+        this.fid = fid;
+        this.clientUUID = (clientUUID != null) ? clientUUID : "";
+        this.ac = ac;
+        this.executor = executor;
+        this.queue = new ArrayBlockingQueue<>(Math.max(capacity, 1));
+    }
+
+    public String getFacilityId() {
+        return fid;
+    }
+
+    public String getClientUUID() {
+        return clientUUID;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * イベントを送信キューに積む。
+     * @param evt ChartEventModel
+     */
+    public void send(ChartEventModel evt) {
+        enqueue(evt);
+    }
+
+    /**
+     * データなしで番号(id:)だけを送る。クライアントは以後この番号で再接続する。
+     * @param sequence 番号
+     */
+    public void sendSequence(long sequence) {
+        enqueue(sequence);
+    }
+
+    /**
+     * 切断を検知するためのコメント行を送る。
+     */
+    public void heartbeat() {
+        enqueue(HEARTBEAT_MARK);
+    }
+
+    private void enqueue(Object item) {
+        if (closed) {
+            return;
+        }
+        if (!queue.offer(item)) {
+            // 読み切れないクライアント 再接続させて続きはバッファから送る
+            Logger.getLogger("open.dolphin").warning(fid + ":" + clientUUID + " chart event stream overflowed.");
+            close();
+            return;
+        }
+        schedule();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            ServletOutputStream os = ac.getResponse().getOutputStream();
+            Object item;
+            while (!closed && (item = queue.poll()) != null) {
+                if (item == HEARTBEAT_MARK) {
+                    os.write(HEARTBEAT);
+                } else if (item instanceof Long) {
+                    os.write(("id: " + item + "\n\n").getBytes(StandardCharsets.UTF_8));
+                } else {
+                    os.write(toEventBytes((ChartEventModel)item));
+                }
+            }
+            os.flush();
+        } catch (IOException | IllegalStateException e) {
+            close();
+        } finally {
+            scheduled.set(false);
+        }
+        // drain 終了直前に積まれたもの
+        if (!closed && !queue.isEmpty()) {
+            schedule();
+        }
+    }
+
+    private byte[] toEventBytes(ChartEventModel evt) throws IOException {
+        ChartEventModelConverter conv = new ChartEventModelConverter();
+        conv.setModel(evt);
+        StringBuilder sb = new StringBuilder();
+        sb.append("id: ").append(evt.getSequence()).append("\n");
+        sb.append("data: ").append(MAPPER.writeValueAsString(conv)).append("\n\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 接続を閉じる。AsyncListener の onComplete で登録が外れる。
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.clear();
+        try {
+            ac.complete();
+        } catch (IllegalStateException e) {
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package open.dolphin.mbean;
+
+/**
+ * ChartEvent の subscriber。
+ * lastSequence が負の場合は従来どおり1件ずつ配信し、
+ * それ以外は lastSequence より後のイベントをまとめて配信する。
+ */
+public class ChartEventSubscriber {
+
+    private final String clientUUID;
+
+    private final long lastSequence;
+
+    public ChartEventSubscriber(String clientUUID, long lastSequence) {
+        // ConcurrentHashMapの値に使うのでnullにしない
+        this.clientUUID = (clientUUID != null) ? clientUUID : "";
+        this.lastSequence = lastSequence;
+    }
+
+    public String getClientUUID() {
+        return clientUUID;
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    public boolean isReplay() {
+        return lastSequence >= 0L;
+    }
+}
@@ -0,0 +1,176 @@
+package open.dolphin.mbean;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import open.dolphin.infomodel.BeanBytesCodec;
+import open.dolphin.infomodel.IInfoModel;
+import open.dolphin.infomodel.ModuleModel;
+import open.orca.rest.ORCAConnection;
+
+/**
+ * デコード済み ModuleModel(IInfoModel)のキャッシュ。
+ * CLAIM送信、MML出力、モバイル向けコンバータが同じ beanBytes を繰り返しデコードしないようにする。
+ * キーは module の PK、デコードした beanBytes を版として持ち、内容が一致しない場合はデコードし直す。
+ * ハッシュだけで比べると衝突した時に古いモデルを返すので、長さとハッシュが一致した場合は全体を比べる。
+ * 件数を超えた場合は最も使われていないエントリから捨てる。
+ * 呼び出し側には複製を返すので、取得したモデルを変更してもキャッシュには影響しない。
+ * BeanBytesCodec.copy で複製できない型(Map や int[] 等、従来の XML からは読める)を含む
+ * モデルは保持せず、毎回デコードしたものを返す。
+ */
+public class DecodedModuleCache {
+
+    private static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private static final DecodedModuleCache instance = new DecodedModuleCache();
+
+    private final int maxEntries;
+
+    private final Map<Long, Entry> map;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public static DecodedModuleCache getInstance() {
+        return instance;
+    }
+
+    private DecodedModuleCache() {
+
+        // custom.properties module.cache.size
+        int size = DEFAULT_MAX_ENTRIES;
+        String value = ORCAConnection.getInstance().getProperty("module.cache.size");
+        if (value != null) {
+            try {
+                size = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                Logger.getLogger("open.dolphin").warning("module.cache.size is invalid: " + value);
+            }
+        }
+        this.maxEntries = size;
+
+        this.map = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * モジュールのデコード済みモデルを返す。
+     * @param module ModuleModel
+     * @return デコードしたモデルの複製
+     */
+    public IInfoModel getModel(ModuleModel module) {
+
+        byte[] bytes = module.getBeanBytes();
+        if (bytes == null) {
+            return null;
+        }
+
+        // 未保存のモジュールはキャッシュしない
+        long id = module.getId();
+        if (id == 0L || maxEntries <= 0) {
+            misses.incrementAndGet();
+            return (IInfoModel)BeanBytesCodec.decode(bytes);
+        }
+
+        int hash = Arrays.hashCode(bytes);
+        Entry entry;
+        synchronized (map) {
+            entry = map.get(id);
+        }
+
+        if (entry != null && entry.matches(bytes, hash)) {
+            if (entry.model == null) {
+                // 複製できないモデル
+                misses.incrementAndGet();
+                return (IInfoModel)BeanBytesCodec.decode(bytes);
+            }
+            hits.incrementAndGet();
+            return (IInfoModel)BeanBytesCodec.copy(entry.model);
+        }
+
+        misses.incrementAndGet();
+        IInfoModel model = (IInfoModel)BeanBytesCodec.decode(bytes);
+        if (model == null) {
+            return null;
+        }
+
+        // 複製できることを確かめてから保持する
+        IInfoModel ret;
+        IInfoModel cached;
+        try {
+            ret = (IInfoModel)BeanBytesCodec.copy(model);
+            cached = model;
+        } catch (IllegalArgumentException e) {
+            ret = model;
+            cached = null;
+        }
+        synchronized (map) {
+            map.put(id, new Entry(bytes, hash, cached));
+        }
+        return ret;
+    }
+
+    /**
+     * モジュールのエントリを削除する。
+     * @param id module の PK
+     */
+    public void invalidate(long id) {
+        synchronized (map) {
+            map.remove(id);
+        }
+    }
+
+    public void clear() {
+        synchronized (map) {
+            map.clear();
+        }
+        hits.set(0L);
+        misses.set(0L);
+    }
+
+    public int size() {
+        synchronized (map) {
+            return map.size();
+        }
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static final class Entry {
+
+        // デコードした beanBytes エンティティの配列をそのまま持つ(書き換えられることはない)
+        private final byte[] bytes;
+        private final int hash;
+        // 複製できない場合は null
+        private final IInfoModel model;
+
+        private Entry(byte[] bytes, int hash, IInfoModel model) {
+            this.bytes = bytes;
+            this.hash = hash;
+            this.model = model;
+        }
+
+        private boolean matches(byte[] other, int otherHash) {
+            if (other == bytes) {
+                return true;
+            }
+            return other.length == bytes.length && otherHash == hash && Arrays.equals(other, bytes);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package open.dolphin.mbean;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ローカルファイルシステムの BlobStore。
+ * root/ab/cd/abcd... のように SHA-256 の先頭4文字で2段のディレクトリに分ける。
+ * 書き込みは root/tmp に書いてから move するので、途中のファイルが見えることはない。
+ * ファイルの更新時刻は最後に put された時刻で、参照されていないデータの掃除に使う。
+ */
+public class FileBlobStore implements BlobStore {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path root;
+    private final Path tmp;
+
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+
+    public FileBlobStore(Path root) throws IOException {
+        this.root = root;
+        this.tmp = root.resolve("tmp");
+        Files.createDirectories(tmp);
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    @Override
+    public String put(byte[] bytes) throws IOException {
+
+        String blobId = digest(bytes);
+        Path path = pathOf(blobId);
+        if (Files.exists(path)) {
+            try {
+                // 掃除で消されないように put した時刻にする
+                Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+                duplicates.incrementAndGet();
+                return blobId;
+            } catch (NoSuchFileException e) {
+                // 掃除で消された 書き直す
+            }
+        }
+
+        Files.createDirectories(path.getParent());
+        Path work = Files.createTempFile(tmp, blobId, ".tmp");
+        try {
+            Files.write(work, bytes);
+            Files.move(work, path, StandardCopyOption.ATOMIC_MOVE);
+            writes.incrementAndGet();
+        } catch (FileAlreadyExistsException e) {
+            // 同じ内容を同時に書いた
+            duplicates.incrementAndGet();
+        } finally {
+            Files.deleteIfExists(work);
+        }
+        return blobId;
+    }
+
+    @Override
+    public byte[] get(String blobId) throws IOException {
+        Path path = pathOf(blobId);
+        try {
+            return (path != null) ? Files.readAllBytes(path) : null;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean contains(String blobId) {
+        Path path = pathOf(blobId);
+        return path != null && Files.exists(path);
+    }
+
+    @Override
+    public long size(String blobId) throws IOException {
+        Path path = pathOf(blobId);
+        try {
+            return (path != null) ? Files.size(path) : -1L;
+        } catch (NoSuchFileException e) {
+            return -1L;
+        }
+    }
+
+    @Override
+    public long transferTo(String blobId, WritableByteChannel target) throws IOException {
+
+        Path path = pathOf(blobId);
+        if (path == null) {
+            throw new NoSuchFileException(blobId);
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0L;
+            while (position < size) {
+                position += channel.transferTo(position, size - position, target);
+            }
+            return size;
+        }
+    }
+
+    @Override
+    public List<String> list(String prefix, long before) throws IOException {
+
+        List<String> ret = new ArrayList<>();
+        Path dir = (prefix != null && prefix.length() == 2 && isHex(prefix)) ? root.resolve(prefix) : null;
+        if (dir == null || !Files.isDirectory(dir)) {
+            return ret;
+        }
+        try (DirectoryStream<Path> subs = Files.newDirectoryStream(dir)) {
+            for (Path sub : subs) {
+                if (!Files.isDirectory(sub)) {
+                    continue;
+                }
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(sub)) {
+                    for (Path file : files) {
+                        String blobId = file.getFileName().toString();
+                        if (pathOf(blobId) == null) {
+                            continue;
+                        }
+                        try {
+                            if (Files.getLastModifiedTime(file).toMillis() < before) {
+                                ret.add(blobId);
+                            }
+                        } catch (NoSuchFileException e) {
+                        }
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public boolean delete(String blobId, long before) throws IOException {
+        Path path = pathOf(blobId);
+        if (path == null) {
+            return false;
+        }
+        try {
+            if (Files.getLastModifiedTime(path).toMillis() >= before) {
+                return false;
+            }
+            return Files.deleteIfExists(path);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+    }
+
+    public long getWrites() {
+        return writes.get();
+    }
+
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    // blobId として正しくなければ null ディレクトリの外を指させない
+    private Path pathOf(String blobId) {
+        if (blobId == null || blobId.length() != 64 || !isHex(blobId)) {
+            return null;
+        }
+        return root.resolve(blobId.substring(0, 2)).resolve(blobId.substring(2, 4)).resolve(blobId);
+    }
+
+    private boolean isHex(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String digest(byte[] bytes) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(bytes);
+            char[] ret = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++) {
+                ret[i * 2] = HEX[(hash[i] >> 4) & 0x0f];
+                ret[i * 2 + 1] = HEX[hash[i] & 0x0f];
+            }
+            return new String(ret);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,421 @@
+package open.dolphin.mbean;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import javax.persistence.EntityManager;
+import open.dolphin.infomodel.LabTestRowObject;
+import open.dolphin.infomodel.LabTestValueObject;
+import open.dolphin.infomodel.NLaboItem;
+import open.dolphin.infomodel.NLaboModule;
+import open.dolphin.infomodel.NLaboSeriesPage;
+import open.orca.rest.ORCAConnection;
+
+/**
+ * 患者ごとの検査結果の時系列(検査項目 × 検体採取日)。
+ * 患者ごとに2回のクエリで作り、LRU で保持する。NLabServiceBean の登録・削除はコミット後に差分で反映する。
+ * 列(モジュール)は検体採取日の降順に並び、モジュールの id をカーソルにしてページングする。
+ * 保持している NLaboItem は共有しているので変更してはいけない。
+ */
+public class LaboSeriesStore {
+
+    private static final int DEFAULT_MAX_PATIENTS = 200;
+
+    private static final String QUERY_MODULE_BY_FIDPID = "from NLaboModule m where m.patientId=:fidPid";
+    private static final String QUERY_ITEM_BY_FIDPID = "from NLaboItem l where l.patientId=:fidPid order by l.laboModule.id, l.groupCode, l.parentCode, l.itemCode, l.id";
+    private static final String FIDPID = "fidPid";
+
+    // 検体採取日の降順、同じ日は id の降順
+    private static final Comparator<Column> NEWEST_FIRST = (Column c1, Column c2) -> {
+        int cmp = compare(c2.sampleDate, c1.sampleDate);
+        return cmp != 0 ? cmp : Long.compare(c2.moduleId, c1.moduleId);
+    };
+
+    private static final LaboSeriesStore instance = new LaboSeriesStore();
+
+    private final Map<String, Series> cache;
+
+    // 登録・削除の回数 読み込み中に変更があった場合はキャッシュしない
+    private long modCount;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public static LaboSeriesStore getInstance() {
+        return instance;
+    }
+
+    private LaboSeriesStore() {
+        // custom.properties labo.series.cache.size 保持する患者数
+        int max = DEFAULT_MAX_PATIENTS;
+        String value = ORCAConnection.getInstance().getProperty("labo.series.cache.size");
+        if (value != null) {
+            try {
+                max = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                Logger.getLogger("open.dolphin").warning("labo.series.cache.size is invalid: " + value);
+            }
+        }
+        final int maxPatients = max;
+        cache = new LinkedHashMap<String, Series>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Series> eldest) {
+                return size() > maxPatients;
+            }
+        };
+    }
+
+    /**
+     * 検査結果の1ページを返す。
+     * @param em EntityManager 患者の時系列がない場合に使う
+     * @param fidPid 施設ID:患者ID
+     * @param before このモジュール id より古い列を返す、0 の場合は最新から
+     * @param maxResult 列数
+     * @param newestLeft 最新を左(先頭)にする場合 true
+     * @return ページ
+     */
+    public NLaboSeriesPage getPage(EntityManager em, String fidPid, long before, int maxResult, boolean newestLeft) {
+
+        Series series = getSeries(em, fidPid);
+        NLaboSeriesPage page = new NLaboSeriesPage();
+
+        synchronized (series) {
+            // 列を決める
+            Column cursor = (before > 0L) ? series.byId.get(before) : null;
+            NavigableSet<Column> from = (cursor != null) ? series.columns.tailSet(cursor, false) : series.columns;
+            List<Column> columns = new ArrayList<>(maxResult);
+            Iterator<Column> itr = from.iterator();
+            while (columns.size() < maxResult && itr.hasNext()) {
+                columns.add(itr.next());
+            }
+            page.setTotal(series.columns.size());
+            page.setNext((itr.hasNext() && !columns.isEmpty()) ? columns.get(columns.size() - 1).moduleId : 0L);
+            if (!newestLeft) {
+                Collections.reverse(columns);
+            }
+
+            List<Long> moduleIds = new ArrayList<>(columns.size());
+            List<String> sampleDates = new ArrayList<>(columns.size());
+            for (Column c : columns) {
+                moduleIds.add(c.moduleId);
+                sampleDates.add(c.sampleDate);
+            }
+            page.setModuleIds(moduleIds);
+            page.setSampleDates(sampleDates);
+
+            // 列に値のある検査項目を行にする
+            List<LabTestRowObject> rows = new ArrayList<>();
+            for (TreeMap<Column, NLaboItem> values : series.items.values()) {
+                LabTestRowObject row = null;
+                for (int i = 0; i < columns.size(); i++) {
+                    NLaboItem item = values.get(columns.get(i));
+                    if (item == null) {
+                        continue;
+                    }
+                    if (row == null) {
+                        row = createRow(item, columns.size());
+                        rows.add(row);
+                    }
+                    row.getValues().set(i, createValue(columns.get(i), item));
+                }
+            }
+            Collections.sort(rows);
+            page.setRows(rows);
+        }
+
+        return page;
+    }
+
+    /**
+     * ページの先頭のカーソルを返す。
+     * @param em EntityManager
+     * @param fidPid 施設ID:患者ID
+     * @param maxResult 1ページの列数
+     * @return 最新のページから順のカーソル 最初は 0
+     */
+    public List<Long> getPageCursors(EntityManager em, String fidPid, int maxResult) {
+
+        Series series = getSeries(em, fidPid);
+        List<Long> ret = new ArrayList<>();
+        synchronized (series) {
+            int cnt = 0;
+            long last = 0L;
+            for (Column c : series.columns) {
+                if (cnt % maxResult == 0) {
+                    ret.add(last);
+                }
+                last = c.moduleId;
+                cnt++;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * 患者のモジュール数を返す。
+     * @param em EntityManager
+     * @param fidPid 施設ID:患者ID
+     * @return モジュール数
+     */
+    public int getColumnCount(EntityManager em, String fidPid) {
+        Series series = getSeries(em, fidPid);
+        synchronized (series) {
+            return series.columns.size();
+        }
+    }
+
+    /**
+     * 検査項目の値を検体採取日の降順で返す。
+     * @param em EntityManager
+     * @param fidPid 施設ID:患者ID
+     * @param itemCode 検査項目コード
+     * @param firstResult 最初の位置
+     * @param maxResult 件数
+     * @return NLaboItem のリスト
+     */
+    public List<NLaboItem> getItems(EntityManager em, String fidPid, String itemCode, int firstResult, int maxResult) {
+
+        Series series = getSeries(em, fidPid);
+        List<NLaboItem> ret = new ArrayList<>();
+        synchronized (series) {
+            TreeMap<Column, NLaboItem> values = series.items.get(itemCode);
+            if (values == null) {
+                return ret;
+            }
+            int index = 0;
+            for (NLaboItem item : values.values()) {
+                if (ret.size() >= maxResult) {
+                    break;
+                }
+                if (index++ >= firstResult) {
+                    ret.add(item);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * 登録したモジュールを反映する。トランザクションのコミット後に呼ぶ。
+     * @param module 登録したモジュール(施設ID付きの患者ID)
+     */
+    public void moduleAdded(NLaboModule module) {
+        Series series = changing(module.getPatientId());
+        if (series != null) {
+            synchronized (series) {
+                series.add(module.getId(), module.getSampleDate(), module.getItems());
+            }
+        }
+    }
+
+    /**
+     * 削除したモジュールを反映する。トランザクションのコミット後に呼ぶ。
+     * @param fidPid 施設ID:患者ID
+     * @param moduleId 削除したモジュールの id
+     */
+    public void moduleRemoved(String fidPid, long moduleId) {
+        Series series = changing(fidPid);
+        if (series != null) {
+            synchronized (series) {
+                series.remove(moduleId);
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            modCount++;
+            cache.clear();
+        }
+        hits.set(0L);
+        misses.set(0L);
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private Series changing(String fidPid) {
+        synchronized (cache) {
+            modCount++;
+            return cache.get(fidPid);
+        }
+    }
+
+    private Series getSeries(EntityManager em, String fidPid) {
+
+        long stamp;
+        synchronized (cache) {
+            Series series = cache.get(fidPid);
+            if (series != null) {
+                hits.incrementAndGet();
+                return series;
+            }
+            stamp = modCount;
+        }
+        misses.incrementAndGet();
+
+        Series series = load(em, fidPid);
+
+        synchronized (cache) {
+            if (stamp == modCount) {
+                cache.put(fidPid, series);
+            }
+        }
+        return series;
+    }
+
+    private Series load(EntityManager em, String fidPid) {
+
+        List<NLaboModule> modules = em.createQuery(QUERY_MODULE_BY_FIDPID)
+                .setParameter(FIDPID, fidPid)
+                .getResultList();
+
+        // モジュールは既に読んであるので laboModule の取得でクエリは発行されない
+        List<NLaboItem> items = em.createQuery(QUERY_ITEM_BY_FIDPID)
+                .setParameter(FIDPID, fidPid)
+                .getResultList();
+
+        Map<Long, List<NLaboItem>> byModule = new HashMap<>(modules.size() * 2);
+        for (NLaboItem item : items) {
+            Long mid = item.getLaboModule().getId();
+            List<NLaboItem> list = byModule.get(mid);
+            if (list == null) {
+                list = new ArrayList<>();
+                byModule.put(mid, list);
+            }
+            list.add(item);
+        }
+
+        Series series = new Series();
+        for (NLaboModule module : modules) {
+            List<NLaboItem> list = byModule.get(module.getId());
+            series.add(module.getId(), module.getSampleDate(), list);
+        }
+        return series;
+    }
+
+    private LabTestRowObject createRow(NLaboItem item, int size) {
+        LabTestRowObject row = new LabTestRowObject();
+        row.setLabCode(item.getLaboCode());
+        row.setGroupCode(item.getGroupCode());
+        row.setParentCode(item.getParentCode());
+        row.setItemCode(item.getItemCode());
+        row.setItemName(item.getItemName());
+        row.setUnit(item.getUnit());
+        row.setNormalValue(item.getNormalValue());
+        row.setValues(new ArrayList<>(Collections.nCopies(size, (LabTestValueObject)null)));
+        return row;
+    }
+
+    private LabTestValueObject createValue(Column column, NLaboItem item) {
+        LabTestValueObject value = new LabTestValueObject();
+        value.setSampleDate(column.sampleDate);
+        value.setValue(item.getValue());
+        value.setOut(item.getAbnormalFlg());
+        value.setComment1(item.getComment1());
+        value.setComment2(item.getComment2());
+        return value;
+    }
+
+    private static int compare(String s1, String s2) {
+        if (s1 == null) {
+            return (s2 == null) ? 0 : -1;
+        }
+        return (s2 == null) ? 1 : s1.compareTo(s2);
+    }
+
+    // 患者の時系列
+    private static final class Series {
+
+        // 検体採取日の降順
+        private final TreeSet<Column> columns = new TreeSet<>(NEWEST_FIRST);
+
+        private final Map<Long, Column> byId = new HashMap<>();
+
+        // 検査項目コード -> 列ごとの値
+        private final Map<String, TreeMap<Column, NLaboItem>> items = new HashMap<>();
+
+        private void add(Long moduleId, String sampleDate, List<NLaboItem> moduleItems) {
+
+            if (moduleId == null) {
+                return;
+            }
+            remove(moduleId);
+
+            // 同じモジュールに同じ検査項目が複数ある場合は後のものを残す ただし先のものが訂正(E)の場合は先のものを残す
+            Map<String, NLaboItem> unique = new LinkedHashMap<>();
+            if (moduleItems != null) {
+                for (NLaboItem item : moduleItems) {
+                    NLaboItem prev = unique.get(item.getItemCode());
+                    if (prev == null || !"E".equals(prev.getReportStatus())) {
+                        unique.put(item.getItemCode(), item);
+                    }
+                }
+            }
+
+            Column column = new Column(moduleId, sampleDate, new ArrayList<>(unique.keySet()));
+            columns.add(column);
+            byId.put(moduleId, column);
+            for (NLaboItem item : unique.values()) {
+                TreeMap<Column, NLaboItem> values = items.get(item.getItemCode());
+                if (values == null) {
+                    values = new TreeMap<>(NEWEST_FIRST);
+                    items.put(item.getItemCode(), values);
+                }
+                values.put(column, item);
+            }
+        }
+
+        private void remove(long moduleId) {
+            Column column = byId.remove(moduleId);
+            if (column == null) {
+                return;
+            }
+            columns.remove(column);
+            for (String itemCode : column.itemCodes) {
+                TreeMap<Column, NLaboItem> values = items.get(itemCode);
+                if (values != null) {
+                    values.remove(column);
+                    if (values.isEmpty()) {
+                        items.remove(itemCode);
+                    }
+                }
+            }
+        }
+    }
+
+    // 列 = モジュール
+    private static final class Column {
+
+        private final long moduleId;
+        private final String sampleDate;
+        private final List<String> itemCodes;
+
+        private Column(long moduleId, String sampleDate, List<String> itemCodes) {
+            this.moduleId = moduleId;
+            this.sampleDate = sampleDate;
+            this.itemCodes = itemCodes;
+        }
+    }
+}
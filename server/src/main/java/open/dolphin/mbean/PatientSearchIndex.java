@@ -0,0 +1,637 @@
+package open.dolphin.mbean;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import javax.persistence.EntityManager;
+import open.dolphin.infomodel.PatientModel;
+import open.orca.rest.ORCAConnection;
+
+/**
+ * 施設ごとの患者検索の索引。
+ * 氏名・カナ・アプリメモの前方一致・後方一致・部分一致と、電話番号・郵便番号の前方一致を
+ * データベースを走査せずに患者の PK で返す。一致の判定は LIKE と同じく値そのもので行う。
+ *
+ * 起動時と毎晩データベースから作る変更しない表と、それ以降に登録・更新された患者の差分で持ち、
+ * 差分が一定数を超えたら表を作り直す。他の経路で登録された患者は、検索のたびに
+ * 最近の PK の患者を読んで取り込む。
+ */
+public class PatientSearchIndex {
+
+    // 検索する項目
+    public static final int FULL_NAME = 0;
+    public static final int KANA_NAME = 1;
+    public static final int APP_MEMO = 2;
+    public static final int TELEPHONE = 3;
+    public static final int ZIP_CODE = 5;
+
+    // 一致の方法
+    public static final int PREFIX = 0;
+    public static final int SUFFIX = 1;
+    public static final int CONTAINS = 2;
+
+    // 列 氏名、カナ、アプリメモ、電話、携帯、郵便番号
+    private static final int COLUMNS = 6;
+    private static final int MOBILE_PHONE = 4;
+
+    // 後方一致・部分一致の索引を持つ列の数(先頭から)
+    private static final int TEXT_COLUMNS = 3;
+
+    // 差分がこれを超えたら表を作り直す
+    private static final int MAX_CHANGES = 5000;
+
+    // 取り込んだ PK の位置はこの時間遅らせて進め、登録中のトランザクションを取りこぼさないようにする
+    private static final long CATCH_UP_WINDOW = 60000L;
+
+    private static final String QUERY_PATIENT_FIELDS = "select p.id, p.fullName, p.kanaName, p.appMemo, p.telephone, p.mobilePhone, p.address.zipCode from PatientModel p where p.facilityId=:fid";
+    private static final String QUERY_PATIENT_FIELDS_AFTER = QUERY_PATIENT_FIELDS + " and p.id>:pk";
+    private static final String QUERY_FACILITY_IDS = "select distinct p.facilityId from PatientModel p";
+    private static final String FID = "fid";
+    private static final String PK = "pk";
+
+    // LIKE で特別な意味を持つ文字
+    private static final String LIKE_CHARS = "%_\\";
+
+    private static final PatientSearchIndex instance = new PatientSearchIndex();
+
+    private final boolean enabled;
+
+    private final int limit;
+
+    // 施設ID -> 索引
+    private final Map<String, Facility> facilities = new ConcurrentHashMap<>();
+
+    private final AtomicLong searches = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+    private final AtomicLong searchNanos = new AtomicLong();
+
+    public static PatientSearchIndex getInstance() {
+        return instance;
+    }
+
+    private PatientSearchIndex() {
+
+        // custom.properties patient.search.index=false で使わない
+        String value = ORCAConnection.getInstance().getProperty("patient.search.index");
+        this.enabled = (value == null || !value.trim().equalsIgnoreCase("false"));
+
+        // custom.properties patient.search.limit 検索結果の上限 0 は無制限
+        int max = 0;
+        value = ORCAConnection.getInstance().getProperty("patient.search.limit");
+        if (value != null) {
+            try {
+                max = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                Logger.getLogger("open.dolphin").warning("patient.search.limit is invalid: " + value);
+            }
+        }
+        this.limit = max;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * 全施設の索引をデータベースから作り直す。
+     * @param em EntityManager
+     */
+    public void loadAll(EntityManager em) {
+        if (!enabled) {
+            return;
+        }
+        List<String> list = em.createQuery(QUERY_FACILITY_IDS, String.class).getResultList();
+        for (String fid : list) {
+            if (fid != null) {
+                load(em, fid);
+            }
+        }
+    }
+
+    /**
+     * 施設の索引をデータベースから作り直す。
+     * @param em EntityManager
+     * @param fid 施設ID
+     */
+    public void load(EntityManager em, String fid) {
+
+        if (!enabled) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        Facility facility = facilities.computeIfAbsent(fid, k -> new Facility());
+
+        // 読んでいる間に反映された差分は残す
+        Map<Long, String[]> before = new HashMap<>(facility.changes);
+        List<Object[]> rows = em.createQuery(QUERY_PATIENT_FIELDS, Object[].class)
+                .setParameter(FID, fid)
+                .getResultList();
+        Segment segment = new Segment(toRows(rows));
+
+        synchronized (facility) {
+            facility.segment = segment;
+            for (Map.Entry<Long, String[]> e : before.entrySet()) {
+                facility.changes.remove(e.getKey(), e.getValue());
+            }
+            long max = segment.pks.length > 0 ? segment.pks[segment.pks.length - 1] : 0L;
+            facility.mark = max;
+            facility.windowMark = max;
+            facility.markTime = start;
+        }
+        Logger.getLogger("open.dolphin").info("patient search index loaded: " + fid + " " + segment.pks.length
+                + " patients in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * 登録・更新された患者を反映する。コミット後に呼ぶ。
+     * @param patient PatientModel
+     */
+    public void put(PatientModel patient) {
+
+        Facility facility = (patient.getFacilityId() != null) ? facilities.get(patient.getFacilityId()) : null;
+        if (facility == null) {
+            return;
+        }
+        String zipCode = (patient.getSimpleAddressModel() != null) ? patient.getSimpleAddressModel().getZipCode() : null;
+        String[] values = {patient.getFullName(), patient.getKanaName(), patient.getAppMemo(),
+            patient.getTelephone(), patient.getMobilePhone(), zipCode};
+        facility.changes.put(patient.getId(), values);
+        if (facility.changes.size() > MAX_CHANGES) {
+            compact(facility);
+        }
+    }
+
+    /**
+     * 患者を検索する。
+     * @param em EntityManager 最近登録された患者の取り込みに使う
+     * @param fid 施設ID
+     * @param field FULL_NAME, KANA_NAME, APP_MEMO, TELEPHONE(電話と携帯), ZIP_CODE
+     * @param match PREFIX, SUFFIX, CONTAINS
+     * @param value 検索する値
+     * @param max 件数の上限 0 は無制限
+     * @return 患者の PK の昇順、索引が使えない場合は null
+     */
+    public List<Long> search(EntityManager em, String fid, int field, int match, String value, int max) {
+
+        Facility facility = enabled ? facilities.get(fid) : null;
+        if (facility == null || facility.segment == null || value == null || !isPlain(value)) {
+            fallbacks.incrementAndGet();
+            return null;
+        }
+        catchUp(em, fid, facility);
+
+        long start = System.nanoTime();
+        int[] columns = (field == TELEPHONE) ? new int[]{TELEPHONE, MOBILE_PHONE} : new int[]{field};
+
+        // 表と差分は作り直しと食い違わないように一緒に取る
+        Segment segment;
+        Map<Long, String[]> changes;
+        synchronized (facility) {
+            segment = facility.segment;
+            changes = new HashMap<>(facility.changes);
+        }
+
+        // 表から探し、差分にある患者は差分で判定する
+        List<Long> ret = new ArrayList<>();
+        for (int column : columns) {
+            for (int row : segment.find(column, match, value)) {
+                long pk = segment.pks[row];
+                if (!changes.containsKey(pk)) {
+                    ret.add(pk);
+                }
+            }
+        }
+        for (Map.Entry<Long, String[]> e : changes.entrySet()) {
+            for (int column : columns) {
+                if (matches(e.getValue()[column], match, value)) {
+                    ret.add(e.getKey());
+                    break;
+                }
+            }
+        }
+
+        ret.sort(null);
+        if (columns.length > 1) {
+            distinct(ret);
+        }
+        if (max > 0 && ret.size() > max) {
+            ret = new ArrayList<>(ret.subList(0, max));
+        }
+        searches.incrementAndGet();
+        searchNanos.addAndGet(System.nanoTime() - start);
+        return ret;
+    }
+
+    public void clear() {
+        facilities.clear();
+        searches.set(0L);
+        fallbacks.set(0L);
+        searchNanos.set(0L);
+    }
+
+    public int getFacilityCount() {
+        return facilities.size();
+    }
+
+    public int size() {
+        int ret = 0;
+        for (Facility facility : facilities.values()) {
+            Segment segment = facility.segment;
+            ret += (segment != null) ? segment.pks.length : 0;
+        }
+        return ret;
+    }
+
+    public int getChanges() {
+        int ret = 0;
+        for (Facility facility : facilities.values()) {
+            ret += facility.changes.size();
+        }
+        return ret;
+    }
+
+    public long getSearches() {
+        return searches.get();
+    }
+
+    public long getFallbacks() {
+        return fallbacks.get();
+    }
+
+    /**
+     * 1回の検索の平均時間(マイクロ秒)、DB の取り込みは除く
+     * @return 平均時間
+     */
+    public long getAverageMicros() {
+        long n = searches.get();
+        return n > 0 ? searchNanos.get() / n / 1000L : 0L;
+    }
+
+    // 前回から登録された患者を取り込む
+    private void catchUp(EntityManager em, String fid, Facility facility) {
+
+        long now = System.currentTimeMillis();
+        long from;
+        synchronized (facility) {
+            from = facility.mark;
+        }
+        List<Object[]> rows = em.createQuery(QUERY_PATIENT_FIELDS_AFTER, Object[].class)
+                .setParameter(FID, fid)
+                .setParameter(PK, from)
+                .getResultList();
+        long max = from;
+        for (Object[] r : rows) {
+            long pk = ((Number)r[0]).longValue();
+            // put された値の方が新しい
+            facility.changes.putIfAbsent(pk, toValues(r));
+            max = Math.max(max, pk);
+        }
+        synchronized (facility) {
+            // 一定時間ごとに、前回進めたときに見えていた位置まで進める
+            if (now - facility.markTime > CATCH_UP_WINDOW) {
+                facility.mark = Math.max(facility.mark, facility.windowMark);
+                facility.windowMark = max;
+                facility.markTime = now;
+            }
+        }
+        if (facility.changes.size() > MAX_CHANGES) {
+            compact(facility);
+        }
+    }
+
+    // 表と差分から表を作り直す 作る間も検索は元の表と差分で行う
+    private void compact(Facility facility) {
+
+        if (!facility.compacting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            Segment old;
+            Map<Long, String[]> merged;
+            synchronized (facility) {
+                old = facility.segment;
+                merged = new HashMap<>(facility.changes);
+            }
+            if (old == null || merged.size() <= MAX_CHANGES) {
+                return;
+            }
+            List<Row> rows = new ArrayList<>(old.pks.length + merged.size());
+            for (int i = 0; i < old.pks.length; i++) {
+                if (!merged.containsKey(old.pks[i])) {
+                    String[] values = new String[COLUMNS];
+                    for (int c = 0; c < COLUMNS; c++) {
+                        values[c] = old.columns[c][i];
+                    }
+                    rows.add(new Row(old.pks[i], values));
+                }
+            }
+            for (Map.Entry<Long, String[]> e : merged.entrySet()) {
+                rows.add(new Row(e.getKey(), e.getValue()));
+            }
+            Segment segment = new Segment(rows);
+            synchronized (facility) {
+                // 作る間に読み直された場合は捨てる
+                if (facility.segment == old) {
+                    facility.segment = segment;
+                    for (Map.Entry<Long, String[]> e : merged.entrySet()) {
+                        facility.changes.remove(e.getKey(), e.getValue());
+                    }
+                }
+            }
+        } finally {
+            facility.compacting.set(false);
+        }
+    }
+
+    private boolean isPlain(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (LIKE_CHARS.indexOf(value.charAt(i)) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(String s, int match, String value) {
+        if (s == null) {
+            return false;
+        }
+        switch (match) {
+            case PREFIX:
+                return s.startsWith(value);
+            case SUFFIX:
+                return s.endsWith(value);
+            default:
+                return s.contains(value);
+        }
+    }
+
+    // 昇順のリストから重複を除く
+    private static void distinct(List<Long> list) {
+        int len = 0;
+        for (int i = 0; i < list.size(); i++) {
+            if (len == 0 || !list.get(len - 1).equals(list.get(i))) {
+                list.set(len++, list.get(i));
+            }
+        }
+        list.subList(len, list.size()).clear();
+    }
+
+    private static List<Row> toRows(List<Object[]> list) {
+        List<Row> ret = new ArrayList<>(list.size());
+        for (Object[] r : list) {
+            ret.add(new Row(((Number)r[0]).longValue(), toValues(r)));
+        }
+        return ret;
+    }
+
+    private static String[] toValues(Object[] r) {
+        String[] ret = new String[COLUMNS];
+        for (int c = 0; c < COLUMNS; c++) {
+            ret[c] = (String)r[c + 1];
+        }
+        return ret;
+    }
+
+    private static final class Facility {
+
+        private volatile Segment segment;
+
+        // 表の作成後に登録・更新された患者 PK -> 値
+        private final Map<Long, String[]> changes = new ConcurrentHashMap<>();
+
+        private final AtomicBoolean compacting = new AtomicBoolean();
+
+        // この PK より後を取り込む
+        private long mark;
+
+        // markTime の時点で取り込んでいた最大の PK
+        private long windowMark;
+        private long markTime;
+    }
+
+    private static final class Row {
+
+        private final long pk;
+        private final String[] values;
+
+        private Row(long pk, String[] values) {
+            this.pk = pk;
+            this.values = values;
+        }
+    }
+
+    /**
+     * 1施設の索引。作成後は変更しない。
+     */
+    private static final class Segment {
+
+        private static final int[] EMPTY = new int[0];
+
+        // 患者の PK の昇順
+        private final long[] pks;
+
+        // 列ごとの値 [列][行]
+        private final String[][] columns;
+
+        // 列ごとの値の昇順の行 null は除く
+        private final int[][] prefixOrder;
+
+        // 氏名・カナ・アプリメモの後ろから比べた昇順の行
+        private final int[][] suffixOrder;
+
+        // 氏名・カナ・アプリメモの 2文字 -> その2文字を含む行(昇順)
+        private final List<Map<Integer, int[]>> bigrams;
+
+        private Segment(List<Row> rows) {
+
+            rows.sort(Comparator.comparingLong((Row r) -> r.pk));
+            int n = rows.size();
+            pks = new long[n];
+            columns = new String[COLUMNS][n];
+            for (int i = 0; i < n; i++) {
+                Row r = rows.get(i);
+                pks[i] = r.pk;
+                for (int c = 0; c < COLUMNS; c++) {
+                    columns[c][i] = r.values[c];
+                }
+            }
+
+            prefixOrder = new int[COLUMNS][];
+            for (int c = 0; c < COLUMNS; c++) {
+                prefixOrder[c] = order(columns[c], Comparator.<String>naturalOrder());
+            }
+            suffixOrder = new int[TEXT_COLUMNS][];
+            bigrams = new ArrayList<>(TEXT_COLUMNS);
+            for (int c = 0; c < TEXT_COLUMNS; c++) {
+                suffixOrder[c] = order(columns[c], Segment::compareReversed);
+                bigrams.add(bigrams(columns[c]));
+            }
+        }
+
+        // 行の番号を返す 順序は問わない
+        private int[] find(int column, int match, String value) {
+            if (match == PREFIX) {
+                return range(column, prefixOrder[column], Comparator.<String>naturalOrder(), match, value);
+            }
+            if (column >= TEXT_COLUMNS) {
+                return scan(column, match, value);
+            }
+            if (match == SUFFIX) {
+                return range(column, suffixOrder[column], Segment::compareReversed, match, value);
+            }
+            return contains(column, value);
+        }
+
+        // 並べた行の value 以上の位置から一致する間を返す
+        private int[] range(int column, int[] order, Comparator<String> cmp, int match, String value) {
+            String[] col = columns[column];
+            int lo = 0;
+            int hi = order.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cmp.compare(col[order[mid]], value) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            int to = lo;
+            while (to < order.length && matches(col[order[to]], match, value)) {
+                to++;
+            }
+            return (to > lo) ? Arrays.copyOfRange(order, lo, to) : EMPTY;
+        }
+
+        private int[] contains(int column, String value) {
+            if (value.length() < 2) {
+                return scan(column, CONTAINS, value);
+            }
+            // 最も少ない2文字の行から確かめる
+            Map<Integer, int[]> map = bigrams.get(column);
+            int[] candidates = null;
+            for (int i = 0; i + 1 < value.length(); i++) {
+                int[] list = map.get(bigram(value, i));
+                if (list == null) {
+                    return EMPTY;
+                }
+                if (candidates == null || list.length < candidates.length) {
+                    candidates = list;
+                }
+            }
+            String[] col = columns[column];
+            IntList ret = new IntList();
+            for (int row : candidates) {
+                if (col[row].contains(value)) {
+                    ret.add(row);
+                }
+            }
+            return ret.toArray();
+        }
+
+        private int[] scan(int column, int match, String value) {
+            String[] col = columns[column];
+            IntList ret = new IntList();
+            for (int i = 0; i < col.length; i++) {
+                if (matches(col[i], match, value)) {
+                    ret.add(i);
+                }
+            }
+            return ret.toArray();
+        }
+
+        private static int[] order(String[] col, Comparator<String> cmp) {
+            int count = 0;
+            for (String s : col) {
+                if (s != null) {
+                    count++;
+                }
+            }
+            Integer[] rows = new Integer[count];
+            count = 0;
+            for (int i = 0; i < col.length; i++) {
+                if (col[i] != null) {
+                    rows[count++] = i;
+                }
+            }
+            Arrays.sort(rows, (a, b) -> cmp.compare(col[a], col[b]));
+            int[] ret = new int[rows.length];
+            for (int i = 0; i < rows.length; i++) {
+                ret[i] = rows[i];
+            }
+            return ret;
+        }
+
+        private static Map<Integer, int[]> bigrams(String[] col) {
+            Map<Integer, IntList> work = new HashMap<>();
+            for (int row = 0; row < col.length; row++) {
+                String s = col[row];
+                if (s == null) {
+                    continue;
+                }
+                for (int i = 0; i + 1 < s.length(); i++) {
+                    Integer key = bigram(s, i);
+                    IntList list = work.get(key);
+                    if (list == null) {
+                        list = new IntList();
+                        work.put(key, list);
+                    }
+                    if (list.size == 0 || list.values[list.size - 1] != row) {
+                        list.add(row);
+                    }
+                }
+            }
+            Map<Integer, int[]> ret = new HashMap<>(work.size() * 2);
+            for (Map.Entry<Integer, IntList> e : work.entrySet()) {
+                ret.put(e.getKey(), e.getValue().toArray());
+            }
+            return ret;
+        }
+
+        private static Integer bigram(String s, int i) {
+            return (s.charAt(i) << 16) | s.charAt(i + 1);
+        }
+
+        // 文字列を後ろから比べる 後方一致する値が並ぶ
+        private static int compareReversed(String a, String b) {
+            int i = a.length() - 1;
+            int j = b.length() - 1;
+            while (i >= 0 && j >= 0) {
+                char ca = a.charAt(i--);
+                char cb = b.charAt(j--);
+                if (ca != cb) {
+                    return ca - cb;
+                }
+            }
+            return i - j;
+        }
+    }
+
+    private static final class IntList {
+
+        private int[] values = new int[4];
+        private int size;
+
+        private void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        private int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package open.dolphin.mbean;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import open.dolphin.infomodel.PatientVisitDelta;
+import open.dolphin.infomodel.PatientVisitModel;
+
+/**
+ * 施設の今日の受付リスト。
+ * 受付順を保持しつつ、pvt の PK と患者の PK で引けるようにする。
+ * 追加・削除・置き換えだけが構造を変え、状態の更新は PatientVisitModel を直接書き換える。
+ * 一覧は構造が変わるまで同じスナップショットを返すので、読み出しはコピーしない。
+ *
+ * 受付ごとに最後に変更された版を持ち、クライアントの版以降の差分を返せるようにする。
+ * 状態を書き換えた側は touch で版を進める。削除は版と一緒に一定数だけ覚えておき、
+ * それより古い版からの差分は全件を返す。
+ */
+public class PatientVisitStore {
+
+    // 覚えておく削除の数
+    private static final int MAX_REMOVED = 1000;
+
+    // 起動ごとの識別子 再起動前の版と比較しないようにする
+    private final long epoch = System.currentTimeMillis();
+
+    // 変更の版 ordered のロック内で進める
+    private long version;
+
+    // これより前の版からの差分は返せない
+    private long floor;
+
+    // pvt PK -> 最後に変更された版
+    private final Map<Long, Long> versions = new HashMap<>();
+
+    // 削除した pvt PK -> 削除した版 古いものから捨てる
+    private final Map<Long, Long> removed = new LinkedHashMap<>();
+
+    // 受付順 構造の変更はこのマップのロックで行う
+    private final Map<Long, PatientVisitModel> ordered = new LinkedHashMap<>();
+
+    // pvt PK -> PatientVisitModel
+    private final Map<Long, PatientVisitModel> byId = new ConcurrentHashMap<>();
+
+    // patient PK -> PatientVisitModel のリスト(同日複数受付)
+    private final Map<Long, List<PatientVisitModel>> byPatient = new ConcurrentHashMap<>();
+
+    // 受付順の一覧 構造が変わったら作り直す
+    private volatile List<PatientVisitModel> snapshot = Collections.emptyList();
+
+    /**
+     * 受付順の一覧を返す。変更できない。
+     * @return PatientVisitModel のリスト
+     */
+    public List<PatientVisitModel> getList() {
+        return snapshot;
+    }
+
+    public PatientVisitModel get(long pvtPk) {
+        return byId.get(pvtPk);
+    }
+
+    /**
+     * 患者の今日の受付を返す。
+     * @param patientPk 患者の PK
+     * @return PatientVisitModel のリスト 変更できない
+     */
+    public List<PatientVisitModel> getByPatient(long patientPk) {
+        List<PatientVisitModel> list = byPatient.get(patientPk);
+        return (list != null) ? list : Collections.<PatientVisitModel>emptyList();
+    }
+
+    public int size() {
+        return snapshot.size();
+    }
+
+    public long getVersion() {
+        synchronized (ordered) {
+            return version;
+        }
+    }
+
+    /**
+     * 指定した版以降の差分を返す。
+     * 識別子が違う場合や、覚えている削除より古い版の場合は全件を返す。
+     * @param clientEpoch クライアントが持っている識別子
+     * @param since クライアントが持っている版
+     * @return PatientVisitDelta
+     */
+    public PatientVisitDelta getDelta(long clientEpoch, long since) {
+
+        PatientVisitDelta ret = new PatientVisitDelta();
+        synchronized (ordered) {
+            ret.setEpoch(epoch);
+            ret.setVersion(version);
+            if (clientEpoch != epoch || since < floor || since > version) {
+                ret.setFull(true);
+                ret.setList(snapshot);
+                return ret;
+            }
+            List<PatientVisitModel> list = new ArrayList<>();
+            for (PatientVisitModel pvt : ordered.values()) {
+                Long v = versions.get(pvt.getId());
+                if (v != null && v > since) {
+                    list.add(pvt);
+                }
+            }
+            List<Long> pks = new ArrayList<>();
+            for (Map.Entry<Long, Long> e : removed.entrySet()) {
+                if (e.getValue() > since) {
+                    pks.add(e.getKey());
+                }
+            }
+            ret.setList(list);
+            ret.setRemoved(pks);
+        }
+        return ret;
+    }
+
+    /**
+     * 受付の状態を書き換えたので版を進める。書き換えた後に呼ぶ。
+     * @param pvtPk pvt の PK
+     */
+    public void touch(long pvtPk) {
+        synchronized (ordered) {
+            if (versions.containsKey(pvtPk)) {
+                versions.put(pvtPk, ++version);
+            }
+        }
+    }
+
+    /**
+     * 受付を末尾に追加する。同じ PK があれば同じ位置で置き換える。
+     * @param pvt PatientVisitModel
+     */
+    public void add(PatientVisitModel pvt) {
+        synchronized (ordered) {
+            PatientVisitModel old = ordered.put(pvt.getId(), pvt);
+            if (old != null) {
+                unindexPatient(old);
+            }
+            byId.put(pvt.getId(), pvt);
+            indexPatient(pvt);
+            versions.put(pvt.getId(), ++version);
+            removed.remove(pvt.getId());
+            rebuild();
+        }
+    }
+
+    /**
+     * 受付を削除する。
+     * @param pvtPk pvt の PK
+     * @return 削除した PatientVisitModel、なければ null
+     */
+    public PatientVisitModel remove(long pvtPk) {
+        synchronized (ordered) {
+            PatientVisitModel old = ordered.remove(pvtPk);
+            if (old != null) {
+                byId.remove(pvtPk);
+                unindexPatient(old);
+                tombstone(pvtPk);
+                rebuild();
+            }
+            return old;
+        }
+    }
+
+    /**
+     * 条件に合う受付を削除する。
+     * @param filter 削除条件
+     * @return 削除数
+     */
+    public int removeIf(Predicate<PatientVisitModel> filter) {
+        synchronized (ordered) {
+            int cnt = 0;
+            for (Iterator<PatientVisitModel> itr = ordered.values().iterator(); itr.hasNext();) {
+                PatientVisitModel pvt = itr.next();
+                if (filter.test(pvt)) {
+                    itr.remove();
+                    byId.remove(pvt.getId());
+                    unindexPatient(pvt);
+                    tombstone(pvt.getId());
+                    cnt++;
+                }
+            }
+            if (cnt > 0) {
+                rebuild();
+            }
+            return cnt;
+        }
+    }
+
+    public void clear() {
+        synchronized (ordered) {
+            ordered.clear();
+            byId.clear();
+            byPatient.clear();
+            versions.clear();
+            removed.clear();
+            // それまでの版からの差分は全件にする
+            floor = ++version;
+            rebuild();
+        }
+    }
+
+    // 以下 ordered のロック内で呼ぶ
+
+    private void indexPatient(PatientVisitModel pvt) {
+        if (pvt.getPatientModel() == null) {
+            return;
+        }
+        long ptPk = pvt.getPatientModel().getId();
+        List<PatientVisitModel> list = new ArrayList<>(getByPatient(ptPk));
+        list.add(pvt);
+        byPatient.put(ptPk, Collections.unmodifiableList(list));
+    }
+
+    private void unindexPatient(PatientVisitModel pvt) {
+        if (pvt.getPatientModel() == null) {
+            return;
+        }
+        long ptPk = pvt.getPatientModel().getId();
+        List<PatientVisitModel> list = new ArrayList<>(getByPatient(ptPk));
+        list.remove(pvt);
+        if (list.isEmpty()) {
+            byPatient.remove(ptPk);
+        } else {
+            byPatient.put(ptPk, Collections.unmodifiableList(list));
+        }
+    }
+
+    private void tombstone(long pvtPk) {
+        versions.remove(pvtPk);
+        removed.put(pvtPk, ++version);
+        if (removed.size() > MAX_REMOVED) {
+            Iterator<Map.Entry<Long, Long>> itr = removed.entrySet().iterator();
+            floor = Math.max(floor, itr.next().getValue());
+            itr.remove();
+        }
+    }
+
+    private void rebuild() {
+        snapshot = Collections.unmodifiableList(new ArrayList<>(ordered.values()));
+    }
+}
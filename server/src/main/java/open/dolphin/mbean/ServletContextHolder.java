@@ -4,11 +4,12 @@ import java.util.ArrayList;
 import java.util.GregorianCalendar;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
 import javax.inject.Singleton;
 import javax.servlet.AsyncContext;
 import open.dolphin.infomodel.PatientVisitModel;
+import open.orca.rest.ORCAConnection;
 
 /**
  * サーブレットの諸情報を保持するクラス
@@ -16,35 +17,95 @@ import open.dolphin.infomodel.PatientVisitModel;
  */
 @Singleton
 public class ServletContextHolder {
+    
+    private static final int DEFAULT_EVENT_BUFFER_SIZE = 512;
 
     // 今日と明日
     private GregorianCalendar today;
     private GregorianCalendar tomorrow;
 
-    // AsyncContextのリスト
-    private final List<AsyncContext> acList = new ArrayList<>();
+    // facilityIdとAsyncContextのマップ
+    private final Map<String, Map<AsyncContext, ChartEventSubscriber>> acMap
+            = new ConcurrentHashMap<>();
+    
+    // facilityIdと受付リストのマップ
+    private final Map<String, PatientVisitStore> pvtStoreMap 
+            = new ConcurrentHashMap<>();
+    
+    // facilityIdとSSE接続のマップ
+    private final Map<String, Set<ChartEventStream>> streamMap
+            = new ConcurrentHashMap<>();
     
-    // facilityIdとpvtListのマップ
-    private final Map<String, List<PatientVisitModel>> pvtListMap 
+    // facilityIdとChartEvent履歴のマップ
+    private final Map<String, ChartEventBuffer> eventBufferMap
             = new ConcurrentHashMap<>();
     
     // サーバーのUUID
     private String serverUUID;
 
-    public List<AsyncContext> getAsyncContextList() {
-        return acList;
+    // 施設のAsyncContextとsubscriberを返す
+    public Map<AsyncContext, ChartEventSubscriber> getAsyncContextMap(String fid) {
+        return acMap.computeIfAbsent(fid, k -> new ConcurrentHashMap<>());
     }
 
-    public void addAsyncContext(AsyncContext ac) {
-        synchronized (acList) {
-            acList.add(ac);
+    public void addAsyncContext(String fid, ChartEventSubscriber subscriber, AsyncContext ac) {
+        getAsyncContextMap(fid).put(ac, subscriber);
+    }
+
+    public void removeAsyncContext(String fid, AsyncContext ac) {
+        Map<AsyncContext, ChartEventSubscriber> map = acMap.get(fid);
+        if (map != null) {
+            map.remove(ac);
         }
     }
 
-    public void removeAsyncContext(AsyncContext ac) {
-        synchronized (acList) {
-            acList.remove(ac);
+    // 全施設のsubscriber数
+    public int getAsyncContextCount() {
+        int cnt = 0;
+        for (Map<AsyncContext, ChartEventSubscriber> map : acMap.values()) {
+            cnt += map.size();
         }
+        return cnt;
+    }
+    
+    // 施設のSSE接続を返す
+    public Set<ChartEventStream> getEventStreams(String fid) {
+        return streamMap.computeIfAbsent(fid, k -> ConcurrentHashMap.newKeySet());
+    }
+    
+    public void addEventStream(ChartEventStream stream) {
+        getEventStreams(stream.getFacilityId()).add(stream);
+    }
+    
+    public void removeEventStream(ChartEventStream stream) {
+        Set<ChartEventStream> set = streamMap.get(stream.getFacilityId());
+        if (set != null) {
+            set.remove(stream);
+        }
+    }
+    
+    // 全施設のSSE接続
+    public List<ChartEventStream> getAllEventStreams() {
+        List<ChartEventStream> ret = new ArrayList<>();
+        for (Set<ChartEventStream> set : streamMap.values()) {
+            ret.addAll(set);
+        }
+        return ret;
+    }
+    
+    // 施設のChartEvent履歴を返す custom.properties chartevent.buffer.size
+    public ChartEventBuffer getChartEventBuffer(String fid) {
+        return eventBufferMap.computeIfAbsent(fid, k -> {
+            int size = DEFAULT_EVENT_BUFFER_SIZE;
+            String value = ORCAConnection.getInstance().getProperty("chartevent.buffer.size");
+            if (value != null) {
+                try {
+                    size = Integer.parseInt(value.trim());
+                } catch (NumberFormatException e) {
+                }
+            }
+            return new ChartEventBuffer(size);
+        });
     }
     
     public String getServerUUID() {
@@ -55,17 +116,17 @@ public class ServletContextHolder {
         serverUUID = uuid;
     }
 
-    public Map<String, List<PatientVisitModel>> getPvtListMap() {
-        return pvtListMap;
+    public Map<String, PatientVisitStore> getPvtStoreMap() {
+        return pvtStoreMap;
     }
     
+    public PatientVisitStore getPvtStore(String fid) {
+        return pvtStoreMap.computeIfAbsent(fid, k -> new PatientVisitStore());
+    }
+    
+    // 受付順のスナップショット 変更できない
     public List<PatientVisitModel> getPvtList(String fid) {
-        List<PatientVisitModel> pvtList = pvtListMap.get(fid);
-        if (pvtList == null) {
-            pvtList = new CopyOnWriteArrayList<>();
-            pvtListMap.put(fid, pvtList);
-        }
-        return pvtList;
+        return getPvtStore(fid).getList();
     }
 
     // 今日と明日を設定する
@@ -7,13 +7,17 @@ import java.util.Timer;
 import java.util.logging.Logger;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
 import javax.ejb.Schedule;
 import javax.ejb.Singleton;
 import javax.ejb.Startup;
 import javax.ejb.Timeout;
+import javax.enterprise.concurrent.ManagedExecutorService;
 import javax.inject.Inject;
 import open.dolphin.session.ChartEventServiceBean;
+import open.dolphin.session.PatientServiceBean;
 import open.dolphin.session.SystemServiceBean;
+import open.dolphin.infomodel.BeanBytesCodec;
 import open.orca.rest.ORCAConnection;
 //import open.dolphin.updater.Updater;
 
@@ -30,6 +34,9 @@ private static final Logger logger = Logger.getLogger(ServletStartup.class.getSi
     @Inject
     private ChartEventServiceBean eventServiceBean;
     
+    @Inject
+    private PatientServiceBean patientServiceBean;
+    
 //s.oh^ 2014/07/08 クラウド0対応
     @Inject
     private SystemServiceBean systemServiceBean;
@@ -38,10 +45,18 @@ private static final Logger logger = Logger.getLogger(ServletStartup.class.getSi
 //    @Inject
 //    private Updater updater;
 
+    @Resource
+    private ManagedExecutorService executor;
+
     @PostConstruct
     public void init() {
 //        updater.start();
+        BlobStoreProvider.install(executor);
+        // custom.properties beanbytes.write.binary 全クライアントがバイナリ形式を読めるまでは false
+        BeanBytesCodec.setWriteBinary(Boolean.parseBoolean(ORCAConnection.getInstance().getProperty(BeanBytesCodec.WRITE_BINARY)));
         eventServiceBean.start();
+        executor.submit(() -> ORCAConnection.getInstance().reloadMasterIndex());
+        executor.submit(() -> patientServiceBean.loadSearchIndex());
     }
 
     @PreDestroy
@@ -54,6 +69,25 @@ private static final Logger logger = Logger.getLogger(ServletStartup.class.getSi
         Logger.getLogger("open.dolphin").info("Renew pvtlist.");
         eventServiceBean.renewPvtList();
     }
+    
+    // ORCA の点数・病名マスタの索引を読み直す
+    @Schedule(hour="3", minute="30", persistent=false)
+    public void reloadOrcaMaster() {
+        ORCAConnection.getInstance().reloadMasterIndex();
+    }
+    
+    // 患者検索の索引を作り直す 他の経路で更新された患者を反映する
+    @Schedule(hour="4", minute="0", persistent=false)
+    public void reloadPatientSearchIndex() {
+        patientServiceBean.loadSearchIndex();
+    }
+    
+    // SSE接続のハートビート
+    @Schedule(hour="*", minute="*", second="*/30", persistent=false)
+    public void chartEventHeartbeat() {
+        eventServiceBean.sendHeartbeat();
+    }
+    
     @Timeout
     public void timeout(Timer timer) {
         logger.warning("ServletStartup: timeout occurred");
@@ -0,0 +1,274 @@
+package open.dolphin.mbean;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import javax.persistence.EntityManager;
+import open.dolphin.infomodel.BeanBytesCodec;
+import open.dolphin.infomodel.IInfoModel;
+import open.dolphin.infomodel.StampModel;
+import open.orca.rest.ORCAConnection;
+
+/**
+ * StampModel のキャッシュ。
+ * スタンプは保存すると新しい id が振られ、内容が書き換わることはないので有効期限は持たない。
+ * 削除(removeStamp)と上書き(putStamp)の際に呼び出し側がエントリを削除する。
+ * 削除の回数(modCount)を DB から読む前に控え、読んでいる間に削除があった場合は保持しない。
+ * コミット前の内容を読んだものが、コミット後の削除より後に入るのを防ぐ。
+ * 件数を超えた場合は最も使われていないエントリから捨てる。
+ * stampBytes と、必要になった時点でデコードしたモデルを保持し、呼び出し側には
+ * stampBytes とモデルの複製を返す。
+ */
+public class StampCache {
+
+    private static final int DEFAULT_MAX_ENTRIES = 5000;
+    private static final int ID_PAGE_SIZE = 500;
+
+    private static final String QUERY_STAMP_BY_IDS = "from StampModel s where s.id in (:ids)";
+    private static final String IDS = "ids";
+
+    private static final StampCache instance = new StampCache();
+
+    private final int maxEntries;
+
+    private final Map<String, Entry> map;
+
+    // 削除の回数 map のロックで更新する
+    private long modCount;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public static StampCache getInstance() {
+        return instance;
+    }
+
+    private StampCache() {
+
+        // custom.properties stamp.cache.size
+        int size = DEFAULT_MAX_ENTRIES;
+        String value = ORCAConnection.getInstance().getProperty("stamp.cache.size");
+        if (value != null) {
+            try {
+                size = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                Logger.getLogger("open.dolphin").warning("stamp.cache.size is invalid: " + value);
+            }
+        }
+        this.maxEntries = size;
+
+        this.map = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * スタンプを返す。キャッシュになければ DB から読む。
+     * @param em EntityManager
+     * @param stampId スタンプの id
+     * @return StampModel の複製、存在しない場合は null
+     */
+    public StampModel find(EntityManager em, String stampId) {
+
+        Entry entry = lookup(stampId);
+        if (entry != null) {
+            return entry.copy();
+        }
+
+        long stamp = getModCount();
+        StampModel model = em.find(StampModel.class, stampId);
+        if (model == null) {
+            return null;
+        }
+        return store(model, stamp).copy();
+    }
+
+    /**
+     * スタンプをまとめて返す。キャッシュにないものは IN で一括して読む。
+     * @param em EntityManager
+     * @param ids スタンプの id List
+     * @return ids と同じ順の StampModel 複製、存在しない id の位置は null
+     */
+    public List<StampModel> findAll(EntityManager em, List<String> ids) {
+
+        Map<String, Entry> found = new HashMap<>(ids.size()*2);
+        List<String> missing = new ArrayList<>();
+        for (String id : ids) {
+            if (found.containsKey(id)) {
+                continue;
+            }
+            Entry entry = lookup(id);
+            found.put(id, entry);
+            if (entry == null) {
+                missing.add(id);
+            }
+        }
+
+        long stamp = getModCount();
+        for (int from = 0; from < missing.size(); from += ID_PAGE_SIZE) {
+            List<String> page = missing.subList(from, Math.min(from + ID_PAGE_SIZE, missing.size()));
+            List<StampModel> list = em.createQuery(QUERY_STAMP_BY_IDS, StampModel.class)
+                    .setParameter(IDS, page)
+                    .getResultList();
+            for (StampModel model : list) {
+                found.put(model.getId(), store(model, stamp));
+            }
+        }
+
+        List<StampModel> ret = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            Entry entry = found.get(id);
+            ret.add(entry != null ? entry.copy() : null);
+        }
+        return ret;
+    }
+
+    /**
+     * スタンプのデコード済みモデルを返す。
+     * @param stamp StampModel
+     * @return デコードしたモデルの複製
+     */
+    public IInfoModel getModel(StampModel stamp) {
+
+        byte[] bytes = stamp.getStampBytes();
+        if (bytes == null) {
+            return null;
+        }
+
+        Entry entry = null;
+        if (stamp.getId() != null) {
+            synchronized (map) {
+                entry = map.get(stamp.getId());
+            }
+        }
+        // 同じ内容のエントリだけ使う
+        if (entry == null || entry.uncopyable || !Arrays.equals(entry.bytes, bytes)) {
+            return (IInfoModel)BeanBytesCodec.decode(bytes);
+        }
+
+        IInfoModel model = entry.model;
+        if (model != null) {
+            return (IInfoModel)BeanBytesCodec.copy(model);
+        }
+
+        model = (IInfoModel)BeanBytesCodec.decode(bytes);
+        if (model == null) {
+            return null;
+        }
+        // 複製できない型(Map や int[] 等、従来の XML からは読める)を含む場合は保持しない
+        try {
+            IInfoModel ret = (IInfoModel)BeanBytesCodec.copy(model);
+            entry.model = model;
+            return ret;
+        } catch (IllegalArgumentException e) {
+            entry.uncopyable = true;
+            return model;
+        }
+    }
+
+    /**
+     * スタンプのエントリを削除する。
+     * @param stampId スタンプの id
+     */
+    public void invalidate(String stampId) {
+        synchronized (map) {
+            modCount++;
+            map.remove(stampId);
+        }
+    }
+
+    public void clear() {
+        synchronized (map) {
+            modCount++;
+            map.clear();
+        }
+        hits.set(0L);
+        misses.set(0L);
+    }
+
+    public int size() {
+        synchronized (map) {
+            return map.size();
+        }
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private Entry lookup(String stampId) {
+        Entry entry;
+        synchronized (map) {
+            entry = map.get(stampId);
+        }
+        if (entry != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return entry;
+    }
+
+    private long getModCount() {
+        synchronized (map) {
+            return modCount;
+        }
+    }
+
+    // 管理下のエンティティは保持せず、値を写したものを保持する
+    // 読み始めてから削除があった場合は保持しない
+    private Entry store(StampModel model, long stamp) {
+        byte[] bytes = model.getStampBytes();
+        Entry entry = new Entry(model.getId(), model.getUserId(), model.getEntity(), bytes != null ? bytes.clone() : null);
+        if (maxEntries > 0) {
+            synchronized (map) {
+                if (stamp == modCount) {
+                    map.put(entry.id, entry);
+                }
+            }
+        }
+        return entry;
+    }
+
+    private static final class Entry {
+
+        private final String id;
+        private final long userId;
+        private final String entity;
+        private final byte[] bytes;
+        private volatile IInfoModel model;
+        private volatile boolean uncopyable;
+
+        private Entry(String id, long userId, String entity, byte[] bytes) {
+            this.id = id;
+            this.userId = userId;
+            this.entity = entity;
+            this.bytes = bytes;
+        }
+
+        private StampModel copy() {
+            StampModel ret = new StampModel();
+            ret.setId(id);
+            ret.setUserId(userId);
+            ret.setEntity(entity);
+            ret.setStampBytes(bytes != null ? bytes.clone() : null);
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package open.dolphin.mbean;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import javax.persistence.EntityManager;
+import open.dolphin.infomodel.PublishedTreeModel;
+import open.orca.rest.ORCAConnection;
+
+/**
+ * StampTree の変換結果(モバイル向け JSON 等)と公開 Tree のキャッシュ。
+ *
+ * 変換結果は treeBytes の SHA-256 と変換の種類で引くので、同じ内容の Tree は利用者によらず共有する。
+ * ユーザーごとには現在の Tree のダイジェストだけを持ち、Tree が保存されたときに更新して
+ * それまでに使われた種類の変換を作っておく。ダイジェストは ETag にも使う。
+ * 公開 Tree は id で引き、購読している全ユーザーで同じものを使う。
+ */
+public class StampTreeStore {
+
+    private static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    private static final String QUERY_TREE_BYTES_BY_USER_PK = "select s.treeBytes from StampTreeModel s where s.user.id=:userPK order by s.id";
+    private static final String USER_PK = "userPK";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final StampTreeStore instance = new StampTreeStore();
+
+    /**
+     * 変換結果
+     */
+    public static final class Projection {
+
+        private final String etag;
+        private final byte[] bytes;
+
+        private Projection(String etag, byte[] bytes) {
+            this.etag = etag;
+            this.bytes = bytes;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+    }
+
+    private final int maxEntries;
+
+    // userPK -> 個人 Tree の treeBytes のダイジェスト
+    private final Map<Long, String> digests;
+
+    // 種類:ダイジェスト -> 変換結果
+    private final Map<String, Projection> projections;
+
+    // 公開 Tree の id -> PublishedTreeModel
+    private final Map<Long, PublishedTreeModel> published;
+
+    // 種類 -> 変換 使われた種類だけを保存時に作る
+    private final Map<String, Function<byte[], byte[]>> compilers = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong compiled = new AtomicLong();
+
+    // 保存の回数 保存前に DB から読んだダイジェストで上書きしないようにする
+    private final AtomicLong saves = new AtomicLong();
+
+    // 公開 Tree の更新・削除の回数 published のロックで更新する
+    // 更新前に DB から読んだ公開 Tree で上書きしないようにする
+    private long publishedChanges;
+
+    public static StampTreeStore getInstance() {
+        return instance;
+    }
+
+    private StampTreeStore() {
+
+        // custom.properties stamptree.cache.size
+        int size = DEFAULT_MAX_ENTRIES;
+        String value = ORCAConnection.getInstance().getProperty("stamptree.cache.size");
+        if (value != null) {
+            try {
+                size = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                Logger.getLogger("open.dolphin").warning("stamptree.cache.size is invalid: " + value);
+            }
+        }
+        this.maxEntries = size;
+        this.digests = createMap(maxEntries);
+        this.projections = createMap(maxEntries);
+        this.published = createMap(maxEntries);
+    }
+
+    /**
+     * ユーザーの個人 Tree を変換したものを返す。
+     * @param em EntityManager
+     * @param userPK ユーザーの PK
+     * @param kind 変換の種類
+     * @param compiler treeBytes を変換する
+     * @return 変換結果、Tree がない場合は null
+     */
+    public Projection getProjection(EntityManager em, long userPK, String kind, Function<byte[], byte[]> compiler) {
+
+        compilers.putIfAbsent(kind, compiler);
+
+        String digest;
+        synchronized (digests) {
+            digest = digests.get(userPK);
+        }
+        if (digest != null) {
+            Projection ret = lookup(kind, digest);
+            if (ret != null) {
+                hits.incrementAndGet();
+                return ret;
+            }
+        }
+
+        misses.incrementAndGet();
+        long stamp = saves.get();
+        List<byte[]> list = em.createQuery(QUERY_TREE_BYTES_BY_USER_PK, byte[].class)
+                .setParameter(USER_PK, userPK)
+                .setMaxResults(1)
+                .getResultList();
+        if (list.isEmpty()) {
+            return null;
+        }
+        byte[] treeBytes = list.get(0);
+        digest = digest(treeBytes);
+        synchronized (digests) {
+            if (saves.get() == stamp && maxEntries > 0) {
+                digests.put(userPK, digest);
+            }
+        }
+
+        Projection ret = lookup(kind, digest);
+        return (ret != null) ? ret : compile(kind, digest, treeBytes, compiler);
+    }
+
+    /**
+     * 個人 Tree が保存された。コミット後に呼ぶ。
+     * これまでに使われた種類の変換を作っておく。
+     * @param userPK ユーザーの PK
+     * @param treeBytes 保存した treeBytes
+     */
+    public void treeSaved(long userPK, byte[] treeBytes) {
+
+        if (treeBytes == null) {
+            synchronized (digests) {
+                saves.incrementAndGet();
+                digests.remove(userPK);
+            }
+            return;
+        }
+        String digest = digest(treeBytes);
+        synchronized (digests) {
+            saves.incrementAndGet();
+            if (maxEntries > 0) {
+                digests.put(userPK, digest);
+            }
+        }
+
+        for (Map.Entry<String, Function<byte[], byte[]>> e : compilers.entrySet()) {
+            if (lookup(e.getKey(), digest) == null) {
+                try {
+                    compile(e.getKey(), digest, treeBytes, e.getValue());
+                } catch (RuntimeException ex) {
+                    Logger.getLogger("open.dolphin").warning("stamp tree can not be compiled: " + ex.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * 公開 Tree を返す。購読している全ユーザーで共有するので変更してはいけない。
+     * @param em EntityManager
+     * @param treeId 公開 Tree の id
+     * @return PublishedTreeModel、存在しない場合は null
+     */
+    public PublishedTreeModel findPublished(EntityManager em, long treeId) {
+
+        PublishedTreeModel ret;
+        long stamp;
+        synchronized (published) {
+            ret = published.get(treeId);
+            stamp = publishedChanges;
+        }
+        if (ret != null) {
+            hits.incrementAndGet();
+            return ret;
+        }
+
+        misses.incrementAndGet();
+        ret = em.find(PublishedTreeModel.class, treeId);
+        if (ret != null) {
+            // 管理下から外して共有する
+            em.detach(ret);
+            synchronized (published) {
+                if (stamp == publishedChanges && maxEntries > 0) {
+                    published.put(treeId, ret);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * 公開 Tree が更新または削除された。
+     * @param treeId 公開 Tree の id
+     */
+    public void publishedChanged(long treeId) {
+        synchronized (published) {
+            publishedChanges++;
+            published.remove(treeId);
+        }
+    }
+
+    public void clear() {
+        synchronized (digests) {
+            digests.clear();
+        }
+        synchronized (projections) {
+            projections.clear();
+        }
+        synchronized (published) {
+            publishedChanges++;
+            published.clear();
+        }
+        hits.set(0L);
+        misses.set(0L);
+        compiled.set(0L);
+    }
+
+    public int size() {
+        synchronized (projections) {
+            return projections.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getCompiled() {
+        return compiled.get();
+    }
+
+    private Projection lookup(String kind, String digest) {
+        synchronized (projections) {
+            return projections.get(kind + ":" + digest);
+        }
+    }
+
+    private Projection compile(String kind, String digest, byte[] treeBytes, Function<byte[], byte[]> compiler) {
+        byte[] bytes = compiler.apply(treeBytes);
+        if (bytes == null) {
+            return null;
+        }
+        Projection ret = new Projection(kind + "-" + digest, bytes);
+        put(projections, kind + ":" + digest, ret);
+        compiled.incrementAndGet();
+        return ret;
+    }
+
+    private <K, V> void put(Map<K, V> map, K key, V value) {
+        if (maxEntries <= 0) {
+            return;
+        }
+        synchronized (map) {
+            map.put(key, value);
+        }
+    }
+
+    private String digest(byte[] bytes) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(bytes);
+            char[] ret = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++) {
+                ret[i * 2] = HEX[(hash[i] >> 4) & 0x0f];
+                ret[i * 2 + 1] = HEX[hash[i] & 0x0f];
+            }
+            return new String(ret);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private <K, V> Map<K, V> createMap(final int max) {
+        return new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > max;
+            }
+        };
+    }
+}
@@ -0,0 +1,469 @@
+package open.dolphin.mbean;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import open.orca.rest.ORCAConnection;
+
+/**
+ * 画像(シェーマ、患者写真)のサムネイル。
+ * 元画像の SHA-256 とサイズで引き、メモリの LRU、ファイル、生成の順に探す。
+ * ファイルは thumbnail.dir(なければ blob.store.dir/thumbnails)に置く。どちらもなければメモリだけに持つ。
+ * 患者写真は SHA-256 も施設と患者PKごとに覚え、写真を読まずに ETag を返せるようにする。
+ */
+public class ThumbnailStore {
+
+    /**
+     * サムネイルの大きさ 長辺のピクセル数
+     */
+    public enum Size {
+
+        SMALL(64), MEDIUM(160), LARGE(480);
+
+        private final int edge;
+
+        private Size(int edge) {
+            this.edge = edge;
+        }
+
+        public int getEdge() {
+            return edge;
+        }
+
+        /**
+         * small/medium/large から Size を返す。
+         * @param name 名前
+         * @return Size、不明な場合は null
+         */
+        public static Size of(String name) {
+            if (name != null) {
+                for (Size size : values()) {
+                    if (size.name().equalsIgnoreCase(name.trim())) {
+                        return size;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final long DEFAULT_CACHE_BYTES = 32L * 1024L * 1024L;
+    private static final int MAX_PHOTO_DIGESTS = 10000;
+    private static final float JPEG_QUALITY = 0.85f;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ThumbnailStore instance = new ThumbnailStore();
+
+    private final Path dir;
+    private final long maxCacheBytes;
+
+    // key: sha256/SIZE 総バイト数で制限する
+    private final Map<String, byte[]> cache = new LinkedHashMap<>(256, 0.75f, true);
+    private long cacheBytes;
+
+    // 患者写真の SHA-256 key: fid:患者PK 写真の更新で消す
+    private final Map<String, String> photoDigests = new LinkedHashMap<String, String>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_PHOTO_DIGESTS;
+        }
+    };
+    // photoChanged の回数 読込中に更新された写真の digest は覚えない
+    private long photoChanges;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong fileHits = new AtomicLong();
+    private final AtomicLong generated = new AtomicLong();
+
+    public static ThumbnailStore getInstance() {
+        return instance;
+    }
+
+    private ThumbnailStore() {
+        // custom.properties thumbnail.dir, thumbnail.cache.bytes
+        String value = ORCAConnection.getInstance().getProperty("thumbnail.dir");
+        if (value == null || value.trim().isEmpty()) {
+            value = ORCAConnection.getInstance().getProperty("blob.store.dir");
+            value = (value != null && !value.trim().isEmpty()) ? Paths.get(value.trim(), "thumbnails").toString() : null;
+        }
+        dir = (value != null) ? Paths.get(value.trim()) : null;
+
+        long max = DEFAULT_CACHE_BYTES;
+        value = ORCAConnection.getInstance().getProperty("thumbnail.cache.bytes");
+        if (value != null) {
+            try {
+                max = Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                Logger.getLogger("open.dolphin").warning("thumbnail.cache.bytes is invalid: " + value);
+            }
+        }
+        maxCacheBytes = max;
+    }
+
+    /**
+     * blob store にある画像のサムネイルを返す。
+     * @param blobId 元画像の blobId(SHA-256)
+     * @param size 大きさ
+     * @param source 生成が必要な場合に元画像を返す
+     * @return JPEG、画像でなければ null
+     * @throws IOException
+     */
+    public byte[] getThumbnail(String blobId, Size size, Supplier<byte[]> source) throws IOException {
+
+        String key = keyOf(blobId, size);
+        byte[] ret = lookup(key);
+        if (ret != null) {
+            return ret;
+        }
+        byte[] bytes = source.get();
+        if (bytes == null) {
+            return null;
+        }
+        ret = generate(blobId, bytes, size);
+        return ret;
+    }
+
+    /**
+     * 画像のサムネイルを返す。blobId のない画像(移行前のシェーマ、患者写真)に使う。
+     * @param bytes 元画像
+     * @param size 大きさ
+     * @return JPEG、画像でなければ null
+     * @throws IOException
+     */
+    public byte[] getThumbnail(byte[] bytes, Size size) throws IOException {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        final byte[] src = bytes;
+        return getThumbnail(digest(bytes), size, () -> src);
+    }
+
+    /**
+     * すべての大きさのサムネイルを作る。既にあるものは作らない。
+     * @param blobId 元画像の blobId(SHA-256)
+     * @param bytes 元画像
+     * @return 画像として読めた場合 true
+     * @throws IOException
+     */
+    public boolean generateAll(String blobId, byte[] bytes) throws IOException {
+
+        if (!isImage(bytes)) {
+            return false;
+        }
+
+        BufferedImage image = null;
+        for (Size size : Size.values()) {
+            String key = keyOf(blobId, size);
+            if (lookup(key) != null) {
+                continue;
+            }
+            if (image == null) {
+                image = ImageIO.read(new ByteArrayInputStream(bytes));
+                if (image == null) {
+                    return false;
+                }
+            }
+            store(key, encode(scale(image, size.getEdge())));
+            generated.incrementAndGet();
+        }
+        return true;
+    }
+
+    /**
+     * 元画像のサムネイルをすべて消す。元画像が blob store から消された場合に呼ぶ。
+     * @param blobId 元画像の blobId(SHA-256)
+     * @throws IOException
+     */
+    public void remove(String blobId) throws IOException {
+        for (Size size : Size.values()) {
+            String key = keyOf(blobId, size);
+            synchronized (cache) {
+                byte[] old = cache.remove(key);
+                if (old != null) {
+                    cacheBytes -= old.length;
+                }
+            }
+            Path path = pathOf(key);
+            if (path != null) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    /**
+     * 覚えている患者写真の SHA-256 を返す。
+     * @param fid 施設ID
+     * @param pk 患者PK
+     * @return SHA-256、覚えていなければ null
+     */
+    public String getPhotoDigest(String fid, long pk) {
+        synchronized (photoDigests) {
+            return photoDigests.get(fid + ":" + pk);
+        }
+    }
+
+    /**
+     * photoChanged の回数を返す。写真を読む前に取得して putPhotoDigest に渡す。
+     * @return 回数
+     */
+    public long getPhotoChanges() {
+        synchronized (photoDigests) {
+            return photoChanges;
+        }
+    }
+
+    /**
+     * 患者写真の SHA-256 を覚える。changes 以降に photoChanged があれば覚えない。
+     * @param fid 施設ID
+     * @param pk 患者PK
+     * @param digest SHA-256
+     * @param changes 写真を読む前の getPhotoChanges()
+     */
+    public void putPhotoDigest(String fid, long pk, String digest, long changes) {
+        synchronized (photoDigests) {
+            if (changes == photoChanges) {
+                photoDigests.put(fid + ":" + pk, digest);
+            }
+        }
+    }
+
+    /**
+     * 患者写真が更新された。
+     * @param fid 施設ID
+     * @param pk 患者PK
+     */
+    public void photoChanged(String fid, long pk) {
+        synchronized (photoDigests) {
+            photoChanges++;
+            photoDigests.remove(fid + ":" + pk);
+        }
+    }
+
+    /**
+     * 元画像の SHA-256 を返す。ETag に使う。
+     * @param bytes 元画像
+     * @return 16進64文字
+     */
+    public String digest(byte[] bytes) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(bytes);
+            char[] ret = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++) {
+                ret[i * 2] = HEX[(hash[i] >> 4) & 0x0f];
+                ret[i * 2 + 1] = HEX[hash[i] & 0x0f];
+            }
+            return new String(ret);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getFileHits() {
+        return fileHits.get();
+    }
+
+    public long getGenerated() {
+        return generated.get();
+    }
+
+    /**
+     * 先頭のバイトから ImageIO で読める画像(JPEG, PNG, GIF, BMP)か判定する。
+     * PDF 等の添付ファイルを ImageIO に渡さないために使う。
+     * @param bytes データ
+     * @return 画像なら true
+     */
+    public static boolean isImage(byte[] bytes) {
+        if (bytes == null || bytes.length < 4) {
+            return false;
+        }
+        int b0 = bytes[0] & 0xff;
+        int b1 = bytes[1] & 0xff;
+        int b2 = bytes[2] & 0xff;
+        int b3 = bytes[3] & 0xff;
+        return (b0 == 0xff && b1 == 0xd8 && b2 == 0xff)                   // JPEG
+                || (b0 == 0x89 && b1 == 'P' && b2 == 'N' && b3 == 'G')    // PNG
+                || (b0 == 'G' && b1 == 'I' && b2 == 'F' && b3 == '8')     // GIF
+                || (b0 == 'B' && b1 == 'M');                              // BMP
+    }
+
+    private byte[] generate(String blobId, byte[] bytes, Size size) throws IOException {
+        if (!isImage(bytes)) {
+            return null;
+        }
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+        if (image == null) {
+            return null;
+        }
+        byte[] ret = encode(scale(image, size.getEdge()));
+        store(keyOf(blobId, size), ret);
+        generated.incrementAndGet();
+        return ret;
+    }
+
+    private String keyOf(String blobId, Size size) {
+        return size.name().toLowerCase() + "/" + blobId;
+    }
+
+    private byte[] lookup(String key) throws IOException {
+
+        synchronized (cache) {
+            byte[] ret = cache.get(key);
+            if (ret != null) {
+                hits.incrementAndGet();
+                return ret;
+            }
+        }
+
+        Path path = pathOf(key);
+        if (path != null) {
+            try {
+                byte[] ret = Files.readAllBytes(path);
+                fileHits.incrementAndGet();
+                putCache(key, ret);
+                return ret;
+            } catch (NoSuchFileException e) {
+            }
+        }
+        return null;
+    }
+
+    private void store(String key, byte[] bytes) throws IOException {
+
+        putCache(key, bytes);
+
+        Path path = pathOf(key);
+        if (path == null || Files.exists(path)) {
+            return;
+        }
+        Files.createDirectories(path.getParent());
+        Path work = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            Files.write(work, bytes);
+            Files.move(work, path, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+        } finally {
+            Files.deleteIfExists(work);
+        }
+    }
+
+    private void putCache(String key, byte[] bytes) {
+        if (bytes.length > maxCacheBytes) {
+            return;
+        }
+        synchronized (cache) {
+            byte[] old = cache.put(key, bytes);
+            if (old != null) {
+                cacheBytes -= old.length;
+            }
+            cacheBytes += bytes.length;
+            Iterator<byte[]> itr = cache.values().iterator();
+            while (cacheBytes > maxCacheBytes && itr.hasNext()) {
+                cacheBytes -= itr.next().length;
+                itr.remove();
+            }
+        }
+    }
+
+    // dir/small/ab/abcd....jpg
+    private Path pathOf(String key) {
+        if (dir == null) {
+            return null;
+        }
+        int index = key.indexOf('/');
+        String size = key.substring(0, index);
+        String id = key.substring(index + 1);
+        return dir.resolve(size).resolve(id.substring(0, 2)).resolve(id + ".jpg");
+    }
+
+    // 長辺を edge に縮める 大きく縮める場合は半分ずつ縮めて画質を保つ
+    private BufferedImage scale(BufferedImage src, int edge) {
+
+        int w = src.getWidth();
+        int h = src.getHeight();
+        double ratio = Math.min(1.0, (double)edge / Math.max(w, h));
+        int tw = Math.max(1, (int)Math.round(w * ratio));
+        int th = Math.max(1, (int)Math.round(h * ratio));
+
+        BufferedImage current = toRGB(src);
+        while (current.getWidth() / 2 >= tw && current.getHeight() / 2 >= th) {
+            current = draw(current, current.getWidth() / 2, current.getHeight() / 2);
+        }
+        if (current.getWidth() != tw || current.getHeight() != th) {
+            current = draw(current, tw, th);
+        }
+        return current;
+    }
+
+    private BufferedImage toRGB(BufferedImage src) {
+        if (src.getType() == BufferedImage.TYPE_INT_RGB) {
+            return src;
+        }
+        // 透過部分は白にする
+        BufferedImage ret = new BufferedImage(src.getWidth(), src.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = ret.createGraphics();
+        try {
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, ret.getWidth(), ret.getHeight());
+            g.drawImage(src, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return ret;
+    }
+
+    private BufferedImage draw(BufferedImage src, int w, int h) {
+        BufferedImage ret = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = ret.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(src, 0, 0, w, h, null);
+        } finally {
+            g.dispose();
+        }
+        return ret;
+    }
+
+    private byte[] encode(BufferedImage image) throws IOException {
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream bo = new ByteArrayOutputStream();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(bo)) {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return bo.toByteArray();
+    }
+}
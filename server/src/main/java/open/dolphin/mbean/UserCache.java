@@ -1,19 +1,209 @@
 package open.dolphin.mbean;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
 import javax.inject.Singleton;
+import open.orca.rest.ORCAConnection;
 
 /**
- * ユーザーのキャッシュ
+ * ユーザー認証のキャッシュ
+ * パスワードはエントリごとのソルト付きダイジェストで保持し、有効期限と件数の上限を持つ。
+ * 認証に失敗した組み合わせも短い期限で保持し、誤った設定のクライアントが DB を叩き続けないようにする。
  * @author masuda, Masuda Naika
  */
 @Singleton
 public class UserCache {
 
-    private final Map<String, String> map = new ConcurrentHashMap<>();
+    private static final int DEFAULT_MAX_ENTRIES = 1000;
+    private static final long DEFAULT_TTL = 10L * 60L * 1000L;      // 10分
+    private static final long DEFAULT_NEGATIVE_TTL = 30L * 1000L;   // 30秒
+    private static final int SALT_LENGTH = 16;
 
-    public Map<String, String> getMap() {
-        return map;
+    private final int maxEntries;
+    private final long ttl;
+    private final long negativeTtl;
+
+    private final Map<String, Entry> positive;
+    private final Map<String, Entry> negative;
+
+    private final SecureRandom random = new SecureRandom();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong negativeHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public UserCache() {
+        // custom.properties auth.cache.size, auth.cache.ttl(秒), auth.cache.negative.ttl(秒)
+        maxEntries = (int)getLong("auth.cache.size", DEFAULT_MAX_ENTRIES);
+        ttl = getLong("auth.cache.ttl", DEFAULT_TTL / 1000L) * 1000L;
+        negativeTtl = getLong("auth.cache.negative.ttl", DEFAULT_NEGATIVE_TTL / 1000L) * 1000L;
+        positive = createMap(maxEntries);
+        negative = createMap(maxEntries);
+    }
+
+    /**
+     * キャッシュから認証結果を返す。
+     * @param userName ユーザー名
+     * @param password パスワード
+     * @return 成功 TRUE、失敗 FALSE、キャッシュにない場合 null
+     */
+    public Boolean lookup(String userName, String password) {
+
+        long now = System.currentTimeMillis();
+
+        if (matches(positive, userName, password, now)) {
+            hits.incrementAndGet();
+            return Boolean.TRUE;
+        }
+        if (matches(negative, userName, password, now)) {
+            negativeHits.incrementAndGet();
+            return Boolean.FALSE;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * 認証結果を保持する。
+     * @param userName ユーザー名
+     * @param password パスワード
+     * @param authenticated 認証結果
+     */
+    public void put(String userName, String password, boolean authenticated) {
+
+        if (maxEntries <= 0) {
+            return;
+        }
+
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        long now = System.currentTimeMillis();
+
+        if (authenticated) {
+            Entry entry = new Entry(salt, digest(salt, password), now + ttl);
+            synchronized (positive) {
+                positive.put(userName, entry);
+            }
+            synchronized (negative) {
+                negative.remove(userName);
+            }
+        } else {
+            Entry entry = new Entry(salt, digest(salt, password), now + negativeTtl);
+            synchronized (negative) {
+                negative.put(userName, entry);
+            }
+        }
+    }
+
+    /**
+     * ユーザーのエントリを削除する。パスワード変更時やユーザー削除時に呼ぶ。
+     * @param userName ユーザー名
+     */
+    public void invalidate(String userName) {
+        synchronized (positive) {
+            positive.remove(userName);
+        }
+        synchronized (negative) {
+            negative.remove(userName);
+        }
+    }
+
+    public void clear() {
+        synchronized (positive) {
+            positive.clear();
+        }
+        synchronized (negative) {
+            negative.clear();
+        }
+        hits.set(0L);
+        negativeHits.set(0L);
+        misses.set(0L);
+    }
+
+    public int size() {
+        int cnt;
+        synchronized (positive) {
+            cnt = positive.size();
+        }
+        synchronized (negative) {
+            cnt += negative.size();
+        }
+        return cnt;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private boolean matches(Map<String, Entry> map, String userName, String password, long now) {
+
+        Entry entry;
+        synchronized (map) {
+            entry = map.get(userName);
+            if (entry != null && entry.expires < now) {
+                map.remove(userName);
+                entry = null;
+            }
+        }
+        return entry != null && MessageDigest.isEqual(entry.digest, digest(entry.salt, password));
+    }
+
+    private byte[] digest(byte[] salt, String password) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(salt);
+            md.update(password.getBytes(StandardCharsets.UTF_8));
+            return md.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Map<String, Entry> createMap(final int max) {
+        return new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > max;
+            }
+        };
+    }
+
+    private long getLong(String prop, long defaultValue) {
+        String value = ORCAConnection.getInstance().getProperty(prop);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                Logger.getLogger("open.dolphin").warning(prop + " is invalid: " + value);
+            }
+        }
+        return defaultValue;
+    }
+
+    private static final class Entry {
+
+        private final byte[] salt;
+        private final byte[] digest;
+        private final long expires;
+
+        private Entry(byte[] salt, byte[] digest, long expires) {
+            this.salt = salt;
+            this.digest = digest;
+            this.expires = expires;
+        }
     }
 }
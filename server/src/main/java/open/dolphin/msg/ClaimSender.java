@@ -1,12 +1,12 @@
 package open.dolphin.msg;
 
-import java.beans.XMLDecoder;
 import java.io.*;
 import java.net.Socket;
 import java.util.Collection;
 import java.util.Date;
 import java.util.logging.Logger;
 import open.dolphin.infomodel.*;
+import open.dolphin.mbean.DecodedModuleCache;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.Velocity;
 
@@ -148,7 +148,7 @@ public class ClaimSender {
                 continue;
             }
             
-            IInfoModel m = (IInfoModel)xmlDecode(module.getBeanBytes());
+            IInfoModel m = DecodedModuleCache.getInstance().getModel(module);
             
             if (m instanceof BundleDolphin) {
                 
@@ -236,13 +236,4 @@ public class ClaimSender {
         Logger.getLogger("dolphin.claim").warning(msg);
     }
 //minagawa$    
-    
-    private Object xmlDecode(byte[] bytes)  {
-
-        XMLDecoder d = new XMLDecoder(
-                new BufferedInputStream(
-                new ByteArrayInputStream(bytes)));
-
-        return d.readObject();
-    }
 }
@@ -1,15 +1,13 @@
 package open.dolphin.msg;
 
-import java.beans.XMLDecoder;
-import java.io.BufferedInputStream;
 import java.io.BufferedWriter;
-import java.io.ByteArrayInputStream;
 import java.io.StringWriter;
 import java.util.List;
 import java.util.logging.Logger;
 import open.dolphin.infomodel.DocumentModel;
 import open.dolphin.infomodel.IInfoModel;
 import open.dolphin.infomodel.ModuleModel;
+import open.dolphin.mbean.DecodedModuleCache;
 import org.apache.velocity.VelocityContext;
 import org.apache.velocity.app.Velocity;
 
@@ -41,7 +39,7 @@ public class MMLSender {
         // decode
         List<ModuleModel> modules = dm.getModules();
         for (ModuleModel mm : modules) {
-            mm.setModel((IInfoModel)this.xmlDecode(mm.getBeanBytes()));
+            mm.setModel(DecodedModuleCache.getInstance().getModel(mm));
         }
 
         MMLHelper helper = new MMLHelper();
@@ -68,13 +66,4 @@ public class MMLSender {
     private void warning(String msg) {
         Logger.getLogger("open.dolphin").warning(msg);
     }
-    
-    private Object xmlDecode(byte[] bytes)  {
-
-        XMLDecoder d = new XMLDecoder(
-                new BufferedInputStream(
-                new ByteArrayInputStream(bytes)));
-
-        return d.readObject();
-    }
 }
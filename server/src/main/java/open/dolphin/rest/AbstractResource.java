@@ -1,9 +1,16 @@
  package open.dolphin.rest;
 
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
 import open.dolphin.infomodel.IInfoModel;
+import open.dolphin.mbean.StampTreeStore;
+import open.dolphin.mbean.ThumbnailStore;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.map.SerializationConfig;
 import org.codehaus.jackson.map.annotate.JsonSerialize;
@@ -51,4 +58,55 @@ public class AbstractResource {
         mapper.configure(SerializationConfig.Feature.FAIL_ON_EMPTY_BEANS, false);
         return mapper;
     }
+    
+    /**
+     * サムネイルを返す。元画像の SHA-256 とサイズを ETag にし、一致すれば 304 を返す。
+     * @param request
+     * @param blobId 元画像の SHA-256
+     * @param size 大きさ
+     * @param source 生成が必要な場合に元画像を返す
+     * @return JPEG
+     */
+    protected Response thumbnailResponse(Request request, String blobId, ThumbnailStore.Size size, Supplier<byte[]> source) {
+        
+        if (blobId == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        EntityTag etag = new EntityTag(blobId + "-" + size.name().toLowerCase());
+        Response.ResponseBuilder builder = request.evaluatePreconditions(etag);
+        if (builder == null) {
+            byte[] thumb = null;
+            try {
+                thumb = ThumbnailStore.getInstance().getThumbnail(blobId, size, source);
+            } catch (IOException e) {
+                Logger.getLogger("open.dolphin").warning("thumbnail can not be created: " + e.getMessage());
+            }
+            if (thumb == null) {
+                return Response.status(Response.Status.NOT_FOUND).build();
+            }
+            builder = Response.ok(thumb, "image/jpeg");
+        }
+        return builder.tag(etag).header("Cache-Control", "private, max-age=31536000").build();
+    }
+    
+    /**
+     * StampTree を変換したものを返す。ETag が一致すれば 304 を返す。
+     * Tree は変わりうるので、クライアントには毎回確認させる。
+     * @param request
+     * @param projection 変換結果
+     * @param mediaType 応答の型
+     * @return 変換結果
+     */
+    protected Response stampTreeResponse(Request request, StampTreeStore.Projection projection, String mediaType) {
+        
+        if (projection == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        EntityTag etag = new EntityTag(projection.getEtag());
+        Response.ResponseBuilder builder = request.evaluatePreconditions(etag);
+        if (builder == null) {
+            builder = Response.ok(projection.getBytes(), mediaType);
+        }
+        return builder.tag(etag).header("Cache-Control", "private, no-cache").build();
+    }
 }
@@ -0,0 +1,536 @@
+package open.dolphin.rest;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedExecutorService;
+import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.*;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import open.dolphin.common.OrcaMasterIndex;
+import open.dolphin.infomodel.BeanBytesCodec;
+import open.dolphin.infomodel.IInfoModel;
+import open.dolphin.infomodel.RoleModel;
+import open.dolphin.infomodel.UserModel;
+import open.dolphin.mbean.BlobStore;
+import open.dolphin.mbean.BlobStoreProvider;
+import open.dolphin.mbean.DecodedModuleCache;
+import open.dolphin.mbean.FileBlobStore;
+import open.dolphin.mbean.LaboSeriesStore;
+import open.dolphin.mbean.PatientSearchIndex;
+import open.dolphin.mbean.PvtService;
+import open.dolphin.mbean.StampCache;
+import open.dolphin.mbean.StampTreeStore;
+import open.dolphin.mbean.ThumbnailStore;
+import open.dolphin.mbean.UserCache;
+import open.dolphin.session.BeanBytesMigrationServiceBean;
+import open.dolphin.session.BlobMigrationServiceBean;
+import open.dolphin.session.ThumbnailBackfillServiceBean;
+import open.dolphin.session.UserServiceBean;
+import open.orca.rest.ORCAConnection;
+
+/**
+ * REST Web Service
+ * サーバー全体に影響する管理操作(移行、キャッシュ、統計)。
+ * すべて checkSystemAdmin で確認し、パラメータが不正な場合は 400 を返す。
+ */
+@Path("/admin")
+public class AdminResource extends AbstractResource {
+
+    @Inject
+    private BeanBytesMigrationServiceBean migrationServiceBean;
+
+    @Inject
+    private UserCache userCache;
+
+    @Inject
+    private UserServiceBean userServiceBean;
+
+    @Inject
+    private PvtService pvtService;
+
+    @Inject
+    private BlobMigrationServiceBean blobMigrationServiceBean;
+
+    @Inject
+    private ThumbnailBackfillServiceBean thumbnailBackfillServiceBean;
+
+    @Resource
+    private ManagedExecutorService executor;
+
+    // custom.properties サーバー全体の管理操作を許可する施設 未設定なら各施設の admin
+    private static final String SYSTEM_ADMIN_FACILITY = "system.admin.facility";
+
+    // 移行・サムネイル作成のバッチサイズの上限
+    private static final int MAX_BATCH_SIZE = 10000;
+
+    // blob の掃除の猶予時間(時間)の上限
+    private static final int MAX_SWEEP_HOURS = 8760;
+
+    // beanBytes のバイナリ形式への移行中
+    private static final AtomicBoolean BEANBYTES_MIGRATING = new AtomicBoolean();
+
+    // blob store への移行中
+    private static final AtomicBoolean BLOB_MIGRATING = new AtomicBoolean();
+
+    // 参照のない blob の掃除中
+    private static final AtomicBoolean BLOB_SWEEPING = new AtomicBoolean();
+
+    // サムネイルの作成中
+    private static final AtomicBoolean THUMBNAIL_BACKFILLING = new AtomicBoolean();
+
+    public AdminResource() {
+    }
+
+    /**
+     * d_module / d_stamp のバイト列を XMLEncoder 形式からバイナリ形式へ変換する。
+     * バックグラウンドで実行し、バッチごとにコミットする。途中で止めても再実行すれば続きから処理される。
+     * @param servletReq HttpServletRequest
+     * @param param バッチサイズ 1..10000
+     * @return started、既に実行中なら running、beanbytes.write.binary が false なら disabled
+     */
+    @PUT
+    @Path("/beanbytes/migrate/{param}")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String migrateBeanBytes(@Context HttpServletRequest servletReq, @PathParam("param") String param) {
+
+        checkSystemAdmin(servletReq);
+        final int batchSize = intParam(param, 1, MAX_BATCH_SIZE);
+
+        // 旧クライアントが読めなくなるため beanbytes.write.binary=true の時だけ変換する
+        if (!BeanBytesCodec.isWriteBinary()) {
+            return "disabled";
+        }
+        if (!BEANBYTES_MIGRATING.compareAndSet(false, true)) {
+            return "running";
+        }
+
+        executor.execute(() -> {
+            try {
+                int moduleBatches = 0;
+                long lastModuleId = 0L;
+                while ((lastModuleId = migrationServiceBean.migrateModules(lastModuleId, batchSize)) >= 0L) {
+                    moduleBatches++;
+                }
+                int stampBatches = 0;
+                String lastStampId = "";
+                while ((lastStampId = migrationServiceBean.migrateStamps(lastStampId, batchSize)) != null) {
+                    stampBatches++;
+                }
+                Logger.getLogger("open.dolphin").info("beanBytes migration finished: " + moduleBatches + CAMMA + stampBatches);
+            } catch (Exception e) {
+                Logger.getLogger("open.dolphin").warning("beanBytes migration stopped: " + e.getMessage());
+            } finally {
+                BEANBYTES_MIGRATING.set(false);
+            }
+        });
+        return "started";
+    }
+
+    /**
+     * d_image / d_attachment の LOB を blob store へ移す。
+     * バックグラウンドで実行し、バッチごとにコミットする。途中で止めても再実行すれば続きから処理される。
+     * @param param バッチサイズ 1..10000
+     * @return started、既に実行中なら running、blob store がなければ disabled
+     */
+    @PUT
+    @Path("/blob/migrate/{param}")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String migrateBlobs(@Context HttpServletRequest servletReq, @PathParam("param") String param) {
+
+        checkSystemAdmin(servletReq);
+        final int batchSize = intParam(param, 1, MAX_BATCH_SIZE);
+
+        if (BlobStoreProvider.getStore() == null) {
+            return "disabled";
+        }
+        if (!BLOB_MIGRATING.compareAndSet(false, true)) {
+            return "running";
+        }
+
+        executor.execute(() -> {
+            try {
+                long lastId = 0L;
+                while ((lastId = blobMigrationServiceBean.migrateSchemas(lastId, batchSize)) >= 0L) {
+                }
+                lastId = 0L;
+                while ((lastId = blobMigrationServiceBean.migrateAttachments(lastId, batchSize)) >= 0L) {
+                }
+                Logger.getLogger("open.dolphin").info("blob migration finished.");
+            } catch (Exception e) {
+                Logger.getLogger("open.dolphin").warning("blob migration stopped: " + e.getMessage());
+            } finally {
+                BLOB_MIGRATING.set(false);
+            }
+        });
+        return "started";
+    }
+
+    /**
+     * rollback されたトランザクションが残した、どの行からも参照されていない blob を消す。
+     * バックグラウンドで blobId の先頭2文字ごとに実行する。
+     * @param param 猶予時間(時間) 1..8760 これより最近に書かれた blob は消さない
+     * @return started、既に実行中なら running、blob store がなければ disabled
+     */
+    @PUT
+    @Path("/blob/sweep/{param}")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String sweepBlobs(@Context HttpServletRequest servletReq, @PathParam("param") String param) {
+
+        checkSystemAdmin(servletReq);
+        final long before = System.currentTimeMillis() - intParam(param, 1, MAX_SWEEP_HOURS) * 3600000L;
+
+        if (BlobStoreProvider.getStore() == null) {
+            return "disabled";
+        }
+        if (!BLOB_SWEEPING.compareAndSet(false, true)) {
+            return "running";
+        }
+
+        executor.execute(() -> {
+            try {
+                int cnt = 0;
+                for (int i = 0; i < 256; i++) {
+                    cnt += blobMigrationServiceBean.sweepOrphans(String.format("%02x", i), before);
+                }
+                Logger.getLogger("open.dolphin").info("blob sweep finished: " + cnt);
+            } catch (Exception e) {
+                Logger.getLogger("open.dolphin").warning("blob sweep stopped: " + e.getMessage());
+            } finally {
+                BLOB_SWEEPING.set(false);
+            }
+        });
+        return "started";
+    }
+
+    /**
+     * blob store の状態を返す。
+     * @return writes,duplicates,migrating
+     */
+    @GET
+    @Path("/blob/stats")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String getBlobStats(@Context HttpServletRequest servletReq) {
+        checkSystemAdmin(servletReq);
+        BlobStore store = BlobStoreProvider.getStore();
+        if (!(store instanceof FileBlobStore)) {
+            return "";
+        }
+        FileBlobStore fs = (FileBlobStore)store;
+        StringBuilder sb = new StringBuilder();
+        sb.append(fs.getWrites()).append(CAMMA);
+        sb.append(fs.getDuplicates()).append(CAMMA);
+        sb.append(BLOB_MIGRATING.get());
+        return sb.toString();
+    }
+
+    /**
+     * 既存のシェーマと患者写真のサムネイルを作る。
+     * バックグラウンドで実行する。既にあるサムネイルは作らないので、途中で止めても再実行すればよい。
+     * @param param バッチサイズ 1..10000
+     * @return started、既に実行中なら running
+     */
+    @PUT
+    @Path("/thumbnail/backfill/{param}")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String backfillThumbnails(@Context HttpServletRequest servletReq, @PathParam("param") String param) {
+
+        checkSystemAdmin(servletReq);
+        final int batchSize = intParam(param, 1, MAX_BATCH_SIZE);
+
+        if (!THUMBNAIL_BACKFILLING.compareAndSet(false, true)) {
+            return "running";
+        }
+
+        executor.execute(() -> {
+            try {
+                long lastId = 0L;
+                while ((lastId = thumbnailBackfillServiceBean.backfillImages(lastId, batchSize)) >= 0L) {
+                }
+                lastId = 0L;
+                while ((lastId = thumbnailBackfillServiceBean.backfillPhotos(lastId, batchSize)) >= 0L) {
+                }
+                Logger.getLogger("open.dolphin").info("thumbnail backfill finished.");
+            } catch (Exception e) {
+                Logger.getLogger("open.dolphin").warning("thumbnail backfill stopped: " + e.getMessage());
+            } finally {
+                THUMBNAIL_BACKFILLING.set(false);
+            }
+        });
+        return "started";
+    }
+
+    /**
+     * サムネイルの状態を返す。
+     * @return hits,fileHits,generated,backfilling
+     */
+    @GET
+    @Path("/thumbnail/stats")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String getThumbnailStats(@Context HttpServletRequest servletReq) {
+        checkSystemAdmin(servletReq);
+        ThumbnailStore store = ThumbnailStore.getInstance();
+        StringBuilder sb = new StringBuilder();
+        sb.append(store.getHits()).append(CAMMA);
+        sb.append(store.getFileHits()).append(CAMMA);
+        sb.append(store.getGenerated()).append(CAMMA);
+        sb.append(THUMBNAIL_BACKFILLING.get());
+        return sb.toString();
+    }
+
+    /**
+     * デコード済みモジュールキャッシュの状態を返す。
+     * @return hits,misses,size,max
+     */
+    @GET
+    @Path("/cache/module")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String getModuleCacheStats(@Context HttpServletRequest servletReq) {
+        checkSystemAdmin(servletReq);
+        DecodedModuleCache cache = DecodedModuleCache.getInstance();
+        StringBuilder sb = new StringBuilder();
+        sb.append(cache.getHits()).append(CAMMA);
+        sb.append(cache.getMisses()).append(CAMMA);
+        sb.append(cache.size()).append(CAMMA);
+        sb.append(cache.getMaxEntries());
+        return sb.toString();
+    }
+
+    /**
+     * デコード済みモジュールキャッシュを空にする。
+     */
+    @DELETE
+    @Path("/cache/module")
+    public void clearModuleCache(@Context HttpServletRequest servletReq) {
+        checkSystemAdmin(servletReq);
+        DecodedModuleCache.getInstance().clear();
+        Logger.getLogger("open.dolphin").info("module cache cleared.");
+    }
+
+    /**
+     * 検査結果の時系列キャッシュの統計を返す。
+     * @return hits,misses,size
+     */
+    @GET
+    @Path("/cache/labo")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String getLaboSeriesStats(@Context HttpServletRequest servletReq) {
+        checkSystemAdmin(servletReq);
+        LaboSeriesStore store = LaboSeriesStore.getInstance();
+        StringBuilder sb = new StringBuilder();
+        sb.append(store.getHits()).append(CAMMA);
+        sb.append(store.getMisses()).append(CAMMA);
+        sb.append(store.size());
+        return sb.toString();
+    }
+
+    /**
+     * 検査結果の時系列キャッシュを空にする。
+     */
+    @DELETE
+    @Path("/cache/labo")
+    public void clearLaboSeries(@Context HttpServletRequest servletReq) {
+        checkSystemAdmin(servletReq);
+        LaboSeriesStore.getInstance().clear();
+        Logger.getLogger("open.dolphin").info("labo series cleared.");
+    }
+
+    /**
+     * スタンプキャッシュの状態を返す。
+     * @return hits,misses,size,max
+     */
+    @GET
+    @Path("/cache/stamp")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String getStampCacheStats(@Context HttpServletRequest servletReq) {
+        checkSystemAdmin(servletReq);
+        StampCache cache = StampCache.getInstance();
+        StringBuilder sb = new StringBuilder();
+        sb.append(cache.getHits()).append(CAMMA);
+        sb.append(cache.getMisses()).append(CAMMA);
+        sb.append(cache.size()).append(CAMMA);
+        sb.append(cache.getMaxEntries());
+        return sb.toString();
+    }
+
+    /**
+     * スタンプキャッシュを空にする。
+     */
+    @DELETE
+    @Path("/cache/stamp")
+    public void clearStampCache(@Context HttpServletRequest servletReq) {
+        checkSystemAdmin(servletReq);
+        StampCache.getInstance().clear();
+        Logger.getLogger("open.dolphin").info("stamp cache cleared.");
+    }
+
+    /**
+     * StampTree 変換結果のキャッシュの状態を返す。
+     * @return hits,misses,size,compiled
+     */
+    @GET
+    @Path("/cache/stamptree")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String getStampTreeStats(@Context HttpServletRequest servletReq) {
+        checkSystemAdmin(servletReq);
+        StampTreeStore store = StampTreeStore.getInstance();
+        StringBuilder sb = new StringBuilder();
+        sb.append(store.getHits()).append(CAMMA);
+        sb.append(store.getMisses()).append(CAMMA);
+        sb.append(store.size()).append(CAMMA);
+        sb.append(store.getCompiled());
+        return sb.toString();
+    }
+
+    /**
+     * StampTree 変換結果のキャッシュを空にする。
+     */
+    @DELETE
+    @Path("/cache/stamptree")
+    public void clearStampTreeStore(@Context HttpServletRequest servletReq) {
+        checkSystemAdmin(servletReq);
+        StampTreeStore.getInstance().clear();
+        Logger.getLogger("open.dolphin").info("stamp tree store cleared.");
+    }
+
+    /**
+     * ORCA 点数・病名・相互作用マスタの索引の統計を返す。claim.conn=server でない場合は "-"。
+     * @return tensu,disease,interaction,loadedDate,lookups,interactionChecks
+     */
+    @GET
+    @Path("/orca/master")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String getOrcaMasterStats(@Context HttpServletRequest servletReq) {
+        checkSystemAdmin(servletReq);
+        OrcaMasterIndex index = ORCAConnection.getInstance().getMasterIndex();
+        if (index == null) {
+            return "-";
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(index.getTensuSize()).append(CAMMA);
+        sb.append(index.getDiseaseSize()).append(CAMMA);
+        sb.append(index.getInteractionSize()).append(CAMMA);
+        sb.append(index.getLoadedDate()).append(CAMMA);
+        sb.append(index.getLookups()).append(CAMMA);
+        sb.append(index.getInteractionChecks());
+        return sb.toString();
+    }
+
+    /**
+     * 患者検索の索引の統計を返す。
+     * @return facilities,patients,changes,searches,fallbacks,avgMicros
+     */
+    @GET
+    @Path("/patient/index")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String getPatientSearchIndexStats(@Context HttpServletRequest servletReq) {
+        checkSystemAdmin(servletReq);
+        PatientSearchIndex index = PatientSearchIndex.getInstance();
+        StringBuilder sb = new StringBuilder();
+        sb.append(index.getFacilityCount()).append(CAMMA);
+        sb.append(index.size()).append(CAMMA);
+        sb.append(index.getChanges()).append(CAMMA);
+        sb.append(index.getSearches()).append(CAMMA);
+        sb.append(index.getFallbacks()).append(CAMMA);
+        sb.append(index.getAverageMicros());
+        return sb.toString();
+    }
+
+    /**
+     * 認証キャッシュの統計を返す。
+     * @return hits,negativeHits,misses,size
+     */
+    @GET
+    @Path("/cache/auth")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String getAuthCacheStats(@Context HttpServletRequest servletReq) {
+        checkSystemAdmin(servletReq);
+        StringBuilder sb = new StringBuilder();
+        sb.append(userCache.getHits()).append(CAMMA);
+        sb.append(userCache.getNegativeHits()).append(CAMMA);
+        sb.append(userCache.getMisses()).append(CAMMA);
+        sb.append(userCache.size());
+        return sb.toString();
+    }
+
+    /**
+     * 認証キャッシュを空にする。
+     */
+    @DELETE
+    @Path("/cache/auth")
+    public void clearAuthCache(@Context HttpServletRequest servletReq) {
+        checkSystemAdmin(servletReq);
+        userCache.clear();
+        Logger.getLogger("open.dolphin").info("auth cache cleared.");
+    }
+
+    /**
+     * 受付受信サーバの統計を返す。
+     * @return accepted,active,messages,errors,messages/sec,avgParseMs,maxParseMs
+     */
+    @GET
+    @Path("/pvt/stats")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String getPvtReceptionStats(@Context HttpServletRequest servletReq) {
+        checkSystemAdmin(servletReq);
+        String stats = pvtService.getReceptionStats();
+        return (stats != null) ? stats : "";
+    }
+
+    /**
+     * サーバー全体に影響する管理操作(移行、キャッシュ、統計)を実行できるか確認する。
+     * admin ロールのユーザーに限り、custom.properties system.admin.facility があれば
+     * その施設の admin に限る。
+     * @param servletReq HttpServletRequest
+     */
+    private void checkSystemAdmin(HttpServletRequest servletReq) {
+
+        String remoteUser = servletReq.getRemoteUser();
+        boolean admin = false;
+
+        if (remoteUser != null) {
+            String fid = ORCAConnection.getInstance().getProperty(SYSTEM_ADMIN_FACILITY);
+            if (fid == null || fid.trim().isEmpty() || fid.trim().equals(getRemoteFacility(remoteUser))) {
+                try {
+                    UserModel user = userServiceBean.getUser(remoteUser);
+                    for (RoleModel role : user.getRoles()) {
+                        if (IInfoModel.ADMIN_ROLE.equals(role.getRole())) {
+                            admin = true;
+                            break;
+                        }
+                    }
+                } catch (RuntimeException e) {
+                }
+            }
+        }
+
+        if (!admin) {
+            Logger.getLogger("open.dolphin").warning("system admin operation denied: " + remoteUser);
+            throw new WebApplicationException(Response.Status.FORBIDDEN);
+        }
+    }
+
+    /**
+     * 数値のパラメータを返す。数値でないか範囲外なら 400 にする。
+     * @param param パラメータ
+     * @param min 最小値
+     * @param max 最大値
+     * @return 値
+     */
+    private int intParam(String param, int min, int max) {
+        try {
+            int ret = Integer.parseInt(param.trim());
+            if (ret >= min && ret <= max) {
+                return ret;
+            }
+        } catch (NumberFormatException | NullPointerException e) {
+        }
+        throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST)
+                .entity("invalid parameter: " + param + " (" + min + ".." + max + ")")
+                .type(MediaType.TEXT_PLAIN)
+                .build());
+    }
+}
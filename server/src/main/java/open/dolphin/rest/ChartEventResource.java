@@ -1,6 +1,7 @@
 package open.dolphin.rest;
 
 import java.io.IOException;
+import java.util.List;
 import javax.inject.Inject;
 import javax.servlet.AsyncContext;
 import javax.servlet.AsyncEvent;
@@ -9,8 +10,11 @@ import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import open.dolphin.converter.ChartEventListConverter;
 import open.dolphin.converter.ChartEventModelConverter;
+import open.dolphin.infomodel.ChartEventList;
 import open.dolphin.infomodel.ChartEventModel;
+import open.dolphin.mbean.ChartEventSubscriber;
 import open.dolphin.mbean.ServletContextHolder;
 import open.dolphin.session.ChartEventServiceBean;
 import org.codehaus.jackson.map.DeserializationConfig;
@@ -33,7 +37,10 @@ public class ChartEventResource extends AbstractResource {
     public static final String CLIENT_UUID = "clientUUID";
     public static final String FID = "fid";
     public static final String DISPATCH_URL = "/resources/chartEvent/dispatch";
+    public static final String DISPATCH_LIST_URL = "/resources/chartEvent/dispatchList";
     public static final String KEY_NAME = "chartEvent";
+    public static final String TRANSPORT_SSE = "sse";
+    public static final String TRANSPORT_LONG_POLL = "longpoll";
     
     @Inject
     private ChartEventServiceBean eventServiceBean;
@@ -47,8 +54,28 @@ public class ChartEventResource extends AbstractResource {
     @GET
     @Path("/subscribe")
     public void subscribe() {
+        startSubscribe(-1L);
+    }
+    
+    /**
+     * 通し番号付きで subscribe する。
+     * 最後に受け取った番号より後のイベントがあれば直ちにまとめて返す。
+     * @param param 最後に受け取った番号 0の場合は現在の番号から
+     */
+    @GET
+    @Path("/subscribe/{param}")
+    public void subscribeSince(@PathParam("param") String param) {
+        long lastSequence = Long.parseLong(param);
+        if (lastSequence <= 0L) {
+            String fid = getRemoteFacility(servletReq.getRemoteUser());
+            lastSequence = eventServiceBean.getLastSequence(fid);
+        }
+        startSubscribe(lastSequence);
+    }
+    
+    private void startSubscribe(long lastSequence) {
 
-        String fid = getRemoteFacility(servletReq.getRemoteUser());
+        final String fid = getRemoteFacility(servletReq.getRemoteUser());
         String clientUUID = servletReq.getHeader(CLIENT_UUID);
 //minagawa^        
         if (debug) {
@@ -65,11 +92,14 @@ public class ChartEventResource extends AbstractResource {
         // requestにfid, clientUUIDを記録しておく
         ac.getRequest().setAttribute(FID, fid);
         ac.getRequest().setAttribute(CLIENT_UUID, clientUUID);
-        contextHolder.addAsyncContext(ac);
+        final ChartEventSubscriber subscriber = new ChartEventSubscriber(clientUUID, lastSequence);
+        contextHolder.addAsyncContext(fid, subscriber, ac);
         
 //minagawa^
-        int subscribers = contextHolder.getAsyncContextList().size();
-        debug("subscribers count = " + subscribers);
+        if (debug) {
+            int subscribers = contextHolder.getAsyncContextCount();
+            debug("subscribers count = " + subscribers);
+        }
 //minagawa$        
         
         ac.addListener(new AsyncListener() {
@@ -77,7 +107,7 @@ public class ChartEventResource extends AbstractResource {
             private void remove() {
                 // JBOSS終了時にぬるぽ？
                 try {
-                    contextHolder.removeAsyncContext(ac);
+                    contextHolder.removeAsyncContext(fid, ac);
                 } catch (NullPointerException ex) {
                 }
             }
@@ -104,6 +134,22 @@ public class ChartEventResource extends AbstractResource {
             public void onStartAsync(AsyncEvent event) throws IOException {
             }
         });
+        
+        // 登録後に取りこぼしを確認する(登録前後のイベントを落とさないため)
+        if (subscriber.isReplay()) {
+            eventServiceBean.dispatchMissedEvents(fid, ac, subscriber);
+        }
+    }
+    
+    /**
+     * 利用できる配信方式を返す。sse の場合は ChartEventStreamServlet で受信できる。
+     * @return 配信方式 カンマ区切り
+     */
+    @GET
+    @Path("/transport")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String getTransport() {
+        return TRANSPORT_SSE + CAMMA + TRANSPORT_LONG_POLL;
     }
     
     @PUT
@@ -146,6 +192,20 @@ public class ChartEventResource extends AbstractResource {
 //minagawa$          
     }
 
+    @GET
+    @Path("/dispatchList")
+    @Produces(MediaType.APPLICATION_JSON)
+    public ChartEventListConverter deliverChartEvents() {
+        
+        debug("deliverChartEvents did call");
+        List<ChartEventModel> events = (List<ChartEventModel>)servletReq.getAttribute(KEY_NAME);
+        ChartEventList list = new ChartEventList();
+        list.setList(events);
+        ChartEventListConverter conv = new ChartEventListConverter();
+        conv.setModel(list);
+        return conv;
+    }
+
     @Override
     protected void debug(String msg) {
         if (debug || DEBUG) {
@@ -0,0 +1,115 @@
+package open.dolphin.rest;
+
+import java.io.IOException;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedExecutorService;
+import javax.inject.Inject;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import open.dolphin.mbean.ChartEventStream;
+import open.dolphin.mbean.ServletContextHolder;
+import open.dolphin.session.ChartEventServiceBean;
+import open.orca.rest.ORCAConnection;
+
+/**
+ * ChartEvent を Server-Sent Events で送り続ける。
+ * /resources/* より優先される完全一致のパスにマップし、認証は LogFilter に任せる。
+ * 1本の接続で複数のイベントを受け取れるので、イベントごとの subscribe が不要になる。
+ * 再接続時は Last-Event-ID より後のイベントを ChartEventBuffer から送る。
+ */
+@WebServlet(urlPatterns = {ChartEventStreamServlet.STREAM_PATH}, asyncSupported = true)
+public class ChartEventStreamServlet extends HttpServlet {
+
+    public static final String STREAM_PATH = "/resources/chartEvent/stream";
+
+    private static final String LAST_EVENT_ID = "Last-Event-ID";
+
+    private static final int DEFAULT_QUEUE_SIZE = 256;
+
+    // 接続直後に送る再接続間隔(ms)
+    private static final String RETRY = "retry: 3000\n\n";
+
+    @Inject
+    private ChartEventServiceBean eventServiceBean;
+
+    @Inject
+    private ServletContextHolder contextHolder;
+
+    @Resource
+    private ManagedExecutorService executor;
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse res) throws ServletException, IOException {
+
+        String fid = AbstractResource.getRemoteFacility(req.getRemoteUser());
+        String clientUUID = req.getHeader(ChartEventResource.CLIENT_UUID);
+        long lastSequence = 0L;
+        String lastEventId = req.getHeader(LAST_EVENT_ID);
+        if (lastEventId != null) {
+            try {
+                lastSequence = Long.parseLong(lastEventId.trim());
+            } catch (NumberFormatException e) {
+            }
+        }
+
+        res.setContentType("text/event-stream");
+        res.setCharacterEncoding("UTF-8");
+        res.setHeader("Cache-Control", "no-cache");
+        res.getOutputStream().write(RETRY.getBytes("UTF-8"));
+        res.flushBuffer();
+
+        final AsyncContext ac = req.startAsync();
+        // 切断はハートビートの書き込み失敗で検知する
+        ac.setTimeout(0L);
+
+        final ChartEventStream stream = new ChartEventStream(fid, clientUUID, ac, executor, getQueueSize());
+
+        ac.addListener(new AsyncListener() {
+
+            private void remove() {
+                contextHolder.removeEventStream(stream);
+            }
+
+            @Override
+            public void onComplete(AsyncEvent event) throws IOException {
+                remove();
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                remove();
+                stream.close();
+            }
+
+            @Override
+            public void onError(AsyncEvent event) throws IOException {
+                remove();
+                stream.close();
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) throws IOException {
+            }
+        });
+
+        eventServiceBean.openEventStream(stream, lastSequence);
+    }
+
+    // custom.properties chartevent.stream.queue
+    private int getQueueSize() {
+        String value = ORCAConnection.getInstance().getProperty("chartevent.stream.queue");
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+            }
+        }
+        return DEFAULT_QUEUE_SIZE;
+    }
+}
@@ -1,17 +1,26 @@
 package open.dolphin.rest;
 
 import java.io.IOException;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import open.dolphin.converter.*;
 import open.dolphin.infomodel.*;
+import open.dolphin.mbean.BlobStore;
+import open.dolphin.mbean.BlobStoreProvider;
+import open.dolphin.mbean.ThumbnailStore;
 import open.dolphin.session.KarteServiceBean;
 import open.dolphin.session.PVTServiceBean;
 import org.codehaus.jackson.map.DeserializationConfig;
@@ -85,7 +94,17 @@ public class KarteResource extends AbstractResource {
         Date fromDate = parseDate(params[1]);
         boolean includeModified = Boolean.parseBoolean(params[2]);
 
-        List<DocInfoModel> result = karteServiceBean.getDocumentList(karteId, fromDate, includeModified);
+        // karteId,fromDate,includeModified[,max[,beforeTime,beforeId]]
+        // max を指定すると新しい順に max 件、beforeTime(ミリ秒),beforeId を指定するとそれより古いものを返す
+        List<DocInfoModel> result;
+        if (params.length > 3) {
+            int max = Integer.parseInt(params[3]);
+            Date before = (params.length > 5) ? new Date(Long.parseLong(params[4])) : null;
+            long beforeId = (params.length > 5) ? Long.parseLong(params[5]) : 0L;
+            result = karteServiceBean.getDocumentList(karteId, fromDate, includeModified, before, beforeId, max);
+        } else {
+            result = karteServiceBean.getDocumentList(karteId, fromDate, includeModified);
+        }
 
         DocInfoList wrapper = new DocInfoList();
         wrapper.setList(result);
@@ -299,7 +318,7 @@ public class KarteResource extends AbstractResource {
     @GET
     @Path("/iamges/{param}")
     @Produces(MediaType.APPLICATION_XML)
-    public String getImages(@PathParam("param") String param) {
+    public String getImages(@PathParam("param") String param, @QueryParam("thumbnail") String thumbnail) {
 
         debug(param);
         String[] params = param.split(CAMMA);
@@ -316,6 +335,21 @@ public class KarteResource extends AbstractResource {
         }
 
         List<List> result = karteServiceBean.getImages(karteId, fromList, toList);
+        
+        // 一覧用 元画像の代わりにサムネイルを返す
+        ThumbnailStore.Size size = ThumbnailStore.Size.of(thumbnail);
+        if (size != null) {
+            for (List list : result) {
+                for (Object obj : list) {
+                    SchemaModel schema = (SchemaModel)obj;
+                    byte[] thumb = getThumbnail(schema.getBlobId(), size, schema::getJpegByte);
+                    if (thumb != null) {
+                        schema.setJpegByte(thumb);
+                        schema.setBlobId(null);
+                    }
+                }
+            }
+        }
 
         PlistConverter con = new PlistConverter();
         String xml = con.convert(result);
@@ -736,4 +770,139 @@ public class KarteResource extends AbstractResource {
         return conv;
     }
 //s.oh$
+    
+    /**
+     * 画像のデータだけを返す。blob store にあればファイルから直接書き出す。
+     * 内容が変わらないので blobId を ETag にし、If-None-Match が一致すれば 304 を返す。
+     * @param servletReq
+     * @param request
+     * @param param SchemaModel PK
+     * @return 画像データ
+     */
+    @GET
+    @Path("/image/{param}/bytes")
+    public Response getImageBytes(@Context HttpServletRequest servletReq, @Context Request request, @PathParam("param") String param) {
+        
+        String fid = getRemoteFacility(servletReq.getRemoteUser());
+        long id = Long.parseLong(param);
+        
+        Object[] blob = karteServiceBean.getImageBlob(fid, id);
+        if (blob == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        String contentType = (blob[1] != null) ? (String)blob[1] : "image/jpeg";
+        if (blob[0] == null) {
+            // 移行前の行
+            SchemaModel image = karteServiceBean.getImage(id);
+            return Response.ok(image.getJpegByte(), contentType).build();
+        }
+        return streamBlob(request, (String)blob[0], contentType);
+    }
+    
+    /**
+     * 添付ファイルのデータだけを返す。
+     * @param servletReq
+     * @param request
+     * @param param AttachmentModel PK
+     * @return 添付ファイルのデータ
+     */
+    @GET
+    @Path("/attachment/{param}/bytes")
+    public Response getAttachmentBytes(@Context HttpServletRequest servletReq, @Context Request request, @PathParam("param") String param) {
+        
+        String fid = getRemoteFacility(servletReq.getRemoteUser());
+        long id = Long.parseLong(param);
+        
+        Object[] blob = karteServiceBean.getAttachmentBlob(fid, id);
+        if (blob == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        String contentType = (blob[1] != null) ? (String)blob[1] : MediaType.APPLICATION_OCTET_STREAM;
+        if (blob[0] == null) {
+            AttachmentModel attachment = karteServiceBean.getAttachment(id);
+            return Response.ok(attachment.getBytes(), contentType).build();
+        }
+        return streamBlob(request, (String)blob[0], contentType);
+    }
+    
+    /**
+     * 画像のサムネイルを返す。
+     * @param servletReq
+     * @param request
+     * @param param SchemaModel PK
+     * @param sizeStr small, medium, large
+     * @return JPEG
+     */
+    @GET
+    @Path("/image/{param}/thumbnail/{size}")
+    @Produces("image/jpeg")
+    public Response getImageThumbnail(@Context HttpServletRequest servletReq, @Context Request request,
+            @PathParam("param") String param, @PathParam("size") String sizeStr) {
+        
+        String fid = getRemoteFacility(servletReq.getRemoteUser());
+        long id = Long.parseLong(param);
+        ThumbnailStore.Size size = ThumbnailStore.Size.of(sizeStr);
+        
+        Object[] blob = (size != null) ? karteServiceBean.getImageBlob(fid, id) : null;
+        if (blob == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        String blobId = (String)blob[0];
+        if (blobId == null) {
+            // 移行前の行は元画像から引く
+            byte[] bytes = karteServiceBean.getImage(id).getJpegByte();
+            blobId = (bytes != null) ? ThumbnailStore.getInstance().digest(bytes) : null;
+            return thumbnailResponse(request, blobId, size, () -> bytes);
+        }
+        final String src = blobId;
+        return thumbnailResponse(request, blobId, size, () -> readBlob(src));
+    }
+    
+    private byte[] getThumbnail(String blobId, ThumbnailStore.Size size, Supplier<byte[]> source) {
+        try {
+            if (blobId != null) {
+                final String src = blobId;
+                return ThumbnailStore.getInstance().getThumbnail(blobId, size, () -> readBlob(src));
+            }
+            return ThumbnailStore.getInstance().getThumbnail(source.get(), size);
+        } catch (IOException e) {
+            Logger.getLogger("open.dolphin").warning("thumbnail can not be created: " + e.getMessage());
+        }
+        return null;
+    }
+    
+    private byte[] readBlob(String blobId) {
+        BlobStore store = BlobStoreProvider.getStore();
+        try {
+            return (store != null) ? store.get(blobId) : null;
+        } catch (IOException e) {
+            Logger.getLogger("open.dolphin").warning("blob can not be read: " + e.getMessage());
+        }
+        return null;
+    }
+    
+    private Response streamBlob(Request request, final String blobId, String contentType) {
+        
+        final BlobStore store = BlobStoreProvider.getStore();
+        long size;
+        try {
+            size = (store != null) ? store.size(blobId) : -1L;
+        } catch (IOException e) {
+            size = -1L;
+        }
+        if (size < 0L) {
+            Logger.getLogger("open.dolphin").warning("blob not found: " + blobId);
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        
+        EntityTag etag = new EntityTag(blobId);
+        Response.ResponseBuilder builder = request.evaluatePreconditions(etag);
+        if (builder == null) {
+            StreamingOutput so = (java.io.OutputStream os) -> {
+                store.transferTo(blobId, Channels.newChannel(os));
+            };
+            builder = Response.ok(so, contentType).header("Content-Length", size);
+        }
+        return builder.tag(etag).header("Cache-Control", "private, max-age=31536000").build();
+    }
 }
@@ -52,7 +52,15 @@ public class LogFilter implements Filter {
         // Headerから取得する
         userName = req.getHeader(USER_NAME);
         password = req.getHeader(PASSWORD);
-        authentication = password.equals(userCache.getMap().get(userName));
+        
+        if (userName == null || password == null) {
+            ((HttpServletResponse)response).sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        
+        // 成功・失敗ともキャッシュにあれば DB に問い合わせない
+        Boolean cached = userCache.lookup(userName, password);
+        authentication = Boolean.TRUE.equals(cached);
         
         if (!authentication) {
             
@@ -61,7 +69,10 @@ public class LogFilter implements Filter {
             
             if (!authentication) {
                 
-                authentication = userService.authenticate(userName, password);
+                if (cached == null) {
+                    authentication = userService.authenticate(userName, password);
+                    userCache.put(userName, password, authentication);
+                }
                 
                 if (!authentication) {
                     HttpServletResponse res = (HttpServletResponse)response;
@@ -72,8 +83,6 @@ public class LogFilter implements Filter {
                     Logger.getLogger("open.dolphin").warning(msg);
                     res.sendError(HttpServletResponse.SC_FORBIDDEN);
                     return;
-                } else {
-                    userCache.getMap().put(userName, password);
                 }
             }
         } 
@@ -36,8 +36,8 @@ public class MmlResource extends AbstractResource {
         final int cnt = docList.size();
         
          Runnable r = () -> {
-             for (int i = 0; i < cnt; i++) {
-                 mmlServiceBean.dumpDocumentToMML(i, docList.get(i));
+             for (int i = 0; i < cnt; i += MmlServiceBean.DUMP_PAGE_SIZE) {
+                 mmlServiceBean.dumpDocumentsToMML(i, docList.subList(i, Math.min(i + MmlServiceBean.DUMP_PAGE_SIZE, cnt)));
              }
              System.err.println("MMLダンプ終了しました。");
         };
@@ -1,16 +1,24 @@
 package open.dolphin.rest;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.logging.Logger;
 import javax.inject.Inject;
 import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import open.dolphin.converter.NLaboImportResultListConverter;
 import open.dolphin.converter.NLaboItemListConverter;
 import open.dolphin.converter.NLaboModuleListConverter;
+import open.dolphin.converter.NLaboSeriesPageConverter;
 import open.dolphin.converter.PatientLiteListConverter;
 import open.dolphin.converter.PatientModelConverter;
 import open.dolphin.infomodel.*;
@@ -26,6 +34,11 @@ import org.codehaus.jackson.map.ObjectMapper;
 @Path("/lab")
 public class NLabResource extends AbstractResource {
     
+    private static final String NDJSON = "application/x-ndjson";
+    
+    // 一括登録で1トランザクションにまとめるモジュール数
+    private static final int BULK_CHUNK_SIZE = 200;
+    
     @Inject
     private NLabServiceBean nLabServiceBean;
 
@@ -64,13 +77,70 @@ public class NLabResource extends AbstractResource {
         String pid = param;
         String fidPid = getFidPid(servletReq.getRemoteUser(), pid);
         
-        Long cnt = nLabServiceBean.getLaboTestCount(fidPid);
+        int cnt = nLabServiceBean.getLaboSeriesCount(fidPid);
         String val = String.valueOf(cnt);
         
         return val;
     }
 //s.oh$
 
+    /**
+     * 検査結果を検査項目 × 検体採取日のページで返す。
+     * @param servletReq
+     * @param param 患者ID,列数,カーソル(最新のページは 0),最新を左にする場合 true
+     * @return ページ
+     */
+    @GET
+    @Path("/series/{param}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public NLaboSeriesPageConverter getLaboSeries(@Context HttpServletRequest servletReq, @PathParam("param") String param) {
+
+        debug(param);
+        String[] params = param.split(CAMMA);
+        String pid = params[0];
+        int maxResult = Integer.parseInt(params[1]);
+        long before = Long.parseLong(params[2]);
+        boolean newestLeft = Boolean.parseBoolean(params[3]);
+
+        String fidPid = getFidPid(servletReq.getRemoteUser(), pid);
+
+        NLaboSeriesPage page = nLabServiceBean.getLaboSeries(fidPid, before, maxResult, newestLeft);
+        
+        NLaboSeriesPageConverter conv = new NLaboSeriesPageConverter();
+        conv.setModel(page);
+        
+        return conv;
+    }
+
+    /**
+     * 検査結果のページのカーソルを返す。
+     * @param servletReq
+     * @param param 患者ID,列数
+     * @return 全モジュール数,1ページ目のカーソル,2ページ目のカーソル...
+     */
+    @GET
+    @Path("/series/cursor/{param}")
+    @Produces(MediaType.TEXT_PLAIN)
+    public String getLaboSeriesCursors(@Context HttpServletRequest servletReq, @PathParam("param") String param) {
+
+        debug(param);
+        String[] params = param.split(CAMMA);
+        String pid = params[0];
+        int maxResult = Integer.parseInt(params[1]);
+
+        String fidPid = getFidPid(servletReq.getRemoteUser(), pid);
+
+        List<Long> cursors = nLabServiceBean.getLaboSeriesCursors(fidPid, maxResult);
+        int cnt = nLabServiceBean.getLaboSeriesCount(fidPid);
+        
+        StringBuilder sb = new StringBuilder();
+        sb.append(cnt);
+        for (Long cursor : cursors) {
+            sb.append(CAMMA).append(cursor);
+        }
+        return sb.toString();
+    }
+
     @GET
     @Path("/item/{param}")
     @Produces(MediaType.APPLICATION_JSON)
@@ -146,6 +216,113 @@ public class NLabResource extends AbstractResource {
         return conv;
     }
 
+    /**
+     * 検査結果を一括登録する。
+     * 1行に1モジュールの JSON(NDJSON)を読みながら BULK_CHUNK_SIZE 件ずつ登録する。
+     * 読めない行や登録できなかったモジュールがあっても残りは続けて登録する。
+     * @param servletReq
+     * @param body NDJSON
+     * @return モジュールごとの結果 送信順
+     * @throws IOException 
+     */
+    @POST
+    @Path("/module/bulk")
+    @Consumes(NDJSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public NLaboImportResultListConverter postNLaboTests(@Context HttpServletRequest servletReq, InputStream body) throws IOException {
+
+        String fid = getRemoteFacility(servletReq.getRemoteUser());
+        long start = System.currentTimeMillis();
+        
+        ObjectMapper mapper = new ObjectMapper();
+        mapper.configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        
+        List<NLaboImportResult> results = new ArrayList<>();
+        List<NLaboModule> chunk = new ArrayList<>(BULK_CHUNK_SIZE);
+        List<Integer> indexes = new ArrayList<>(BULK_CHUNK_SIZE);
+        int index = 0;
+        
+        BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                NLaboModule module = mapper.readValue(line, NLaboModule.class);
+                List<NLaboItem> items = module.getItems();
+                if (items==null) {
+                    module.setItems(new ArrayList<NLaboItem>(0));
+                } else {
+                    // 関係を構築する
+                    for (NLaboItem item : items) {
+                        item.setLaboModule(module);
+                    }
+                }
+                chunk.add(module);
+                indexes.add(index);
+            } catch (IOException e) {
+                results.add(errorResult(index, e));
+            }
+            index++;
+            
+            if (chunk.size() == BULK_CHUNK_SIZE) {
+                createAll(fid, chunk, indexes, results);
+            }
+        }
+        createAll(fid, chunk, indexes, results);
+        
+        results.sort(Comparator.comparingInt(NLaboImportResult::getIndex));
+        
+        int succeeded = 0;
+        for (NLaboImportResult r : results) {
+            if (r.isSucceeded()) {
+                succeeded++;
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("lab bulk import: ").append(succeeded).append("/").append(results.size());
+        sb.append(" modules, ").append(System.currentTimeMillis() - start).append("ms");
+        Logger.getLogger("open.dolphin").info(sb.toString());
+        
+        NLaboImportResultList list = new NLaboImportResultList();
+        list.setList(results);
+        
+        NLaboImportResultListConverter conv = new NLaboImportResultListConverter();
+        conv.setModel(list);
+
+        return conv;
+    }
+    
+    // チャンクを1トランザクションで登録する 失敗した場合はチャンク全体をエラーにする
+    private void createAll(String fid, List<NLaboModule> chunk, List<Integer> indexes, List<NLaboImportResult> results) {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        try {
+            List<NLaboImportResult> list = nLabServiceBean.createAll(fid, chunk);
+            for (int i = 0; i < list.size(); i++) {
+                list.get(i).setIndex(indexes.get(i));
+            }
+            results.addAll(list);
+        } catch (Exception e) {
+            Logger.getLogger("open.dolphin").warning("lab bulk import failed: " + e.getMessage());
+            for (Integer i : indexes) {
+                results.add(errorResult(i, e));
+            }
+        }
+        chunk.clear();
+        indexes.clear();
+    }
+    
+    private NLaboImportResult errorResult(int index, Exception e) {
+        NLaboImportResult result = new NLaboImportResult();
+        result.setIndex(index);
+        result.setStatus(NLaboImportResult.STATUS_ERROR);
+        result.setMessage(e.getMessage());
+        return result;
+    }
+
     // ラボデータの削除 2013/06/24    
     @DELETE
     @Path("/module/{param}")
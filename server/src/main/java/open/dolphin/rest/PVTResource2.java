@@ -8,8 +8,10 @@ import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import open.dolphin.converter.PatientVisitDeltaConverter;
 import open.dolphin.converter.PatientVisitListConverter;
 import open.dolphin.infomodel.HealthInsuranceModel;
+import open.dolphin.infomodel.PatientVisitDelta;
 import open.dolphin.infomodel.PatientVisitList;
 import open.dolphin.infomodel.PatientVisitModel;
 import open.dolphin.session.ChartEventServiceBean;
@@ -123,6 +125,30 @@ public class PVTResource2 extends AbstractResource {
         return conv;
     }
 
+    /**
+     * 受付リストの差分を返す。
+     * @param param 前回の epoch,version 初回は 0,0
+     * @return 追加・更新・削除された受付、差分を返せない場合は全件
+     */
+    @GET
+    @Path("/pvtList/{param}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public PatientVisitDeltaConverter getPvtDelta(@PathParam("param") String param) {
+
+        String[] params = param.split(CAMMA);
+        long epoch = Long.parseLong(params[0]);
+        long version = Long.parseLong(params[1]);
+
+        String fid = getRemoteFacility(servletReq.getRemoteUser());
+        PatientVisitDelta delta = eventServiceBean.getPvtStore(fid).getDelta(epoch, version);
+        debug("pvt delta " + param + " -> " + delta.getVersion() + (delta.isFull() ? " full" : ""));
+
+        PatientVisitDeltaConverter conv = new PatientVisitDeltaConverter();
+        conv.setModel(delta);
+
+        return conv;
+    }
+
     @Override
     protected void debug(String msg) {
         if (debug || DEBUG) {
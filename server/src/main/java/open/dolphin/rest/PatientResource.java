@@ -7,10 +7,13 @@ import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
 import open.dolphin.converter.PatientListConverter;
 import open.dolphin.converter.PatientModelConverter;
 import open.dolphin.infomodel.PatientList;
 import open.dolphin.infomodel.PatientModel;
+import open.dolphin.mbean.ThumbnailStore;
 import static open.dolphin.rest.AbstractResource.getRemoteFacility;
 import open.dolphin.session.PatientServiceBean;
 import org.codehaus.jackson.map.DeserializationConfig;
@@ -233,4 +236,43 @@ public class PatientResource extends AbstractResource {
         return conv;
     }
 //s.oh$
+    
+    /**
+     * 患者写真のサムネイルを返す。
+     * @param servletReq
+     * @param request
+     * @param param 患者PK
+     * @param sizeStr small, medium, large
+     * @return JPEG
+     */
+    @GET
+    @Path("/photo/{param}/thumbnail/{size}")
+    @Produces("image/jpeg")
+    public Response getPhotoThumbnail(@Context HttpServletRequest servletReq, @Context Request request,
+            @PathParam("param") String param, @PathParam("size") String sizeStr) {
+        
+        String fid = getRemoteFacility(servletReq.getRemoteUser());
+        long pk = Long.parseLong(param);
+        ThumbnailStore.Size size = ThumbnailStore.Size.of(sizeStr);
+        
+        if (size == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        
+        // digest を覚えていれば写真は読まない 304 ならそのまま、サムネイルが無ければその時に読む
+        ThumbnailStore store = ThumbnailStore.getInstance();
+        String digest = store.getPhotoDigest(fid, pk);
+        if (digest != null) {
+            return thumbnailResponse(request, digest, size, () -> patientServiceBean.getPatientPhoto(fid, pk));
+        }
+        
+        long changes = store.getPhotoChanges();
+        final byte[] photo = patientServiceBean.getPatientPhoto(fid, pk);
+        if (photo == null || photo.length == 0) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        digest = store.digest(photo);
+        store.putPhotoDigest(fid, pk, digest, changes);
+        return thumbnailResponse(request, digest, size, () -> photo);
+    }
 }
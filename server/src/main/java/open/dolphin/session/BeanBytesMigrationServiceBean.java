@@ -0,0 +1,114 @@
+package open.dolphin.session;
+
+import java.util.List;
+import java.util.logging.Logger;
+import javax.ejb.Stateless;
+import javax.inject.Named;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import open.dolphin.infomodel.BeanBytesCodec;
+import open.dolphin.infomodel.ModuleModel;
+import open.dolphin.infomodel.StampModel;
+
+/**
+ * d_module.beanBytes と d_stamp.stampBytes を XMLEncoder 形式からバイナリ形式へ
+ * 変換する。1回の呼び出しが1トランザクションで、id 順に maxResults 件ずつ処理する。
+ * 既にバイナリ形式の行とデコードできない行はそのまま残す。
+ */
+@Named
+@Stateless
+public class BeanBytesMigrationServiceBean {
+
+    private static final String QUERY_MODULE_AFTER_ID = "from ModuleModel m where m.id > :id order by m.id";
+    private static final String QUERY_STAMP_AFTER_ID = "from StampModel s where s.id > :id order by s.id";
+    private static final String ID = "id";
+
+    @PersistenceContext
+    private EntityManager em;
+
+    /**
+     * ModuleModel を1バッチ変換する。
+     * @param afterId この id より後の行を処理する
+     * @param maxResults バッチサイズ
+     * @return 処理した最後の id、対象がなければ -1
+     */
+    public long migrateModules(long afterId, int maxResults) {
+
+        List<ModuleModel> list = em.createQuery(QUERY_MODULE_AFTER_ID)
+                .setParameter(ID, afterId)
+                .setMaxResults(maxResults)
+                .getResultList();
+
+        if (list.isEmpty()) {
+            return -1L;
+        }
+
+        int cnt = 0;
+        for (ModuleModel module : list) {
+            byte[] converted = convert(module.getBeanBytes(), "d_module", String.valueOf(module.getId()));
+            if (converted != null) {
+                module.setBeanBytes(converted);
+                cnt++;
+            }
+        }
+        log("d_module", list.size(), cnt);
+
+        return list.get(list.size() - 1).getId();
+    }
+
+    /**
+     * StampModel を1バッチ変換する。
+     * @param afterId この id より後の行を処理する(初回は空文字)
+     * @param maxResults バッチサイズ
+     * @return 処理した最後の id、対象がなければ null
+     */
+    public String migrateStamps(String afterId, int maxResults) {
+
+        List<StampModel> list = em.createQuery(QUERY_STAMP_AFTER_ID)
+                .setParameter(ID, afterId)
+                .setMaxResults(maxResults)
+                .getResultList();
+
+        if (list.isEmpty()) {
+            return null;
+        }
+
+        int cnt = 0;
+        for (StampModel stamp : list) {
+            byte[] converted = convert(stamp.getStampBytes(), "d_stamp", stamp.getId());
+            if (converted != null) {
+                stamp.setStampBytes(converted);
+                cnt++;
+            }
+        }
+        log("d_stamp", list.size(), cnt);
+
+        return list.get(list.size() - 1).getId();
+    }
+
+    private byte[] convert(byte[] bytes, String table, String id) {
+
+        if (bytes == null || BeanBytesCodec.isBinary(bytes)) {
+            return null;
+        }
+        try {
+            Object bean = BeanBytesCodec.decode(bytes);
+            if (bean == null) {
+                return null;
+            }
+            byte[] ret = BeanBytesCodec.encode(bean);
+            // バイナリ化できないものは XML のまま残す
+            return BeanBytesCodec.isBinary(ret) ? ret : null;
+
+        } catch (Exception e) {
+            Logger.getLogger("open.dolphin").warning(table + " id=" + id + " can not be converted: " + e.getMessage());
+        }
+        return null;
+    }
+
+    private void log(String table, int scanned, int converted) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(table).append(" migrated ").append(converted).append("/").append(scanned);
+        Logger.getLogger("open.dolphin").info(sb.toString());
+    }
+}
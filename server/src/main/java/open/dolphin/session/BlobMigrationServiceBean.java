@@ -0,0 +1,152 @@
+package open.dolphin.session;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+import javax.ejb.Stateless;
+import javax.inject.Named;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import open.dolphin.infomodel.AttachmentModel;
+import open.dolphin.infomodel.SchemaModel;
+import open.dolphin.mbean.BlobStore;
+import open.dolphin.mbean.BlobStoreProvider;
+import open.dolphin.mbean.ThumbnailStore;
+
+/**
+ * d_image.jpegByte と d_attachment.bytes を blob store へ移す。
+ * 1回の呼び出しが1トランザクションで、id 順に maxResults 件ずつ処理する。
+ * 移した行は blobId を持ち、LOB 列には空の配列が残る。
+ *
+ * blob はエンティティの保存時(commit 前)に書くので、rollback されると参照のない blob が残る。
+ * sweepOrphans で掃除する。
+ */
+@Named
+@Stateless
+public class BlobMigrationServiceBean {
+
+    private static final String QUERY_SCHEMA_AFTER_ID = "from SchemaModel s where s.id > :id and s.blobId is null order by s.id";
+    private static final String QUERY_ATTACHMENT_AFTER_ID = "from AttachmentModel a where a.id > :id and a.blobId is null order by a.id";
+    private static final String QUERY_SCHEMA_BLOB_IDS = "select s.blobId from SchemaModel s where s.blobId in (:ids)";
+    private static final String QUERY_ATTACHMENT_BLOB_IDS = "select a.blobId from AttachmentModel a where a.blobId in (:ids)";
+    private static final String ID = "id";
+    private static final String IDS = "ids";
+    private static final int IN_CHUNK = 500;
+
+    @PersistenceContext
+    private EntityManager em;
+
+    /**
+     * SchemaModel を1バッチ移す。
+     * @param afterId この id より後の行を処理する
+     * @param maxResults バッチサイズ
+     * @return 処理した最後の id、対象がなければ -1
+     * @throws IOException blob store に書けない場合
+     */
+    public long migrateSchemas(long afterId, int maxResults) throws IOException {
+
+        BlobStore store = getStore();
+        List<SchemaModel> list = em.createQuery(QUERY_SCHEMA_AFTER_ID)
+                .setParameter(ID, afterId)
+                .setMaxResults(maxResults)
+                .getResultList();
+
+        if (list.isEmpty()) {
+            return -1L;
+        }
+
+        int cnt = 0;
+        for (SchemaModel schema : list) {
+            byte[] bytes = schema.getJpegByte();
+            if (bytes != null && bytes.length > 0) {
+                schema.setBlobId(store.put(bytes));
+                schema.setJpegByte(new byte[0]);
+                cnt++;
+            }
+        }
+        log("d_image", list.size(), cnt);
+
+        return list.get(list.size() - 1).getId();
+    }
+
+    /**
+     * AttachmentModel を1バッチ移す。
+     * @param afterId この id より後の行を処理する
+     * @param maxResults バッチサイズ
+     * @return 処理した最後の id、対象がなければ -1
+     * @throws IOException blob store に書けない場合
+     */
+    public long migrateAttachments(long afterId, int maxResults) throws IOException {
+
+        BlobStore store = getStore();
+        List<AttachmentModel> list = em.createQuery(QUERY_ATTACHMENT_AFTER_ID)
+                .setParameter(ID, afterId)
+                .setMaxResults(maxResults)
+                .getResultList();
+
+        if (list.isEmpty()) {
+            return -1L;
+        }
+
+        int cnt = 0;
+        for (AttachmentModel attachment : list) {
+            byte[] bytes = attachment.getBytes();
+            if (bytes != null && bytes.length > 0) {
+                attachment.setBlobId(store.put(bytes));
+                attachment.setBytes(new byte[0]);
+                cnt++;
+            }
+        }
+        log("d_attachment", list.size(), cnt);
+
+        return list.get(list.size() - 1).getId();
+    }
+
+    /**
+     * d_image / d_attachment のどの行からも参照されていない blob を消す。
+     * 書き込み中のトランザクションの blob を消さないように、before より前に put されたものだけを対象にする。
+     * @param prefix blobId の先頭2文字
+     * @param before この時刻(ミリ秒)より前に put された blob を対象にする
+     * @return 消した数
+     * @throws IOException blob store を読めない場合
+     */
+    public int sweepOrphans(String prefix, long before) throws IOException {
+
+        BlobStore store = getStore();
+        List<String> candidates = store.list(prefix, before);
+
+        int cnt = 0;
+        for (int i = 0; i < candidates.size(); i += IN_CHUNK) {
+            List<String> ids = candidates.subList(i, Math.min(i + IN_CHUNK, candidates.size()));
+            Set<String> used = new HashSet<>();
+            used.addAll(em.createQuery(QUERY_SCHEMA_BLOB_IDS).setParameter(IDS, ids).getResultList());
+            used.addAll(em.createQuery(QUERY_ATTACHMENT_BLOB_IDS).setParameter(IDS, ids).getResultList());
+            for (String blobId : ids) {
+                if (!used.contains(blobId) && store.delete(blobId, before)) {
+                    ThumbnailStore.getInstance().remove(blobId);
+                    cnt++;
+                }
+            }
+        }
+        if (cnt > 0) {
+            Logger.getLogger("open.dolphin").info("orphan blobs removed " + prefix + ": " + cnt + "/" + candidates.size());
+        }
+        return cnt;
+    }
+
+    private BlobStore getStore() throws IOException {
+        BlobStore store = BlobStoreProvider.getStore();
+        if (store == null) {
+            throw new IOException("blob.store.dir is not configured");
+        }
+        return store;
+    }
+
+    private void log(String table, int scanned, int moved) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(table).append(" moved to blob store ").append(moved).append("/").append(scanned);
+        Logger.getLogger("open.dolphin").info(sb.toString());
+    }
+}
@@ -8,14 +8,21 @@ import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.Resource;
 import javax.ejb.Stateless;
+import javax.enterprise.concurrent.ManagedExecutorService;
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.servlet.AsyncContext;
 import open.dolphin.infomodel.*;
+import open.dolphin.mbean.ChartEventBuffer;
+import open.dolphin.mbean.ChartEventStream;
+import open.dolphin.mbean.ChartEventSubscriber;
+import open.dolphin.mbean.PatientVisitStore;
 import open.dolphin.mbean.ServletContextHolder;
 import open.dolphin.rest.ChartEventResource;
 
@@ -31,51 +38,207 @@ public class ChartEventServiceBean {
     @Inject
     private ServletContextHolder contextHolder;
     
+    @Resource
+    private ManagedExecutorService executor;
+    
+    // 患者の PK の IN で病名の開始日と終了日を検索する
+    private static final String QUERY_BYOMEI_BY_PATIENT_PKS
+            = "select r.karte.patient.id, r.started, r.ended from RegisteredDiagnosisModel r where r.karte.patient.id in (:pks)";
+    
     @PersistenceContext
     private EntityManager em;
     
     private boolean DEBUG = false;
     
 
-    public void notifyEvent(ChartEventModel evt) {
+    public void notifyEvent(final ChartEventModel evt) {
         
-        String fid = evt.getFacilityId();
+        final String fid = evt.getFacilityId();
         if (fid == null) {
             warn("Facility id is null.");
             return;
         }
+        
+        // 通し番号を付けて履歴に残す
+        // SSE接続にはバッファと同じ順番で積む(積むだけなので待たされない)
+        final ChartEventBuffer buffer = contextHolder.getChartEventBuffer(fid);
+        synchronized (buffer) {
+            buffer.append(evt);
+            for (ChartEventStream stream : contextHolder.getEventStreams(fid)) {
+                if (!stream.getClientUUID().equals(evt.getIssuerUUID())) {
+                    stream.send(evt);
+                }
+            }
+        }
+
+        // 同一施設のsubscriberだけを対象にする
+        final Map<AsyncContext, ChartEventSubscriber> subscribers = contextHolder.getAsyncContextMap(fid);
+        if (subscribers.isEmpty()) {
+            return;
+        }
 
-        List<AsyncContext> acList = contextHolder.getAsyncContextList();
-        synchronized (acList) {
-            for (Iterator<AsyncContext> itr = acList.iterator(); itr.hasNext();) {
-                
-                AsyncContext ac = itr.next();
-                String acFid = (String) ac.getRequest().getAttribute(ChartEventResource.FID);
-                String acUUID = (String) ac.getRequest().getAttribute(ChartEventResource.CLIENT_UUID);
-                String issuerUUID = evt.getIssuerUUID();
-                
-                // 同一施設かつChartEventModelの発行者でないクライアントに通知する
-                if (fid.equals(acFid) && !acUUID.equals(issuerUUID)) {
-                    itr.remove();
-                    try {
-                        ac.getRequest().setAttribute(ChartEventResource.KEY_NAME, evt);
-                        ac.dispatch(ChartEventResource.DISPATCH_URL);
+        // 配信はリクエストスレッドから切り離す
+        try {
+            executor.execute(() -> {
+                dispatchEvent(fid, subscribers, buffer, evt);
+            });
+        } catch (RejectedExecutionException ex) {
+            warn("Chart event dispatch is rejected, dispatch on caller thread.");
+            dispatchEvent(fid, subscribers, buffer, evt);
+        }
+    }
+    
+    private void dispatchEvent(String fid, Map<AsyncContext, ChartEventSubscriber> subscribers, ChartEventBuffer buffer, ChartEventModel evt) {
+        
+        long started = System.currentTimeMillis();
+        String issuerUUID = evt.getIssuerUUID();
+        int cnt = 0;
+        
+        for (Map.Entry<AsyncContext, ChartEventSubscriber> entry : subscribers.entrySet()) {
+            
+            AsyncContext ac = entry.getKey();
+            ChartEventSubscriber subscriber = entry.getValue();
+            
+            // ChartEventModelの発行者でないクライアントに通知する
+            if (subscriber.getClientUUID().equals(issuerUUID)) {
+                continue;
+            }
+            
+            // 番号を持つsubscriberには未受信分をまとめて送る
+            // 配信が前後しても先に届いたリストに含まれるので取りこぼさない
+            List<ChartEventModel> events = null;
+            if (subscriber.isReplay()) {
+                events = getEventsAfter(fid, buffer, subscriber);
+                if (events == null) {
+                    continue;
+                }
+            }
+            
+            // AsyncContextは一度しか使えないので、他の配信と競合した場合は先に外した方が配信する
+            if (!subscribers.remove(ac, subscriber)) {
+                continue;
+            }
+            try {
+                if (events != null) {
+                    ac.getRequest().setAttribute(ChartEventResource.KEY_NAME, events);
+                    ac.dispatch(ChartEventResource.DISPATCH_LIST_URL);
+                } else {
+                    ac.getRequest().setAttribute(ChartEventResource.KEY_NAME, evt);
+                    ac.dispatch(ChartEventResource.DISPATCH_URL);
+                }
+                cnt++;
 //minagawa^                        
-                        if (true) {
-                            StringBuilder sb = new StringBuilder();
-                            sb.append(acFid).append(":").append(acUUID);
-                            sb.append(" did notified by ").append(issuerUUID);
-                            debug(sb.toString());
-                        }
+                if (DEBUG) {
+                    StringBuilder sb = new StringBuilder();
+                    sb.append(fid).append(":").append(subscriber.getClientUUID());
+                    sb.append(" did notified by ").append(issuerUUID);
+                    debug(sb.toString());
+                }
 //minagawa$                        
-                    } catch (Exception ex) {
-                        warn("Exception in ac.dispatch.");
+            } catch (Exception ex) {
+                warn("Exception in ac.dispatch.");
+            }
+        }
+        
+        if (DEBUG) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(fid).append(" event dispatched to ").append(cnt);
+            sb.append(" subscribers in ").append(System.currentTimeMillis() - started).append(" ms");
+            debug(sb.toString());
+        }
+    }
+    
+    /**
+     * subscriberが受け取っていないイベントを返す。
+     * 履歴から消えている場合は pvtList の再取得を促す PVT_RENEW を返す。
+     * @return イベントのリスト、他クライアント発行のイベントがない場合は null
+     */
+    private List<ChartEventModel> getEventsAfter(String fid, ChartEventBuffer buffer, ChartEventSubscriber subscriber) {
+        
+        List<ChartEventModel> events = buffer.getEventsAfter(subscriber.getLastSequence());
+        
+        if (events == null) {
+            ChartEventModel renew = new ChartEventModel(contextHolder.getServerUUID());
+            renew.setFacilityId(fid);
+            renew.setEventType(ChartEventModel.PVT_RENEW);
+            renew.setSequence(buffer.getSequence());
+            events = new ArrayList<>(1);
+            events.add(renew);
+            return events;
+        }
+        
+        // 自分が発行したイベントだけなら起こさない
+        for (ChartEventModel e : events) {
+            if (!subscriber.getClientUUID().equals(e.getIssuerUUID())) {
+                return events;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * 番号付きで subscribe したクライアントに未受信のイベントがあれば直ちに配信する。
+     * @param fid 施設ID
+     * @param ac 登録済みのAsyncContext
+     * @param subscriber subscriber
+     */
+    public void dispatchMissedEvents(String fid, AsyncContext ac, ChartEventSubscriber subscriber) {
+        
+        List<ChartEventModel> events = getEventsAfter(fid, contextHolder.getChartEventBuffer(fid), subscriber);
+        if (events == null) {
+            return;
+        }
+        if (!contextHolder.getAsyncContextMap(fid).remove(ac, subscriber)) {
+            return;
+        }
+        ac.getRequest().setAttribute(ChartEventResource.KEY_NAME, events);
+        ac.dispatch(ChartEventResource.DISPATCH_LIST_URL);
+    }
+    
+    /**
+     * SSE接続を登録する。lastSequence より後のイベントがあれば先に送る。
+     * lastSequence が 0 の場合は現在の番号だけを送り、イベントを受け取る前に切断されても
+     * その番号から再接続できるようにする。
+     * @param stream ChartEventStream
+     * @param lastSequence クライアントが最後に受け取った番号
+     */
+    public void openEventStream(ChartEventStream stream, long lastSequence) {
+        
+        String fid = stream.getFacilityId();
+        ChartEventBuffer buffer = contextHolder.getChartEventBuffer(fid);
+        
+        // 登録と未受信分の送信の間に新しいイベントが割り込まないようにする
+        synchronized (buffer) {
+            if (lastSequence > 0L) {
+                ChartEventSubscriber subscriber = new ChartEventSubscriber(stream.getClientUUID(), lastSequence);
+                List<ChartEventModel> events = getEventsAfter(fid, buffer, subscriber);
+                if (events != null) {
+                    for (ChartEventModel e : events) {
+                        if (!stream.getClientUUID().equals(e.getIssuerUUID())) {
+                            stream.send(e);
+                        }
                     }
                 }
+            } else {
+                stream.sendSequence(buffer.getSequence());
             }
+            contextHolder.addEventStream(stream);
+        }
+    }
+    
+    /**
+     * 全SSE接続にハートビートを送る。書けない接続はここで閉じられる。
+     */
+    public void sendHeartbeat() {
+        for (ChartEventStream stream : contextHolder.getAllEventStreams()) {
+            stream.heartbeat();
         }
     }
     
+    public long getLastSequence(String fid) {
+        return contextHolder.getChartEventBuffer(fid).getSequence();
+    }
+    
     public String getServerUUID() {
         return contextHolder.getServerUUID();
     }
@@ -84,6 +247,10 @@ public class ChartEventServiceBean {
         return contextHolder.getPvtList(fid);
     }
     
+    public PatientVisitStore getPvtStore(String fid) {
+        return contextHolder.getPvtStore(fid);
+    }
+    
     /**
      * ChartEventModelを処理する
      */
@@ -135,17 +302,7 @@ public class ChartEventServiceBean {
             em.remove(exist);
         }
         // pvtListから削除
-        List<PatientVisitModel> pvtList = getPvtList(fid);
-        PatientVisitModel toRemove = null;
-        for (PatientVisitModel model : pvtList) {
-            if (model.getId() == pvtPk) {
-                toRemove = model;
-                break;
-            }
-        }
-        if (toRemove != null) {
-            pvtList.remove(toRemove);
-        }
+        getPvtStore(fid).remove(pvtPk);
     }
     
     private boolean processPvtStateEvent(ChartEventModel evt) {
@@ -164,7 +321,7 @@ public class ChartEventServiceBean {
             return false;
         }
 
-        List<PatientVisitModel> pvtList = getPvtList(fid);
+        PatientVisitStore pvtStore = getPvtStore(fid);
 
         // データベースのPatientVisitModelを更新
         PatientVisitModel pvt = em.find(PatientVisitModel.class, pvtId);
@@ -209,49 +366,47 @@ public class ChartEventServiceBean {
         }
 
         // pvtListを更新
-        for (PatientVisitModel model : pvtList) {
-            if (model.getId() == pvtId) {
+        PatientVisitModel model = pvtStore.get(pvtId);
+        if (model != null) {
 //s.oh^ 2013/08/29
-                //model.setState(state);
-                if(state <= 1 && model.getState() >= 2) {
-                    if((state & (1 << PatientVisitModel.BIT_CANCEL)) == 0 && (model.getState() & (1 << PatientVisitModel.BIT_CANCEL)) > 0) {
-                        int status = model.getState();
-                        status &= ~(1 << PatientVisitModel.BIT_CANCEL);
-                        model.setState(status);
-                    }else if((state & (1 << PatientVisitModel.BIT_TREATMENT)) == 0 && (model.getState() & (1 << PatientVisitModel.BIT_TREATMENT)) > 0) {
-                        int status = model.getState();
-                        status &= ~(1 << PatientVisitModel.BIT_TREATMENT);
-                        model.setState(status);
-                    }else if((state & (1 << PatientVisitModel.BIT_GO_OUT)) == 0 && (model.getState() & (1 << PatientVisitModel.BIT_GO_OUT)) > 0) {
-                        int status = model.getState();
-                        status &= ~(1 << PatientVisitModel.BIT_GO_OUT);
-                        model.setState(status);
-                    }else if((state & (1 << PatientVisitModel.BIT_HURRY)) == 0 && (model.getState() & (1 << PatientVisitModel.BIT_HURRY)) > 0) {
-                        int status = model.getState();
-                        status &= ~(1 << PatientVisitModel.BIT_HURRY);
-                        model.setState(status);
-                    }else{
-                        log("state <= 1 && model.getState() >= 2 && model.getState() != BIT_CANCEL/BIT_TREATMENT/BIT_GO_OUT/BIT_HURRY");
-                    }
-                    // 正しい情報で通知するように設定
-                    evt.setState(model.getState());
+            //model.setState(state);
+            if(state <= 1 && model.getState() >= 2) {
+                if((state & (1 << PatientVisitModel.BIT_CANCEL)) == 0 && (model.getState() & (1 << PatientVisitModel.BIT_CANCEL)) > 0) {
+                    int status = model.getState();
+                    status &= ~(1 << PatientVisitModel.BIT_CANCEL);
+                    model.setState(status);
+                }else if((state & (1 << PatientVisitModel.BIT_TREATMENT)) == 0 && (model.getState() & (1 << PatientVisitModel.BIT_TREATMENT)) > 0) {
+                    int status = model.getState();
+                    status &= ~(1 << PatientVisitModel.BIT_TREATMENT);
+                    model.setState(status);
+                }else if((state & (1 << PatientVisitModel.BIT_GO_OUT)) == 0 && (model.getState() & (1 << PatientVisitModel.BIT_GO_OUT)) > 0) {
+                    int status = model.getState();
+                    status &= ~(1 << PatientVisitModel.BIT_GO_OUT);
+                    model.setState(status);
+                }else if((state & (1 << PatientVisitModel.BIT_HURRY)) == 0 && (model.getState() & (1 << PatientVisitModel.BIT_HURRY)) > 0) {
+                    int status = model.getState();
+                    status &= ~(1 << PatientVisitModel.BIT_HURRY);
+                    model.setState(status);
                 }else{
-                    model.setState(state);
+                    log("state <= 1 && model.getState() >= 2 && model.getState() != BIT_CANCEL/BIT_TREATMENT/BIT_GO_OUT/BIT_HURRY");
                 }
-//s.oh$
-                model.setByomeiCount(byomeiCount);
-                model.setByomeiCountToday(byomeiCountToday);
-                model.setMemo(memo);
-                model.getPatientModel().setOwnerUUID(ownerUUID);
-                break;
+                // 正しい情報で通知するように設定
+                evt.setState(model.getState());
+            }else{
+                model.setState(state);
             }
+//s.oh$
+            model.setByomeiCount(byomeiCount);
+            model.setByomeiCountToday(byomeiCountToday);
+            model.setMemo(memo);
+            model.getPatientModel().setOwnerUUID(ownerUUID);
+            pvtStore.touch(pvtId);
         }
 //s.oh^ 2013/08/13
-        for (PatientVisitModel model : pvtList) {
-            if (model.getPatientModel().getId() == ptPk) {
-                model.setStateBit(PatientVisitModel.BIT_OPEN, ownerUUID != null);
-                model.getPatientModel().setOwnerUUID(ownerUUID);
-            }
+        for (PatientVisitModel samePatient : pvtStore.getByPatient(ptPk)) {
+            samePatient.setStateBit(PatientVisitModel.BIT_OPEN, ownerUUID != null);
+            samePatient.getPatientModel().setOwnerUUID(ownerUUID);
+            pvtStore.touch(samePatient.getId());
         }
 //s.oh$
         return true;
@@ -269,8 +424,6 @@ public class ChartEventServiceBean {
             return false;
         }
 
-        List<PatientVisitModel> pvtList = getPvtList(fid);
-
         PatientVisitModel pvt = em.find(PatientVisitModel.class, pvtId);
         if(pvt != null) {
             pvt.setMemo(memo);
@@ -278,11 +431,11 @@ public class ChartEventServiceBean {
         
         log("processPvtMemoEvent : pvtPk = " + String.valueOf(pvtId) + ", memo = " + memo);
 
-        for(PatientVisitModel model : pvtList) {
-            if(model.getId() == pvtId) {
-                model.setMemo(memo);
-                break;
-            }
+        PatientVisitStore pvtStore = getPvtStore(fid);
+        PatientVisitModel model = pvtStore.get(pvtId);
+        if(model != null) {
+            model.setMemo(memo);
+            pvtStore.touch(pvtId);
         }
         return true;
     }
@@ -311,9 +464,9 @@ public class ChartEventServiceBean {
         String fromDate = frmt.format(contextHolder.getToday().getTime());
         String toDate = frmt.format(contextHolder.getTomorrow().getTime());
 
-        // PatientVisitModelを施設IDで検索する
+        // PatientVisitModelを施設IDで検索する 患者も一緒に取得する
         final String sql =
-                "from PatientVisitModel p " +
+                "from PatientVisitModel p join fetch p.patient " +
                 "where p.pvtDate >= :fromDate and p.pvtDate < :toDate " +
                 "order by p.id";
         @SuppressWarnings("unchecked")
@@ -323,52 +476,58 @@ public class ChartEventServiceBean {
                 .setParameter("toDate", toDate)
                 .getResultList();
 
-        // 患者の基本データを取得する
-        // 来院情報と患者は ManyToOne の関係である
-        //int counter = 0;
+        // 健康保険、当日の予約、病名数は患者の PK の IN でまとめて取得する
+        PVTServiceBean.setHealthInsurances(em, result);
+        PVTServiceBean.setAppointments(em, result, contextHolder.getToday().getTime());
+        setByomeiCounts(em, result);
 
+        // 設定し終えてから受付リストに加える
         for (PatientVisitModel pvt : result) {
-            
-            String fid = pvt.getFacilityId();
-            contextHolder.getPvtList(fid).add(pvt);
-
-            PatientModel patient = pvt.getPatientModel();
-
-            // 患者の健康保険を取得する
-            @SuppressWarnings("unchecked")
-            List<HealthInsuranceModel> insurances =
-                    em.createQuery("from HealthInsuranceModel h where h.patient.id = :pk")
-                    .setParameter("pk", patient.getId())
-                    .getResultList();
-            patient.setHealthInsurances(insurances);
-
-            KarteBean karte = (KarteBean)
-                    em.createQuery("from KarteBean k where k.patient.id = :pk")
-                    .setParameter("pk", patient.getId())
-                    .getSingleResult();
+            contextHolder.getPvtStore(pvt.getFacilityId()).add(pvt);
+        }
+        
+        log("ChartEventService: initializePvtList did done");
+    }
+    
+    /**
+     * 来院情報に病名数を設定する。患者の PK の IN でまとめて取得する。
+     * @param em EntityManager
+     * @param pvtList 来院情報のリスト
+     */
+    static void setByomeiCounts(EntityManager em, List<PatientVisitModel> pvtList) {
 
-            // カルテの PK を得る
-            long karteId = karte.getId();
+        Map<Long, List<Object[]>> map = new HashMap<>(pvtList.size()*2);
+        for (PatientVisitModel pvt : pvtList) {
+            map.put(pvt.getPatientModel().getId(), new ArrayList<Object[]>());
+        }
 
-            // 予約を検索する
-            @SuppressWarnings("unchecked")
-             List<AppointmentModel> list =
-                    em.createQuery("from AppointmentModel a where a.karte.id = :karteId and a.date = :date")
-                    .setParameter("karteId", karteId)
-                    .setParameter("date", contextHolder.getToday().getTime())
+        List<Long> pks = new ArrayList<>(map.keySet());
+        for (int from = 0; from < pks.size(); from += PVTServiceBean.ID_PAGE_SIZE) {
+            List<Object[]> list = em.createQuery(QUERY_BYOMEI_BY_PATIENT_PKS, Object[].class)
+                    .setParameter("pks", pks.subList(from, Math.min(from + PVTServiceBean.ID_PAGE_SIZE, pks.size())))
                     .getResultList();
-            if (list != null && !list.isEmpty()) {
-                AppointmentModel appo = list.get(0);
-                pvt.setAppointment(appo.getName());
+            for (Object[] row : list) {
+                map.get((Long)row[0]).add(row);
             }
+        }
 
-            // 病名数をチェックする
-            setByomeiCount(karteId, pvt);
-            // 受付番号セット
-            //pvt.setNumber(++counter);
+        for (PatientVisitModel pvt : pvtList) {
+            int byomeiCount = 0;
+            int byomeiCountToday = 0;
+            Date pvtDate = ModelUtils.getCalendar(pvt.getPvtDate()).getTime();
+            for (Object[] row : map.get(pvt.getPatientModel().getId())) {
+                Date start = ModelUtils.getStartDate((Date)row[1]).getTime();
+                Date ended = ModelUtils.getEndedDate((Date)row[2]).getTime();
+                if (start.getTime() == pvtDate.getTime()) {
+                    byomeiCountToday++;
+                }
+                if (ModelUtils.isDateBetween(start, ended, pvtDate)) {
+                    byomeiCount++;
+                }
+            }
+            pvt.setByomeiCount(byomeiCount);
+            pvt.setByomeiCountToday(byomeiCountToday);
         }
-        
-        log("ChartEventService: initializePvtList did done");
     }
     
     // データベースを調べてpvtに病名数を設定する
@@ -408,7 +567,7 @@ public class ChartEventServiceBean {
         
         contextHolder.setToday();
         
-        Map<String, List<PatientVisitModel>> map = contextHolder.getPvtListMap();
+        Map<String, PatientVisitStore> map = contextHolder.getPvtStoreMap();
         
 //s.oh^ 受付リストのクリア 2013/08/15
         Properties config = new Properties();
@@ -436,8 +595,8 @@ public class ChartEventServiceBean {
             List<String> fidList = new ArrayList<String>();
             for (Iterator itr = map.entrySet().iterator(); itr.hasNext();) {
                 Map.Entry entry = (Map.Entry) itr.next();
-                List<PatientVisitModel> pvtList = (List<PatientVisitModel>) entry.getValue();
-                pvtList.clear();
+                PatientVisitStore pvtStore = (PatientVisitStore) entry.getValue();
+                pvtStore.clear();
                 fidList.add((String)entry.getKey());
                 log("ChartEventService: fid = " + (String)entry.getKey());
             }
@@ -456,18 +615,12 @@ public class ChartEventServiceBean {
         
             for (Iterator itr = map.entrySet().iterator(); itr.hasNext();) {
                 Map.Entry entry = (Map.Entry) itr.next();
-                List<PatientVisitModel> pvtList = (List<PatientVisitModel>) entry.getValue();
+                PatientVisitStore pvtStore = (PatientVisitStore) entry.getValue();
 
-                List<PatientVisitModel> toRemove = new ArrayList<PatientVisitModel>();
-                for (PatientVisitModel pvt : pvtList) {
-                    // BIT_SAVE_CLAIMとBIT_MODIFY_CLAIMは削除する
-                    if (pvt.getStateBit(PatientVisitModel.BIT_SAVE_CLAIM) 
+                // BIT_SAVE_CLAIMとBIT_MODIFY_CLAIMは削除する
+                pvtStore.removeIf(pvt -> pvt.getStateBit(PatientVisitModel.BIT_SAVE_CLAIM) 
                             || pvt.getStateBit(PatientVisitModel.BIT_MODIFY_CLAIM)
-                            || pvt.getStateBit(PatientVisitModel.BIT_CANCEL)) {
-                        toRemove.add(pvt);
-                    }
-                }
-                pvtList.removeAll(toRemove);
+                            || pvt.getStateBit(PatientVisitModel.BIT_CANCEL));
 
                 // クライアントに伝える。
                 String fid = (String) entry.getKey();
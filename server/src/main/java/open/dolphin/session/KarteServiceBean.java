@@ -5,13 +5,16 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.*;
+import java.util.function.Function;
 import java.util.logging.Logger;
 import javax.ejb.Stateless;
 import javax.inject.Named;
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
 import javax.persistence.PersistenceContext;
+import javax.persistence.Query;
 import open.dolphin.infomodel.*;
+import open.dolphin.mbean.DecodedModuleCache;
 import open.dolphin.msg.ClaimSender;
 import open.dolphin.msg.DiagnosisSender;
 
@@ -34,16 +37,29 @@ public class KarteServiceBean {
     private static final String PID = "pid";
 
     private static final String QUERY_KARTE = "from KarteBean k where k.patient.id=:patientPk";
-    private static final String QUERY_ALLERGY = "from ObservationModel o where o.karte.id=:karteId and o.observation='Allergy'";
-    private static final String QUERY_BODY_HEIGHT = "from ObservationModel o where o.karte.id=:karteId and o.observation='PhysicalExam' and o.phenomenon='bodyHeight'";
-    private static final String QUERY_BODY_WEIGHT = "from ObservationModel o where o.karte.id=:karteId and o.observation='PhysicalExam' and o.phenomenon='bodyWeight'";
+    // アレルギー、身長、体重を一回の検索で取得する
+    private static final String OBSERVATION_ALLERGY = "Allergy";
+    private static final String PHENOMENON_BODY_HEIGHT = "bodyHeight";
+    private static final String PHENOMENON_BODY_WEIGHT = "bodyWeight";
+    private static final String QUERY_KARTE_OBSERVATION = "from ObservationModel o where o.karte.id=:karteId and (o.observation='Allergy' or (o.observation='PhysicalExam' and o.phenomenon in ('bodyHeight','bodyWeight'))) order by o.id";
     // Cancel status=64 を where へ追加
-    private static final String QUERY_PATIENT_VISIT = "from PatientVisitModel p where p.patient.id=:patientPk and p.pvtDate >= :fromDate and p.status!=64";
-    private static final String QUERY_DOC_INFO = "from DocumentModel d where d.karte.id=:karteId and d.started >= :fromDate and (d.status='F' or d.status='T')";
+    private static final String QUERY_PATIENT_VISIT_DATE = "select p.pvtDate from PatientVisitModel p where p.patient.id=:patientPk and p.pvtDate >= :fromDate and p.status!=64";
+    // 文書履歴は DocumentModel を作らず DocInfo の列と pk だけを引く
+    private static final String QUERY_DOC_INFO = "select d.id, d.linkId, d.confirmed, d.started, d.status, d.docInfo from DocumentModel d where d.karte.id=:karteId and d.started >= :fromDate and (d.status='F' or d.status='T')";
     private static final String QUERY_PATIENT_MEMO = "from PatientMemoModel p where p.karte.id=:karteId";
-
-    private static final String QUERY_DOCUMENT_INCLUDE_MODIFIED = "from DocumentModel d where d.karte.id=:karteId and d.started >= :fromDate and d.status !='D'";
-    private static final String QUERY_DOCUMENT = "from DocumentModel d where d.karte.id=:karteId and d.started >= :fromDate and (d.status='F' or d.status='T')";
+    // カルテオープン時 カルテ、患者メモ、最終文書日を一回の検索で取得する
+    // メモがなければ p は null の一行、最終文書日は相関サブクエリで求める
+    private static final String SNAPSHOT_SELECT = "select k, p, (select max(d.started) from DocumentModel d where d.karte.id=k.id and (d.status='F' or d.status='T')) from PatientMemoModel p right join p.karte k";
+    private static final String QUERY_KARTE_SNAPSHOT = SNAPSHOT_SELECT + " where k.patient.id=:patientPk";
+    private static final String QUERY_KARTE_SNAPSHOT_BY_FID_PID = SNAPSHOT_SELECT + " where k.patient.facilityId=:fid and k.patient.patientId=:pid";
+
+    private static final String QUERY_DOCUMENT_INCLUDE_MODIFIED = "select d.id, d.linkId, d.confirmed, d.started, d.status, d.docInfo from DocumentModel d where d.karte.id=:karteId and d.started >= :fromDate and d.status !='D'";
+    private static final String QUERY_DOCUMENT = QUERY_DOC_INFO;
+    // 文書履歴のページング 新しい順に (started, id) より前のものを引く
+    private static final String BEFORE_DATE = "beforeDate";
+    private static final String BEFORE_ID = "beforeId";
+    private static final String DOC_INFO_BEFORE = " and (d.started < :beforeDate or (d.started = :beforeDate and d.id < :beforeId))";
+    private static final String DOC_INFO_ORDER_DESC = " order by d.started desc, d.id desc";
     private static final String QUERY_DOCUMENT_BY_LINK_ID = "from DocumentModel d where d.linkId=:id";
 
 //s.oh^ 2014/07/29 スタンプ／シェーマ／添付のソート
@@ -54,14 +70,26 @@ public class KarteServiceBean {
     private static final String QUERY_SCHEMA_BY_DOC_ID = "from SchemaModel i where i.document.id=:id order by i.id";
     private static final String QUERY_ATTACHMENT_BY_DOC_ID = "from AttachmentModel a where a.document.id=:id order by a.id";
 //s.oh$
+    // 文書と子要素(モジュール、シェーマ、添付)を id リストで一括取得する
+    private static final String IDS = "ids";
+    private static final String QUERY_DOCUMENT_BY_IDS = "from DocumentModel d where d.id in (:ids)";
+    private static final String QUERY_MODULE_BY_DOC_IDS = "from ModuleModel m where m.document.id in (:ids) order by m.id";
+    private static final String QUERY_SCHEMA_BY_DOC_IDS = "from SchemaModel i where i.document.id in (:ids) order by i.id";
+    private static final String QUERY_ATTACHMENT_BY_DOC_IDS = "from AttachmentModel a where a.document.id in (:ids) order by a.id";
+    // IN 句へ一度に渡す id の上限
+    private static final int DOC_ID_PAGE_SIZE = 500;
 //s.oh^ 2014/08/20 添付ファイルの別読
     private static final String QUERY_ATTACHMENT_BY_ID = "from AttachmentModel a where a.id=:id";
+    // LOB 列を読まずに blobId を引く
+    private static final String QUERY_SCHEMA_BLOB = "select s.blobId, s.extRef.contentType from SchemaModel s where s.id=:id and s.karte.patient.facilityId=:fid";
+    private static final String QUERY_ATTACHMENT_BLOB = "select a.blobId, a.contentType from AttachmentModel a where a.id=:id and a.karte.patient.facilityId=:fid";
 //s.oh$
 //minagawa^ LSC Test
     //private static final String QUERY_MODULE_BY_ENTITY = "from ModuleModel m where m.karte.id=:karteId and m.moduleInfo.entity=:entity and m.started between :fromDate and :toDate and m.status='F'";
-    private static final String QUERY_MODULE_BY_ENTITY = "from ModuleModel m where m.karte.id=:karteId and m.moduleInfo.entity=:entity and m.started between :fromDate and :toDate and m.status='F' order by m.started";
+    // 抽出期間の条件は periodsClause で組み立てる
+    private static final String QUERY_MODULE_BY_ENTITY = "from ModuleModel m where m.karte.id=:karteId and m.moduleInfo.entity=:entity and m.status='F' and %s order by m.started";
 //minagawa$
-    private static final String QUERY_SCHEMA_BY_KARTE_ID = "from SchemaModel i where i.karte.id =:karteId and i.started between :fromDate and :toDate and i.status='F'";
+    private static final String QUERY_SCHEMA_BY_KARTE_ID = "from SchemaModel i where i.karte.id =:karteId and i.status='F' and %s order by i.started";
 
     private static final String QUERY_SCHEMA_BY_FACILITY_ID = "from SchemaModel i where i.karte.patient.facilityId like :fid and i.extRef.sop is not null and i.status='F'";
 
@@ -77,15 +105,8 @@ public class KarteServiceBean {
     private static final String QUERY_LETTER_BY_ID = "from TouTouLetter t where t.id=:id";
     private static final String QUERY_REPLY_BY_ID = "from TouTouReply t where t.id=:id";
 
-    private static final String QUERY_APPO_BY_KARTE_ID_PERIOD = "from AppointmentModel a where a.karte.id = :karteId and a.date between :fromDate and :toDate";
+    private static final String QUERY_APPO_BY_KARTE_ID_PERIOD = "from AppointmentModel a where a.karte.id = :karteId and %s order by a.date";
 
-    private static final String QUERY_PATIENT_BY_FID_PID = "from PatientModel p where p.facilityId=:fid and p.patientId=:pid";
-    
-//masuda^
-    private static final String QUERY_LASTDOC_DATE 
-            = "select max(m.started) from DocumentModel m where m.karte.id = :karteId and (m.status = 'F' or m.status = 'T')";
-//masuda$
-    
 //s.oh^ 2014/04/03 サマリー対応
     private static final String QUERY_FREEDOCU_BY_FPID = "from PatientFreeDocumentModel p where p.facilityPatId=:fpid";
     private static final String FPID = "fpid";
@@ -107,135 +128,13 @@ public class KarteServiceBean {
         try {
             
             // 患者レコードは FacilityId と patientId で複合キーになっている
-            PatientModel patient
-                = (PatientModel)em.createQuery(QUERY_PATIENT_BY_FID_PID)
-                .setParameter(FID, fid)
-                .setParameter(PID, pid)
-                .getSingleResult();
-
-            long patientPK = patient.getId();
-            
-            // 最初に患者のカルテを取得する
-            List<KarteBean> kartes = em.createQuery(QUERY_KARTE)
-                                  .setParameter(PATIENT_PK, patientPK)
+            // 患者とカルテを一度に取得する
+            List<Object[]> rows = em.createQuery(QUERY_KARTE_SNAPSHOT_BY_FID_PID)
+                                  .setParameter(FID, fid)
+                                  .setParameter(PID, pid)
                                   .getResultList();
-            KarteBean karte = kartes.get(0);
-
-            // カルテの PK を得る
-            long karteId = karte.getId();
-
-            // アレルギーデータを取得する
-            List<ObservationModel> list1 =
-                    (List<ObservationModel>)em.createQuery(QUERY_ALLERGY)
-                                              .setParameter(KARTE_ID, karteId)
-                                              .getResultList();
-            if (!list1.isEmpty()) {
-                List<AllergyModel> allergies = new ArrayList<>(list1.size());
-                for (ObservationModel observation : list1) {
-                    AllergyModel allergy = new AllergyModel();
-                    allergy.setObservationId(observation.getId());
-                    allergy.setFactor(observation.getPhenomenon());
-                    allergy.setSeverity(observation.getCategoryValue());
-                    allergy.setIdentifiedDate(observation.confirmDateAsString());
-                    allergy.setMemo(observation.getMemo());
-                    allergies.add(allergy);
-                }
-                karte.setAllergies(allergies);
-            }
-
-            // 身長データを取得する
-            List<ObservationModel> list2 =
-                    (List<ObservationModel>)em.createQuery(QUERY_BODY_HEIGHT)
-                                              .setParameter(KARTE_ID, karteId)
-                                              .getResultList();
-            if (!list2.isEmpty()) {
-                List<PhysicalModel> physicals = new ArrayList<>(list2.size());
-                for (ObservationModel observation : list2) {
-                    PhysicalModel physical = new PhysicalModel();
-                    physical.setHeightId(observation.getId());
-                    physical.setHeight(observation.getValue());
-                    physical.setIdentifiedDate(observation.confirmDateAsString());
-                    physical.setMemo(ModelUtils.getDateAsString(observation.getRecorded()));
-                    physicals.add(physical);
-                }
-                karte.setHeights(physicals);
-            }
-
-            // 体重データを取得する
-            List<ObservationModel> list3 =
-                    (List<ObservationModel>)em.createQuery(QUERY_BODY_WEIGHT)
-                                              .setParameter(KARTE_ID, karteId)
-                                              .getResultList();
-            if (!list3.isEmpty()) {
-                List<PhysicalModel> physicals = new ArrayList<>(list3.size());
-                for (ObservationModel observation : list3) {
-                    PhysicalModel physical = new PhysicalModel();
-                    physical.setWeightId(observation.getId());
-                    physical.setWeight(observation.getValue());
-                    physical.setIdentifiedDate(observation.confirmDateAsString());
-                    physical.setMemo(ModelUtils.getDateAsString(observation.getRecorded()));
-                    physicals.add(physical);
-                }
-                karte.setWeights(physicals);
-            }
-
-            // 直近の来院日エントリーを取得しカルテに設定する
-            List<PatientVisitModel> latestVisits =
-                    (List<PatientVisitModel>)em.createQuery(QUERY_PATIENT_VISIT)
-                                               .setParameter(PATIENT_PK, patientPK)
-                                               .setParameter(FROM_DATE, ModelUtils.getDateAsString(fromDate))
-                                               .getResultList();
-
-            if (!latestVisits.isEmpty()) {
-                List<String> visits = new ArrayList<>(latestVisits.size());
-                for (PatientVisitModel bean : latestVisits) {
-                    // 2012-07-23
-                    // cancelしている場合は返さない
-                    // 来院日のみを使用する
-                    visits.add(bean.getPvtDate());
-                }
-                karte.setPatientVisits(visits);
-            }
-
-            // 文書履歴エントリーを取得しカルテに設定する
-            List<DocumentModel> documents =
-                    (List<DocumentModel>)em.createQuery(QUERY_DOC_INFO)
-                                           .setParameter(KARTE_ID, karteId)
-                                           .setParameter(FROM_DATE, fromDate)
-                                           .getResultList();
-
-            if (!documents.isEmpty()) {
-                List<DocInfoModel> c = new ArrayList<>(documents.size());
-                for (DocumentModel docBean : documents) {
-                    docBean.toDetuch();
-                    c.add(docBean.getDocInfoModel());
-                }
-                karte.setDocInfoList(c);
-            }
-
-            // 患者Memoを取得する
-            List<PatientMemoModel> memo =
-                    (List<PatientMemoModel>)em.createQuery(QUERY_PATIENT_MEMO)
-                                              .setParameter(KARTE_ID, karteId)
-                                              .getResultList();
-            if (!memo.isEmpty()) {
-                karte.setMemoList(memo);
-            }
             
-//masuda^
-            // 最終文書日
-            try {
-                Date lastDocDate = (Date)
-                        em.createQuery(QUERY_LASTDOC_DATE)
-                        .setParameter(KARTE_ID, karteId)
-                        .getSingleResult();
-                karte.setLastDocDate(lastDocDate);
-            } catch (NoResultException e) {
-            }
-//masuda$            
-
-            return karte;
-        
+            return fetchKarteSnapshot(rows, fromDate);
             
         } catch (Exception e) {
             
@@ -254,128 +153,128 @@ public class KarteServiceBean {
 
         try {
             // 最初に患者のカルテを取得する
-            List<KarteBean> kartes = em.createQuery(QUERY_KARTE)
+            List<Object[]> rows = em.createQuery(QUERY_KARTE_SNAPSHOT)
                                   .setParameter(PATIENT_PK, patientPK)
                                   .getResultList();
-            KarteBean karte = kartes.get(0);
+            
+            return fetchKarteSnapshot(rows, fromDate);
 
-            // カルテの PK を得る
-            long karteId = karte.getId();
-
-            // アレルギーデータを取得する
-            List<ObservationModel> list1 =
-                    (List<ObservationModel>)em.createQuery(QUERY_ALLERGY)
-                                              .setParameter(KARTE_ID, karteId)
-                                              .getResultList();
-            if (!list1.isEmpty()) {
-                List<AllergyModel> allergies = new ArrayList<>(list1.size());
-                for (ObservationModel observation : list1) {
-                    AllergyModel allergy = new AllergyModel();
-                    allergy.setObservationId(observation.getId());
-                    allergy.setFactor(observation.getPhenomenon());
-                    allergy.setSeverity(observation.getCategoryValue());
-                    allergy.setIdentifiedDate(observation.confirmDateAsString());
-                    allergy.setMemo(observation.getMemo());
-                    allergies.add(allergy);
-                }
-                karte.setAllergies(allergies);
-            }
+        } catch (NoResultException e) {
+            // 患者登録の際にカルテも生成してある
+        }
 
-            // 身長データを取得する
-            List<ObservationModel> list2 =
-                    (List<ObservationModel>)em.createQuery(QUERY_BODY_HEIGHT)
-                                              .setParameter(KARTE_ID, karteId)
-                                              .getResultList();
-            if (!list2.isEmpty()) {
-                List<PhysicalModel> physicals = new ArrayList<>(list2.size());
-                for (ObservationModel observation : list2) {
-                    PhysicalModel physical = new PhysicalModel();
-                    physical.setHeightId(observation.getId());
-                    physical.setHeight(observation.getValue());
-                    physical.setIdentifiedDate(observation.confirmDateAsString());
-                    physical.setMemo(ModelUtils.getDateAsString(observation.getRecorded()));
-                    physicals.add(physical);
-                }
-                karte.setHeights(physicals);
+        return null;
+    }
+    
+    /**
+     * カルテオープン時に必要な情報(アレルギー、身長、体重、来院日、文書履歴、
+     * 患者メモ、最終文書日)を KarteBean へ設定する。
+     * 患者メモと最終文書日はカルテと同じ検索で取得済み、アレルギーと身長・体重は一回の
+     * Observation 検索で取得し、メモリ上で振り分ける。
+     * @param rows カルテ、患者メモ、最終文書日の検索結果
+     * @param fromDate 各種エントリの検索開始日
+     * @return 基礎的な情報をフェッチした KarteBean
+     */
+    private KarteBean fetchKarteSnapshot(List<Object[]> rows, Date fromDate) {
+
+        // カルテと患者メモ、最終文書日
+        KarteBean karte = (KarteBean)rows.get(0)[0];
+        long karteId = karte.getId();
+        long patientPK = karte.getPatientModel().getId();
+        Date lastDocDate = (Date)rows.get(0)[2];
+        List<PatientMemoModel> memo = new ArrayList<>(1);
+        for (Object[] row : rows) {
+            if (row[1] != null && ((KarteBean)row[0]).getId() == karteId) {
+                memo.add((PatientMemoModel)row[1]);
             }
+        }
 
-            // 体重データを取得する
-            List<ObservationModel> list3 =
-                    (List<ObservationModel>)em.createQuery(QUERY_BODY_WEIGHT)
-                                              .setParameter(KARTE_ID, karteId)
-                                              .getResultList();
-            if (!list3.isEmpty()) {
-                List<PhysicalModel> physicals = new ArrayList<>(list3.size());
-                for (ObservationModel observation : list3) {
-                    PhysicalModel physical = new PhysicalModel();
-                    physical.setWeightId(observation.getId());
-                    physical.setWeight(observation.getValue());
-                    physical.setIdentifiedDate(observation.confirmDateAsString());
-                    physical.setMemo(ModelUtils.getDateAsString(observation.getRecorded()));
-                    physicals.add(physical);
-                }
-                karte.setWeights(physicals);
+        // アレルギー、身長、体重データを一括して取得する
+        List<ObservationModel> observations =
+                (List<ObservationModel>)em.createQuery(QUERY_KARTE_OBSERVATION)
+                                          .setParameter(KARTE_ID, karteId)
+                                          .getResultList();
+        
+        List<AllergyModel> allergies = new ArrayList<>();
+        List<PhysicalModel> heights = new ArrayList<>();
+        List<PhysicalModel> weights = new ArrayList<>();
+        
+        for (ObservationModel observation : observations) {
+            
+            if (OBSERVATION_ALLERGY.equals(observation.getObservation())) {
+                AllergyModel allergy = new AllergyModel();
+                allergy.setObservationId(observation.getId());
+                allergy.setFactor(observation.getPhenomenon());
+                allergy.setSeverity(observation.getCategoryValue());
+                allergy.setIdentifiedDate(observation.confirmDateAsString());
+                allergy.setMemo(observation.getMemo());
+                allergies.add(allergy);
+                
+            } else if (PHENOMENON_BODY_HEIGHT.equals(observation.getPhenomenon())) {
+                PhysicalModel physical = new PhysicalModel();
+                physical.setHeightId(observation.getId());
+                physical.setHeight(observation.getValue());
+                physical.setIdentifiedDate(observation.confirmDateAsString());
+                physical.setMemo(ModelUtils.getDateAsString(observation.getRecorded()));
+                heights.add(physical);
+                
+            } else if (PHENOMENON_BODY_WEIGHT.equals(observation.getPhenomenon())) {
+                PhysicalModel physical = new PhysicalModel();
+                physical.setWeightId(observation.getId());
+                physical.setWeight(observation.getValue());
+                physical.setIdentifiedDate(observation.confirmDateAsString());
+                physical.setMemo(ModelUtils.getDateAsString(observation.getRecorded()));
+                weights.add(physical);
             }
+        }
+        if (!allergies.isEmpty()) {
+            karte.setAllergies(allergies);
+        }
+        if (!heights.isEmpty()) {
+            karte.setHeights(heights);
+        }
+        if (!weights.isEmpty()) {
+            karte.setWeights(weights);
+        }
 
-            // 直近の来院日エントリーを取得しカルテに設定する
-            List<PatientVisitModel> latestVisits =
-                    (List<PatientVisitModel>)em.createQuery(QUERY_PATIENT_VISIT)
-                                               .setParameter(PATIENT_PK, patientPK)
-                                               .setParameter(FROM_DATE, ModelUtils.getDateAsString(fromDate))
-                                               .getResultList();
-
-            if (!latestVisits.isEmpty()) {
-                List<String> visits = new ArrayList<>(latestVisits.size());
-                for (PatientVisitModel bean : latestVisits) {
-                    // 来院日のみを使用する
-                    visits.add(bean.getPvtDate());
-                }
-                karte.setPatientVisits(visits);
-            }
+        // 直近の来院日エントリーを取得しカルテに設定する
+        // 2012-07-23 cancelしている場合は返さない(status!=64)
+        // 来院日のみを使用する
+        List<String> visits =
+                (List<String>)em.createQuery(QUERY_PATIENT_VISIT_DATE)
+                                .setParameter(PATIENT_PK, patientPK)
+                                .setParameter(FROM_DATE, ModelUtils.getDateAsString(fromDate))
+                                .getResultList();
 
-            // 文書履歴エントリーを取得しカルテに設定する
-            List<DocumentModel> documents =
-                    (List<DocumentModel>)em.createQuery(QUERY_DOC_INFO)
-                                           .setParameter(KARTE_ID, karteId)
-                                           .setParameter(FROM_DATE, fromDate)
-                                           .getResultList();
-
-            if (!documents.isEmpty()) {
-                List<DocInfoModel> c = new ArrayList<>(documents.size());
-                for (DocumentModel docBean : documents) {
-                    docBean.toDetuch();
-                    c.add(docBean.getDocInfoModel());
-                }
-                karte.setDocInfoList(c);
-            }
+        if (!visits.isEmpty()) {
+            karte.setPatientVisits(visits);
+        }
 
-            // 患者Memoを取得する
-            List<PatientMemoModel> memo =
-                    (List<PatientMemoModel>)em.createQuery(QUERY_PATIENT_MEMO)
-                                              .setParameter(KARTE_ID, karteId)
-                                              .getResultList();
-            if (!memo.isEmpty()) {
-                karte.setMemoList(memo);
-            }
-            
-//masuda^
-            // 最終文書日
-            try {
-                Date lastDocDate = (Date)
-                        em.createQuery(QUERY_LASTDOC_DATE)
-                        .setParameter(KARTE_ID, karteId)
-                        .getSingleResult();
-                karte.setLastDocDate(lastDocDate);
-            } catch (NoResultException e) {
-            }
-//masuda$
-            return karte;
+        // 文書履歴エントリーを取得しカルテに設定する
+        List<Object[]> documents =
+                (List<Object[]>)em.createQuery(QUERY_DOC_INFO)
+                                  .setParameter(KARTE_ID, karteId)
+                                  .setParameter(FROM_DATE, fromDate)
+                                  .getResultList();
 
-        } catch (NoResultException e) {
-            // 患者登録の際にカルテも生成してある
+        if (!documents.isEmpty()) {
+            List<DocInfoModel> c = new ArrayList<>(documents.size());
+            for (Object[] row : documents) {
+                c.add(toDocInfo(row));
+            }
+            karte.setDocInfoList(c);
         }
 
-        return null;
+        // 患者Memo
+        if (!memo.isEmpty()) {
+            karte.setMemoList(memo);
+        }
+        
+//masuda^
+        // 最終文書日
+        karte.setLastDocDate(lastDocDate);
+//masuda$
+        return karte;
     }
 
     /**
@@ -386,31 +285,65 @@ public class KarteServiceBean {
      * @return DocInfo のコレクション
      */
     public List<DocInfoModel> getDocumentList(long karteId, Date fromDate, boolean includeModifid) {
+        return getDocumentList(karteId, fromDate, includeModifid, null, 0L, 0);
+    }
 
-        List<DocumentModel> documents;
+    /**
+     * 文書履歴エントリを新しい順に取得する。
+     * DocumentModel はロードせず、DocInfo の列と pk だけを検索する。
+     * before を指定すると (before, beforeId) より古いものを返すので、
+     * 最後の要素の firstConfirmDate と docPk を渡せば続きを取得できる。
+     * @param karteId カルテId
+     * @param fromDate 取得開始日
+     * @param includeModifid 修正版を含める時 true
+     * @param before この開始日より前の文書、null の場合は最新から
+     * @param beforeId 開始日が before と同じ場合はこの pk より小さい文書
+     * @param maxResults 最大件数、0 以下の場合は全件
+     * @return DocInfo のコレクション
+     */
+    public List<DocInfoModel> getDocumentList(long karteId, Date fromDate, boolean includeModifid, Date before, long beforeId, int maxResults) {
 
-        if (includeModifid) {
-            documents = (List<DocumentModel>)em.createQuery(QUERY_DOCUMENT_INCLUDE_MODIFIED)
-            .setParameter(KARTE_ID, karteId)
-            .setParameter(FROM_DATE, fromDate)
-            .getResultList();
-        } else {
-            documents = (List<DocumentModel>)em.createQuery(QUERY_DOCUMENT)
-            .setParameter(KARTE_ID, karteId)
-            .setParameter(FROM_DATE, fromDate)
-            .getResultList();
+        StringBuilder sb = new StringBuilder(includeModifid ? QUERY_DOCUMENT_INCLUDE_MODIFIED : QUERY_DOCUMENT);
+        if (before != null) {
+            sb.append(DOC_INFO_BEFORE);
         }
+        sb.append(DOC_INFO_ORDER_DESC);
 
-        List<DocInfoModel> result = new ArrayList<>();
-        for (DocumentModel doc : documents) {
-            // モデルからDocInfo へ必要なデータを移す
-            // クライアントが DocInfo だけを利用するケースがあるため
-            doc.toDetuch();
-            result.add(doc.getDocInfoModel());
+        Query query = em.createQuery(sb.toString())
+                .setParameter(KARTE_ID, karteId)
+                .setParameter(FROM_DATE, fromDate);
+        if (before != null) {
+            query.setParameter(BEFORE_DATE, before)
+                 .setParameter(BEFORE_ID, beforeId);
+        }
+        if (maxResults > 0) {
+            query.setMaxResults(maxResults);
+        }
+        List<Object[]> rows = (List<Object[]>)query.getResultList();
+
+        List<DocInfoModel> result = new ArrayList<>(rows.size());
+        for (Object[] row : rows) {
+            result.add(toDocInfo(row));
         }
         return result;
     }
 
+    /**
+     * 文書履歴の検索結果の行から DocInfo を作る。
+     * DocumentModel.toDetuch() と同じ値を設定する。
+     * @param row id, linkId, confirmed, started, status, docInfo
+     * @return DocInfo
+     */
+    private DocInfoModel toDocInfo(Object[] row) {
+        DocInfoModel docInfo = (DocInfoModel)row[5];
+        docInfo.setDocPk(((Number)row[0]).longValue());
+        docInfo.setParentPk(row[1] != null ? ((Number)row[1]).longValue() : 0L);
+        docInfo.setConfirmDate((Date)row[2]);
+        docInfo.setFirstConfirmDate((Date)row[3]);
+        docInfo.setStatus((String)row[4]);
+        return docInfo;
+    }
+
     /**
      * 文書(DocumentModel Object)を取得する。
      * @param ids DocumentModel の pkコレクション
@@ -418,34 +351,28 @@ public class KarteServiceBean {
      */
     public List<DocumentModel> getDocuments(List<Long> ids) {
 
-        List<DocumentModel> ret = new ArrayList<>(3);
-
-        // ループする
-        for (Long id : ids) {
-
-            // DocuentBean を取得する
-            DocumentModel document = (DocumentModel) em.find(DocumentModel.class, id);
-
-            // ModuleBean を取得する
-            List modules = em.createQuery(QUERY_MODULE_BY_DOC_ID)
-            .setParameter(ID, id)
-            .getResultList();
-            document.setModules(modules);
-
-            // SchemaModel を取得する
-            List images = em.createQuery(QUERY_SCHEMA_BY_DOC_ID)
-            .setParameter(ID, id)
-            .getResultList();
-            document.setSchema(images);
-            
-            // AttachmentModel を取得する
-            List attachments = em.createQuery(QUERY_ATTACHMENT_BY_DOC_ID)
-            .setParameter(ID, id)
+        List<DocumentModel> ret = new ArrayList<>(ids.size());
+        
+        // DocuentBean を一括して取得し、指定された id の順に並べる
+        Map<Long, DocumentModel> map = new HashMap<>(ids.size()*2);
+        for (int from = 0; from < ids.size(); from += DOC_ID_PAGE_SIZE) {
+            List<Long> page = ids.subList(from, Math.min(from + DOC_ID_PAGE_SIZE, ids.size()));
+            List<DocumentModel> list = em.createQuery(QUERY_DOCUMENT_BY_IDS)
+            .setParameter(IDS, page)
             .getResultList();
-            document.setAttachment(attachments);
-
-            ret.add(document);
+            for (DocumentModel document : list) {
+                map.put(document.getId(), document);
+            }
+        }
+        for (Long id : ids) {
+            DocumentModel document = map.get(id);
+            if (document != null) {
+                ret.add(document);
+            }
         }
+
+        // ModuleBean、SchemaModel、AttachmentModel を一括して取得する
+        fetchDocumentChildren(ret);
         
 //s.oh^ 不具合修正
         for (DocumentModel doc : ret) {
@@ -458,6 +385,73 @@ public class KarteServiceBean {
         return ret;
     }
     
+    /**
+     * 文書のモジュール、シェーマ、添付ファイルを一括して取得し各文書へ設定する。
+     * 文書 id を DOC_ID_PAGE_SIZE 件ずつ IN 句で検索するため、
+     * 問い合わせ回数は文書数ではなくページ数に比例する。
+     * 各リストは従来どおり id 順に並ぶ。
+     * @param documents 子要素を設定する DocumentModel のリスト
+     */
+    public void fetchDocumentChildren(List<DocumentModel> documents) {
+        fetchDocumentChildren(documents, true);
+    }
+    
+    /**
+     * 文書のモジュール、シェーマ(および添付ファイル)を一括して取得し各文書へ設定する。
+     * @param documents 子要素を設定する DocumentModel のリスト
+     * @param withAttachment 添付ファイルも取得する場合 true
+     */
+    public void fetchDocumentChildren(List<DocumentModel> documents, boolean withAttachment) {
+        
+        if (documents == null || documents.isEmpty()) {
+            return;
+        }
+        
+        Map<Long, DocumentModel> map = new HashMap<>(documents.size()*2);
+        for (DocumentModel document : documents) {
+            document.setModules(new ArrayList<>());
+            document.setSchema(new ArrayList<>());
+            if (withAttachment) {
+                document.setAttachment(new ArrayList<>());
+            }
+            map.put(document.getId(), document);
+        }
+        List<Long> ids = new ArrayList<>(map.keySet());
+        
+        for (int from = 0; from < ids.size(); from += DOC_ID_PAGE_SIZE) {
+            
+            List<Long> page = ids.subList(from, Math.min(from + DOC_ID_PAGE_SIZE, ids.size()));
+
+            // ModuleBean を取得する
+            List<ModuleModel> modules = em.createQuery(QUERY_MODULE_BY_DOC_IDS)
+            .setParameter(IDS, page)
+            .getResultList();
+            for (ModuleModel module : modules) {
+                map.get(module.getDocumentModel().getId()).getModules().add(module);
+            }
+
+            // SchemaModel を取得する
+            List<SchemaModel> images = em.createQuery(QUERY_SCHEMA_BY_DOC_IDS)
+            .setParameter(IDS, page)
+            .getResultList();
+            for (SchemaModel image : images) {
+                map.get(image.getDocumentModel().getId()).getSchema().add(image);
+            }
+            
+            if (!withAttachment) {
+                continue;
+            }
+            
+            // AttachmentModel を取得する
+            List<AttachmentModel> attachments = em.createQuery(QUERY_ATTACHMENT_BY_DOC_IDS)
+            .setParameter(IDS, page)
+            .getResultList();
+            for (AttachmentModel attachment : attachments) {
+                map.get(attachment.getDocumentModel().getId()).getAttachment().add(attachment);
+            }
+        }
+    }
+    
     /**
      * ドキュメント DocumentModel オブジェクトを保存する。
      * @param document 追加するDocumentModel オブジェクト
@@ -491,6 +485,7 @@ public class KarteServiceBean {
                 ModuleModel model = (ModuleModel)iter.next();
                 model.setEnded(ended);
                 model.setStatus(IInfoModel.STATUS_MODIFIED);
+                DecodedModuleCache.getInstance().invalidate(model.getId());
             }
 
             // Schema
@@ -552,6 +547,7 @@ public class KarteServiceBean {
                 ModuleModel model = (ModuleModel)iter.next();
                 model.setEnded(ended);
                 model.setStatus(IInfoModel.STATUS_MODIFIED);
+                DecodedModuleCache.getInstance().invalidate(model.getId());
             }
 
             // Schema
@@ -705,6 +701,9 @@ public class KarteServiceBean {
         // 削除リスト　文書ID
         List<String> list = new ArrayList<>();
         
+        // 削除した DocumentModel
+        List<DocumentModel> deletes = new ArrayList<>();
+        
         // Loop で削除
         while (true) {
             
@@ -722,38 +721,7 @@ public class KarteServiceBean {
                 cnt++;
                 list.add(delete.getDocInfoModel().getDocId());
                 
-                //------------------------------
-                // 関連するモジュールに同じ処理を行う
-                //------------------------------
-                Collection deleteModules = em.createQuery(QUERY_MODULE_BY_DOC_ID)
-                .setParameter(ID, id).getResultList();
-                for (Iterator iter = deleteModules.iterator(); iter.hasNext(); ) {
-                    ModuleModel model = (ModuleModel) iter.next();
-                    model.setStatus(IInfoModel.STATUS_DELETE);
-                    model.setEnded(ended);
-                }
-
-                //------------------------------
-                // 関連する画像に同じ処理を行う
-                //------------------------------
-                Collection deleteImages = em.createQuery(QUERY_SCHEMA_BY_DOC_ID)
-                .setParameter(ID, id).getResultList();
-                for (Iterator iter = deleteImages.iterator(); iter.hasNext(); ) {
-                    SchemaModel model = (SchemaModel) iter.next();
-                    model.setStatus(IInfoModel.STATUS_DELETE);
-                    model.setEnded(ended);
-                }
-
-                //------------------------------
-                // 関連するAttachmentに同じ処理を行う
-                //------------------------------
-                Collection deleteAttachments = em.createQuery(QUERY_ATTACHMENT_BY_DOC_ID)
-                .setParameter(ID, id).getResultList();
-                for (Iterator iter = deleteAttachments.iterator(); iter.hasNext(); ) {
-                    AttachmentModel model = (AttachmentModel)iter.next();
-                    model.setStatus(IInfoModel.STATUS_DELETE);
-                    model.setEnded(ended);
-                }
+                deletes.add(delete);
                 
                 // 削除したDocumentのlinkID を 削除するDocument id(PK) にしてLoopさせる
                 id = delete.getLinkId();
@@ -763,9 +731,41 @@ public class KarteServiceBean {
             }
         }
 
+        //------------------------------
+        // 関連するモジュール、画像、Attachmentに同じ処理を行う
+        //------------------------------
+        deleteDocumentChildren(deletes, ended);
+
         return list;
     }
 
+    /**
+     * 削除済にした文書のモジュール、シェーマ、添付ファイルを一括して取得し、同じく削除済にする。
+     * 修正版をたどる削除で版ごとに問い合わせないよう、fetchDocumentChildren で IN 句を使う。
+     * @param documents 削除済にした DocumentModel のリスト
+     * @param ended 終了日
+     */
+    public void deleteDocumentChildren(List<DocumentModel> documents, Date ended) {
+        
+        fetchDocumentChildren(documents);
+        
+        for (DocumentModel document : documents) {
+            for (ModuleModel model : document.getModules()) {
+                model.setStatus(IInfoModel.STATUS_DELETE);
+                model.setEnded(ended);
+                DecodedModuleCache.getInstance().invalidate(model.getId());
+            }
+            for (SchemaModel model : document.getSchema()) {
+                model.setStatus(IInfoModel.STATUS_DELETE);
+                model.setEnded(ended);
+            }
+            for (AttachmentModel model : document.getAttachment()) {
+                model.setStatus(IInfoModel.STATUS_DELETE);
+                model.setEnded(ended);
+            }
+        }
+    }
+
     /**
      * ドキュメントのタイトルを変更する。
      * @param pk 変更するドキュメントの primary key
@@ -789,24 +789,17 @@ public class KarteServiceBean {
     public List<List<ModuleModel>> getModules(long karteId, String entity, List fromDate, List toDate) {
 
         // 抽出期間は別けられている
-        int len = fromDate.size();
-        List<List<ModuleModel>> ret = new ArrayList<>(len);
-
-        // 抽出期間セットの数だけ繰り返す
-        for (int i = 0; i < len; i++) {
-
-            List<ModuleModel> modules
-                    = em.createQuery(QUERY_MODULE_BY_ENTITY)
-                    .setParameter(KARTE_ID, karteId)
-                    .setParameter(ENTITY, entity)
-                    .setParameter(FROM_DATE, fromDate.get(i))
-                    .setParameter(TO_DATE, toDate.get(i))
-                    .getResultList();
-
-            ret.add(modules);
+        // 各期間の between を or でつないで一回で検索し、メモリ上で期間ごとに振り分ける
+        if (fromDate.isEmpty()) {
+            return new ArrayList<>(0);
         }
+        List<ModuleModel> modules
+                = setPeriods(em.createQuery(String.format(QUERY_MODULE_BY_ENTITY, periodsClause("m.started", fromDate.size()))), fromDate, toDate)
+                .setParameter(KARTE_ID, karteId)
+                .setParameter(ENTITY, entity)
+                .getResultList();
 
-        return ret;
+        return splitByPeriod(modules, fromDate, toDate, ModuleModel::getStarted);
     }
 
     /**
@@ -819,22 +812,83 @@ public class KarteServiceBean {
     public List<List> getImages(long karteId, List fromDate, List toDate) {
 
         // 抽出期間は別けられている
-        int len = fromDate.size();
-        List<List> ret = new ArrayList<>(len);
+        // 各期間の between を or でつないで一回で検索し、メモリ上で期間ごとに振り分ける
+        if (fromDate.isEmpty()) {
+            return new ArrayList<>(0);
+        }
+        List<SchemaModel> images
+                = setPeriods(em.createQuery(String.format(QUERY_SCHEMA_BY_KARTE_ID, periodsClause("i.started", fromDate.size()))), fromDate, toDate)
+                .setParameter(KARTE_ID, karteId)
+                .getResultList();
 
-        // 抽出期間セットの数だけ繰り返す
-        for (int i = 0; i < len; i++) {
+        return new ArrayList<List>(splitByPeriod(images, fromDate, toDate, SchemaModel::getStarted));
+    }
 
-            List modules
-                    = em.createQuery(QUERY_SCHEMA_BY_KARTE_ID)
-                    .setParameter(KARTE_ID, karteId)
-                    .setParameter(FROM_DATE, fromDate.get(i))
-                    .setParameter(TO_DATE, toDate.get(i))
-                    .getResultList();
+    /**
+     * 抽出期間ごとの between を or でつないだ条件を返す。
+     * パラメータ名は fromDate0, toDate0, fromDate1, ... で、setPeriods で設定する。
+     * @param column 日付の列
+     * @param count 期間の数
+     * @return 条件
+     */
+    private String periodsClause(String column, int count) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("(");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(" or ");
+            }
+            sb.append(column).append(" between :").append(FROM_DATE).append(i).append(" and :").append(TO_DATE).append(i);
+        }
+        sb.append(")");
+        return sb.toString();
+    }
 
-            ret.add(modules);
+    /**
+     * periodsClause で組み立てた条件のパラメータを設定する。
+     */
+    private Query setPeriods(Query query, List fromDate, List toDate) {
+        for (int i = 0; i < fromDate.size(); i++) {
+            query.setParameter(FROM_DATE + i, fromDate.get(i));
+            query.setParameter(TO_DATE + i, toDate.get(i));
         }
+        return query;
+    }
 
+    /**
+     * 日付順の検索結果を抽出期間ごとのリストへ振り分ける。
+     * 期間ごとに between で検索した場合と同じく両端を含み、
+     * 期間が重なる場合は両方のリストへ入れる。各リストの順序は検索結果の順序のまま。
+     * @param entries いずれかの期間に入る検索結果
+     * @param fromDate 期間の開始日のリスト
+     * @param toDate 期間の終了日のリスト
+     * @param dateOf エントリの日付
+     * @return 期間ごとのリスト
+     */
+    private <T> List<List<T>> splitByPeriod(List<T> entries, List fromDate, List toDate, Function<T, Date> dateOf) {
+
+        int len = fromDate.size();
+        long[] from = new long[len];
+        long[] to = new long[len];
+        List<List<T>> ret = new ArrayList<>(len);
+        for (int i = 0; i < len; i++) {
+            from[i] = ((Date)fromDate.get(i)).getTime();
+            to[i] = ((Date)toDate.get(i)).getTime();
+            ret.add(new ArrayList<T>());
+        }
+
+        for (T entry : entries) {
+            Date date = dateOf.apply(entry);
+            if (date == null) {
+                continue;
+            }
+            long time = date.getTime();
+            for (int i = 0; i < len; i++) {
+                if (from[i] <= time && time <= to[i]) {
+                    ret.get(i).add(entry);
+                }
+            }
+        }
         return ret;
     }
 
@@ -1307,23 +1361,16 @@ public class KarteServiceBean {
     public List<List<AppointmentModel>> getAppointmentList(long karteId, List fromDate, List toDate) {
 
         // 抽出期間は別けられている
-        int len = fromDate.size();
-        List<List<AppointmentModel>> ret = new ArrayList<>(len);
-
-        // 抽出期間セットの数だけ繰り返す
-        for (int i = 0; i < len; i++) {
-
-            List<AppointmentModel> modules
-                    = em.createQuery(QUERY_APPO_BY_KARTE_ID_PERIOD)
-                    .setParameter(KARTE_ID, karteId)
-                    .setParameter(FROM_DATE, fromDate.get(i))
-                    .setParameter(TO_DATE, toDate.get(i))
-                    .getResultList();
-
-            ret.add(modules);
+        // 各期間の between を or でつないで一回で検索し、メモリ上で期間ごとに振り分ける
+        if (fromDate.isEmpty()) {
+            return new ArrayList<>(0);
         }
+        List<AppointmentModel> appointments
+                = setPeriods(em.createQuery(String.format(QUERY_APPO_BY_KARTE_ID_PERIOD, periodsClause("a.date", fromDate.size()))), fromDate, toDate)
+                .setParameter(KARTE_ID, karteId)
+                .getResultList();
 
-        return ret;
+        return splitByPeriod(appointments, fromDate, toDate, AppointmentModel::getDate);
     }
     
     //---------------------------------------------------------------------------
@@ -1387,43 +1434,12 @@ public class KarteServiceBean {
         
         if(documents != null) {
             for (DocumentModel model : documents) {
-
                 model.toDetuch();
-                
-                long id = model.getId();
-
-                // ModuleBean を取得する
-                try {
-                    List modules = em.createQuery(QUERY_MODULE_BY_DOC_ID)
-                    .setParameter(ID, id)
-                    .getResultList();
-                    model.setModules(modules);
-                } catch (NoResultException e) {
-                    // 患者登録の際にカルテも生成してある
-                }
-
-                // SchemaModel を取得する
-                try {
-                    List images = em.createQuery(QUERY_SCHEMA_BY_DOC_ID)
-                    .setParameter(ID, id)
-                    .getResultList();
-                    model.setSchema(images);
-                } catch (NoResultException e) {
-                    // 患者登録の際にカルテも生成してある
-                }
-
-                // AttachmentModel を取得する
-                try {
-                    List attachments = em.createQuery(QUERY_ATTACHMENT_BY_DOC_ID)
-                    .setParameter(ID, id)
-                    .getResultList();
-                    model.setAttachment(attachments);
-                } catch (NoResultException e) {
-                    // 患者登録の際にカルテも生成してある
-                }
-
-                result.add(model);
             }
+            
+            // ModuleBean、SchemaModel、AttachmentModel を一括して取得する
+            fetchDocumentChildren(documents);
+            result.addAll(documents);
         }
         
         return result;
@@ -1442,4 +1458,32 @@ public class KarteServiceBean {
         return null;
     }
 //s.oh$
+    
+    /**
+     * 画像の blobId と contentType を返す。LOB 列は読まない。
+     * @param fid 施設ID
+     * @param id SchemaModel PK
+     * @return {blobId, contentType}、施設の画像でなければ null
+     */
+    public Object[] getImageBlob(String fid, long id) {
+        return getBlob(QUERY_SCHEMA_BLOB, fid, id);
+    }
+    
+    /**
+     * 添付ファイルの blobId と contentType を返す。LOB 列は読まない。
+     * @param fid 施設ID
+     * @param id AttachmentModel PK
+     * @return {blobId, contentType}、施設の添付ファイルでなければ null
+     */
+    public Object[] getAttachmentBlob(String fid, long id) {
+        return getBlob(QUERY_ATTACHMENT_BLOB, fid, id);
+    }
+    
+    private Object[] getBlob(String query, String fid, long id) {
+        List<Object[]> list = em.createQuery(query)
+                                .setParameter(ID, id)
+                                .setParameter(FID, fid)
+                                .getResultList();
+        return list.isEmpty() ? null : list.get(0);
+    }
 }
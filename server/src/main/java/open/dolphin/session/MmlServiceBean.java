@@ -1,18 +1,21 @@
 package open.dolphin.session;
 
-import java.beans.XMLDecoder;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 import javax.ejb.Stateless;
+import javax.inject.Inject;
 import javax.inject.Named;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import open.dolphin.infomodel.*;
+import open.dolphin.mbean.DecodedModuleCache;
 import open.dolphin.touch.converter.IPatientModel;
 import open.dolphin.msg.MMLHelper;
 import open.dolphin.msg.PatientHelper;
@@ -37,12 +40,17 @@ public class MmlServiceBean {
     private static final String ID = "id";
     private static final String FID = "fid";
     private static final String PK = "pk";
+    private static final String IDS = "ids";
     
     private static final String QUERY_DIAGNOSIS_BY_KARTE = "from RegisteredDiagnosisModel r where r.karte.id=:karteId";
     private static final String QUERY_KARTE = "from KarteBean k where k.patient.id=:pk";
     private static final String QUERY_MODULE_BY_DOC_ID = "from ModuleModel m where m.document.id=:id";
     private static final String QUERY_SCHEMA_BY_DOC_ID = "from SchemaModel i where i.document.id=:id";
     private static final String QUERY_ATTACHMENT_BY_DOC_ID = "from AttachmentModel a where a.document.id=:id";
+    private static final String QUERY_DOCUMENT_BY_IDS = "from DocumentModel d where d.id in (:ids)";
+    
+    // dumpDocumentsToMML で一度に出力する文書数 シェーマの画像も保持するため小さめにする
+    public static final int DUMP_PAGE_SIZE = 100;
     
     private static final String QUERY_INSURANCE_BY_PATIENT_PK = "from HealthInsuranceModel h where h.patient.id=:pk";
     
@@ -70,6 +78,9 @@ public class MmlServiceBean {
     @PersistenceContext
     private EntityManager em;
     
+    @Inject
+    private KarteServiceBean karteServiceBean;
+    
     public void dumpPatientDiagnosisToMML(String facility, int index, long pk) {
         
         String query = "from PatientModel p where p.id=:pk";
@@ -307,29 +318,69 @@ public class MmlServiceBean {
         DocumentModel dm = (DocumentModel)em.createQuery(query)
                 .setParameter(PK, pk)
                 .getSingleResult();
-        
-        try {
 
-            dm.toDetuch();
+        dm.toDetuch();
 
-            // ModuleBean を取得する
-            List modules = em.createQuery(QUERY_MODULE_BY_DOC_ID)
-            .setParameter(ID, dm.getId())
-            .getResultList();
+        // ModuleBean を取得する
+        List modules = em.createQuery(QUERY_MODULE_BY_DOC_ID)
+        .setParameter(ID, dm.getId())
+        .getResultList();
 
-            // decode
-            for (Iterator iter = modules.iterator();iter.hasNext();) {
-                ModuleModel mm = (ModuleModel)iter.next();
-                mm.setModel((IInfoModel)this.xmlDecode(mm.getBeanBytes()));
-            }
+        // decode
+        for (Iterator iter = modules.iterator();iter.hasNext();) {
+            ModuleModel mm = (ModuleModel)iter.next();
+            mm.setModel(DecodedModuleCache.getInstance().getModel(mm));
+        }
 
-            dm.setModules(modules);
+        dm.setModules(modules);
 
-            // SchemaModel を取得する
-            List images = em.createQuery(QUERY_SCHEMA_BY_DOC_ID)
-            .setParameter(ID, dm.getId())
-            .getResultList();
-            dm.setSchema(images);
+        // SchemaModel を取得する
+        List images = em.createQuery(QUERY_SCHEMA_BY_DOC_ID)
+        .setParameter(ID, dm.getId())
+        .getResultList();
+        dm.setSchema(images);
+        
+        writeDocumentMML(index, dm);
+    }
+    
+    /**
+     * 文書をまとめて MML へ出力する。
+     * 文書は IN 句で、モジュールとシェーマは KarteServiceBean.fetchDocumentChildren で一括して取得するため、
+     * 文書ごとに3件の問い合わせを発行しない。
+     * @param from pks の先頭の処理番号
+     * @param pks 出力する文書の primary key DUMP_PAGE_SIZE 件まで
+     */
+    public void dumpDocumentsToMML(int from, List<Long> pks) {
+        
+        List<DocumentModel> list = em.createQuery(QUERY_DOCUMENT_BY_IDS)
+                .setParameter(IDS, pks)
+                .getResultList();
+        karteServiceBean.fetchDocumentChildren(list, false);
+        
+        Map<Long, DocumentModel> map = new HashMap<>(list.size()*2);
+        for (DocumentModel dm : list) {
+            map.put(dm.getId(), dm);
+        }
+        
+        // 処理番号は pks の順
+        for (int i = 0; i < pks.size(); i++) {
+            DocumentModel dm = map.get(pks.get(i));
+            if (dm == null) {
+                continue;
+            }
+            dm.toDetuch();
+            for (ModuleModel mm : dm.getModules()) {
+                mm.setModel(DecodedModuleCache.getInstance().getModel(mm));
+            }
+            writeDocumentMML(from + i, dm);
+        }
+    }
+    
+    private void writeDocumentMML(int index, DocumentModel dm) {
+        
+        StringBuilder sb;
+        
+        try {
 
             // Helper
             MMLHelper helper = new MMLHelper();
@@ -460,7 +511,7 @@ public class MmlServiceBean {
                 // decode
                 for (Iterator iter = modules.iterator();iter.hasNext();) {
                     ModuleModel mm = (ModuleModel)iter.next();
-                    mm.setModel((IInfoModel)this.xmlDecode(mm.getBeanBytes()));
+                    mm.setModel(DecodedModuleCache.getInstance().getModel(mm));
                 }
                 
                 dm.setModules(modules);
@@ -603,12 +654,7 @@ public class MmlServiceBean {
     }
     
     private Object xmlDecode(byte[] bytes)  {
-
-        XMLDecoder d = new XMLDecoder(
-                new BufferedInputStream(
-                new ByteArrayInputStream(bytes)));
-
-        return d.readObject();
+        return BeanBytesCodec.decode(bytes);
     }
     
     private void log(String msg) {
@@ -2,14 +2,23 @@ package open.dolphin.session;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
+import javax.annotation.Resource;
 import javax.ejb.Stateless;
 import javax.inject.Named;
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
 import javax.persistence.PersistenceContext;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
 import open.dolphin.infomodel.*;
+import open.dolphin.mbean.LaboSeriesStore;
 
 /**
  *
@@ -24,11 +33,16 @@ public class NLabServiceBean {
     private static final String QUERY_MODULE_BY_FIDPID = "from NLaboModule l where l.patientId=:fidPid order by l.sampleDate desc";
     private static final String QUERY_ITEM_BY_MID = "from NLaboItem l where l.laboModule.id=:mid order by groupCode,parentCode,itemCode";
     private static final String QUERY_ITEM_BY_MID_ORDERBY_SORTKEY = "from NLaboItem l where l.laboModule.id=:mid order by l.sortKey";
-    private static final String QUERY_ITEM_BY_FIDPID_ITEMCODE = "from NLaboItem l where l.patientId=:fidPid and l.itemCode=:itemCode order by l.sampleDate desc";
     private static final String QUERY_INSURANCE_BY_PATIENT_PK = "from HealthInsuranceModel h where h.patient.id=:pk";
 //s.oh^ 2013/09/18 ラボデータの高速化
     private static final String QUERY_MODULECOUNT_BY_FIDPID = "select count(*) from NLaboModule l where l.patientId=:fidPid";
 //s.oh$
+    private static final String QUERY_PATIENT_BY_FID_PIDS = "from PatientModel p where p.facilityId=:fid and p.patientId in (:pids)";
+    private static final String QUERY_INSURANCE_BY_PATIENT_PKS = "from HealthInsuranceModel h where h.patient.id in (:pks)";
+    private static final String QUERY_MODULE_ID_BY_MODULE_KEYS = "select m.id, m.moduleKey from NLaboModule m where m.moduleKey in (:moduleKeys)";
+    private static final String QUERY_MODULE_ID_BY_FIDPIDS = "select m.id, m.patientId, m.sampleDate, m.laboCenterCode from NLaboModule m where m.patientId in (:fidPids) and m.sampleDate in (:sampleDates)";
+    private static final String DELETE_ITEM_BY_MIDS = "delete from NLaboItem l where l.laboModule.id in (:mids)";
+    private static final String DELETE_MODULE_BY_MIDS = "delete from NLaboModule m where m.id in (:mids)";
 
     private static final String PK = "pk";
     private static final String FIDPID = "fidPid";
@@ -36,11 +50,20 @@ public class NLabServiceBean {
     private static final String LABOCODE = "laboCode";
     private static final String MODULEKEY = "moduleKey";
     private static final String MID = "mid";
-    private static final String ITEM_CODE = "itemCode";
     private static final String WOLF = "WOLF";
+    private static final String FID = "fid";
+    private static final String PIDS = "pids";
+    private static final String PKS = "pks";
+    private static final String MODULEKEYS = "moduleKeys";
+    private static final String FIDPIDS = "fidPids";
+    private static final String SAMPLEDATES = "sampleDates";
+    private static final String MIDS = "mids";
 
     @PersistenceContext
     private EntityManager em;
+    
+    @Resource
+    private TransactionSynchronizationRegistry tsr;
 
     
     public List<PatientLiteModel> getConstrainedPatients(String fid, List<String>idList) {
@@ -94,14 +117,8 @@ public class NLabServiceBean {
         }
         //--------------------------------------------------------
 
-        String fidPid = fid+":"+pid;
-        module.setPatientId(fidPid);
-
-        // item の patientId を変更する
-        Collection<NLaboItem> items = module.getItems();
-        for (NLaboItem item : items) {
-            item.setPatientId(fidPid);
-        }
+        qualify(fid, module);
+        String fidPid = module.getPatientId();
 
         //--------------------------------------------------------
         // patientId & 検体採取日 & ラボコード で key
@@ -110,20 +127,6 @@ public class NLabServiceBean {
         String sampleDate = module.getSampleDate();
         String laboCode = module.getLaboCenterCode();
         String moduleKey = module.getModuleKey();
-        if (moduleKey!=null) {
-            StringBuilder sb = new StringBuilder();
-            sb.append(pid).append(".").append(sampleDate).append(".").append(laboCode);
-            String test = sb.toString();
-            if (test.equals(moduleKey)) {
-                sb = new StringBuilder();
-                sb.append(fid);
-                sb.append(":");
-                sb.append(moduleKey);
-                moduleKey = sb.toString();
-                module.setModuleKey(moduleKey);
-                //System.err.println("corrected moduke key=" + module.getModuleKey());
-            } 
-        }
 
         NLaboModule exist;
 
@@ -150,13 +153,203 @@ public class NLabServiceBean {
         if (exist != null) {
             em.remove(exist);
             //System.err.println("module did remove");
+            final long existId = exist.getId();
+            afterCommit(() -> LaboSeriesStore.getInstance().moduleRemoved(fidPid, existId));
         }
 
         // 永続化する
         em.persist(module);
+        afterCommit(() -> LaboSeriesStore.getInstance().moduleAdded(module));
 
         return patient;
     }
+    
+    /**
+     * 複数のラボモジュールをまとめて登録する。
+     * 患者、健康保険、既存モジュールはそれぞれ1回のクエリで引き、再報告分はまとめて削除する。
+     * 登録は hibernate.jdbc.batch_size でバッチ実行される。
+     * @param fid 施設ID
+     * @param modules 登録するモジュール(施設IDの付いていない患者ID)
+     * @return modules と同じ順の結果 index は設定しない
+     */
+    public List<NLaboImportResult> createAll(String fid, List<NLaboModule> modules) {
+        
+        List<NLaboImportResult> results = new ArrayList<>(modules.size());
+        if (modules.isEmpty()) {
+            return results;
+        }
+        
+        //--------------------------------------------------------
+        // 患者と健康保険
+        //--------------------------------------------------------
+        Set<String> pids = new HashSet<>();
+        for (NLaboModule module : modules) {
+            pids.add(module.getPatientId());
+        }
+        List<PatientModel> patients = (List<PatientModel>)em.createQuery(QUERY_PATIENT_BY_FID_PIDS)
+                .setParameter(FID, fid)
+                .setParameter(PIDS, pids)
+                .getResultList();
+        
+        Map<String, PatientModel> patientMap = new HashMap<>(patients.size() * 2);
+        Map<Long, List<HealthInsuranceModel>> insuranceMap = new HashMap<>(patients.size() * 2);
+        for (PatientModel patient : patients) {
+            patientMap.put(patient.getPatientId(), patient);
+            List<HealthInsuranceModel> list = new ArrayList<>(2);
+            patient.setHealthInsurances(list);
+            insuranceMap.put(patient.getId(), list);
+        }
+        if (!insuranceMap.isEmpty()) {
+            List<HealthInsuranceModel> insurances = (List<HealthInsuranceModel>)em.createQuery(QUERY_INSURANCE_BY_PATIENT_PKS)
+                    .setParameter(PKS, insuranceMap.keySet())
+                    .getResultList();
+            for (HealthInsuranceModel h : insurances) {
+                insuranceMap.get(h.getPatient().getId()).add(h);
+            }
+        }
+        
+        //--------------------------------------------------------
+        // 施設IDを付け、送信内で同じ key のものは後のものを残す
+        //--------------------------------------------------------
+        Map<String, Integer> latest = new HashMap<>(modules.size() * 2);
+        Set<String> moduleKeys = new HashSet<>();
+        Set<String> fidPids = new HashSet<>();
+        Set<String> sampleDates = new HashSet<>();
+        for (int i = 0; i < modules.size(); i++) {
+            NLaboModule module = modules.get(i);
+            NLaboImportResult result = new NLaboImportResult();
+            result.setModuleKey(module.getModuleKey());
+            results.add(result);
+            
+            PatientModel patient = patientMap.get(module.getPatientId());
+            if (patient == null) {
+                result.setStatus(NLaboImportResult.STATUS_UNKNOWN_PATIENT);
+                result.setMessage(module.getPatientId());
+                continue;
+            }
+            qualify(fid, module);
+            result.setModuleKey(module.getModuleKey());
+            result.setPatient(patient);
+            
+            Integer prev = latest.put(keyOf(module), i);
+            if (prev != null) {
+                results.get(prev).setStatus(NLaboImportResult.STATUS_SUPERSEDED);
+            }
+            if (module.getModuleKey() != null) {
+                moduleKeys.add(module.getModuleKey());
+            } else if (module.getSampleDate() != null) {
+                // 検体採取日が無いものは1件ずつの登録と同じく置き換えない
+                fidPids.add(module.getPatientId());
+                sampleDates.add(module.getSampleDate());
+            }
+        }
+        
+        //--------------------------------------------------------
+        // 再報告として削除する既存モジュール
+        // 1件ずつの登録と同じく、一意に決まる場合だけ削除する
+        //--------------------------------------------------------
+        Map<String, List<Long>> exists = new HashMap<>();
+        if (!moduleKeys.isEmpty()) {
+            List<Object[]> rows = em.createQuery(QUERY_MODULE_ID_BY_MODULE_KEYS)
+                    .setParameter(MODULEKEYS, moduleKeys)
+                    .getResultList();
+            for (Object[] row : rows) {
+                addExist(exists, keyOfModuleKey((String)row[1]), (Long)row[0]);
+            }
+        }
+        if (!fidPids.isEmpty()) {
+            // 患者の全履歴を読まないよう今回の検体採取日に絞る
+            List<Object[]> rows = em.createQuery(QUERY_MODULE_ID_BY_FIDPIDS)
+                    .setParameter(FIDPIDS, fidPids)
+                    .setParameter(SAMPLEDATES, sampleDates)
+                    .getResultList();
+            for (Object[] row : rows) {
+                addExist(exists, keyOfSample((String)row[1], (String)row[2], (String)row[3]), (Long)row[0]);
+            }
+        }
+        
+        List<Long> removes = new ArrayList<>();
+        for (Map.Entry<String, Integer> e : latest.entrySet()) {
+            List<Long> ids = exists.get(e.getKey());
+            if (ids != null && ids.size() == 1) {
+                removes.add(ids.get(0));
+                final String fidPid = modules.get(e.getValue()).getPatientId();
+                final long existId = ids.get(0);
+                afterCommit(() -> LaboSeriesStore.getInstance().moduleRemoved(fidPid, existId));
+                results.get(e.getValue()).setStatus(NLaboImportResult.STATUS_REPLACED);
+            } else {
+                results.get(e.getValue()).setStatus(NLaboImportResult.STATUS_CREATED);
+            }
+        }
+        if (!removes.isEmpty()) {
+            // Cascade で1件ずつ消さず、項目とモジュールをまとめて消す
+            em.createQuery(DELETE_ITEM_BY_MIDS).setParameter(MIDS, removes).executeUpdate();
+            em.createQuery(DELETE_MODULE_BY_MIDS).setParameter(MIDS, removes).executeUpdate();
+        }
+        
+        // 永続化する
+        for (Integer i : latest.values()) {
+            final NLaboModule module = modules.get(i);
+            em.persist(module);
+            afterCommit(() -> LaboSeriesStore.getInstance().moduleAdded(module));
+        }
+        em.flush();
+        
+        return results;
+    }
+    
+    // 患者IDに施設IDを付け、施設IDの付いていない moduleKey を補正する
+    private void qualify(String fid, NLaboModule module) {
+        
+        String pid = module.getPatientId();
+        String fidPid = fid+":"+pid;
+        module.setPatientId(fidPid);
+
+        // item の patientId を変更する
+        Collection<NLaboItem> items = module.getItems();
+        for (NLaboItem item : items) {
+            item.setPatientId(fidPid);
+        }
+
+        String moduleKey = module.getModuleKey();
+        if (moduleKey!=null) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(pid).append(".").append(module.getSampleDate()).append(".").append(module.getLaboCenterCode());
+            String test = sb.toString();
+            if (test.equals(moduleKey)) {
+                sb = new StringBuilder();
+                sb.append(fid);
+                sb.append(":");
+                sb.append(moduleKey);
+                module.setModuleKey(sb.toString());
+            } 
+        }
+    }
+    
+    private String keyOf(NLaboModule module) {
+        return module.getModuleKey() != null
+                ? keyOfModuleKey(module.getModuleKey())
+                : keyOfSample(module.getPatientId(), module.getSampleDate(), module.getLaboCenterCode());
+    }
+    
+    private String keyOfModuleKey(String moduleKey) {
+        return "K\t" + moduleKey;
+    }
+    
+    private String keyOfSample(String fidPid, String sampleDate, String laboCode) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("S\t").append(fidPid).append("\t").append(sampleDate).append("\t").append(laboCode);
+        return sb.toString();
+    }
+    
+    private void addExist(Map<String, List<Long>> exists, String key, Long id) {
+        List<Long> ids = exists.get(key);
+        if (ids == null) {
+            ids = new ArrayList<>(1);
+            exists.put(key, ids);
+        }
+        ids.add(id);
+    }
 
 
     /**
@@ -224,15 +417,39 @@ public class NLabServiceBean {
 
         //String fidPid = SessionHelper.getQualifiedPid(ctx, patientId);
 
-        List<NLaboItem> ret = (List<NLaboItem>)
-                        em.createQuery(QUERY_ITEM_BY_FIDPID_ITEMCODE)
-                          .setParameter(FIDPID, fidPid)
-                          .setParameter(ITEM_CODE, itemCode)
-                          .setFirstResult(firstResult)
-                          .setMaxResults(maxResult)
-                          .getResultList();
-
-        return ret;
+        // 患者の時系列から返す
+        return LaboSeriesStore.getInstance().getItems(em, fidPid, itemCode, firstResult, maxResult);
+    }
+    
+    /**
+     * 検査結果を検査項目 × 検体採取日のページで返す。
+     * @param fidPid 施設ID:患者ID
+     * @param before このモジュール id より古い列を返す、0 の場合は最新から
+     * @param maxResult 列数
+     * @param newestLeft 最新を左にする場合 true
+     * @return ページ
+     */
+    public NLaboSeriesPage getLaboSeries(String fidPid, long before, int maxResult, boolean newestLeft) {
+        return LaboSeriesStore.getInstance().getPage(em, fidPid, before, maxResult, newestLeft);
+    }
+    
+    /**
+     * 検査結果のページの先頭のカーソルを返す。
+     * @param fidPid 施設ID:患者ID
+     * @param maxResult 1ページの列数
+     * @return 最新のページから順のカーソル
+     */
+    public List<Long> getLaboSeriesCursors(String fidPid, int maxResult) {
+        return LaboSeriesStore.getInstance().getPageCursors(em, fidPid, maxResult);
+    }
+    
+    /**
+     * 検査結果の時系列の列(モジュール)数を返す。
+     * @param fidPid 施設ID:患者ID
+     * @return モジュール数
+     */
+    public int getLaboSeriesCount(String fidPid) {
+        return LaboSeriesStore.getInstance().getColumnCount(em, fidPid);
     }
    
     // ラボデータの削除 2013/06/24
@@ -240,7 +457,25 @@ public class NLabServiceBean {
         //Logger.getLogger("open.dolphin").info("Lab module to detele is " + id);
         NLaboModule target = em.find(NLaboModule.class,id);
         em.remove(target);
+        final String fidPid = target.getPatientId();
+        afterCommit(() -> LaboSeriesStore.getInstance().moduleRemoved(fidPid, id));
         Logger.getLogger("open.dolphin").info("Lab module deleted " + id);
         return 1;
     }
+    
+    // 患者の時系列への反映はコミットされた場合だけ行う
+    private void afterCommit(final Runnable task) {
+        tsr.registerInterposedSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED) {
+                    task.run();
+                }
+            }
+        });
+    }
 }
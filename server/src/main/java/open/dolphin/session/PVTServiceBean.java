@@ -7,19 +7,30 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.Resource;
 import javax.ejb.Stateless;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
 import javax.persistence.PersistenceContext;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
 import open.dolphin.infomodel.*;
 import open.dolphin.mbean.KanaToAscii;
+import open.dolphin.mbean.PatientSearchIndex;
+import open.dolphin.mbean.PatientVisitStore;
 import open.dolphin.mbean.ServletContextHolder;
 
 /**
@@ -32,11 +43,12 @@ public class PVTServiceBean {
 
     private static final String QUERY_PATIENT_BY_FID_PID        = "from PatientModel p where p.facilityId=:fid and p.patientId=:pid";
     private static final String QUERY_PVT_BY_FID_PID_DATE       = "from PatientVisitModel p where p.facilityId=:fid and p.pvtDate like :date and p.patient.patientId=:pid";
-    private static final String QUERY_PVT_BY_FID_DATE           = "from PatientVisitModel p where p.facilityId=:fid and p.pvtDate like :date order by p.pvtDate";
-    private static final String QUERY_PVT_BY_FID_DID_DATE       = "from PatientVisitModel p where p.facilityId=:fid and p.pvtDate like :date and (doctorId=:did or doctorId=:unassigned) order by p.pvtDate";
+    private static final String QUERY_PVT_BY_FID_DATE           = "from PatientVisitModel p join fetch p.patient where p.facilityId=:fid and p.pvtDate like :date order by p.pvtDate";
+    private static final String QUERY_PVT_BY_FID_DID_DATE       = "from PatientVisitModel p join fetch p.patient where p.facilityId=:fid and p.pvtDate like :date and (doctorId=:did or doctorId=:unassigned) order by p.pvtDate";
     private static final String QUERY_INSURANCE_BY_PATIENT_ID   = "from HealthInsuranceModel h where h.patient.id=:id";
-    private static final String QUERY_KARTE_BY_PATIENT_ID       = "from KarteBean k where k.patient.id=:id";
+    private static final String QUERY_INSURANCE_BY_PATIENT_PKS  = "from HealthInsuranceModel h where h.patient.id in (:pks) order by h.id";
     private static final String QUERY_APPO_BY_KARTE_ID_DATE     = "from AppointmentModel a where a.karte.id=:id and a.date=:date";
+    private static final String QUERY_APPO_BY_PATIENT_PKS_DATE  = "select a.karte.patient.id, a.name from AppointmentModel a where a.karte.patient.id in (:pks) and a.date=:date order by a.id";
     private static final String QUERY_PVT_BY_PK                 = "from PatientVisitModel p where p.id=:id";
 //masuda^    
     private static final String QUERY_KARTE_ID_BY_PATIENT_ID    = "select k.id from KarteBean k where k.patient.id = :id";
@@ -46,11 +58,13 @@ public class PVTServiceBean {
     private static final String DID = "did";
     private static final String UNASSIGNED = "unassigned";
     private static final String ID = "id";
+    private static final String PKS = "pks";
     private static final String DATE = "date";
     private static final String PERCENT = "%";
     private static final int BIT_SAVE_CLAIM     = 1;
     private static final int BIT_MODIFY_CLAIM   = 2;
     private static final int BIT_CANCEL         = 6;
+    static final int ID_PAGE_SIZE               = 500;
 
     @PersistenceContext
     private EntityManager em;
@@ -61,6 +75,9 @@ public class PVTServiceBean {
     @Inject
     private ServletContextHolder contextHolder;
     
+    @Resource
+    private TransactionSynchronizationRegistry tsr;
+    
     
    /**
      * 患者来院情報を登録する。
@@ -156,6 +173,7 @@ public class PVTServiceBean {
 
             // PatientModelを新しい情報に更新する
             em.merge(exist);
+            indexPatient(exist);
             // PatientVisit との関係を設定する
             pvt.setPatientModel(exist);
 
@@ -164,6 +182,7 @@ public class PVTServiceBean {
             // 新規患者であれば登録する
             // 患者属性は cascade=PERSIST で自動的に保存される
             em.persist(patient);
+            indexPatient(patient);
 
             // この患者のカルテを生成する
             KarteBean karte = new KarteBean();
@@ -242,9 +261,9 @@ public class PVTServiceBean {
         }
 
         // 受付嬢にORCAの受付ボタンを連打されたとき用ｗ 復活！！
-        List<PatientVisitModel> pvtList = eventServiceBean.getPvtList(fid);
-        for (int i = 0; i < pvtList.size(); ++i) {
-            PatientVisitModel test = pvtList.get(i);
+        // 同じ患者の今日の受付だけを調べる
+        PatientVisitStore pvtStore = eventServiceBean.getPvtStore(fid);
+        for (PatientVisitModel test : pvtStore.getByPatient(pvt.getPatientModel().getId())) {
             // pvt時刻が同じでキャンセルでないものは更新(merge)する
             if (test.getPvtDate().equals(pvt.getPvtDate()) 
                     && (test.getState() & (1<< PatientVisitModel.BIT_CANCEL)) ==0) {
@@ -260,7 +279,7 @@ public class PVTServiceBean {
                     // データベースを更新
                     em.merge(pvt);
                     // 新しいもので置き換える
-                    pvtList.set(i, pvt);
+                    pvtStore.add(pvt);
                     // クライアントに通知
                     String uuid = contextHolder.getServerUUID();
                     ChartEventModel msg = new ChartEventModel(uuid);
@@ -276,7 +295,7 @@ public class PVTServiceBean {
         eventServiceBean.setByomeiCount(karteId, pvt);   // 病名数をカウントする
         em.persist(pvt);
         // pvtListに追加
-        pvtList.add(pvt);    
+        pvtStore.add(pvt);    
         // クライアントに通知
         String uuid = contextHolder.getServerUUID();
         ChartEventModel msg = new ChartEventModel(uuid);
@@ -563,37 +582,10 @@ public class PVTServiceBean {
 
         boolean searchAppo = (appoDateFrom != null && appoDateTo != null);
 
-        // 来院情報と患者は ManyToOne の関係である
-        for (int i = 0; i < len; i++) {
-            //for (int i = firstResult; i < len; i++) {
-            
-            PatientVisitModel pvt = result.get(i);
-            PatientModel patient = pvt.getPatientModel();
-
-            // 患者の健康保険を取得する
-            List<HealthInsuranceModel> insurances = (List<HealthInsuranceModel>)em.createQuery(QUERY_INSURANCE_BY_PATIENT_ID)
-            .setParameter(ID, patient.getId()).getResultList();
-            patient.setHealthInsurances(insurances);
-
-            // 予約を検索する
-            if (searchAppo) {
-                KarteBean karte = (KarteBean)em.createQuery(QUERY_KARTE_BY_PATIENT_ID)
-                .setParameter(ID, patient.getId())
-                .getSingleResult();
-                // カルテの PK を得る
-                long karteId = karte.getId();
-
-                List c = em.createQuery(QUERY_APPO_BY_KARTE_ID_DATE)
-                .setParameter(ID, karteId)
-                .setParameter(DATE, theDate)
-                .getResultList();
-                //System.err.println("appo size = " + c.size());
-                if (c != null && c.size() > 0) {
-                    // 当日の予約で最初のもの
-                    AppointmentModel appo = (AppointmentModel) c.get(0);
-                    pvt.setAppointment(appo.getName());
-                }
-            }
+        // 患者の健康保険と当日の予約はまとめて取得する
+        setHealthInsurances(em, result);
+        if (searchAppo) {
+            setAppointments(em, result, theDate);
         }
 
         return result;
@@ -627,42 +619,80 @@ public class PVTServiceBean {
 
         boolean searchAppo = (appoDateFrom != null && appoDateTo != null);
 
-        // 来院情報と患者は ManyToOne の関係である
-        for (int i = 0; i < len; i++) {
-            //for (int i = firstResult; i < len; i++) {
+        // 患者の健康保険と当日の予約はまとめて取得する
+        setHealthInsurances(em, result);
+        if (searchAppo) {
+            setAppointments(em, result, theDate);
+        }
+
+        return result;
+    }
+    
+
+    /**
+     * 来院情報の患者に健康保険を設定する。患者の PK の IN でまとめて取得する。
+     * ChartEventServiceBean が起動時に受付リストを作る時にも使う。
+     * @param em EntityManager
+     * @param pvtList 来院情報のリスト
+     */
+    static void setHealthInsurances(EntityManager em, List<PatientVisitModel> pvtList) {
+
+        Map<Long, List<HealthInsuranceModel>> map = new HashMap<>(pvtList.size()*2);
+        for (PatientVisitModel pvt : pvtList) {
+            map.put(pvt.getPatientModel().getId(), new ArrayList<HealthInsuranceModel>());
+        }
+
+        List<Long> pks = new ArrayList<>(map.keySet());
+        for (int from = 0; from < pks.size(); from += ID_PAGE_SIZE) {
+            List<HealthInsuranceModel> list = em.createQuery(QUERY_INSURANCE_BY_PATIENT_PKS, HealthInsuranceModel.class)
+                    .setParameter(PKS, pks.subList(from, Math.min(from + ID_PAGE_SIZE, pks.size())))
+                    .getResultList();
+            for (HealthInsuranceModel h : list) {
+                map.get(h.getPatient().getId()).add(h);
+            }
+        }
 
-            PatientVisitModel pvt = result.get(i);
+        for (PatientVisitModel pvt : pvtList) {
             PatientModel patient = pvt.getPatientModel();
+            patient.setHealthInsurances(map.get(patient.getId()));
+        }
+    }
 
-            // 患者の健康保険を取得する
-            List<HealthInsuranceModel> insurances = (List<HealthInsuranceModel>)em.createQuery(QUERY_INSURANCE_BY_PATIENT_ID)
-            .setParameter(ID, patient.getId()).getResultList();
-            patient.setHealthInsurances(insurances);
+    /**
+     * 来院情報に当日の予約を設定する。患者の PK の IN でまとめて取得し、患者ごとに最初の予約を使う。
+     * @param em EntityManager
+     * @param pvtList 来院情報のリスト
+     * @param date 予約日
+     */
+    static void setAppointments(EntityManager em, List<PatientVisitModel> pvtList, Date date) {
 
-            // 予約を検索する
-            if (searchAppo) {
-                KarteBean karte = (KarteBean)em.createQuery(QUERY_KARTE_BY_PATIENT_ID)
-                .setParameter(ID, patient.getId())
-                .getSingleResult();
-                // カルテの PK を得る
-                long karteId = karte.getId();
+        Set<Long> set = new HashSet<>(pvtList.size()*2);
+        for (PatientVisitModel pvt : pvtList) {
+            set.add(pvt.getPatientModel().getId());
+        }
 
-                List c = em.createQuery(QUERY_APPO_BY_KARTE_ID_DATE)
-                .setParameter(ID, karteId)
-                .setParameter(DATE, theDate)
-                .getResultList();
-                //System.err.println("appo size = " + c.size());
-                if (c != null && c.size() > 0) {
-                    // 当日の予約で最初のもの
-                    AppointmentModel appo = (AppointmentModel) c.get(0);
-                    pvt.setAppointment(appo.getName());
+        List<Long> pks = new ArrayList<>(set);
+        Map<Long, String> appoMap = new HashMap<>();
+        for (int from = 0; from < pks.size(); from += ID_PAGE_SIZE) {
+            List<Object[]> list = em.createQuery(QUERY_APPO_BY_PATIENT_PKS_DATE, Object[].class)
+                    .setParameter(PKS, pks.subList(from, Math.min(from + ID_PAGE_SIZE, pks.size())))
+                    .setParameter(DATE, date)
+                    .getResultList();
+            for (Object[] row : list) {
+                Long pk = (Long)row[0];
+                if (!appoMap.containsKey(pk)) {
+                    appoMap.put(pk, (String)row[1]);
                 }
             }
         }
 
-        return result;
+        for (PatientVisitModel pvt : pvtList) {
+            Long pk = pvt.getPatientModel().getId();
+            if (appoMap.containsKey(pk)) {
+                pvt.setAppointment(appoMap.get(pk));
+            }
+        }
     }
-    
       
     /**
      * 受付情報を削除する。
@@ -670,6 +700,22 @@ public class PVTServiceBean {
      * @param fid
      * @return 削除件数
      */
+    // コミット後に患者検索の索引へ反映する
+    private void indexPatient(final PatientModel patient) {
+        tsr.registerInterposedSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED) {
+                    PatientSearchIndex.getInstance().put(patient);
+                }
+            }
+        });
+    }
+
     public int removePvt(long id, String fid) {
         
         try {
@@ -681,16 +727,7 @@ public class PVTServiceBean {
             }
 
             // pvtListから削除
-            List<PatientVisitModel> pvtList = eventServiceBean.getPvtList(fid);
-            PatientVisitModel toRemove = null;
-            for (PatientVisitModel model : pvtList) {
-                if (model.getId() == id) {
-                    toRemove = model;
-                    break;
-                }
-            }
-            if (toRemove != null) {
-                pvtList.remove(toRemove);
+            if (eventServiceBean.getPvtStore(fid).remove(id) != null) {
                 return 1;
             }
         } catch (Exception e) {
@@ -4,12 +4,17 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import javax.annotation.Resource;
 import javax.ejb.Stateless;
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
 import javax.persistence.PersistenceContext;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
 import open.dolphin.infomodel.ChartEventModel;
 import open.dolphin.infomodel.DocumentModel;
 import open.dolphin.infomodel.HealthInsuranceModel;
@@ -17,6 +22,9 @@ import open.dolphin.infomodel.KarteBean;
 import open.dolphin.infomodel.PatientModel;
 import open.dolphin.infomodel.PatientVisitModel;
 import open.dolphin.infomodel.RegisteredDiagnosisModel;
+import open.dolphin.mbean.PatientSearchIndex;
+import open.dolphin.mbean.PatientVisitStore;
+import open.dolphin.mbean.ThumbnailStore;
 
 /**
  *
@@ -27,18 +35,22 @@ import open.dolphin.infomodel.RegisteredDiagnosisModel;
 public class PatientServiceBean {
 
     // cancel status=64 を where 節へ追加
-    private static final String QUERY_PATIENT_BY_PVTDATE = "from PatientVisitModel p where p.facilityId = :fid and p.pvtDate like :date and p.status!=64";
+    private static final String QUERY_PATIENT_BY_PVTDATE = "from PatientVisitModel p join fetch p.patient where p.facilityId = :fid and p.pvtDate like :date and p.status!=64";
     private static final String QUERY_PATIENT_BY_NAME = "from PatientModel p where p.facilityId=:fid and p.fullName like :name";
     private static final String QUERY_PATIENT_BY_KANA = "from PatientModel p where p.facilityId=:fid and p.kanaName like :name";
     private static final String QUERY_PATIENT_BY_FID_PID = "from PatientModel p where p.facilityId=:fid and p.patientId like :pid";
     private static final String QUERY_PATIENT_BY_TELEPHONE = "from PatientModel p where p.facilityId = :fid and (p.telephone like :number or p.mobilePhone like :number)";
     private static final String QUERY_PATIENT_BY_ZIPCODE = "from PatientModel p where p.facilityId = :fid and p.address.zipCode like :zipCode";
     private static final String QUERY_INSURANCE_BY_PATIENT_PK = "from HealthInsuranceModel h where h.patient.id=:pk";
+    private static final String QUERY_INSURANCE_BY_PATIENT_PKS = "from HealthInsuranceModel h where h.patient.id in (:pks) order by h.id";
+    private static final String QUERY_PATIENT_BY_PKS = "from PatientModel p where p.facilityId=:fid and p.id in (:pks)";
+    private static final String QUERY_PHOTO_BY_PK = "select p.jpegPhoto from PatientModel p where p.id=:pk and p.facilityId=:fid";
 //s.oh^ 2014/08/19 施設患者一括表示機能
     private static final String QUERY_PATIENT_BY_APPMEMO = "from PatientModel p where p.facilityId = :fid and p.appMemo like :appMemo";
 //s.oh$
 
     private static final String PK = "pk";
+    private static final String PKS = "pks";
     private static final String FID = "fid";
     private static final String PID = "pid";
     private static final String NAME = "name";
@@ -49,10 +61,14 @@ public class PatientServiceBean {
 //s.oh^ 2014/08/19 施設患者一括表示機能
     private static final String APPMEMO = "appMemo";
 //s.oh$
+    private static final int ID_PAGE_SIZE = 500;
 
     @PersistenceContext
     private EntityManager em;
     
+    @Resource
+    private TransactionSynchronizationRegistry tsr;
+    
 //masuda^
     @Inject
     private ChartEventServiceBean eventServiceBean;
@@ -61,33 +77,38 @@ public class PatientServiceBean {
     
     public List<PatientModel> getPatientsByName(String fid, String name) {
 
-        List<PatientModel> ret = em.createQuery(QUERY_PATIENT_BY_NAME)
-                .setParameter(FID, fid)
-                .setParameter(NAME, name + PERCENT)
-                .getResultList();
+        // 索引があれば索引で探す
+        List<PatientModel> ret = searchByName(fid, PatientSearchIndex.FULL_NAME, name);
 
-        // 後方一致検索を行う
-        if (ret.isEmpty()) {
+        if (ret == null) {
             ret = em.createQuery(QUERY_PATIENT_BY_NAME)
-                .setParameter(FID, fid)
-                .setParameter(NAME, PERCENT + name)
-                .getResultList();
-        }
+                    .setParameter(FID, fid)
+                    .setParameter(NAME, name + PERCENT)
+                    .getResultList();
+
+            // 後方一致検索を行う
+            if (ret.isEmpty()) {
+                ret = em.createQuery(QUERY_PATIENT_BY_NAME)
+                    .setParameter(FID, fid)
+                    .setParameter(NAME, PERCENT + name)
+                    .getResultList();
+            }
         
 //s.oh^ 2014/08/19 施設患者一括表示機能
-        if (ret.isEmpty()) {
-            ret = em.createQuery(QUERY_PATIENT_BY_APPMEMO)
-                .setParameter(FID, fid)
-                .setParameter(APPMEMO, name+PERCENT)
-                .getResultList();
-        }
-        if (ret.isEmpty()) {
-            ret = em.createQuery(QUERY_PATIENT_BY_APPMEMO)
-                .setParameter(FID, fid)
-                .setParameter(APPMEMO, PERCENT+name)
-                .getResultList();
-        }
+            if (ret.isEmpty()) {
+                ret = em.createQuery(QUERY_PATIENT_BY_APPMEMO)
+                    .setParameter(FID, fid)
+                    .setParameter(APPMEMO, name+PERCENT)
+                    .getResultList();
+            }
+            if (ret.isEmpty()) {
+                ret = em.createQuery(QUERY_PATIENT_BY_APPMEMO)
+                    .setParameter(FID, fid)
+                    .setParameter(APPMEMO, PERCENT+name)
+                    .getResultList();
+            }
 //s.oh$
+        }
         
         //-----------------------------------
         // 患者の健康保険を取得する
@@ -106,32 +127,37 @@ public class PatientServiceBean {
     
     public List<PatientModel> getPatientsByKana(String fid, String name) {
 
-        List<PatientModel> ret = em.createQuery(QUERY_PATIENT_BY_KANA)
-            .setParameter(FID, fid)
-            .setParameter(NAME, name + PERCENT)
-            .getResultList();
+        // 索引があれば索引で探す
+        List<PatientModel> ret = searchByName(fid, PatientSearchIndex.KANA_NAME, name);
 
-        if (ret.isEmpty()) {
+        if (ret == null) {
             ret = em.createQuery(QUERY_PATIENT_BY_KANA)
                 .setParameter(FID, fid)
-                .setParameter(NAME, PERCENT + name)
+                .setParameter(NAME, name + PERCENT)
                 .getResultList();
-        }
+
+            if (ret.isEmpty()) {
+                ret = em.createQuery(QUERY_PATIENT_BY_KANA)
+                    .setParameter(FID, fid)
+                    .setParameter(NAME, PERCENT + name)
+                    .getResultList();
+            }
         
 //s.oh^ 2014/08/19 施設患者一括表示機能
-        if (ret.isEmpty()) {
-            ret = em.createQuery(QUERY_PATIENT_BY_APPMEMO)
-                .setParameter(FID, fid)
-                .setParameter(APPMEMO, name+PERCENT)
-                .getResultList();
-        }
-        if (ret.isEmpty()) {
-            ret = em.createQuery(QUERY_PATIENT_BY_APPMEMO)
-                .setParameter(FID, fid)
-                .setParameter(APPMEMO, PERCENT+name)
-                .getResultList();
-        }
+            if (ret.isEmpty()) {
+                ret = em.createQuery(QUERY_PATIENT_BY_APPMEMO)
+                    .setParameter(FID, fid)
+                    .setParameter(APPMEMO, name+PERCENT)
+                    .getResultList();
+            }
+            if (ret.isEmpty()) {
+                ret = em.createQuery(QUERY_PATIENT_BY_APPMEMO)
+                    .setParameter(FID, fid)
+                    .setParameter(APPMEMO, PERCENT+name)
+                    .getResultList();
+            }
 //s.oh$
+        }
 
         //-----------------------------------
         // 患者の健康保険を取得する
@@ -155,18 +181,25 @@ public class PatientServiceBean {
             .setParameter(PID, digit+PERCENT)
             .getResultList();
 
+        // 電話番号・郵便番号は索引があれば索引で探す
         if (ret.isEmpty()) {
-            ret = em.createQuery(QUERY_PATIENT_BY_TELEPHONE)
-                .setParameter(FID, fid)
-                .setParameter(NUMBER, digit+PERCENT)
-                .getResultList();
-        }
-
-        if (ret.isEmpty()) {
-            ret = em.createQuery(QUERY_PATIENT_BY_ZIPCODE)
-                .setParameter(FID, fid)
-                .setParameter(ZIPCODE, digit+PERCENT)
-                .getResultList();
+            List<PatientModel> list = searchIndex(fid, digit,
+                    PatientSearchIndex.TELEPHONE, PatientSearchIndex.PREFIX,
+                    PatientSearchIndex.ZIP_CODE, PatientSearchIndex.PREFIX);
+            if (list != null) {
+                ret = list;
+            } else {
+                ret = em.createQuery(QUERY_PATIENT_BY_TELEPHONE)
+                    .setParameter(FID, fid)
+                    .setParameter(NUMBER, digit+PERCENT)
+                    .getResultList();
+                if (ret.isEmpty()) {
+                    ret = em.createQuery(QUERY_PATIENT_BY_ZIPCODE)
+                        .setParameter(FID, fid)
+                        .setParameter(ZIPCODE, digit+PERCENT)
+                        .getResultList();
+                }
+            }
         }
 
         //-----------------------------------
@@ -183,6 +216,99 @@ public class PatientServiceBean {
         return ret;
     }
     
+    // 索引で氏名(カナ)の前方一致、後方一致、アプリメモの前方一致、後方一致の順に探す
+    private List<PatientModel> searchByName(String fid, int field, String name) {
+        return searchIndex(fid, name,
+                field, PatientSearchIndex.PREFIX,
+                field, PatientSearchIndex.SUFFIX,
+                PatientSearchIndex.APP_MEMO, PatientSearchIndex.PREFIX,
+                PatientSearchIndex.APP_MEMO, PatientSearchIndex.SUFFIX);
+    }
+    
+    /**
+     * 患者検索の索引で、項目と一致方法の組を順に試し最初に見つかった患者を返す。
+     * @param fid 施設ID
+     * @param value 検索する値
+     * @param steps 項目, 一致方法 の繰り返し
+     * @return PatientModel のリスト、索引が使えない場合は null
+     */
+    private List<PatientModel> searchIndex(String fid, String value, int... steps) {
+        
+        PatientSearchIndex index = PatientSearchIndex.getInstance();
+        for (int i = 0; i + 1 < steps.length; i += 2) {
+            List<Long> pks = index.search(em, fid, steps[i], steps[i + 1], value, index.getLimit());
+            if (pks == null) {
+                return null;
+            }
+            if (!pks.isEmpty()) {
+                return getPatientsByPks(fid, pks);
+            }
+        }
+        return new ArrayList<>();
+    }
+    
+    // PK の患者を PK の順で返す
+    private List<PatientModel> getPatientsByPks(String fid, List<Long> pks) {
+        
+        Map<Long, PatientModel> map = new HashMap<>(pks.size() * 2);
+        for (int from = 0; from < pks.size(); from += ID_PAGE_SIZE) {
+            List<Long> page = pks.subList(from, Math.min(from + ID_PAGE_SIZE, pks.size()));
+            List<PatientModel> list = em.createQuery(QUERY_PATIENT_BY_PKS, PatientModel.class)
+                    .setParameter(FID, fid)
+                    .setParameter(PKS, page)
+                    .getResultList();
+            for (PatientModel pm : list) {
+                map.put(pm.getId(), pm);
+            }
+        }
+        List<PatientModel> ret = new ArrayList<>(map.size());
+        for (Long pk : pks) {
+            PatientModel pm = map.get(pk);
+            if (pm != null) {
+                ret.add(pm);
+            }
+        }
+        return ret;
+    }
+    
+    // コミット後に患者検索の索引へ反映する
+    // 写真の digest を今と完了後に消す その間に DB から読んだものは ThumbnailStore が保持しない
+    private void photoChanged(final String fid, final long pk) {
+        ThumbnailStore.getInstance().photoChanged(fid, pk);
+        tsr.registerInterposedSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                ThumbnailStore.getInstance().photoChanged(fid, pk);
+            }
+        });
+    }
+
+    private void indexPatient(final PatientModel patient) {
+        tsr.registerInterposedSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED) {
+                    PatientSearchIndex.getInstance().put(patient);
+                }
+            }
+        });
+    }
+    
+    /**
+     * 患者検索の索引をデータベースから作り直す。
+     */
+    public void loadSearchIndex() {
+        PatientSearchIndex.getInstance().loadAll(em);
+    }
+    
     public List<PatientModel> getPatientsByPvtDate(String fid, String pvtDate) {
 
         List<PatientVisitModel> list =
@@ -195,18 +321,15 @@ public class PatientServiceBean {
 
         for (PatientVisitModel pvt : list) {
             PatientModel patient = pvt.getPatientModel();
-            List<HealthInsuranceModel> insurances
-                        = (List<HealthInsuranceModel>)em.createQuery(QUERY_INSURANCE_BY_PATIENT_PK)
-                        .setParameter(PK, patient.getId()).getResultList();
-                patient.setHealthInsurances(insurances);
             ret.add(patient);
-            
-            // 患者の健康保険を取得する
-            setHealthInsurances(patient);
 //masuda^   最終受診日設定
            patient.setPvtDate(pvt.getPvtDate());
 //masuda$        
         }
+        
+        // 患者の健康保険をまとめて取得する
+        setHealthInsurances(ret);
+        
         return ret;
     }
 
@@ -235,6 +358,20 @@ public class PatientServiceBean {
         return bean;
     }
     
+    /**
+     * 患者写真を返す。
+     * @param fid 施設ID
+     * @param pk 患者PK
+     * @return JPEG、施設の患者でないか写真がなければ null
+     */
+    public byte[] getPatientPhoto(String fid, long pk) {
+        List<byte[]> list = em.createQuery(QUERY_PHOTO_BY_PK)
+                              .setParameter(PK, pk)
+                              .setParameter(FID, fid)
+                              .getResultList();
+        return list.isEmpty() ? null : list.get(0);
+    }
+    
 //minagawa^ 音声検索辞書作成    
     public int countPatients(String facilityId) {
         Long count = (Long)em.createQuery("select count(*) from PatientModel p where p.facilityId=:fid")
@@ -291,6 +428,7 @@ public class PatientServiceBean {
     public long addPatient(PatientModel patient) {
         em.persist(patient);
         long pk = patient.getId();
+        indexPatient(patient);
         return pk;
     }
 
@@ -302,6 +440,8 @@ public class PatientServiceBean {
     
     public int update(PatientModel patient) {
         em.merge(patient);
+        indexPatient(patient);
+        photoChanged(patient.getFacilityId(), patient.getId());
  //masuda^   患者情報が更新されたらPvtListも更新する必要あり
         updatePvtList(patient);
 //masuda$       
@@ -312,24 +452,23 @@ public class PatientServiceBean {
     // pvtListのPatientModelを更新し、クライアントにも通知する
     private void updatePvtList(PatientModel pm) {
         String fid = pm.getFacilityId();
-        List<PatientVisitModel> pvtList = eventServiceBean.getPvtList(fid);
-        for (PatientVisitModel pvt : pvtList) {
-            if (pvt.getPatientModel().getId() == pm.getId()) {
+        PatientVisitStore pvtStore = eventServiceBean.getPvtStore(fid);
+        for (PatientVisitModel pvt : pvtStore.getByPatient(pm.getId())) {
 //s.oh^ 2013/10/07 患者情報が正しく表示されない
-                List<HealthInsuranceModel> him = pvt.getPatientModel().getHealthInsurances();
-                if(pm.getHealthInsurances() == null) {
-                    pm.setHealthInsurances(him);
-                }
-//s.oh$
-                pvt.setPatientModel(pm);
-                 // クライアントに通知
-                String uuid = eventServiceBean.getServerUUID();
-                ChartEventModel msg = new ChartEventModel(uuid);
-                msg.setPatientModel(pm);
-                msg.setFacilityId(fid);
-                msg.setEventType(ChartEventModel.PM_MERGE);
-                eventServiceBean.notifyEvent(msg);
+            List<HealthInsuranceModel> him = pvt.getPatientModel().getHealthInsurances();
+            if(pm.getHealthInsurances() == null) {
+                pm.setHealthInsurances(him);
             }
+//s.oh$
+            pvt.setPatientModel(pm);
+            pvtStore.touch(pvt.getId());
+             // クライアントに通知
+            String uuid = eventServiceBean.getServerUUID();
+            ChartEventModel msg = new ChartEventModel(uuid);
+            msg.setPatientModel(pm);
+            msg.setFacilityId(fid);
+            msg.setEventType(ChartEventModel.PM_MERGE);
+            eventServiceBean.notifyEvent(msg);
         }
     }
     
@@ -371,12 +510,27 @@ public class PatientServiceBean {
         return list;
     }
 
+    // 患者の PK の IN でまとめて取得し、患者ごとに設定する
     protected void setHealthInsurances(Collection<PatientModel> list) {
-        if (list != null && !list.isEmpty()) {
-            for (PatientModel pm : list) {
-                setHealthInsurances(pm);
+        if (list == null || list.isEmpty()) {
+            return;
+        }
+        Map<Long, List<HealthInsuranceModel>> map = new HashMap<>(list.size()*2);
+        for (PatientModel pm : list) {
+            map.put(pm.getId(), new ArrayList<HealthInsuranceModel>());
+        }
+        List<Long> pks = new ArrayList<>(map.keySet());
+        for (int from = 0; from < pks.size(); from += ID_PAGE_SIZE) {
+            List<HealthInsuranceModel> ins = em.createQuery(QUERY_INSURANCE_BY_PATIENT_PKS, HealthInsuranceModel.class)
+                    .setParameter(PKS, pks.subList(from, Math.min(from + ID_PAGE_SIZE, pks.size())))
+                    .getResultList();
+            for (HealthInsuranceModel h : ins) {
+                map.get(h.getPatient().getId()).add(h);
             }
         }
+        for (PatientModel pm : list) {
+            pm.setHealthInsurances(map.get(pm.getId()));
+        }
     }
     
     protected void setHealthInsurances(PatientModel pm) {
@@ -1,8 +1,5 @@
 package open.dolphin.session;
 
-import java.beans.XMLDecoder;
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -11,14 +8,18 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.annotation.Resource;
 import javax.ejb.Stateless;
+import javax.inject.Inject;
 import javax.inject.Named;
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
@@ -29,7 +30,7 @@ import javax.jms.ObjectMessage;
 import javax.jms.Session;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
-import open.dolphin.infomodel.AttachmentModel;
+import open.dolphin.infomodel.BeanBytesCodec;
 import open.dolphin.infomodel.DocumentModel;
 import open.dolphin.infomodel.HealthInsuranceModel;
 import open.dolphin.infomodel.IInfoModel;
@@ -39,7 +40,6 @@ import open.dolphin.infomodel.PVTHealthInsuranceModel;
 import open.dolphin.infomodel.PatientModel;
 import open.dolphin.infomodel.PatientVisitModel;
 import open.dolphin.infomodel.ProgressCourse;
-import open.dolphin.infomodel.SchemaModel;
 import open.dolphin.infomodel.UserModel;
 import open.dolphin.msg.ClaimSender;
 import open.dolphin.touch.converter.IOSHelper;
@@ -53,14 +53,17 @@ import open.dolphin.touch.converter.IOSHelper;
 public class ScheduleServiceBean {
     
     private static final String QUERY_PVT_BY_FID_DATE
-            = "from PatientVisitModel p where p.facilityId=:fid and p.pvtDate like :date order by p.pvtDate";
+            = "from PatientVisitModel p join fetch p.patient where p.facilityId=:fid and p.pvtDate like :date order by p.pvtDate";
     
     private static final String QUERY_PVT_BY_FID_DID_DATE
-            = "from PatientVisitModel p where p.facilityId=:fid and p.pvtDate like :date and (doctorId=:did or doctorId=:unassigned) order by p.pvtDate";
+            = "from PatientVisitModel p join fetch p.patient where p.facilityId=:fid and p.pvtDate like :date and (doctorId=:did or doctorId=:unassigned) order by p.pvtDate";
     
     private static final String QUERY_INSURANCE_BY_PATIENT_ID 
             = "from HealthInsuranceModel h where h.patient.id=:id";
     
+    private static final String QUERY_INSURANCE_BY_PATIENT_PKS 
+            = "from HealthInsuranceModel h where h.patient.id in (:pks) order by h.id";
+    
     private static final String QUERY_KARTE 
             = "from KarteBean k where k.patient.id=:patientPk";
 
@@ -73,21 +76,20 @@ public class ScheduleServiceBean {
     private static final String QUERY_DOCUMENT_BY_KARTEID_STARTDATE 
             = "from DocumentModel d where d.karte.id=:karteId and d.started=:started and (d.status='F' or d.status='T')";
     
+    private static final String QUERY_PATIENT_PK_WITH_DOCUMENT_BY_STARTDATE 
+            = "select distinct d.karte.patient.id from DocumentModel d where d.karte.patient.id in (:pks) and d.started=:started and (d.status='F' or d.status='T')";
+    
     private static final String QUERY_DOCUMENT_BY_LINK_ID 
             = "from DocumentModel d where d.linkId=:id";
     
-    private static final String QUERY_MODULE_BY_DOC_ID 
-            = "from ModuleModel m where m.document.id=:id";
-    
-    private static final String QUERY_SCHEMA_BY_DOC_ID 
-            = "from SchemaModel i where i.document.id=:id";
-    
-    private static final String QUERY_ATTACHMENT_BY_DOC_ID 
-            = "from AttachmentModel a where a.document.id=:id";
+    private static final int ID_PAGE_SIZE = 500;
     
     @PersistenceContext
     private EntityManager em;
     
+    @Inject
+    private KarteServiceBean karteServiceBean;
+    
 //s.oh^ 2014/02/21 Claim送信方法の変更
     //@Resource(mappedName = "java:/JmsXA")
     //private ConnectionFactory connectionFactory;
@@ -124,27 +126,31 @@ public class ScheduleServiceBean {
         Date startDate = dateFromString(date);
 
         // 来院情報と患者は ManyToOne の関係である
-        for (int i = 0; i < len; i++) {
-            
-            PatientVisitModel pvt = result.get(i);
-            PatientModel patient = pvt.getPatientModel();
+        // 患者の健康保険と、この日のカルテがある患者は患者の PK の IN でまとめて取得する
+        Map<Long, List<HealthInsuranceModel>> insuranceMap = new HashMap<>(len*2);
+        for (PatientVisitModel pvt : result) {
+            insuranceMap.put(pvt.getPatientModel().getId(), new ArrayList<HealthInsuranceModel>());
+        }
+        List<Long> pks = new ArrayList<>(insuranceMap.keySet());
+        Set<Long> hasDocument = new HashSet<>();
+        for (int from = 0; from < pks.size(); from += ID_PAGE_SIZE) {
+            List<Long> page = pks.subList(from, Math.min(from + ID_PAGE_SIZE, pks.size()));
+            List<HealthInsuranceModel> insurances = em.createQuery(QUERY_INSURANCE_BY_PATIENT_PKS, HealthInsuranceModel.class)
+                                                      .setParameter("pks", page)
+                                                      .getResultList();
+            for (HealthInsuranceModel h : insurances) {
+                insuranceMap.get(h.getPatient().getId()).add(h);
+            }
+            hasDocument.addAll(em.createQuery(QUERY_PATIENT_PK_WITH_DOCUMENT_BY_STARTDATE, Long.class)
+                                 .setParameter("pks", page)
+                                 .setParameter("started", startDate)
+                                 .getResultList());
+        }
 
-            // 患者の健康保険を取得する
-            List<HealthInsuranceModel> insurances = (List<HealthInsuranceModel>)em.createQuery(QUERY_INSURANCE_BY_PATIENT_ID)
-            .setParameter("id", patient.getId()).getResultList();
-            patient.setHealthInsurances(insurances);
-            
-            List<KarteBean> kartes = em.createQuery(QUERY_KARTE)
-                                  .setParameter("patientPk", patient.getId())
-                                  .getResultList();
-            KarteBean karte = kartes.get(0);
-            
-            // この日のカルテが存在するか
-            List<DocumentModel> list = (List<DocumentModel>)em.createQuery(QUERY_DOCUMENT_BY_KARTEID_STARTDATE)
-                                                 .setParameter("karteId", karte.getId())
-                                                 .setParameter("started", startDate)
-                                                 .getResultList();
-            if (list!=null && !list.isEmpty()) {
+        for (PatientVisitModel pvt : result) {
+            PatientModel patient = pvt.getPatientModel();
+            patient.setHealthInsurances(insuranceMap.get(patient.getId()));
+            if (hasDocument.contains(patient.getId())) {
                 pvt.setLastDocDate(startDate);
             }
         }
@@ -167,10 +173,7 @@ public class ScheduleServiceBean {
             // 受け付けた保険をデコードする
             PVTHealthInsuranceModel pvtHealthInsurance=null;
             for (HealthInsuranceModel m : insurances) {
-                XMLDecoder d = new XMLDecoder(
-                    new BufferedInputStream(
-                    new ByteArrayInputStream(m.getBeanBytes())));
-                pvtHealthInsurance = (PVTHealthInsuranceModel)d.readObject();
+                pvtHealthInsurance = (PVTHealthInsuranceModel)BeanBytesCodec.decode(m.getBeanBytes());
                 break;
             }
             
@@ -228,7 +231,7 @@ public class ScheduleServiceBean {
                     ProgressCourse soaProgress = new ProgressCourse();
                     soaProgress.setFreeText(sb.toString());
                     ModuleModel soaSpecModule = new ModuleModel();
-                    soaSpecModule.setBeanBytes(IOSHelper.toXMLBytes(soaProgress));
+                    soaSpecModule.setBeanBytes(IOSHelper.toBeanBytes(soaProgress));
                     soaSpecModule.setConfirmed(latest.getConfirmed());
                     soaSpecModule.setStarted(latest.getStarted());
                     soaSpecModule.setRecorded(latest.getRecorded());
@@ -261,7 +264,7 @@ public class ScheduleServiceBean {
                     ProgressCourse pProgress = new ProgressCourse();
                     pProgress.setFreeText(sb.toString());
                     ModuleModel pSpecModule = new ModuleModel();
-                    pSpecModule.setBeanBytes(IOSHelper.toXMLBytes(pProgress));
+                    pSpecModule.setBeanBytes(IOSHelper.toBeanBytes(pProgress));
                     pSpecModule.setConfirmed(latest.getConfirmed());
                     pSpecModule.setStarted(latest.getStarted());
                     pSpecModule.setRecorded(latest.getRecorded());
@@ -470,6 +473,9 @@ public class ScheduleServiceBean {
         // 削除リスト　文書ID
         List<String> list = new ArrayList<String>();
         
+        // 削除した DocumentModel
+        List<DocumentModel> deletes = new ArrayList<>();
+        
         // Loop で削除
         while (true) {
             
@@ -487,38 +493,7 @@ public class ScheduleServiceBean {
                 cnt++;
                 list.add(delete.getDocInfoModel().getDocId());
                 
-                //------------------------------
-                // 関連するモジュールに同じ処理を行う
-                //------------------------------
-                Collection deleteModules = em.createQuery(QUERY_MODULE_BY_DOC_ID)
-                .setParameter("id", id).getResultList();
-                for (Iterator iter = deleteModules.iterator(); iter.hasNext(); ) {
-                    ModuleModel model = (ModuleModel) iter.next();
-                    model.setStatus(IInfoModel.STATUS_DELETE);
-                    model.setEnded(ended);
-                }
-
-                //------------------------------
-                // 関連する画像に同じ処理を行う
-                //------------------------------
-                Collection deleteImages = em.createQuery(QUERY_SCHEMA_BY_DOC_ID)
-                .setParameter("id", id).getResultList();
-                for (Iterator iter = deleteImages.iterator(); iter.hasNext(); ) {
-                    SchemaModel model = (SchemaModel) iter.next();
-                    model.setStatus(IInfoModel.STATUS_DELETE);
-                    model.setEnded(ended);
-                }
-
-                //------------------------------
-                // 関連するAttachmentに同じ処理を行う
-                //------------------------------
-                Collection deleteAttachments = em.createQuery(QUERY_ATTACHMENT_BY_DOC_ID)
-                .setParameter("id", id).getResultList();
-                for (Iterator iter = deleteAttachments.iterator(); iter.hasNext(); ) {
-                    AttachmentModel model = (AttachmentModel)iter.next();
-                    model.setStatus(IInfoModel.STATUS_DELETE);
-                    model.setEnded(ended);
-                }
+                deletes.add(delete);
                 
                 // 削除したDocumentのlinkID を 削除するDocument id(PK) にしてLoopさせる
                 id = delete.getLinkId();
@@ -528,6 +503,11 @@ public class ScheduleServiceBean {
             }
         }
 
+        //------------------------------
+        // 関連するモジュール、画像、Attachmentに同じ処理を行う
+        //------------------------------
+        karteServiceBean.deleteDocumentChildren(deletes, ended);
+
         return list;
     }
     
@@ -3,6 +3,7 @@ package open.dolphin.session;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.function.Function;
 import javax.annotation.Resource;
 import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
@@ -10,7 +11,12 @@ import javax.inject.Named;
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
 import javax.persistence.PersistenceContext;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
 import open.dolphin.infomodel.*;
+import open.dolphin.mbean.StampCache;
+import open.dolphin.mbean.StampTreeStore;
 
 /**
  *
@@ -38,6 +44,9 @@ public class StampServiceBean {
 
     @PersistenceContext
     private EntityManager em;
+
+    @Resource
+    private TransactionSynchronizationRegistry tsr;
     
     private int getNextVersion(String holdVersion, String dbVersion) {
         
@@ -87,6 +96,7 @@ public class StampServiceBean {
             // 保存
             model.setVersionNumber(String.valueOf(vesion));
             StampTreeModel saveOrUpdate = em.merge(model);
+            treeSaved(model);
             return saveOrUpdate.getId();
         } else {
             throw new RuntimeException(EXCEPTION_FIRST_COMMIT_WIN);
@@ -114,6 +124,7 @@ public class StampServiceBean {
             // 保存
             model.setVersionNumber(String.valueOf(vesion));
             StampTreeModel saveOrUpdate = em.merge(model);
+            treeSaved(model);
             StringBuilder sb = new StringBuilder();
             sb.append(String.valueOf(saveOrUpdate.getId())).append(",").append(saveOrUpdate.getVersionNumber());
             return sb.toString();
@@ -126,6 +137,7 @@ public class StampServiceBean {
     // pk,versionNumber
     public void forceSyncTree(StampTreeModel model) {
         em.merge(model);
+        treeSaved(model);
     }
 
     /**
@@ -182,7 +194,7 @@ public class StampServiceBean {
                 tmp.put(sm.getTreeId(), "A");
 
                 try {
-                    PublishedTreeModel published = (PublishedTreeModel)em.find(PublishedTreeModel.class, sm.getTreeId());
+                    PublishedTreeModel published = StampTreeStore.getInstance().findPublished(em, sm.getTreeId());
 
                     if (published != null) {
                         ret.addSubscribedTree(published);
@@ -204,6 +216,18 @@ public class StampServiceBean {
         return ret;
     }
 
+    /**
+     * User個人のTreeを変換したもの(モバイル向け JSON 等)を返す。
+     * 同じ内容の Tree の変換結果は共有し、Tree が保存されるまで作り直さない。
+     * @param userPK userId(DB key)
+     * @param kind 変換の種類
+     * @param compiler treeBytes を変換する
+     * @return 変換結果と ETag、Tree がない場合は null
+     */
+    public StampTreeStore.Projection getTreeProjection(long userPK, String kind, Function<byte[], byte[]> compiler) {
+        return StampTreeStore.getInstance().getProjection(em, userPK, kind, compiler);
+    }
+
     // version
     public String updatePublishedTree(StampTreeHolder h) {
 
@@ -240,6 +264,9 @@ public class StampServiceBean {
             } else {
                 em.merge(pt);
             }
+            treeSaved(st);
+            final long treeId = pt.getId();
+            afterCommit(() -> StampTreeStore.getInstance().publishedChanged(treeId));
         
             // versionNum
             return saveOrUpdate.getVersionNumber();
@@ -286,6 +313,9 @@ public class StampServiceBean {
             for (PublishedTreeModel m : list) {
                 em.remove(m);
             }
+            treeSaved(st);
+            final long treeId = st.getId();
+            afterCommit(() -> StampTreeStore.getInstance().publishedChanged(treeId));
         
             // versionNum
             return saveOrUpdate.getVersionNumber();
@@ -391,6 +421,7 @@ public class StampServiceBean {
     public String putStamp(StampModel model) {
         //em.persist(model);
         em.merge(model);
+        invalidateStamp(model.getId());
         return model.getId();
     }
 
@@ -402,7 +433,7 @@ public class StampServiceBean {
     public StampModel getStamp(String stampId) {
 
         try {
-            return (StampModel) em.find(StampModel.class, stampId);
+            return StampCache.getInstance().find(em, stampId);
         } catch (NoResultException e) {
         }
 
@@ -411,8 +442,9 @@ public class StampServiceBean {
 
     /**
      * Stampを取得する。
-     * @param stampId 取得する StampModel の id
-     * @return StampModel
+     * キャッシュにないものは IN で一括して取得し、ids の順に並べる。
+     * @param ids 取得する StampModel の id List
+     * @return StampModel List 存在しない id の位置は null
      */
     
     public List<StampModel> getStamp(List<String> ids) {
@@ -420,10 +452,7 @@ public class StampServiceBean {
         List<StampModel> ret = new ArrayList<StampModel>();
 
         try {
-            for (String stampId : ids) {
-                StampModel test = (StampModel) em.find(StampModel.class, stampId);
-                ret.add(test);
-            }
+            ret = StampCache.getInstance().findAll(em, ids);
         } catch (Exception e) {
         }
 
@@ -439,6 +468,7 @@ public class StampServiceBean {
     public int removeStamp(String stampId) {
         StampModel exist = (StampModel) em.find(StampModel.class, stampId);
         em.remove(exist);
+        invalidateStamp(stampId);
         return 1;
     }
 
@@ -453,8 +483,46 @@ public class StampServiceBean {
         for (String stampId : ids) {
             StampModel exist = (StampModel) em.find(StampModel.class, stampId);
             em.remove(exist);
+            invalidateStamp(stampId);
             cnt++;
         }
         return cnt;
     }
+    
+    // 変換結果はコミットされた場合だけ作り直す
+    private void treeSaved(StampTreeModel model) {
+        final long userPK = model.getUserModel().getId();
+        final byte[] treeBytes = model.getTreeBytes();
+        afterCommit(() -> StampTreeStore.getInstance().treeSaved(userPK, treeBytes));
+    }
+    
+    private void afterCommit(final Runnable task) {
+        tsr.registerInterposedSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                if (status == Status.STATUS_COMMITTED) {
+                    task.run();
+                }
+            }
+        });
+    }
+    
+    // 完了後にもう一度削除する その間に DB から読んだものは StampCache が modCount で保持しない
+    private void invalidateStamp(final String stampId) {
+        StampCache.getInstance().invalidate(stampId);
+        tsr.registerInterposedSynchronization(new Synchronization() {
+            @Override
+            public void beforeCompletion() {
+            }
+
+            @Override
+            public void afterCompletion(int status) {
+                StampCache.getInstance().invalidate(stampId);
+            }
+        });
+    }
 }
@@ -0,0 +1,116 @@
+package open.dolphin.session;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Logger;
+import javax.ejb.Stateless;
+import javax.inject.Named;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import open.dolphin.infomodel.SchemaModel;
+import open.dolphin.mbean.BlobStore;
+import open.dolphin.mbean.BlobStoreProvider;
+import open.dolphin.mbean.ThumbnailStore;
+
+/**
+ * 既存のシェーマと患者写真のサムネイルを作る。
+ * id 順に maxResults 件ずつ処理し、既にあるサムネイルは作らない。
+ */
+@Named
+@Stateless
+public class ThumbnailBackfillServiceBean {
+
+    // blobId のある行は LOB 列を読まない
+    private static final String QUERY_SCHEMA_AFTER_ID = "select s.id, s.blobId from SchemaModel s where s.id > :id order by s.id";
+    private static final String QUERY_PHOTO_AFTER_ID = "select p.id, p.jpegPhoto from PatientModel p where p.id > :id and p.jpegPhoto is not null order by p.id";
+    private static final String ID = "id";
+
+    @PersistenceContext
+    private EntityManager em;
+
+    /**
+     * シェーマのサムネイルを1バッチ作る。
+     * @param afterId この id より後の行を処理する
+     * @param maxResults バッチサイズ
+     * @return 処理した最後の id、対象がなければ -1
+     */
+    public long backfillImages(long afterId, int maxResults) {
+
+        List<Object[]> list = em.createQuery(QUERY_SCHEMA_AFTER_ID)
+                .setParameter(ID, afterId)
+                .setMaxResults(maxResults)
+                .getResultList();
+
+        if (list.isEmpty()) {
+            return -1L;
+        }
+
+        ThumbnailStore thumbnails = ThumbnailStore.getInstance();
+        BlobStore store = BlobStoreProvider.getStore();
+        int cnt = 0;
+        for (Object[] row : list) {
+            long id = (Long)row[0];
+            String blobId = (String)row[1];
+            try {
+                byte[] bytes;
+                if (blobId != null && store != null) {
+                    bytes = store.get(blobId);
+                } else {
+                    SchemaModel schema = em.find(SchemaModel.class, id);
+                    bytes = schema.getJpegByte();
+                    blobId = (bytes != null && bytes.length > 0) ? thumbnails.digest(bytes) : null;
+                    // LOB を持ったままにしない
+                    em.detach(schema);
+                }
+                if (blobId != null && bytes != null && thumbnails.generateAll(blobId, bytes)) {
+                    cnt++;
+                }
+            } catch (IOException | RuntimeException e) {
+                Logger.getLogger("open.dolphin").warning("d_image id=" + id + " thumbnail can not be created: " + e.getMessage());
+            }
+        }
+        log("d_image", list.size(), cnt);
+
+        return (Long)list.get(list.size() - 1)[0];
+    }
+
+    /**
+     * 患者写真のサムネイルを1バッチ作る。
+     * @param afterId この id より後の行を処理する
+     * @param maxResults バッチサイズ
+     * @return 処理した最後の id、対象がなければ -1
+     */
+    public long backfillPhotos(long afterId, int maxResults) {
+
+        List<Object[]> list = em.createQuery(QUERY_PHOTO_AFTER_ID)
+                .setParameter(ID, afterId)
+                .setMaxResults(maxResults)
+                .getResultList();
+
+        if (list.isEmpty()) {
+            return -1L;
+        }
+
+        ThumbnailStore thumbnails = ThumbnailStore.getInstance();
+        int cnt = 0;
+        for (Object[] row : list) {
+            byte[] bytes = (byte[])row[1];
+            try {
+                if (bytes.length > 0 && thumbnails.generateAll(thumbnails.digest(bytes), bytes)) {
+                    cnt++;
+                }
+            } catch (IOException | RuntimeException e) {
+                Logger.getLogger("open.dolphin").warning("d_patient id=" + row[0] + " thumbnail can not be created: " + e.getMessage());
+            }
+        }
+        log("d_patient", list.size(), cnt);
+
+        return (Long)list.get(list.size() - 1)[0];
+    }
+
+    private void log(String table, int scanned, int created) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(table).append(" thumbnails ").append(created).append("/").append(scanned);
+        Logger.getLogger("open.dolphin").info(sb.toString());
+    }
+}
@@ -5,11 +5,13 @@ import java.util.List;
 import javax.annotation.Resource;
 import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
+import javax.inject.Inject;
 import javax.inject.Named;
 import javax.persistence.EntityExistsException;
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
 import javax.persistence.PersistenceContext;
+import open.dolphin.mbean.UserCache;
 import open.dolphin.infomodel.*;
 
 /**
@@ -34,6 +36,9 @@ public class UserServiceBean {
     @PersistenceContext
     private EntityManager em;
 
+    @Inject
+    private UserCache userCache;
+
     
     public boolean authenticate(String userName, String password) {
 
@@ -122,6 +127,8 @@ public class UserServiceBean {
         update.setMemberType(current.getMemberType());
         update.setRegisteredDate(current.getRegisteredDate());
         em.merge(update);
+        // パスワードが変わっていれば古い認証結果を使わない
+        userCache.invalidate(current.getUserId());
         return 1;
     }
 
@@ -136,6 +143,7 @@ public class UserServiceBean {
         // 削除するユーザを得る
         //
         UserModel remove = getUser(removeId);
+        userCache.invalidate(removeId);
 
         // Stamp を削除する
         Collection<StampModel> stamps = (Collection<StampModel>) em.createQuery("from StampModel s where s.userId = :pk")
@@ -8,6 +8,7 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import open.dolphin.infomodel.*;
+import open.dolphin.mbean.DecodedModuleCache;
 import open.dolphin.touch.session.IPhoneServiceBean;
 
 /**
@@ -1472,7 +1473,7 @@ public class DemoResource extends AbstractResource {
 
         for (ModuleModel module : retList) {
 
-            module.setModel((InfoModel)xmlDecode(module.getBeanBytes()));
+            module.setModel((InfoModel)DecodedModuleCache.getInstance().getModel(module));
 
             BundleDolphin bundle = (BundleDolphin) module.getModel();
             bundle.setOrderName(module.getModuleInfoBean().getEntity());
@@ -1597,7 +1598,7 @@ public class DemoResource extends AbstractResource {
 
             for (ModuleModel bean : modules) {
 
-                bean.setModel((InfoModel) xmlDecode(bean.getBeanBytes()));
+                bean.setModel((InfoModel)DecodedModuleCache.getInstance().getModel(bean));
 
                 String role = bean.getModuleInfoBean().getStampRole();
 
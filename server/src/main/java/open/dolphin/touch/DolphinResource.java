@@ -1,6 +1,5 @@
 package open.dolphin.touch;
 
-import java.beans.XMLDecoder;
 import java.io.*;
 import java.util.*;
 import javax.inject.Inject;
@@ -8,12 +7,18 @@ import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
 import open.dolphin.infomodel.*;
+import open.dolphin.mbean.DecodedModuleCache;
+import open.dolphin.mbean.StampCache;
+import open.dolphin.mbean.StampTreeStore;
 import open.dolphin.touch.converter.IDocument;
 import open.dolphin.touch.converter.IPriscription;
 import open.dolphin.touch.session.IPhoneServiceBean;
 //import open.dolphin.msg.ServerPrescriptionPDFMaker;
 import open.dolphin.session.KarteServiceBean;
+import open.dolphin.session.StampServiceBean;
 import open.dolphin.touch.converter.IDocument2;
 import org.codehaus.jackson.map.ObjectMapper;
 
@@ -108,6 +113,9 @@ public class DolphinResource extends AbstractResource {
     @Inject
     private KarteServiceBean karteService;
 
+    @Inject
+    private StampServiceBean stampServiceBean;
+
     /** Creates a new instance of DolphinResource */
     public DolphinResource() {
     }
@@ -776,7 +784,7 @@ public class DolphinResource extends AbstractResource {
 
         for (ModuleModel module : retList) {
 
-            module.setModel((InfoModel)xmlDecode(module.getBeanBytes()));
+            module.setModel((InfoModel)DecodedModuleCache.getInstance().getModel(module));
 
             BundleMed med = (BundleMed)module.getModel();
             ClaimItem[] items = med.getClaimItem();
@@ -843,7 +851,7 @@ public class DolphinResource extends AbstractResource {
 
         for (ModuleModel module : retList) {
 
-            module.setModel((InfoModel)xmlDecode(module.getBeanBytes()));
+            module.setModel((InfoModel)DecodedModuleCache.getInstance().getModel(module));
 
             BundleDolphin bundle = (BundleDolphin) module.getModel();
             bundle.setOrderName(module.getModuleInfoBean().getEntity());
@@ -1252,7 +1260,7 @@ public class DolphinResource extends AbstractResource {
 
             for (ModuleModel bean : modules) {
 
-                bean.setModel((InfoModel) xmlDecode(bean.getBeanBytes()));
+                bean.setModel((InfoModel)DecodedModuleCache.getInstance().getModel(bean));
 
                 String role = bean.getModuleInfoBean().getStampRole();
 
@@ -1403,26 +1411,12 @@ public class DolphinResource extends AbstractResource {
     @GET
     @Path("/stampTree/{param}")
     @Produces("application/json")
-    public String getStampTree(@PathParam("param") String param) {
+    public Response getStampTree(@Context Request request, @PathParam("param") String param) {
         
+        // 保存時に変換済みの JSON を返す 変わっていなければ 304
         long pk = Long.parseLong(param);
-        IStampTreeModel treeModel = iPhoneServiceBean.getTrees(pk);
-        
-        try {
-            String treeXml = new String(treeModel.getTreeBytes(), "UTF-8");
-            BufferedReader reader = new BufferedReader(new StringReader(treeXml));
-            JSONStampTreeBuilder builder = new JSONStampTreeBuilder();
-            StampTreeDirector director = new StampTreeDirector(builder);
-            String json = director.build(reader);
-            reader.close();
-            //System.err.println(json);
-            return json;
-            
-        } catch (UnsupportedEncodingException ex) {
-        } catch (IOException ex) {
-        }
-        
-        return null;
+        StampTreeStore.Projection tree = stampServiceBean.getTreeProjection(pk, JSONStampTreeBuilder.PROJECTION, JSONStampTreeBuilder::compile);
+        return stampTreeResponse(request, tree, "application/json; charset=UTF-8");
     }
     
     @GET
@@ -1433,10 +1427,7 @@ public class DolphinResource extends AbstractResource {
         StampModel stampModel = iPhoneServiceBean.getStamp(param);
         
         if (stampModel!=null) {
-            XMLDecoder d = new XMLDecoder(
-                new BufferedInputStream(
-                new ByteArrayInputStream(stampModel.getStampBytes())));
-            InfoModel model = (InfoModel)d.readObject();
+            InfoModel model = (InfoModel)StampCache.getInstance().getModel(stampModel);
             JSONStampBuilder builder = new JSONStampBuilder();
             String json = builder.build(model);
             return json;
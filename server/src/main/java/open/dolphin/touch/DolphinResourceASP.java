@@ -1,6 +1,5 @@
 package open.dolphin.touch;
 
-import java.beans.XMLDecoder;
 import java.io.*;
 import java.util.*;
 import javax.inject.Inject;
@@ -8,8 +7,14 @@ import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
 import open.dolphin.infomodel.*;
+import open.dolphin.mbean.DecodedModuleCache;
+import open.dolphin.mbean.StampCache;
+import open.dolphin.mbean.StampTreeStore;
 import open.dolphin.session.KarteServiceBean;
+import open.dolphin.session.StampServiceBean;
 import open.dolphin.touch.converter.IDocument;
 import open.dolphin.touch.converter.IDocument2;
 import open.dolphin.touch.session.IPhoneServiceBean;
@@ -103,6 +108,9 @@ public class DolphinResourceASP extends AbstractResource {
     @Inject
     private KarteServiceBean karteService;
 
+    @Inject
+    private StampServiceBean stampServiceBean;
+
     /** Creates a new instance of DolphinResource */
     public DolphinResourceASP() {
     }
@@ -736,7 +744,7 @@ public class DolphinResourceASP extends AbstractResource {
 
         for (ModuleModel module : retList) {
 
-            module.setModel((InfoModel)xmlDecode(module.getBeanBytes()));
+            module.setModel((InfoModel)DecodedModuleCache.getInstance().getModel(module));
 
             BundleMed med = (BundleMed)module.getModel();
             ClaimItem[] items = med.getClaimItem();
@@ -803,7 +811,7 @@ public class DolphinResourceASP extends AbstractResource {
 
         for (ModuleModel module : retList) {
 
-            module.setModel((InfoModel)xmlDecode(module.getBeanBytes()));
+            module.setModel((InfoModel)DecodedModuleCache.getInstance().getModel(module));
 
             BundleDolphin bundle = (BundleDolphin) module.getModel();
             bundle.setOrderName(module.getModuleInfoBean().getEntity());
@@ -1209,7 +1217,7 @@ public class DolphinResourceASP extends AbstractResource {
 
             for (ModuleModel bean : modules) {
 
-                bean.setModel((InfoModel) xmlDecode(bean.getBeanBytes()));
+                bean.setModel((InfoModel)DecodedModuleCache.getInstance().getModel(bean));
 
                 String role = bean.getModuleInfoBean().getStampRole();
 
@@ -1360,26 +1368,12 @@ public class DolphinResourceASP extends AbstractResource {
     @GET
     @Path("/stampTree/{param}")
     @Produces("application/json")
-    public String getStampTree(@PathParam("param") String param) {
+    public Response getStampTree(@Context Request request, @PathParam("param") String param) {
         
+        // 保存時に変換済みの JSON を返す 変わっていなければ 304
         long pk = Long.parseLong(param);
-        IStampTreeModel treeModel = iPhoneServiceBean.getTrees(pk);
-        
-        try {
-            String treeXml = new String(treeModel.getTreeBytes(), "UTF-8");
-            BufferedReader reader = new BufferedReader(new StringReader(treeXml));
-            JSONStampTreeBuilder builder = new JSONStampTreeBuilder();
-            StampTreeDirector director = new StampTreeDirector(builder);
-            String json = director.build(reader);
-            reader.close();
-            //System.err.println(json);
-            return json;
-            
-        } catch (UnsupportedEncodingException ex) {
-        } catch (IOException ex) {
-        }
-        
-        return null;
+        StampTreeStore.Projection tree = stampServiceBean.getTreeProjection(pk, JSONStampTreeBuilder.PROJECTION, JSONStampTreeBuilder::compile);
+        return stampTreeResponse(request, tree, "application/json; charset=UTF-8");
     }
     
     @GET
@@ -1390,10 +1384,7 @@ public class DolphinResourceASP extends AbstractResource {
         StampModel stampModel = iPhoneServiceBean.getStamp(param);
         
         if (stampModel!=null) {
-            XMLDecoder d = new XMLDecoder(
-                new BufferedInputStream(
-                new ByteArrayInputStream(stampModel.getStampBytes())));
-            InfoModel model = (InfoModel)d.readObject();
+            InfoModel model = (InfoModel)StampCache.getInstance().getModel(stampModel);
             JSONStampBuilder builder = new JSONStampBuilder();
             String json = builder.build(model);
             return json;
@@ -481,7 +481,7 @@ public class IDocument implements java.io.Serializable {
             pProgress.setFreeText(pText);
             
             ModuleModel pSpecModule = new ModuleModel();
-            pSpecModule.setBeanBytes(IOSHelper.toXMLBytes(pProgress));
+            pSpecModule.setBeanBytes(IOSHelper.toBeanBytes(pProgress));
             pSpecModule.setConfirmed(infoToSet.getConfirmed());
             pSpecModule.setStarted(infoToSet.getStarted());
             pSpecModule.setRecorded(infoToSet.getRecorded());
@@ -512,7 +512,7 @@ public class IDocument implements java.io.Serializable {
             ProgressCourse pProgress = new ProgressCourse();
             pProgress.setFreeText(pText);
             ModuleModel pSpecModule = new ModuleModel();
-            pSpecModule.setBeanBytes(IOSHelper.toXMLBytes(pProgress));
+            pSpecModule.setBeanBytes(IOSHelper.toBeanBytes(pProgress));
             pSpecModule.setConfirmed(ret.getConfirmed());
             pSpecModule.setStarted(ret.getStarted());
             pSpecModule.setRecorded(ret.getRecorded());
@@ -733,7 +733,7 @@ public class IDocument implements java.io.Serializable {
             pProgress.setFreeText(pText);
             
             ModuleModel pSpecModule = new ModuleModel();
-            pSpecModule.setBeanBytes(IOSHelper.toXMLBytes(pProgress));
+            pSpecModule.setBeanBytes(IOSHelper.toBeanBytes(pProgress));
             pSpecModule.setConfirmed(infoToSet.getConfirmed());
             pSpecModule.setStarted(infoToSet.getStarted());
             pSpecModule.setRecorded(infoToSet.getRecorded());
@@ -764,7 +764,7 @@ public class IDocument implements java.io.Serializable {
             ProgressCourse pProgress = new ProgressCourse();
             pProgress.setFreeText(pText);
             ModuleModel pSpecModule = new ModuleModel();
-            pSpecModule.setBeanBytes(IOSHelper.toXMLBytes(pProgress));
+            pSpecModule.setBeanBytes(IOSHelper.toBeanBytes(pProgress));
             pSpecModule.setConfirmed(ret.getConfirmed());
             pSpecModule.setStarted(ret.getStarted());
             pSpecModule.setRecorded(ret.getRecorded());
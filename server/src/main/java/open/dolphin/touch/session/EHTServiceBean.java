@@ -9,9 +9,9 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import javax.ejb.Stateless;
+import javax.inject.Inject;
 import javax.inject.Named;
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
@@ -39,6 +39,9 @@ import open.dolphin.infomodel.SchemaModel;
 import open.dolphin.infomodel.StampModel;
 import open.dolphin.infomodel.StampTreeModel;
 import open.dolphin.infomodel.VitalModel;
+import open.dolphin.mbean.LaboSeriesStore;
+import open.dolphin.mbean.StampCache;
+import open.dolphin.session.KarteServiceBean;
 import open.dolphin.touch.converter.IPhysicalModel;
 
 /**
@@ -101,6 +104,9 @@ public class EHTServiceBean {
     @PersistenceContext
     private EntityManager em;
     
+    @Inject
+    private KarteServiceBean karteServiceBean;
+    
     // 直近の新患リスト
     public List<PatientModel> getFirstVisitors(String facilityId, int firstResult, int maxResult) {
 
@@ -497,6 +503,9 @@ public class EHTServiceBean {
         // 削除リスト　文書ID
         List<String> list = new ArrayList<String>();
         
+        // 削除した DocumentModel
+        List<DocumentModel> deletes = new ArrayList<>();
+        
         // Loop で削除
         while (true) {
             
@@ -514,38 +523,7 @@ public class EHTServiceBean {
                 cnt++;
                 list.add(delete.getDocInfoModel().getDocId());
                 
-                //------------------------------
-                // 関連するモジュールに同じ処理を行う
-                //------------------------------
-                Collection deleteModules = em.createQuery(QUERY_MODULE_BY_DOCUMENT)
-                .setParameter("id", id).getResultList();
-                for (Iterator iter = deleteModules.iterator(); iter.hasNext(); ) {
-                    ModuleModel model = (ModuleModel) iter.next();
-                    model.setStatus(IInfoModel.STATUS_DELETE);
-                    model.setEnded(ended);
-                }
-
-                //------------------------------
-                // 関連する画像に同じ処理を行う
-                //------------------------------
-                Collection deleteImages = em.createQuery(QUERY_SCHEMA_BY_DOCUMENT)
-                .setParameter("id", id).getResultList();
-                for (Iterator iter = deleteImages.iterator(); iter.hasNext(); ) {
-                    SchemaModel model = (SchemaModel) iter.next();
-                    model.setStatus(IInfoModel.STATUS_DELETE);
-                    model.setEnded(ended);
-                }
-
-                //------------------------------
-                // 関連するAttachmentに同じ処理を行う
-                //------------------------------
-                Collection deleteAttachments = em.createQuery(QUERY_ATTACHMENT_BY_DOC_ID)
-                .setParameter("id", id).getResultList();
-                for (Iterator iter = deleteAttachments.iterator(); iter.hasNext(); ) {
-                    AttachmentModel model = (AttachmentModel)iter.next();
-                    model.setStatus(IInfoModel.STATUS_DELETE);
-                    model.setEnded(ended);
-                }
+                deletes.add(delete);
                 
                 // 削除したDocumentのlinkID を 削除するDocument id(PK) にしてLoopさせる
                 id = delete.getLinkId();
@@ -555,6 +533,11 @@ public class EHTServiceBean {
             }
         }
 
+        //------------------------------
+        // 関連するモジュール、画像、Attachmentに同じ処理を行う
+        //------------------------------
+        karteServiceBean.deleteDocumentChildren(deletes, ended);
+
         return list;
     }
     
@@ -685,15 +668,8 @@ public class EHTServiceBean {
         sb.append(patientId);
         String fidPid = sb.toString();
 
-        List<NLaboItem> ret = (List<NLaboItem>)
-                        em.createQuery("from NLaboItem l where l.patientId=:fidPid and l.itemCode=:itemCode order by l.sampleDate desc")
-                          .setParameter("fidPid", fidPid)
-                          .setParameter("itemCode", itemCode)
-                          .setFirstResult(firstResult)
-                          .setMaxResults(maxResult)
-                          .getResultList();
-
-        return ret;
+        // 患者の時系列から返す
+        return LaboSeriesStore.getInstance().getItems(em, fidPid, itemCode, firstResult, maxResult);
     }
     
     //------------------------------------------------------------------------
@@ -730,7 +706,7 @@ public class EHTServiceBean {
     public StampModel getStamp(String stampId) {
 
         try {
-            return (StampModel)em.find(StampModel.class, stampId);
+            return StampCache.getInstance().find(em, stampId);
         } catch (NoResultException e) {
         }
 
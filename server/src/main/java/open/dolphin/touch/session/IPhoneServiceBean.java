@@ -5,11 +5,15 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import javax.ejb.Stateless;
+import javax.inject.Inject;
 import javax.inject.Named;
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
 import javax.persistence.PersistenceContext;
 import open.dolphin.infomodel.*;
+import open.dolphin.mbean.LaboSeriesStore;
+import open.dolphin.mbean.StampCache;
+import open.dolphin.session.KarteServiceBean;
 
 /**
  *
@@ -84,6 +88,9 @@ public class IPhoneServiceBean {
     
     @PersistenceContext
     private EntityManager em;
+    
+    @Inject
+    private KarteServiceBean karteServiceBean;
 
     public UserModel getUser(String userId, String password) {
 
@@ -512,15 +519,8 @@ public class IPhoneServiceBean {
         sb.append(patientId);
         String fidPid = sb.toString();
 
-        List<NLaboItem> ret = (List<NLaboItem>)
-                        em.createQuery("from NLaboItem l where l.patientId=:fidPid and l.itemCode=:itemCode order by l.sampleDate desc")
-                          .setParameter("fidPid", fidPid)
-                          .setParameter("itemCode", itemCode)
-                          .setFirstResult(firstResult)
-                          .setMaxResults(maxResult)
-                          .getResultList();
-
-        return ret;
+        // 患者の時系列から返す
+        return LaboSeriesStore.getInstance().getItems(em, fidPid, itemCode, firstResult, maxResult);
     }
     
 //    public FirstEncounter0Model getFirstEncounter0Model(long patientPk) {
@@ -578,23 +578,8 @@ public class IPhoneServiceBean {
             .setMaxResults(maxResult)
             .getResultList();
         
-        for (DocumentModel doc : ret) {
-
-            // module
-            List<ModuleModel> modules =
-                    em.createQuery(QUERY_MODULE_BY_DOCUMENT)
-                      .setParameter("id", doc.getId())
-                      .getResultList();
-
-            doc.setModules(modules);
-
-            // SchemaModel を取得する
-            List<SchemaModel> images =
-                    em.createQuery(QUERY_SCHEMA_BY_DOCUMENT)
-                      .setParameter("id", doc.getId())
-                      .getResultList();
-            doc.setSchema(images);
-        }
+        // module と SchemaModel を一括して取得する
+        karteServiceBean.fetchDocumentChildren(ret, false);
 
         return ret;
     }
@@ -1004,7 +989,7 @@ public class IPhoneServiceBean {
     public StampModel getStamp(String stampId) {
 
         try {
-            return (StampModel)em.find(StampModel.class, stampId);
+            return StampCache.getInstance().find(em, stampId);
         } catch (NoResultException e) {
         }
 
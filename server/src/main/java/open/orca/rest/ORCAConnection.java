@@ -7,9 +7,11 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.Properties;
+import java.util.logging.Logger;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.sql.DataSource;
+import open.dolphin.common.OrcaMasterIndex;
 
 /**
  * 2013/08/29
@@ -26,6 +28,14 @@ public class ORCAConnection {
     private String user;
     private String password;
     
+    // ORCADS データソース 接続と PreparedStatement のプールは WildFly に任せる
+    // (standalone.xml の pool と statement/prepared-statement-cache-size)
+    private static final String ORCA_DS = "java:jboss/datasources/ORCADS";
+    private volatile DataSource dataSource;
+    
+    // claim.conn=server の場合の点数・病名マスタの索引
+    private OrcaMasterIndex masterIndex;
+    
 //minagawa^    
     private final Properties config;
 //minagawa$
@@ -56,6 +66,10 @@ public class ORCAConnection {
                 jdbcURL = config.getProperty("claim.jdbc.url");
                 user = config.getProperty("claim.user");
                 password = config.getProperty("claim.password");
+                // custom.properties orca.master.index=false で使わない
+                if (!"false".equals(config.getProperty("orca.master.index"))) {
+                    masterIndex = new OrcaMasterIndex();
+                }
             }
             
         } catch (Exception e) {
@@ -66,20 +80,61 @@ public class ORCAConnection {
     public Connection getConnection() {
         
         try {
+            DataSource ds = getDataSource();
+            if (ds!=null) {
+                return ds.getConnection();
+            }
             if (jdbcURL!=null && user!=null && password!=null) {
-                Connection conn = DriverManager.getConnection(jdbcURL, user, password);         
-                conn.setReadOnly(true);           
+                // ORCADS が定義されていない場合は従来どおり直接つなぐ
+                Connection conn = DriverManager.getConnection(jdbcURL, user, password);
+                conn.setReadOnly(true);
                 return conn;
-            } else {
-                DataSource ds = (DataSource)InitialContext.doLookup("java:jboss/datasources/ORCADS");
-                return ds.getConnection();
             }
-        } catch (SQLException | NamingException e) {
-            e.printStackTrace(System.err);
+        } catch (SQLException e) {
+            Logger.getLogger("open.dolphin").warning("ORCA connection can not be opened: " + e.getMessage());
         }
         return null;
     }
     
+    // ORCADS を引く 見つからなければ null
+    private DataSource getDataSource() {
+        DataSource ds = dataSource;
+        if (ds==null) {
+            try {
+                ds = (DataSource)InitialContext.doLookup(ORCA_DS);
+                dataSource = ds;
+            } catch (NamingException e) {
+                if (jdbcURL==null) {
+                    Logger.getLogger("open.dolphin").warning(ORCA_DS + " is not defined: " + e.getMessage());
+                }
+            }
+        }
+        return ds;
+    }
+    
+    /**
+     * 点数・病名マスタの索引を返す。
+     * @return 索引、claim.conn=server でない場合は null
+     */
+    public OrcaMasterIndex getMasterIndex() {
+        return masterIndex;
+    }
+    
+    /**
+     * 点数・病名マスタを読み直して索引を作る。
+     */
+    public void reloadMasterIndex() {
+        if (masterIndex == null) {
+            return;
+        }
+        try (Connection con = getConnection()) {
+            // サーバは ORCA 4.6 以降の病名マスタを使う(OrcaResource と同じ)
+            masterIndex.load(con, true);
+        } catch (Exception e) {
+            Logger.getLogger("open.dolphin").warning("ORCA master index can not be loaded: " + e.getMessage());
+        }
+    }
+    
 //minagawa^     
     public Properties getProperties() {
         return this.config;
@@ -6,7 +6,6 @@ import java.sql.*;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Properties;
@@ -24,6 +23,7 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
 import open.dolphin.common.OrcaConnect;
+import open.dolphin.common.OrcaMasterIndex;
 import open.dolphin.converter.*;
 import open.dolphin.infomodel.*;
 import org.codehaus.jackson.map.ObjectMapper;
@@ -351,6 +351,13 @@ public class OrcaResource {
         // 半角英数字を全角へ変換する
         name = StringTool.toZenkakuUpperLower(name);
 
+        // マスタの索引で答えられればそれを返す
+        OrcaMasterIndex index = ORCAConnection.getInstance().getMasterIndex();
+        List<TensuMaster> indexed = (index != null) ? index.getTensuMasterByName(name, now, partialMatch) : null;
+        if (indexed != null) {
+            return toTensuListConverter(indexed);
+        }
+
         // SQL 文
         boolean one = name.length()==1 ? true : false;
         StringBuilder buf = new StringBuilder();
@@ -432,6 +439,13 @@ public class OrcaResource {
         String regExp = params[0];
         String now = params[1];
 
+        // マスタの索引で答えられればそれを返す
+        OrcaMasterIndex index = ORCAConnection.getInstance().getMasterIndex();
+        List<TensuMaster> indexed = (index != null) ? index.getTensuMasterByCode(regExp, now) : null;
+        if (indexed != null) {
+            return toTensuListConverter(indexed);
+        }
+
         // 結果を格納するリスト
         ArrayList<TensuMaster> list = new ArrayList<TensuMaster>();
 
@@ -601,6 +615,17 @@ public class OrcaResource {
         String now = params[1];
         boolean partialMatch = Boolean.parseBoolean(params[2]);
 
+        // マスタの索引で答えられればそれを返す
+        OrcaMasterIndex index = ORCAConnection.getInstance().getMasterIndex();
+        List<DiseaseEntry> indexed = (index != null) ? index.getDiseaseByName(name, now, partialMatch) : null;
+        if (indexed != null) {
+            DiseaseList wrapper = new DiseaseList();
+            wrapper.setList(indexed);
+            DiseaseListConverter conv = new DiseaseListConverter();
+            conv.setModel(wrapper);
+            return conv;
+        }
+
         // 結果を格納するリスト
         ArrayList<DiseaseEntry> list = new ArrayList<DiseaseEntry>();
         
@@ -732,24 +757,30 @@ public class OrcaResource {
             return conv;
         }
 
+        // 相互作用マスタの表で答えられればそれを返す
+        OrcaMasterIndex index = ORCAConnection.getInstance().getMasterIndex();
+        List<DrugInteractionModel> indexed = (index != null) ? index.checkInteraction(input.getCodes1(), input.getCodes2()) : null;
+        if (indexed != null) {
+            ret.addAll(indexed);
+            return conv;
+        }
+
         // SQL文を作成
         StringBuilder sb = new StringBuilder();
         sb.append("select drugcd, drugcd2, TI.syojyoucd, syojyou ");
         sb.append("from tbl_interact TI inner join tbl_sskijyo TS on TI.syojyoucd = TS.syojyoucd ");
-        sb.append("where (drugcd in (");
-        sb.append(getCodes(input.getCodes1()));
-        sb.append(") and drugcd2 in (");
-        sb.append(getCodes(input.getCodes2()));
-        sb.append("))");
+        sb.append("where drugcd = any(?) and drugcd2 = any(?)");
         String sql = sb.toString();
 
         Connection con = null;
-        Statement st = null;
+        PreparedStatement st = null;
 
         try {
             con = getConnection();
-            st = con.createStatement();
-            ResultSet rs = st.executeQuery(sql);
+            st = con.prepareStatement(sql);
+            st.setArray(1, con.createArrayOf("varchar", input.getCodes1().toArray()));
+            st.setArray(2, con.createArrayOf("varchar", input.getCodes2().toArray()));
+            ResultSet rs = st.executeQuery();
 
             while (rs.next()) {
                 ret.add(new DrugInteractionModel(rs.getString(1), rs.getString(2), rs.getString(3), rs.getString(4)));
@@ -1838,6 +1869,14 @@ public class OrcaResource {
         return null;
     }
     
+    private TensuListConverter toTensuListConverter(List<TensuMaster> list) {
+        TensuList wrapper = new TensuList();
+        wrapper.setList(list);
+        TensuListConverter conv = new TensuListConverter();
+        conv.setModel(wrapper);
+        return conv;
+    }
+    
     private byte[] getXMLBytes(Object bean)  {
         ByteArrayOutputStream bo = new ByteArrayOutputStream();
         XMLEncoder e = new XMLEncoder(new BufferedOutputStream(bo));
@@ -1846,28 +1885,6 @@ public class OrcaResource {
         return bo.toByteArray();
     }
     
-    // srycdのListからカンマ区切りの文字列を作る
-    private String getCodes(Collection<String> srycdList){
-
-        StringBuilder sb = new StringBuilder();
-        boolean first = true;
-        for (String srycd : srycdList){
-            if (!first){
-                sb.append(",");
-            } else {
-                first = false;
-            }
-            sb.append(addSingleQuote(srycd));
-        }
-        return sb.toString();
-    }
-    
-    private String addSingleQuote(String str) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("'").append(str).append("'");
-        return sb.toString();
-    }
-    
     private Connection getConnection() throws SQLException {
 //minagawa^ 2013/08/29
         //return ds.getConnection();
@@ -0,0 +1,228 @@
+package open.dolphin.mbean;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+
+/**
+ * PatientSearchIndex の作成時間と検索時間を計る。データベースには接続しない。
+ *
+ * 合成した患者(氏名、カナ、アプリメモ、電話、携帯、郵便番号)を検索結果に見せかけて load() で読み込み、
+ * 前方一致・後方一致・部分一致で検索する。比較のため同じ行を、従来の LIKE と同じく全行を照合して検索し、
+ * 両者の結果が一致することも確かめる。SQL の往復と行の転送は含まない。
+ * 結果が一致しない場合は終了コード 1 で終わる。
+ * heap は索引の増分で、行の String は合成した行と共有するので含まない。
+ * custom.properties が無いと ORCAConnection が例外を表示するが、索引は既定の設定で動く。
+ *
+ * 引数 患者数 検索数(省略時 200000 500)
+ * surefire の対象にならないよう名前は *Benchmark とし、main から実行する。
+ */
+public class PatientSearchIndexBenchmark {
+
+    private static final String FID = "1.3.6.1.4.1.9414.70.1";
+
+    private static final String[][] FAMILY = {
+        {"佐藤", "サトウ"}, {"鈴木", "スズキ"}, {"高橋", "タカハシ"}, {"田中", "タナカ"}, {"伊藤", "イトウ"},
+        {"渡辺", "ワタナベ"}, {"山本", "ヤマモト"}, {"中村", "ナカムラ"}, {"小林", "コバヤシ"}, {"加藤", "カトウ"},
+        {"吉田", "ヨシダ"}, {"山田", "ヤマダ"}, {"佐々木", "ササキ"}, {"山口", "ヤマグチ"}, {"松本", "マツモト"},
+        {"井上", "イノウエ"}, {"木村", "キムラ"}, {"林", "ハヤシ"}, {"斎藤", "サイトウ"}, {"清水", "シミズ"},
+        {"山崎", "ヤマザキ"}, {"森", "モリ"}, {"池田", "イケダ"}, {"橋本", "ハシモト"}, {"阿部", "アベ"},
+        {"石川", "イシカワ"}, {"山下", "ヤマシタ"}, {"中島", "ナカジマ"}, {"石井", "イシイ"}, {"小川", "オガワ"},
+        {"前田", "マエダ"}, {"岡田", "オカダ"}, {"長谷川", "ハセガワ"}, {"藤田", "フジタ"}, {"後藤", "ゴトウ"},
+        {"近藤", "コンドウ"}, {"村上", "ムラカミ"}, {"遠藤", "エンドウ"}, {"青木", "アオキ"}, {"坂本", "サカモト"}
+    };
+
+    private static final String[][] GIVEN = {
+        {"太郎", "タロウ"}, {"花子", "ハナコ"}, {"一郎", "イチロウ"}, {"次郎", "ジロウ"}, {"健", "ケン"},
+        {"翔太", "ショウタ"}, {"陽菜", "ヒナ"}, {"結衣", "ユイ"}, {"大輔", "ダイスケ"}, {"美咲", "ミサキ"},
+        {"拓也", "タクヤ"}, {"さくら", "サクラ"}, {"直樹", "ナオキ"}, {"恵子", "ケイコ"}, {"浩", "ヒロシ"},
+        {"明美", "アケミ"}, {"誠", "マコト"}, {"由美", "ユミ"}, {"隆", "タカシ"}, {"久美子", "クミコ"},
+        {"蓮", "レン"}, {"葵", "アオイ"}, {"悠真", "ユウマ"}, {"陽翔", "ハルト"}, {"凛", "リン"},
+        {"修", "オサム"}, {"和子", "カズコ"}, {"茂", "シゲル"}, {"幸子", "サチコ"}, {"勇", "イサム"}
+    };
+
+    private static final String[] MEMO = {"要介護", "車椅子", "アレルギー注意", "難聴", "紹介状あり", "訪問診療", "自立支援"};
+
+    public static void main(String[] args) throws Exception {
+
+        int patientCount = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+        int queryCount = (args.length > 1) ? Integer.parseInt(args[1]) : 500;
+        Random random = new Random(1L);
+
+        // id, fullName, kanaName, appMemo, telephone, mobilePhone, zipCode
+        List<Object[]> rows = generate(random, patientCount);
+
+        PatientSearchIndex index = PatientSearchIndex.getInstance();
+        index.clear();
+        EntityManager em = entityManager(rows);
+
+        long heap = usedHeap();
+        long start = System.nanoTime();
+        index.load(em, FID);
+        long build = System.nanoTime() - start;
+        long indexHeap = usedHeap() - heap;
+
+        System.out.println("patients=" + index.size() + " queries=" + queryCount
+                + " build=" + (build / 1000000L) + "ms heap=" + (indexHeap >> 20) + "MB");
+
+        boolean ok = true;
+        ok &= run("kana     prefix  ", index, em, rows, PatientSearchIndex.KANA_NAME, PatientSearchIndex.PREFIX, keys(random, rows, 2, queryCount, 2, 4, true));
+        ok &= run("name     prefix  ", index, em, rows, PatientSearchIndex.FULL_NAME, PatientSearchIndex.PREFIX, keys(random, rows, 1, queryCount, 1, 3, true));
+        ok &= run("name     suffix  ", index, em, rows, PatientSearchIndex.FULL_NAME, PatientSearchIndex.SUFFIX, suffixes(random, rows, 1, queryCount));
+        ok &= run("kana     contains", index, em, rows, PatientSearchIndex.KANA_NAME, PatientSearchIndex.CONTAINS, keys(random, rows, 2, queryCount, 3, 5, false));
+        ok &= run("name     contains", index, em, rows, PatientSearchIndex.FULL_NAME, PatientSearchIndex.CONTAINS, keys(random, rows, 1, queryCount, 1, 3, false));
+        ok &= run("appMemo  contains", index, em, rows, PatientSearchIndex.APP_MEMO, PatientSearchIndex.CONTAINS, keys(random, rows, 3, queryCount, 2, 3, false));
+        ok &= run("phone    prefix  ", index, em, rows, PatientSearchIndex.TELEPHONE, PatientSearchIndex.PREFIX, keys(random, rows, 4, queryCount, 6, 9, true));
+        ok &= run("zip      prefix  ", index, em, rows, PatientSearchIndex.ZIP_CODE, PatientSearchIndex.PREFIX, keys(random, rows, 6, queryCount, 3, 6, true));
+
+        index.clear();
+        System.out.println(ok ? "OK" : "NG");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    // 索引と全行の照合で検索し、平均時間と結果の一致を表示する
+    private static boolean run(String name, PatientSearchIndex index, EntityManager em, List<Object[]> rows,
+            int field, int match, List<String> keys) {
+
+        // 慣らし
+        for (String key : keys) {
+            index.search(em, FID, field, match, key, 0);
+        }
+
+        long hits = 0;
+        long start = System.nanoTime();
+        List<List<Long>> results = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            List<Long> list = index.search(em, FID, field, match, key, 0);
+            hits += list.size();
+            results.add(list);
+        }
+        long indexNanos = System.nanoTime() - start;
+
+        // 全行の照合は重いので 1/10 だけ計って結果を比べる
+        int step = 10;
+        int wrong = 0;
+        int scanned = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < keys.size(); i += step) {
+            List<Long> expected = scan(rows, field, match, keys.get(i));
+            if (!expected.equals(results.get(i))) {
+                wrong++;
+            }
+            scanned++;
+        }
+        long scanNanos = System.nanoTime() - start;
+
+        System.out.println(name + " index avg=" + (indexNanos / keys.size() / 1000.0) + "us"
+                + " scan avg=" + (scanNanos / scanned / 1000.0) + "us"
+                + " hits avg=" + (hits / keys.size()) + " wrong=" + wrong);
+        return wrong == 0;
+    }
+
+    // LIKE と同じ照合 結果は PK の昇順
+    private static List<Long> scan(List<Object[]> rows, int field, int match, String value) {
+        List<Long> ret = new ArrayList<>();
+        for (Object[] r : rows) {
+            boolean hit = matches((String) r[field + 1], match, value);
+            if (!hit && field == PatientSearchIndex.TELEPHONE) {
+                // 電話と携帯
+                hit = matches((String) r[field + 2], match, value);
+            }
+            if (hit) {
+                ret.add((Long) r[0]);
+            }
+        }
+        Collections.sort(ret);
+        return ret;
+    }
+
+    private static boolean matches(String s, int match, String value) {
+        if (s == null) {
+            return false;
+        }
+        switch (match) {
+            case PatientSearchIndex.PREFIX:
+                return s.startsWith(value);
+            case PatientSearchIndex.SUFFIX:
+                return s.endsWith(value);
+            default:
+                return s.contains(value);
+        }
+    }
+
+    private static List<Object[]> generate(Random random, int count) {
+        List<Object[]> ret = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String[] family = FAMILY[random.nextInt(FAMILY.length)];
+            String[] given = GIVEN[random.nextInt(GIVEN.length)];
+            String memo = (random.nextInt(10) == 0) ? MEMO[random.nextInt(MEMO.length)] + " " + (1 + random.nextInt(9)) : null;
+            String telephone = String.format("0%d-%04d-%04d", 3 + random.nextInt(7), random.nextInt(10000), random.nextInt(10000));
+            String mobile = random.nextBoolean() ? String.format("0%d0-%04d-%04d", 7 + random.nextInt(3), random.nextInt(10000), random.nextInt(10000)) : null;
+            String zip = String.format("%03d-%04d", 100 + random.nextInt(900), random.nextInt(10000));
+            // 患者の PK は登録順の昇順
+            ret.add(new Object[]{(long) (i + 1), family[0] + "　" + given[0], family[1] + "　" + given[1], memo, telephone, mobile, zip});
+        }
+        return ret;
+    }
+
+    // 行の column 列から長さ min-max の検索語を作る prefix は先頭から
+    private static List<String> keys(Random random, List<Object[]> rows, int column, int count, int min, int max, boolean prefix) {
+        List<String> ret = new ArrayList<>(count);
+        while (ret.size() < count) {
+            String s = (String) rows.get(random.nextInt(rows.size()))[column];
+            if (s == null) {
+                continue;
+            }
+            int len = Math.min(s.length(), min + random.nextInt(max - min + 1));
+            int from = prefix ? 0 : random.nextInt(s.length() - len + 1);
+            ret.add(s.substring(from, from + len));
+        }
+        return ret;
+    }
+
+    // 名の末尾(ヒット数の多い後方一致)
+    private static List<String> suffixes(Random random, List<Object[]> rows, int column, int count) {
+        List<String> ret = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String s = (String) rows.get(random.nextInt(rows.size()))[column];
+            ret.add(s.substring(s.indexOf('　') + 1));
+        }
+        return ret;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // 全患者の検索には rows を、取り込み(p.id>:pk)には空の結果を返す EntityManager
+    private static EntityManager entityManager(List<Object[]> rows) {
+        return (EntityManager) Proxy.newProxyInstance(EntityManager.class.getClassLoader(), new Class<?>[]{EntityManager.class},
+                (proxy, method, args) -> {
+                    if (!"createQuery".equals(method.getName())) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    List<Object[]> result = ((String) args[0]).contains(">:pk") ? Collections.<Object[]>emptyList() : rows;
+                    return Proxy.newProxyInstance(TypedQuery.class.getClassLoader(), new Class<?>[]{TypedQuery.class},
+                            (p, m, a) -> {
+                                switch (m.getName()) {
+                                    case "setParameter":
+                                        return p;
+                                    case "getResultList":
+                                        return result;
+                                    default:
+                                        throw new UnsupportedOperationException(m.getName());
+                                }
+                            });
+                });
+    }
+}
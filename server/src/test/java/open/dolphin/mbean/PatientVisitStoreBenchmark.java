@@ -0,0 +1,223 @@
+package open.dolphin.mbean;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import open.dolphin.infomodel.PatientModel;
+import open.dolphin.infomodel.PatientVisitModel;
+
+/**
+ * PatientVisitStore と従来の CopyOnWriteArrayList の受付リストを、状態変更を並行させて比べる。
+ *
+ * 書き込みスレッドは ChartEventServiceBean.processPvtStateEvent と同じく、pvt の PK で受付を探して状態を書き換え、
+ * 患者の PK で同じ患者の受付に BIT_OPEN を立てる。CHURN 回に1回は受付を削除して新しい受付を追加する。
+ * 読み出しスレッドは /pvt2/pvtList と同じく一覧を先頭から読む。
+ * 従来の形は PK の線形探索、追加・削除のたびの配列のコピーになる。
+ *
+ * 引数 受付数(複数可、省略時 300 3000) -Dthreads=書き込みスレッド数 -Dreaders=読み出しスレッド数 -Dmillis=計測時間
+ * surefire の対象にならないよう名前は *Benchmark とし、main から実行する。
+ */
+public class PatientVisitStoreBenchmark {
+
+    private static final int CHURN = 50;
+
+    private interface Visits {
+
+        void add(PatientVisitModel pvt);
+
+        void remove(long pvtPk);
+
+        void changeState(long pvtPk, long ptPk, int state);
+
+        long read();
+    }
+
+    private static final class StoreVisits implements Visits {
+
+        private final PatientVisitStore store = new PatientVisitStore();
+
+        @Override
+        public void add(PatientVisitModel pvt) {
+            store.add(pvt);
+        }
+
+        @Override
+        public void remove(long pvtPk) {
+            store.remove(pvtPk);
+        }
+
+        @Override
+        public void changeState(long pvtPk, long ptPk, int state) {
+            PatientVisitModel model = store.get(pvtPk);
+            if (model != null) {
+                model.setState(state);
+            }
+            for (PatientVisitModel p : store.getByPatient(ptPk)) {
+                p.setStateBit(PatientVisitModel.BIT_OPEN, true);
+            }
+            store.touch(pvtPk);
+        }
+
+        @Override
+        public long read() {
+            long sum = 0;
+            for (PatientVisitModel p : store.getList()) {
+                sum += p.getState();
+            }
+            return sum;
+        }
+    }
+
+    // 0bd1d0b より前の ChartEventServiceBean と同じ操作
+    private static final class ListVisits implements Visits {
+
+        private final List<PatientVisitModel> list = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void add(PatientVisitModel pvt) {
+            list.add(pvt);
+        }
+
+        @Override
+        public void remove(long pvtPk) {
+            PatientVisitModel toRemove = null;
+            for (PatientVisitModel model : list) {
+                if (model.getId() == pvtPk) {
+                    toRemove = model;
+                    break;
+                }
+            }
+            if (toRemove != null) {
+                list.remove(toRemove);
+            }
+        }
+
+        @Override
+        public void changeState(long pvtPk, long ptPk, int state) {
+            for (PatientVisitModel model : list) {
+                if (model.getId() == pvtPk) {
+                    model.setState(state);
+                    break;
+                }
+            }
+            for (PatientVisitModel model : list) {
+                if (model.getPatientModel().getId() == ptPk) {
+                    model.setStateBit(PatientVisitModel.BIT_OPEN, true);
+                }
+            }
+        }
+
+        @Override
+        public long read() {
+            long sum = 0;
+            for (PatientVisitModel p : list) {
+                sum += p.getState();
+            }
+            return sum;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        int writers = Integer.getInteger("threads", 4);
+        int readers = Integer.getInteger("readers", 2);
+        long millis = Long.getLong("millis", 3000L);
+        int[] sizes = {300, 3000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.println("writers=" + writers + " readers=" + readers + " millis=" + millis + " churn=1/" + CHURN);
+        for (int size : sizes) {
+            // 1回目は慣らし
+            run("store", new StoreVisits(), size, writers, readers, millis / 3, false);
+            run("list ", new ListVisits(), size, writers, readers, millis / 3, false);
+            run("store", new StoreVisits(), size, writers, readers, millis, true);
+            run("list ", new ListVisits(), size, writers, readers, millis, true);
+        }
+    }
+
+    private static void run(String name, Visits visits, int size, int writers, int readers, long millis, boolean print) throws Exception {
+
+        // slot -> 現在の pvt PK、患者は2受付ずつ
+        AtomicLongArray slots = new AtomicLongArray(size);
+        AtomicLong nextPk = new AtomicLong();
+        for (int i = 0; i < size; i++) {
+            long pk = nextPk.incrementAndGet();
+            slots.set(i, pk);
+            visits.add(pvt(pk, i / 2));
+        }
+
+        LongAdder changes = new LongAdder();
+        LongAdder reads = new LongAdder();
+        long[] sink = new long[readers];
+        long end = System.nanoTime() + millis * 1000000L;
+
+        Thread[] threads = new Thread[writers + readers];
+        for (int t = 0; t < writers; t++) {
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long n = 0;
+                while (System.nanoTime() < end) {
+                    int slot = random.nextInt(size);
+                    if (random.nextInt(CHURN) == 0) {
+                        long old = slots.get(slot);
+                        long pk = nextPk.incrementAndGet();
+                        if (slots.compareAndSet(slot, old, pk)) {
+                            visits.remove(old);
+                            visits.add(pvt(pk, slot / 2));
+                        }
+                    } else {
+                        visits.changeState(slots.get(slot), slot / 2, random.nextInt(8));
+                    }
+                    n++;
+                }
+                changes.add(n);
+            });
+        }
+        for (int t = 0; t < readers; t++) {
+            int index = t;
+            threads[writers + t] = new Thread(() -> {
+                long n = 0;
+                long sum = 0;
+                while (System.nanoTime() < end) {
+                    sum += visits.read();
+                    n++;
+                }
+                sink[index] = sum;
+                reads.add(n);
+            });
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        if (print) {
+            double seconds = millis / 1000.0;
+            System.out.println(name + " visits=" + size
+                    + " changes/s=" + (long) (changes.sum() / seconds)
+                    + " reads/s=" + (long) (reads.sum() / seconds));
+        }
+        if (sink.length > 0 && sink[0] < 0) {
+            System.out.println(sink[0]);
+        }
+    }
+
+    private static PatientVisitModel pvt(long pk, long ptPk) {
+        PatientModel patient = new PatientModel();
+        patient.setId(ptPk);
+        PatientVisitModel pvt = new PatientVisitModel();
+        pvt.setId(pk);
+        pvt.setPatientModel(patient);
+        return pvt;
+    }
+}
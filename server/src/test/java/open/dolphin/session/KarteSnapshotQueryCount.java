@@ -0,0 +1,154 @@
+package open.dolphin.session;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import open.dolphin.infomodel.DocInfoModel;
+import open.dolphin.infomodel.KarteBean;
+import open.dolphin.infomodel.ObservationModel;
+import open.dolphin.infomodel.PatientMemoModel;
+import open.dolphin.infomodel.PatientModel;
+
+/**
+ * カルテオープン(KarteServiceBean.getKarte)で発行するクエリ数を確かめる。データベースには接続しない。
+ *
+ * クエリ数を数える EntityManager を KarteServiceBean へ設定し、getKarte の2つの版を呼ぶ。
+ * アレルギー、身長、体重、来院日、文書履歴、患者メモ、最終文書日を返し、KarteBean に設定されたことも確かめる。
+ * 従来はカルテ、アレルギー、身長、体重、来院日、文書履歴、患者メモ、最終文書日の8件。
+ * クエリ数が MAX_QUERIES を超えるか、設定が合わない場合は終了コード 1 で終わる。
+ *
+ * 引数 文書数 来院数 アレルギー数(省略時 200 50 3)
+ * surefire の対象にならないよう main から実行する。
+ */
+public class KarteSnapshotQueryCount {
+
+    // カルテ・メモ・最終文書日、Observation、来院日、文書履歴
+    private static final int MAX_QUERIES = 4;
+    private static final int OLD_QUERIES = 8;
+
+    private static final long KARTE_ID = 10L;
+    private static final long PATIENT_PK = 20L;
+
+    public static void main(String[] args) throws Exception {
+
+        int docCount = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+        int visitCount = (args.length > 1) ? Integer.parseInt(args[1]) : 50;
+        int allergyCount = (args.length > 2) ? Integer.parseInt(args[2]) : 3;
+
+        Date fromDate = new GregorianCalendar(2025, Calendar.OCTOBER, 17).getTime();
+
+        boolean ok = true;
+        for (int version = 0; version < 2; version++) {
+            int[] count = new int[1];
+            KarteServiceBean bean = new KarteServiceBean();
+            Field f = KarteServiceBean.class.getDeclaredField("em");
+            f.setAccessible(true);
+            f.set(bean, entityManager(count, docCount, visitCount, allergyCount));
+
+            KarteBean karte = (version == 0)
+                    ? bean.getKarte(PATIENT_PK, fromDate)
+                    : bean.getKarte("1.3.6.1.4.1.9414.70.1", "000001", fromDate);
+
+            boolean set = karte != null
+                    && size(karte.getAllergies()) == allergyCount
+                    && size(karte.getHeights()) == 1
+                    && size(karte.getWeights()) == 1
+                    && size(karte.getPatientVisits()) == visitCount
+                    && size(karte.getDocInfoList()) == docCount
+                    && size(karte.getMemoList()) == 1
+                    && karte.getLastDocDate() != null;
+            System.out.println((version == 0 ? "getKarte(patientPk)" : "getKarte(fid, pid)")
+                    + " queries=" + count[0] + " (max " + MAX_QUERIES + ", before " + OLD_QUERIES + ") docs=" + docCount
+                    + " visits=" + visitCount + " set=" + set);
+            ok &= (count[0] <= MAX_QUERIES && set);
+        }
+
+        System.out.println(ok ? "OK" : "NG");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    private static int size(List<?> list) {
+        return (list != null) ? list.size() : 0;
+    }
+
+    // createQuery の回数を数え、検索の種類ごとに合成した結果を返す EntityManager
+    private static EntityManager entityManager(int[] count, int docCount, int visitCount, int allergyCount) {
+        return (EntityManager) Proxy.newProxyInstance(EntityManager.class.getClassLoader(), new Class<?>[]{EntityManager.class},
+                (proxy, method, args) -> {
+                    if (!"createQuery".equals(method.getName())) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    count[0]++;
+                    List<Object> rows = rows((String) args[0], docCount, visitCount, allergyCount);
+                    return Proxy.newProxyInstance(TypedQuery.class.getClassLoader(), new Class<?>[]{TypedQuery.class},
+                            (p, m, a) -> {
+                                switch (m.getName()) {
+                                    case "setParameter":
+                                        return p;
+                                    case "getResultList":
+                                        return rows;
+                                    default:
+                                        throw new UnsupportedOperationException(m.getName());
+                                }
+                            });
+                });
+    }
+
+    private static List<Object> rows(String jpql, int docCount, int visitCount, int allergyCount) {
+
+        Date confirmed = new GregorianCalendar(2026, Calendar.OCTOBER, 16).getTime();
+        List<Object> ret = new ArrayList<>();
+
+        if (jpql.contains("right join p.karte k")) {
+            // カルテ、患者メモ、最終文書日
+            PatientModel patient = new PatientModel();
+            patient.setId(PATIENT_PK);
+            KarteBean karte = new KarteBean();
+            karte.setId(KARTE_ID);
+            karte.setPatientModel(patient);
+            PatientMemoModel memo = new PatientMemoModel();
+            memo.setKarteBean(karte);
+            ret.add(new Object[]{karte, memo, confirmed});
+
+        } else if (jpql.contains("ObservationModel")) {
+            for (int i = 0; i < allergyCount; i++) {
+                ret.add(observation(i + 1, "Allergy", "allergy" + i, confirmed));
+            }
+            ret.add(observation(allergyCount + 1, "PhysicalExam", "bodyHeight", confirmed));
+            ret.add(observation(allergyCount + 2, "PhysicalExam", "bodyWeight", confirmed));
+
+        } else if (jpql.contains("PatientVisitModel")) {
+            for (int i = 0; i < visitCount; i++) {
+                ret.add(String.format("2026-%02d-%02dT09:00:00", 1 + i % 9, 1 + i % 28));
+            }
+
+        } else if (jpql.contains("DocumentModel") && jpql.contains("d.docInfo")) {
+            for (int i = 0; i < docCount; i++) {
+                ret.add(new Object[]{100L + i, null, confirmed, confirmed, "F", new DocInfoModel()});
+            }
+
+        } else {
+            throw new IllegalArgumentException(jpql);
+        }
+        return ret;
+    }
+
+    private static ObservationModel observation(long id, String observation, String phenomenon, Date confirmed) {
+        ObservationModel o = new ObservationModel();
+        o.setId(id);
+        o.setObservation(observation);
+        o.setPhenomenon(phenomenon);
+        o.setValue("60");
+        o.setConfirmed(confirmed);
+        o.setRecorded(confirmed);
+        return o;
+    }
+}
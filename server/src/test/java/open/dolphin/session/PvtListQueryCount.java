@@ -0,0 +1,132 @@
+package open.dolphin.session;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import open.dolphin.infomodel.HealthInsuranceModel;
+import open.dolphin.infomodel.PatientModel;
+import open.dolphin.infomodel.PatientVisitModel;
+
+/**
+ * 受付リストの健康保険・予約・病名数の設定で発行するクエリ数を確かめる。データベースには接続しない。
+ *
+ * PVTServiceBean.getPvt と ChartEventServiceBean.initializePvtList が使う
+ * setHealthInsurances、setAppointments、setByomeiCounts を、クエリ数を数える EntityManager で呼ぶ。
+ * 患者ごとに健康保険・予約・病名を1件ずつ返し、来院情報に設定されたことも確かめる。
+ * クエリ数が 3 × (患者数 / ID_PAGE_SIZE の切り上げ) を超えるか、設定が合わない場合は終了コード 1 で終わる。
+ *
+ * 引数 来院数(複数可、省略時 1 10 100 500 501 2000)
+ * surefire の対象にならないよう main から実行する。
+ */
+public class PvtListQueryCount {
+
+    public static void main(String[] args) {
+
+        int[] sizes = {1, 10, 100, 500, 501, 2000};
+        if (args.length > 0) {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        boolean ok = true;
+        for (int size : sizes) {
+            List<PatientVisitModel> pvtList = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                PatientModel patient = new PatientModel();
+                patient.setId(1000L + i);
+                PatientVisitModel pvt = new PatientVisitModel();
+                pvt.setId(i + 1);
+                pvt.setPatientModel(patient);
+                pvt.setPvtDate("2026-10-17T09:00:00");
+                pvtList.add(pvt);
+            }
+
+            int[] count = new int[1];
+            EntityManager em = entityManager(count);
+            PVTServiceBean.setHealthInsurances(em, pvtList);
+            PVTServiceBean.setAppointments(em, pvtList, new Date());
+            ChartEventServiceBean.setByomeiCounts(em, pvtList);
+
+            int pages = (size + PVTServiceBean.ID_PAGE_SIZE - 1) / PVTServiceBean.ID_PAGE_SIZE;
+            int max = 3 * pages;
+            int wrong = 0;
+            for (PatientVisitModel pvt : pvtList) {
+                List<HealthInsuranceModel> insurances = pvt.getPatientModel().getHealthInsurances();
+                if (insurances == null || insurances.size() != 1
+                        || !("appo" + pvt.getPatientModel().getId()).equals(pvt.getAppointment())
+                        || pvt.getByomeiCount() != 1 || pvt.getByomeiCountToday() != 0) {
+                    wrong++;
+                }
+            }
+            // 従来は来院ごとに健康保険・カルテ・予約・病名の4件
+            System.out.println("pvt=" + size + " queries=" + count[0] + " (max " + max + ", per pvt " + (4 * size) + ") wrong=" + wrong);
+            ok &= (count[0] <= max && wrong == 0);
+        }
+
+        System.out.println(ok ? "OK" : "NG");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    // createQuery の回数を数え、IN の患者ごとに1件ずつ返す EntityManager
+    private static EntityManager entityManager(int[] count) {
+        return (EntityManager) Proxy.newProxyInstance(EntityManager.class.getClassLoader(), new Class<?>[]{EntityManager.class},
+                (proxy, method, args) -> {
+                    if (!"createQuery".equals(method.getName())) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    count[0]++;
+                    return query((String) args[0]);
+                });
+    }
+
+    private static TypedQuery<?> query(String jpql) {
+        Map<String, Object> params = new HashMap<>();
+        return (TypedQuery<?>) Proxy.newProxyInstance(TypedQuery.class.getClassLoader(), new Class<?>[]{TypedQuery.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "setParameter":
+                            params.put((String) args[0], args[1]);
+                            return proxy;
+                        case "getResultList":
+                            return rows(jpql, (Collection<?>) params.get("pks"));
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static List<Object> rows(String jpql, Collection<?> pks) {
+        List<Object> ret = new ArrayList<>();
+        // 来院日の前日に始まり終わっていない病名
+        Date started = new GregorianCalendar(2026, Calendar.OCTOBER, 16).getTime();
+        for (Object o : pks) {
+            Long pk = (Long) o;
+            if (jpql.contains("HealthInsuranceModel")) {
+                PatientModel patient = new PatientModel();
+                patient.setId(pk);
+                HealthInsuranceModel h = new HealthInsuranceModel();
+                h.setPatient(patient);
+                ret.add(h);
+            } else if (jpql.contains("AppointmentModel")) {
+                ret.add(new Object[]{pk, "appo" + pk});
+            } else if (jpql.contains("RegisteredDiagnosisModel")) {
+                ret.add(new Object[]{pk, started, null});
+            } else {
+                throw new IllegalArgumentException(jpql);
+            }
+        }
+        return ret;
+    }
+}